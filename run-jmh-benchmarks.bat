@@ -0,0 +1,6 @@
+@rem usage: run-jmh-benchmarks [include regex] [thread counts, e.g. 1,4,16,32]
+set INCLUDE=%~1
+set THREADS=%~2
+if "%INCLUDE%"=="" set INCLUDE=.*JmhBenchmark.*
+if "%THREADS%"=="" set THREADS=1,2,4,8,16
+mvn -Pjmh compile exec:exec -Djmh.include=%INCLUDE% -Djmh.threads=%THREADS%
@@ -0,0 +1,55 @@
+package concurrency.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the selected JMH benchmarks once per thread count and writes one JSON
+ * result file per thread count, see the jmh profile in pom.xml
+ *
+ * <pre>
+ * usage: JmhThreadSweep [include regex] [thread counts] [result directory]
+ *        JmhThreadSweep Counters 1,4,16,32 target/jmh
+ *
+ * For group benchmarks (@Group) the thread count is rounded up to a multiple of
+ * the group size.
+ * </pre>
+ */
+public class JmhThreadSweep {
+
+	public static void main(String[] args) throws RunnerException, IOException {
+		// an empty argument (e.g. from a script called without it) means the default
+		String include = argument(args, 0, ".*JmhBenchmark.*");
+		String threadCounts = argument(args, 1, "1,2,4,8,16");
+		Path results = Paths.get(argument(args, 2, "target/jmh"));
+		Files.createDirectories(results);
+
+		for (String threads : threadCounts.split(",")) {
+			if (threads.isBlank()) {
+				continue;
+			}
+			int t = Integer.parseInt(threads.trim());
+			Path result = results.resolve("jmh-threads-" + t + ".json");
+			Options options = new OptionsBuilder()
+					.include(include)
+					.threads(t)
+					.resultFormat(ResultFormatType.JSON)
+					.result(result.toString())
+					.build();
+			System.out.println("Running " + include + " with " + t + " threads, results: " + result);
+			new Runner(options).run();
+		}
+	}
+
+	private static String argument(String[] args, int index, String defaultValue) {
+		return args.length > index && !args[index].isBlank() ? args[index] : defaultValue;
+	}
+}
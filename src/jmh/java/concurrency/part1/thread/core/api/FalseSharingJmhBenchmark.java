@@ -0,0 +1,68 @@
+package concurrency.part1.thread.core.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import concurrency.part1.thread.core.api.FalseSharing.VolatileLongPadded;
+import concurrency.part1.thread.core.api.FalseSharing.VolatileLongUnPadded;
+
+/**
+ * JMH version of {@link FalseSharing}: every thread writes ITS OWN volatile
+ * long, the only difference is whether neighbouring longs share a cache line.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FalseSharingJmhBenchmark {
+
+	private static final int MAX_THREADS = 128;
+
+	@State(Scope.Benchmark)
+	public static class Longs {
+		final VolatileLongPadded[] paddedLongs = new VolatileLongPadded[MAX_THREADS];
+		final VolatileLongUnPadded[] unPaddedLongs = new VolatileLongUnPadded[MAX_THREADS];
+		final AtomicInteger nextSlot = new AtomicInteger();
+
+		public Longs() {
+			// allocated one after the other, so the unpadded ones sit next to each other
+			for (int i = 0; i < MAX_THREADS; i++) {
+				paddedLongs[i] = new VolatileLongPadded();
+				unPaddedLongs[i] = new VolatileLongUnPadded();
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Slot {
+		int index;
+		long value;
+
+		@Setup
+		public void setUp(Longs longs) {
+			index = longs.nextSlot.getAndIncrement() % MAX_THREADS;
+		}
+	}
+
+	@Benchmark
+	public void padded(Longs longs, Slot slot) {
+		longs.paddedLongs[slot.index].value = ++slot.value;
+	}
+
+	@Benchmark
+	public void unPadded(Longs longs, Slot slot) {
+		longs.unPaddedLongs[slot.index].value = ++slot.value;
+	}
+}
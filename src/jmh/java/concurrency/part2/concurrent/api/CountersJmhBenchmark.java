@@ -0,0 +1,72 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Counter (racy, lost updates), SynchronizedCounter and AtomicCounterz from
+ * {@link Atomic_NonBlockingAlgorithms} and the {@link StripedCounter}, all
+ * threads increment the SAME counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CountersJmhBenchmark {
+
+	private Counter counter;
+	private SynchronizedCounter synchronizedCounter;
+	private AtomicCounterz atomicCounter;
+	private StripedCounter stripedCounter;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		counter = new Counter();
+		synchronizedCounter = new SynchronizedCounter();
+		atomicCounter = new AtomicCounterz();
+		stripedCounter = new StripedCounter();
+	}
+
+	@Benchmark
+	public void counter() {
+		counter.increment();
+	}
+
+	@Benchmark
+	public void synchronizedCounter() {
+		synchronizedCounter.increment();
+	}
+
+	@Benchmark
+	public void atomicCounter() {
+		atomicCounter.increment();
+	}
+
+	@Benchmark
+	public int atomicCounterValue() {
+		return atomicCounter.value();
+	}
+
+	@Benchmark
+	public void stripedCounter() {
+		stripedCounter.increment();
+	}
+
+	@Benchmark
+	public long stripedCounterSum() {
+		return stripedCounter.sum();
+	}
+}
@@ -0,0 +1,94 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+/**
+ * The producer/consumer queues of {@link ProducerConsumerWithBlockingQueue} and
+ * {@link RingBufferBlockingQueue}, one producer and one consumer per group
+ * (change with -tg).
+ *
+ * offer()/poll() spin instead of put()/take(), because a thread blocked in
+ * put()/take() when the iteration ends would never return. For the same reason
+ * the hand-rolled BlockingQueue of CustomThreadPool (blocking calls only) is
+ * measured by RingBufferBlockingQueueBenchmark instead.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProducerConsumerQueuesJmhBenchmark {
+
+	private static final Integer MESSAGE = 42;
+
+	@Param({ "ArrayBlockingQueue", "LinkedBlockingQueue", "RingBufferBlockingQueue" })
+	public String queueType;
+
+	@Param({ "1024" })
+	public int capacity;
+
+	private BlockingQueue<Integer> queue;
+
+	@Setup
+	public void setUp() {
+		switch (queueType) {
+		case "ArrayBlockingQueue":
+			queue = new ArrayBlockingQueue<>(capacity);
+			break;
+		case "LinkedBlockingQueue":
+			queue = new LinkedBlockingQueue<>(capacity);
+			break;
+		case "RingBufferBlockingQueue":
+			queue = new RingBufferBlockingQueue<>(capacity);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown queue: " + queueType);
+		}
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public boolean produce(Control control) {
+		while (!queue.offer(MESSAGE)) {
+			if (control.stopMeasurement) {
+				return false;
+			}
+			Thread.onSpinWait();
+		}
+		return true;
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(1)
+	public Integer consume(Control control) {
+		Integer message;
+		while ((message = queue.poll()) == null) {
+			if (control.stopMeasurement) {
+				return null;
+			}
+			Thread.onSpinWait();
+		}
+		return message;
+	}
+}
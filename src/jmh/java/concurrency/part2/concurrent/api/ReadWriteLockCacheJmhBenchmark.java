@@ -0,0 +1,95 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link ReadWriteLock_CacheExample},
+ * {@link SynchronizedHashMapWithReadWriteLock} and
+ * {@link BoundedConcurrentCache} under a read-mostly load: 3 readers per
+ * writer (change the ratio with -tg, e.g. -tg 7,1).
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReadWriteLockCacheJmhBenchmark {
+
+	private static final int KEYS = 1_024;
+
+	private ReadWriteLock_CacheExample cache;
+	private SynchronizedHashMapWithReadWriteLock map;
+	private BoundedConcurrentCache<Long, String> boundedCache;
+
+	@Setup
+	public void setUp() {
+		cache = new ReadWriteLock_CacheExample();
+		map = new SynchronizedHashMapWithReadWriteLock();
+		boundedCache = BoundedConcurrentCache.<Long, String>newBuilder().maximumSize(KEYS).build();
+		for (long key = 0; key < KEYS; key++) {
+			cache.put(key, Long.toString(key));
+			map.put(Long.toString(key), Long.toString(key));
+			boundedCache.put(key, Long.toString(key));
+		}
+	}
+
+	@Benchmark
+	@Group("cache")
+	@GroupThreads(3)
+	public String cacheGet() {
+		return cache.get((long) ThreadLocalRandom.current().nextInt(KEYS));
+	}
+
+	@Benchmark
+	@Group("cache")
+	@GroupThreads(1)
+	public String cachePut() {
+		long key = ThreadLocalRandom.current().nextInt(KEYS);
+		return cache.put(key, Long.toString(key));
+	}
+
+	@Benchmark
+	@Group("map")
+	@GroupThreads(3)
+	public String mapGet() {
+		return map.get(Integer.toString(ThreadLocalRandom.current().nextInt(KEYS)));
+	}
+
+	@Benchmark
+	@Group("map")
+	@GroupThreads(1)
+	public void mapPut() {
+		String key = Integer.toString(ThreadLocalRandom.current().nextInt(KEYS));
+		map.put(key, key);
+	}
+
+	@Benchmark
+	@Group("boundedCache")
+	@GroupThreads(3)
+	public String boundedCacheGet() {
+		return boundedCache.get((long) ThreadLocalRandom.current().nextInt(KEYS));
+	}
+
+	@Benchmark
+	@Group("boundedCache")
+	@GroupThreads(1)
+	public String boundedCachePut() {
+		long key = ThreadLocalRandom.current().nextInt(KEYS);
+		return boundedCache.put(key, Long.toString(key));
+	}
+}
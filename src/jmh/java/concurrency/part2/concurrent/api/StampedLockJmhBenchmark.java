@@ -0,0 +1,117 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The {@link StampedLockDemo} variants: pessimistic get() vs
+ * readWithOptimisticLock(), with and without a concurrent writer, and the
+ * striped {@link OptimisticReadMap} under the same writer.
+ *
+ * The writer only overwrites existing keys, so the HashMap is never resized
+ * under an optimistic reader.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StampedLockJmhBenchmark {
+
+	private static final int KEYS = 1_024;
+	private static final String[] NAMES = new String[KEYS];
+
+	static {
+		for (int i = 0; i < KEYS; i++) {
+			NAMES[i] = "key-" + i;
+		}
+	}
+
+	private StampedLockDemo demo;
+	private OptimisticReadMap<String, String> map;
+
+	@Setup
+	public void setUp() {
+		demo = new StampedLockDemo();
+		map = OptimisticReadMap.newBuilder().initialCapacity(KEYS).build();
+		for (String key : NAMES) {
+			demo.put(key, key);
+			map.put(key, key);
+		}
+	}
+
+	private static String randomKey() {
+		return NAMES[ThreadLocalRandom.current().nextInt(KEYS)];
+	}
+
+	@Benchmark
+	@Group("readLock")
+	public String readLock() throws InterruptedException {
+		return demo.get(randomKey());
+	}
+
+	@Benchmark
+	@Group("optimisticRead")
+	public String optimisticRead() {
+		return demo.readWithOptimisticLock(randomKey());
+	}
+
+	@Benchmark
+	@Group("readLockWithWriter")
+	@GroupThreads(3)
+	public String readLockWithWriter() throws InterruptedException {
+		return demo.get(randomKey());
+	}
+
+	@Benchmark
+	@Group("readLockWithWriter")
+	@GroupThreads(1)
+	public void writerOfReadLock() {
+		String key = randomKey();
+		demo.put(key, key);
+	}
+
+	@Benchmark
+	@Group("optimisticReadWithWriter")
+	@GroupThreads(3)
+	public String optimisticReadWithWriter() {
+		return demo.readWithOptimisticLock(randomKey());
+	}
+
+	@Benchmark
+	@Group("optimisticReadWithWriter")
+	@GroupThreads(1)
+	public void writerOfOptimisticRead() {
+		String key = randomKey();
+		demo.put(key, key);
+	}
+
+	@Benchmark
+	@Group("stripedWithWriter")
+	@GroupThreads(3)
+	public String stripedWithWriter() {
+		return map.get(randomKey());
+	}
+
+	@Benchmark
+	@Group("stripedWithWriter")
+	@GroupThreads(1)
+	public void writerOfStriped() {
+		String key = randomKey();
+		map.put(key, key);
+	}
+}
@@ -32,6 +32,13 @@ public class ACustomizableThreadPools {
 		invokeAllExample(threadPoolExecutor);
 		threadPoolExecutor.shutdown();
 
+		System.out.println("Work stealing customized pool");
+		ExecutorService workStealingPool = getMyWorkStealingExecutorService(4, 1_000);
+		System.out.println(workStealingPool.submit(c).get());
+		invokeAllExample(workStealingPool);
+		workStealingPool.shutdown();
+		workStealingPool.awaitTermination(5, TimeUnit.SECONDS);
+
 		System.out.println("Scheduled customized pool");
 		ScheduledThreadPoolExecutor scheduledThreadPoolExecutor = getMyScheduledExecutorService(4);
 		ScheduledFuture<String> schedule = scheduledThreadPoolExecutor.schedule(new Callable<String>() {
@@ -55,6 +62,15 @@ public class ACustomizableThreadPools {
 		return threadPoolExecutor;
 	}
 
+	/**
+	 * Drop-in for {@link #getMyExecutorService(int, int, long)} when many small
+	 * tasks are submitted from many threads, see {@link WorkStealingThreadPool}
+	 */
+	public static ExecutorService getMyWorkStealingExecutorService(int noOfThreads, int maxQueuedTasks) {
+		return new WorkStealingThreadPool(noOfThreads, maxQueuedTasks, WorkStealingThreadPool.RejectionPolicy.CALLER_RUNS,
+				new MyThreadFactory("WorkStealingPool"));
+	}
+
 	public static ScheduledThreadPoolExecutor getMyScheduledExecutorService(int corePoolSize) {
 		ScheduledThreadPoolExecutor threadPoolExecutor = new ScheduledThreadPoolExecutor(corePoolSize);
 
@@ -6,7 +6,6 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -182,6 +181,13 @@ public class A_ExecutorServiceThreadPoolsDemo {
 
 		System.out.println("mergedResult = " + mergedResult);
 
+		// the same without a fixed threshold: splits while forkJoinPool has idle
+		// workers, computes one half in place, no boxing
+		System.out.println(" -- AdaptiveForkJoin --");
+		AdaptiveForkJoin engine = AdaptiveForkJoin.newBuilder().pool(forkJoinPool).build();
+		System.out.println("sum of 0..10^8 = " + engine.sumRange(0, 100_000_001, i -> i) + ", in "
+				+ engine.getLeafCount() + " leaves");
+
 		System.out.println();
 		System.out.println("Java Executor newWorkStealingPool() Method");
 		ExecutorService excr = Executors.newWorkStealingPool();
@@ -318,6 +324,10 @@ class MyRecursiveAction extends RecursiveAction {
 
 }
 
+/**
+ * Fixed threshold, both halves forked, a println per split: fine to watch the
+ * splitting, slow for real work, see {@link AdaptiveForkJoin}.
+ */
 class MyRecursiveTask extends RecursiveTask<Long> {
 
 	private long workLoad = 0;
@@ -565,7 +575,7 @@ class ThreadPool {
 	private boolean isStopped = false;
 
 	public ThreadPool(int noOfThreads, int maxNoOfTasks) {
-		taskQueue = new ArrayBlockingQueue<>(maxNoOfTasks);
+		taskQueue = new RingBufferBlockingQueue<>(maxNoOfTasks);
 
 		for (int i = 0; i < noOfThreads; i++) {
 			threads.add(new PoolThread(taskQueue));
@@ -579,7 +589,7 @@ class ThreadPool {
 		if (this.isStopped)
 			throw new IllegalStateException("ThreadPool is stopped");
 
-		this.taskQueue.take(); // enqueue(task);
+		this.taskQueue.put(task); // enqueue(task);
 	}
 
 	public synchronized void stop() {
@@ -0,0 +1,346 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A concurrency limit which is not configured but LEARNED from the calls it
+ * lets through, like TCP congestion control:
+ *
+ * <pre>
+ * acquire() --limit free?--yes--> Permit --call--> onSuccess() / onDropped()
+ *               |                                        |
+ *               no: wait in FIFO queue (maxQueued)        v
+ *                                         LimitAlgorithm.update(limit, rtt, dropped)
+ * </pre>
+ *
+ * Too many in-flight calls first show up as a longer round trip time (the
+ * other side queues them) and then as errors (timeouts, 429, 503, connection
+ * refused). The algorithms react to both:
+ *
+ * <pre>
+ * Aimd      additive increase, multiplicative decrease: +1 per success while
+ *           the limit is used, * backoffRatio on a drop. Reacts to errors only.
+ * Gradient  Vegas style: compares the short term rtt with the long term (no
+ *           load) rtt. rtt grows -> gradient < 1 -> limit shrinks BEFORE the
+ *           first error. Plus a queue of sqrt(limit) to probe for more.
+ * </pre>
+ *
+ * acquire() never blocks a thread, a call over the limit gets a future which
+ * completes when a permit is free; the wait is recorded as queueing delay.
+ * getLimit(), getInFlight(), getQueued() and getQueueingDelay() are the
+ * metrics to publish.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+	/** computes the next limit from one sample, called under the limiter's lock */
+	public interface LimitAlgorithm {
+
+		int getInitialLimit();
+
+		/**
+		 * @param limit    current limit
+		 * @param rttNanos round trip time of the call, from permit to release
+		 * @param inFlight calls in flight when this one finished, itself included
+		 * @param dropped  the call failed because of load: timeout, 429, 503, ...
+		 * @return the new limit, at least 1
+		 */
+		int update(int limit, long rttNanos, int inFlight, boolean dropped);
+	}
+
+	/** additive increase, multiplicative decrease */
+	public static final class Aimd implements LimitAlgorithm {
+		private final int initialLimit;
+		private final int minLimit;
+		private final int maxLimit;
+		private final double backoffRatio;
+		private final long timeoutNanos;
+
+		/**
+		 * @param backoffRatio limit * backoffRatio on a drop, e.g. 0.9
+		 * @param timeoutNanos a success slower than this counts as a drop
+		 */
+		public Aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeoutNanos) {
+			if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+				throw new IllegalArgumentException(
+						"expected 1 <= minLimit <= initialLimit <= maxLimit: " + minLimit + ", " + initialLimit + ", "
+								+ maxLimit);
+			}
+			if (backoffRatio <= 0 || backoffRatio >= 1) {
+				throw new IllegalArgumentException("backoffRatio must be in (0, 1): " + backoffRatio);
+			}
+			this.initialLimit = initialLimit;
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.backoffRatio = backoffRatio;
+			this.timeoutNanos = timeoutNanos;
+		}
+
+		@Override
+		public int getInitialLimit() {
+			return initialLimit;
+		}
+
+		@Override
+		public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+			if (dropped || rttNanos > timeoutNanos) {
+				return Math.max(minLimit, (int) (limit * backoffRatio));
+			}
+			// only grow a limit which is used, an idle client proves nothing
+			if (inFlight * 2 >= limit) {
+				return Math.min(maxLimit, limit + 1);
+			}
+			return limit;
+		}
+	}
+
+	/**
+	 * Gradient of the no-load rtt over the current rtt:
+	 *
+	 * <pre>
+	 * shortRtt = EWMA of the last ~10 samples
+	 * longRtt  = EWMA of the last ~600 samples, the baseline
+	 * gradient = clamp(tolerance * longRtt / shortRtt, 0.5, 1)
+	 * newLimit = limit * gradient + sqrt(limit)       (the probing queue)
+	 * limit    = limit * (1 - smoothing) + newLimit * smoothing
+	 * </pre>
+	 *
+	 * After a long overload the baseline drifts up, it is pulled back down when
+	 * shortRtt is clearly below it. A drop halves the limit.
+	 */
+	public static final class Gradient implements LimitAlgorithm {
+		private final int initialLimit;
+		private final int minLimit;
+		private final int maxLimit;
+		private final double tolerance;
+		private final double smoothing;
+		private double estimatedLimit;
+		private double shortRtt;
+		private double longRtt;
+
+		/**
+		 * @param tolerance rtt may grow by this factor before the limit shrinks, e.g.
+		 *                  1.5
+		 */
+		public Gradient(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+			if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+				throw new IllegalArgumentException(
+						"expected 1 <= minLimit <= initialLimit <= maxLimit: " + minLimit + ", " + initialLimit + ", "
+								+ maxLimit);
+			}
+			if (tolerance < 1) {
+				throw new IllegalArgumentException("tolerance must be >= 1: " + tolerance);
+			}
+			this.initialLimit = initialLimit;
+			this.minLimit = minLimit;
+			this.maxLimit = maxLimit;
+			this.tolerance = tolerance;
+			this.smoothing = 0.2;
+			this.estimatedLimit = initialLimit;
+		}
+
+		@Override
+		public int getInitialLimit() {
+			return initialLimit;
+		}
+
+		@Override
+		public int update(int limit, long rttNanos, int inFlight, boolean dropped) {
+			if (dropped) {
+				estimatedLimit = Math.max(minLimit, estimatedLimit / 2);
+				return (int) estimatedLimit;
+			}
+			if (longRtt == 0) {
+				shortRtt = longRtt = rttNanos;
+			} else {
+				shortRtt += (rttNanos - shortRtt) / 10;
+				longRtt += (rttNanos - longRtt) / 600;
+				if (longRtt / shortRtt > 2) {
+					// load went away, do not keep the overload baseline
+					longRtt *= 0.95;
+				}
+			}
+			// an under used limit says nothing about the rtt at that limit
+			if (inFlight < estimatedLimit / 2) {
+				return (int) estimatedLimit;
+			}
+			double gradient = Math.max(0.5, Math.min(1.0, tolerance * longRtt / shortRtt));
+			double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+			estimatedLimit = Math.max(minLimit,
+					Math.min(maxLimit, estimatedLimit * (1 - smoothing) + newLimit * smoothing));
+			return (int) estimatedLimit;
+		}
+	}
+
+	/**
+	 * One granted call. Exactly one of onSuccess, onDropped or onIgnore must be
+	 * called, further calls are ignored.
+	 */
+	public final class Permit {
+		private final long grantedNanos = System.nanoTime();
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		/** the call worked, its rtt is a sample */
+		public void onSuccess() {
+			release(System.nanoTime() - grantedNanos, false, true);
+		}
+
+		/** the call failed because of load, the limit goes down */
+		public void onDropped() {
+			release(System.nanoTime() - grantedNanos, true, true);
+		}
+
+		/** the call says nothing about load, e.g. cancelled or a bad request */
+		public void onIgnore() {
+			release(0, false, false);
+		}
+
+		private void release(long rttNanos, boolean dropped, boolean sample) {
+			if (released.compareAndSet(false, true)) {
+				AdaptiveConcurrencyLimiter.this.release(rttNanos, dropped, sample);
+			}
+		}
+	}
+
+	private record Waiter(CompletableFuture<Permit> future, long enqueuedNanos) {
+	}
+
+	private final String name;
+	private final LimitAlgorithm algorithm;
+	private final int maxQueued;
+	private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+	private final LatencyHistogram queueingDelay = new LatencyHistogram();
+	private final StripedCounter dropped = new StripedCounter();
+	private final StripedCounter rejected = new StripedCounter();
+	private int limit;
+	private int inFlight;
+
+	/**
+	 * @param maxQueued calls waiting for a permit, more are rejected with
+	 *                  RejectedExecutionException
+	 */
+	public AdaptiveConcurrencyLimiter(String name, LimitAlgorithm algorithm, int maxQueued) {
+		this.name = Objects.requireNonNull(name);
+		this.algorithm = Objects.requireNonNull(algorithm);
+		this.maxQueued = maxQueued;
+		this.limit = algorithm.getInitialLimit();
+	}
+
+	/**
+	 * A permit now if the limit allows, otherwise when one is released. The
+	 * returned future may be cancelled to leave the queue, it then no longer
+	 * counts against maxQueued.
+	 */
+	public CompletableFuture<Permit> acquire() {
+		int currentLimit;
+		synchronized (this) {
+			if (inFlight < limit && waiters.isEmpty()) {
+				inFlight++;
+				queueingDelay.record(0);
+				return CompletableFuture.completedFuture(new Permit());
+			}
+			if (waiters.size() < maxQueued) {
+				CompletableFuture<Permit> future = new CompletableFuture<>();
+				Waiter waiter = new Waiter(future, System.nanoTime());
+				waiters.add(waiter);
+				future.whenComplete((permit, failure) -> {
+					if (future.isCancelled()) {
+						leave(waiter);
+					}
+				});
+				return future;
+			}
+			currentLimit = limit;
+		}
+		rejected.increment();
+		return CompletableFuture
+				.failedFuture(new RejectedExecutionException(name + ": limit " + currentLimit + " and queue full"));
+	}
+
+	private synchronized void leave(Waiter waiter) {
+		waiters.remove(waiter);
+	}
+
+	/** a permit if the limit allows right now, otherwise null */
+	public Permit tryAcquire() {
+		synchronized (this) {
+			if (inFlight < limit && waiters.isEmpty()) {
+				inFlight++;
+				queueingDelay.record(0);
+				return new Permit();
+			}
+		}
+		return null;
+	}
+
+	private void release(long rttNanos, boolean drop, boolean sample) {
+		List<Waiter> granted = new ArrayList<>();
+		synchronized (this) {
+			if (sample) {
+				limit = Math.max(1, algorithm.update(limit, rttNanos, inFlight, drop));
+			}
+			inFlight--;
+			Waiter waiter;
+			while (inFlight < limit && (waiter = waiters.poll()) != null) {
+				if (!waiter.future().isDone()) { // not cancelled
+					inFlight++;
+					granted.add(waiter);
+				}
+			}
+		}
+		if (drop) {
+			dropped.increment();
+		}
+		// completed outside of the lock, the callers' continuations run here
+		long now = System.nanoTime();
+		for (Waiter waiter : granted) {
+			queueingDelay.record(now - waiter.enqueuedNanos());
+			if (!waiter.future().complete(new Permit())) {
+				// cancelled in between
+				release(0, false, false);
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized int getLimit() {
+		return limit;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return waiters.size();
+	}
+
+	/** time from acquire() to permit, 0 when there was no wait */
+	public LatencyHistogram getQueueingDelay() {
+		return queueingDelay;
+	}
+
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	@Override
+	public String toString() {
+		return name + "[limit = " + getLimit() + ", inFlight = " + getInFlight() + ", queued = " + getQueued()
+				+ ", dropped = " + getDroppedCount() + ", rejected = " + getRejectedCount() + ", queueing p99 = "
+				+ TimeUnit.NANOSECONDS.toMillis(queueingDelay.getValueAtPercentile(99)) + "ms]";
+	}
+}
@@ -0,0 +1,304 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Divide and conquer over index ranges and primitive arrays, without a fixed
+ * threshold.
+ *
+ * <pre>
+ * MyRecursiveTask (A_ExecutorServiceThreadPoolsDemo)   AdaptiveForkJoin
+ * split while workLoad > 16: the same cutoff on 1     split while the pool has work to steal
+ *   core and on 64, for 100 and for 10^9 elements       for: getSurplusQueuedTaskCount() <= surplus,
+ *                                                        never below minChunk
+ * fork() both halves, join() both: the current        fork() the right half, go on with the left
+ *   thread only waits                                   one IN PLACE, tryUnfork() what nobody stole
+ * println on every split, boxed Long results          primitive results, no allocation per element
+ * </pre>
+ *
+ * getSurplusQueuedTaskCount() is how many more tasks this worker has queued
+ * than idle workers are likely to steal: a few means the others are busy or
+ * fed, so splitting further only costs task overhead, the rest is computed
+ * sequentially. Idle workers make it 0 and the range keeps splitting; a busy
+ * pool gets big leaves. The cutoff adapts to cores, load and element cost.
+ *
+ * Results are combined in index order, the combiner only needs to be
+ * associative.
+ */
+public class AdaptiveForkJoin {
+
+	/** sequential reduction of [from, to) */
+	@FunctionalInterface
+	public interface LongRangeFunction {
+		long apply(long from, long to);
+	}
+
+	@FunctionalInterface
+	public interface DoubleRangeFunction {
+		double apply(long from, long to);
+	}
+
+	@FunctionalInterface
+	public interface RangeAction {
+		void run(long from, long to);
+	}
+
+	private final ForkJoinPool pool;
+	private final long minChunk;
+	private final int surplus;
+	private final StripedCounter leaves = new StripedCounter();
+
+	private AdaptiveForkJoin(Builder builder) {
+		this.pool = builder.pool;
+		this.minChunk = builder.minChunk;
+		this.surplus = builder.surplus;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/** the common pool, default settings */
+	public static AdaptiveForkJoin common() {
+		return newBuilder().build();
+	}
+
+	public long reduce(long from, long to, LongRangeFunction leaf, LongBinaryOperator combiner) {
+		checkRange(from, to);
+		LongTask task = new LongTask(from, to, leaf, combiner, null);
+		pool.invoke(task);
+		return task.result;
+	}
+
+	public double reduceToDouble(long from, long to, DoubleRangeFunction leaf, DoubleBinaryOperator combiner) {
+		checkRange(from, to);
+		DoubleTask task = new DoubleTask(from, to, leaf, combiner, null);
+		pool.invoke(task);
+		return task.result;
+	}
+
+	/** the RecursiveAction case: runs action on disjoint sub ranges covering [from, to) */
+	public void forEachRange(long from, long to, RangeAction action) {
+		reduce(from, to, (lo, hi) -> {
+			action.run(lo, hi);
+			return 0L;
+		}, Long::sum);
+	}
+
+	/** mapper(from) + ... + mapper(to - 1) */
+	public long sumRange(long from, long to, LongUnaryOperator mapper) {
+		return reduce(from, to, (lo, hi) -> {
+			long sum = 0;
+			for (long i = lo; i < hi; i++) {
+				sum += mapper.applyAsLong(i);
+			}
+			return sum;
+		}, Long::sum);
+	}
+
+	public long sum(int[] array) {
+		return reduce(0, array.length, (lo, hi) -> {
+			long sum = 0;
+			for (int i = (int) lo; i < (int) hi; i++) {
+				sum += array[i];
+			}
+			return sum;
+		}, Long::sum);
+	}
+
+	public long sum(long[] array) {
+		return reduce(0, array.length, (lo, hi) -> {
+			long sum = 0;
+			for (int i = (int) lo; i < (int) hi; i++) {
+				sum += array[i];
+			}
+			return sum;
+		}, Long::sum);
+	}
+
+	/** not the same rounding as a sequential sum: the partial sums are added up */
+	public double sum(double[] array) {
+		return reduceToDouble(0, array.length, (lo, hi) -> {
+			double sum = 0;
+			for (int i = (int) lo; i < (int) hi; i++) {
+				sum += array[i];
+			}
+			return sum;
+		}, Double::sum);
+	}
+
+	/** identity must be the identity of op, e.g. Long.MIN_VALUE for Math::max */
+	public long reduce(long[] array, long identity, LongBinaryOperator op) {
+		return reduce(0, array.length, (lo, hi) -> {
+			long result = identity;
+			for (int i = (int) lo; i < (int) hi; i++) {
+				result = op.applyAsLong(result, array[i]);
+			}
+			return result;
+		}, op);
+	}
+
+	public double reduce(double[] array, double identity, DoubleBinaryOperator op) {
+		return reduceToDouble(0, array.length, (lo, hi) -> {
+			double result = identity;
+			for (int i = (int) lo; i < (int) hi; i++) {
+				result = op.applyAsDouble(result, array[i]);
+			}
+			return result;
+		}, op);
+	}
+
+	/** sequential leaves computed so far: (to - from) / leaves is the cutoff chosen */
+	public long getLeafCount() {
+		return leaves.sum();
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	private static void checkRange(long from, long to) {
+		if (from > to) {
+			throw new IllegalArgumentException("from > to: " + from + " > " + to);
+		}
+	}
+
+	/** splits [lo, hi) while it pays off, the left half stays with this task */
+	private long split(long lo, long hi) {
+		long mid = lo + ((hi - lo) >>> 1); // (lo + hi) >>> 1 is wrong for negative lo
+		return hi - lo > minChunk && ForkJoinTask.getSurplusQueuedTaskCount() <= surplus ? mid : hi;
+	}
+
+	/**
+	 * The forked right halves form a stack (next), the newest is the nearest
+	 * to the left part: combining while popping keeps the index order.
+	 */
+	@SuppressWarnings("serial")
+	private final class LongTask extends RecursiveAction {
+		final long lo;
+		final long hi;
+		final LongRangeFunction leaf;
+		final LongBinaryOperator combiner;
+		final LongTask next;
+		long result;
+
+		LongTask(long lo, long hi, LongRangeFunction leaf, LongBinaryOperator combiner, LongTask next) {
+			this.lo = lo;
+			this.hi = hi;
+			this.leaf = leaf;
+			this.combiner = combiner;
+			this.next = next;
+		}
+
+		@Override
+		protected void compute() {
+			long h = hi;
+			long mid;
+			LongTask forked = null;
+			while ((mid = split(lo, h)) < h) {
+				forked = new LongTask(mid, h, leaf, combiner, forked);
+				forked.fork();
+				h = mid;
+			}
+			leaves.increment();
+			long r = leaf.apply(lo, h);
+			for (; forked != null; forked = forked.next) {
+				if (forked.tryUnfork()) { // nobody stole it
+					forked.compute();
+				} else {
+					forked.join();
+				}
+				r = combiner.applyAsLong(r, forked.result);
+			}
+			result = r;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class DoubleTask extends RecursiveAction {
+		final long lo;
+		final long hi;
+		final DoubleRangeFunction leaf;
+		final DoubleBinaryOperator combiner;
+		final DoubleTask next;
+		double result;
+
+		DoubleTask(long lo, long hi, DoubleRangeFunction leaf, DoubleBinaryOperator combiner, DoubleTask next) {
+			this.lo = lo;
+			this.hi = hi;
+			this.leaf = leaf;
+			this.combiner = combiner;
+			this.next = next;
+		}
+
+		@Override
+		protected void compute() {
+			long h = hi;
+			long mid;
+			DoubleTask forked = null;
+			while ((mid = split(lo, h)) < h) {
+				forked = new DoubleTask(mid, h, leaf, combiner, forked);
+				forked.fork();
+				h = mid;
+			}
+			leaves.increment();
+			double r = leaf.apply(lo, h);
+			for (; forked != null; forked = forked.next) {
+				if (forked.tryUnfork()) {
+					forked.compute();
+				} else {
+					forked.join();
+				}
+				r = combiner.applyAsDouble(r, forked.result);
+			}
+			result = r;
+		}
+	}
+
+	public static final class Builder {
+		private ForkJoinPool pool = ForkJoinPool.commonPool();
+		private long minChunk = 1_024;
+		private int surplus = 3;
+
+		private Builder() {
+		}
+
+		public Builder pool(ForkJoinPool pool) {
+			if (pool == null) {
+				throw new IllegalArgumentException("pool is null");
+			}
+			this.pool = pool;
+			return this;
+		}
+
+		/** a range of at most minChunk elements is never split, however idle the pool */
+		public Builder minChunk(long minChunk) {
+			if (minChunk < 1) {
+				throw new IllegalArgumentException("minChunk must be >= 1: " + minChunk);
+			}
+			this.minChunk = minChunk;
+			return this;
+		}
+
+		/**
+		 * queued tasks in excess of the idle workers up to which a range still
+		 * splits, 3 as suggested by the ForkJoinTask javadoc
+		 */
+		public Builder surplus(int surplus) {
+			if (surplus < 0) {
+				throw new IllegalArgumentException("surplus must be >= 0: " + surplus);
+			}
+			this.surplus = surplus;
+			return this;
+		}
+
+		public AdaptiveForkJoin build() {
+			return new AdaptiveForkJoin(this);
+		}
+	}
+}
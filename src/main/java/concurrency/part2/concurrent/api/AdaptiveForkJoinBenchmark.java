@@ -0,0 +1,145 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.LongSupplier;
+import java.util.stream.LongStream;
+
+/**
+ * Sums of 10^6 .. 10^9 elements:
+ *
+ * <pre>
+ * array   int[] of n random ints, as long as it fits in the heap (4 bytes each)
+ * range   sum of a cheap hash of i over [0, n), no memory at all
+ *
+ * sequential       a plain loop
+ * parallel stream  Arrays.stream(array).asLongStream().parallel().sum(),
+ *                  LongStream.range(0, n).parallel().map(hash).sum()
+ * AdaptiveForkJoin sum(array), sumRange(0, n, hash), on the common pool
+ * fixed 16         MyRecursiveTask's split: fork both halves down to 16 elements
+ *                  (only up to 10^7, it is far slower)
+ *
+ * usage: AdaptiveForkJoinBenchmark [largest exponent, default 9]
+ * </pre>
+ *
+ * Printed: milliseconds per sum and, for AdaptiveForkJoin, the average leaf
+ * size it settled on. Every case runs twice, only the second (warmed up) run
+ * is printed; results are checked against the sequential sum.
+ */
+public class AdaptiveForkJoinBenchmark {
+
+	public static void main(String[] args) {
+		int maxExponent = args.length > 0 ? Integer.parseInt(args[0]) : 9;
+		AdaptiveForkJoin engine = AdaptiveForkJoin.common();
+		System.out.printf("%d cores, common pool parallelism %d, ms per sum%n%n",
+				Runtime.getRuntime().availableProcessors(), ForkJoinPool.getCommonPoolParallelism());
+		System.out.printf("%-6s %-6s %12s %12s %12s %12s %12s%n", "", "n", "sequential", "par. stream", "adaptive",
+				"leaf size", "fixed 16");
+
+		for (int exponent = 6; exponent <= maxExponent; exponent++) {
+			long n = pow10(exponent);
+			// heap for the array, with room to spare
+			if (n <= Integer.MAX_VALUE - 8 && n * 4 * 2 < Runtime.getRuntime().maxMemory()) {
+				int[] array = new Random(n).ints((int) n).toArray();
+				long expected = sequential(array);
+				long leavesBefore = engine.getLeafCount();
+				System.out.printf("%-6s 10^%-3d %12.2f %12.2f %12.2f", "array", exponent,
+						time(() -> sequential(array), expected),
+						time(() -> Arrays.stream(array).asLongStream().parallel().sum(), expected),
+						time(() -> engine.sum(array), expected));
+				System.out.printf(" %12d", n * 2 / Math.max(1, engine.getLeafCount() - leavesBefore));
+				if (exponent <= 7) {
+					System.out.printf(" %12.2f",
+							time(() -> ForkJoinPool.commonPool().invoke(new FixedSplit(array, 0, array.length)), expected));
+				}
+				System.out.println();
+			} else {
+				System.out.printf("%-6s 10^%-3d %12s%n", "array", exponent, "(heap)");
+			}
+
+			long expected = sequential(n);
+			long leavesBefore = engine.getLeafCount();
+			System.out.printf("%-6s 10^%-3d %12.2f %12.2f %12.2f", "range", exponent, time(() -> sequential(n), expected),
+					time(() -> LongStream.range(0, n).parallel().map(AdaptiveForkJoinBenchmark::hash).sum(), expected),
+					time(() -> engine.sumRange(0, n, AdaptiveForkJoinBenchmark::hash), expected));
+			System.out.printf(" %12d%n", n * 2 / Math.max(1, engine.getLeafCount() - leavesBefore));
+		}
+	}
+
+	private static long pow10(int exponent) {
+		long n = 1;
+		for (int i = 0; i < exponent; i++) {
+			n *= 10;
+		}
+		return n;
+	}
+
+	/** a few cycles of work per element, not foldable by the JIT */
+	static long hash(long i) {
+		long x = i * 0x9E3779B97F4A7C15L;
+		return (x ^ (x >>> 29)) & 0xFF;
+	}
+
+	private static long sequential(int[] array) {
+		long sum = 0;
+		for (int value : array) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static long sequential(long n) {
+		long sum = 0;
+		for (long i = 0; i < n; i++) {
+			sum += hash(i);
+		}
+		return sum;
+	}
+
+	/** @return milliseconds of the second run */
+	private static double time(LongSupplier sum, long expected) {
+		double millis = 0;
+		for (int run = 0; run < 2; run++) {
+			long begin = System.nanoTime();
+			long result = sum.getAsLong();
+			millis = (System.nanoTime() - begin) / 1e6;
+			if (result != expected) {
+				throw new IllegalStateException("wrong sum: " + result + " instead of " + expected);
+			}
+		}
+		return millis;
+	}
+
+	/** MyRecursiveTask without the println: fork both halves, threshold 16 */
+	@SuppressWarnings("serial")
+	private static final class FixedSplit extends RecursiveTask<Long> {
+		private final int[] array;
+		private final int lo;
+		private final int hi;
+
+		FixedSplit(int[] array, int lo, int hi) {
+			this.array = array;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected Long compute() {
+			if (hi - lo > 16) {
+				int mid = (lo + hi) >>> 1;
+				FixedSplit left = new FixedSplit(array, lo, mid);
+				FixedSplit right = new FixedSplit(array, mid, hi);
+				left.fork();
+				right.fork();
+				return left.join() + right.join();
+			}
+			long sum = 0;
+			for (int i = lo; i < hi; i++) {
+				sum += array[i];
+			}
+			return sum;
+		}
+	}
+}
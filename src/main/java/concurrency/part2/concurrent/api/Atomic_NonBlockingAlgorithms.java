@@ -178,6 +178,52 @@ class AtomicCounterDemo {
 	}
 }
 
+/**
+ * Same 32 threads hammering AtomicCounterz (one CAS target) and
+ * {@link StripedCounter} (one padded cell per thread probe)
+ */
+class StripedCounterDemo {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = 32;
+		int increments = 1_000_000;
+
+		AtomicCounterz atomicCounter = new AtomicCounterz();
+		long begin = System.nanoTime();
+		runConcurrently(threads, () -> {
+			for (int i = 0; i < increments; i++) {
+				atomicCounter.increment();
+			}
+		});
+		System.out.printf("AtomicCounterz  counter = %d, T = %dms%n", atomicCounter.value(),
+				(System.nanoTime() - begin) / 1_000_000);
+
+		StripedCounter stripedCounter = new StripedCounter();
+		begin = System.nanoTime();
+		runConcurrently(threads, () -> {
+			for (int i = 0; i < increments; i++) {
+				stripedCounter.increment();
+			}
+		});
+		System.out.printf("StripedCounter  counter = %d, T = %dms, # CAS failures = %d, # cells = %d%n",
+				stripedCounter.value(), (System.nanoTime() - begin) / 1_000_000, stripedCounter.getCasFailures(),
+				stripedCounter.getCellCount());
+
+		System.out.println("sumThenReset = " + stripedCounter.sumThenReset() + ", after reset = " + stripedCounter.sum());
+	}
+
+	private static void runConcurrently(int threads, Runnable task) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(task);
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+}
+
 /**
  * https://jenkov.com/tutorials/java-concurrency/non-blocking-algorithms.html
  * https://jenkov.com/tutorials/java-util-concurrent/atomicboolean.html
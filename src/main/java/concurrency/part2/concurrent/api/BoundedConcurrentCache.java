@@ -0,0 +1,1125 @@
+package concurrency.part2.concurrent.api;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Bounded concurrent cache, the production version of
+ * {@link ReadWriteLock_CacheExample}.
+ *
+ * <pre>
+ * ReadWriteLock_CacheExample / SynchronizedHashMapWithReadWriteLock: an
+ * unbounded HashMap behind a ReentrantReadWriteLock - memory grows without limit,
+ * and every put() blocks every reader.
+ *
+ * BoundedConcurrentCache:
+ *  - data lives in a ConcurrentHashMap, get() takes NO lock
+ *  - the eviction policy (who is evicted next) is NOT thread safe, it is guarded by
+ *    one eviction lock, but nobody waits for it:
+ *      reads are recorded into a lossy striped READ BUFFER (dropped when full)
+ *      writes are recorded into a WRITE BUFFER (never dropped)
+ *    and whoever gets the lock with tryLock() replays both buffers in one batch
+ *  - size or weight bound with W-TinyLFU:
+ *      new entries go to a small LRU WINDOW (1%)
+ *      the main space is a segmented LRU: PROBATION (20%) and PROTECTED (80%)
+ *      an entry leaving the window is only ADMITTED into the main space if it
+ *      was used more often than the victim it would replace. "How often" is
+ *      estimated by a FrequencySketch (count-min sketch of 4 bit counters,
+ *      halved periodically so old popularity fades). It is sized by the
+ *      number of entries: maximumSize up front, for maximumWeight it grows
+ *      with the entries actually held
+ *  - expireAfterWrite (time to live) and expireAfterAccess (time to idle)
+ *  - computeIfAbsent() coalesces concurrent misses of the same key into ONE load
+ *  - hit/miss/load/eviction statistics, counted with StripedCounter
+ * </pre>
+ */
+public class BoundedConcurrentCache<K, V> {
+
+	private static final int WINDOW_PERCENT = 1;
+	private static final int PROTECTED_PERCENT = 80;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final int PENDING = 0;
+	private static final int ALIVE = 1;
+	private static final int DEAD = 2;
+
+	private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<K, Load<V>> loading = new ConcurrentHashMap<>();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final ReadBuffer<K, V> readBuffer = new ReadBuffer<>();
+	private final ConcurrentLinkedQueue<Runnable> writeBuffer = new ConcurrentLinkedQueue<>();
+
+	// guarded by evictionLock
+	private final FrequencySketch sketch;
+	private final NodeDeque<K, V> window = new NodeDeque<>(false);
+	private final NodeDeque<K, V> probation = new NodeDeque<>(false);
+	private final NodeDeque<K, V> protectedDeque = new NodeDeque<>(false);
+	private final NodeDeque<K, V> writeOrder = new NodeDeque<>(true);
+	private long weightedSize;
+	private long windowWeightedSize;
+	private long protectedWeightedSize;
+
+	private final long maximumWeight;
+	/** maximumWeight with a weigher: the weight says nothing about the entry count */
+	private final boolean weighted;
+	private final long windowMaximum;
+	private final long protectedMaximum;
+	private final ToIntBiFunction<? super K, ? super V> weigher;
+	private final long expireAfterWriteNanos;
+	private final long expireAfterAccessNanos;
+	private final LongSupplier ticker;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter loadSuccesses = new StripedCounter();
+	private final StripedCounter loadFailures = new StripedCounter();
+	private final StripedCounter nullLoads = new StripedCounter();
+	private final StripedCounter coalescedLoads = new StripedCounter();
+	private final StripedCounter evictions = new StripedCounter();
+	private final StripedCounter evictionWeight = new StripedCounter();
+	private final StripedCounter expirations = new StripedCounter();
+
+	private BoundedConcurrentCache(Builder<K, V> builder) {
+		this.maximumWeight = builder.maximumWeight;
+		this.weighted = builder.weighted;
+		this.weigher = builder.weigher;
+		this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+		this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+		this.ticker = builder.ticker;
+		this.windowMaximum = Math.max(1, maximumWeight * WINDOW_PERCENT / 100);
+		this.protectedMaximum = (maximumWeight - windowMaximum) * PROTECTED_PERCENT / 100;
+		this.sketch = new FrequencySketch(weighted ? 0 : maximumWeight);
+	}
+
+	public static <K, V> Builder<K, V> newBuilder() {
+		return new Builder<>();
+	}
+
+	public static final class Builder<K, V> {
+		private long maximumWeight = -1;
+		private boolean weighted;
+		private ToIntBiFunction<? super K, ? super V> weigher = (k, v) -> 1;
+		private long expireAfterWriteNanos;
+		private long expireAfterAccessNanos;
+		private LongSupplier ticker = System::nanoTime;
+
+		/** every entry weighs 1 */
+		public Builder<K, V> maximumSize(long maximumSize) {
+			maximum(maximumSize, (k, v) -> 1);
+			this.weighted = false;
+			return this;
+		}
+
+		public Builder<K, V> maximumWeight(long maximumWeight, ToIntBiFunction<? super K, ? super V> weigher) {
+			maximum(maximumWeight, weigher);
+			this.weighted = true;
+			return this;
+		}
+
+		private void maximum(long maximum, ToIntBiFunction<? super K, ? super V> weigher) {
+			if (maximum <= 0) {
+				throw new IllegalArgumentException("maximum must be positive: " + maximum);
+			}
+			this.maximumWeight = maximum;
+			this.weigher = Objects.requireNonNull(weigher);
+		}
+
+		/** time to live: counted from the last write */
+		public Builder<K, V> expireAfterWrite(Duration duration) {
+			this.expireAfterWriteNanos = positive(duration);
+			return this;
+		}
+
+		/** time to idle: counted from the last read or write */
+		public Builder<K, V> expireAfterAccess(Duration duration) {
+			this.expireAfterAccessNanos = positive(duration);
+			return this;
+		}
+
+		/** source of nanoTime, tests can move the time forward */
+		public Builder<K, V> ticker(LongSupplier ticker) {
+			this.ticker = Objects.requireNonNull(ticker);
+			return this;
+		}
+
+		private static long positive(Duration duration) {
+			if (duration.isNegative() || duration.isZero()) {
+				throw new IllegalArgumentException("duration must be positive: " + duration);
+			}
+			return duration.toNanos();
+		}
+
+		public BoundedConcurrentCache<K, V> build() {
+			if (maximumWeight <= 0) {
+				throw new IllegalStateException("maximumSize or maximumWeight is required");
+			}
+			return new BoundedConcurrentCache<>(this);
+		}
+	}
+
+	/** lock free, only records the access */
+	public V get(K key) {
+		Node<K, V> node = data.get(key);
+		if (node == null) {
+			misses.increment();
+			return null;
+		}
+		long now = ticker.getAsLong();
+		if (isExpired(node, now)) {
+			misses.increment();
+			if (data.remove(key, node)) {
+				expirations.increment();
+				afterWrite(new RemovalTask(node));
+			}
+			return null;
+		}
+		hits.increment();
+		if (expireAfterAccessNanos > 0) {
+			node.accessTime = now;
+		}
+		if (readBuffer.offer(node)) {
+			scheduleDrain();
+		}
+		return node.value;
+	}
+
+	public boolean containsKey(K key) {
+		Node<K, V> node = data.get(key);
+		return node != null && !isExpired(node, ticker.getAsLong());
+	}
+
+	/**
+	 * @return the previous value, or null
+	 */
+	public V put(K key, V value) {
+		Objects.requireNonNull(key);
+		Objects.requireNonNull(value);
+		int weight = weigh(key, value);
+		long now = ticker.getAsLong();
+
+		// [0] added node, [1] replaced expired node, [2] updated node
+		@SuppressWarnings("unchecked")
+		Node<K, V>[] nodes = (Node<K, V>[]) new Node<?, ?>[3];
+		Object[] previous = new Object[1];
+		data.compute(key, (k, node) -> {
+			if (node == null || isExpired(node, now)) {
+				nodes[1] = node;
+				nodes[0] = new Node<>(k, value, weight, now);
+				return nodes[0];
+			}
+			previous[0] = node.value;
+			node.value = value;
+			node.weight = weight;
+			node.writeTime = now;
+			node.accessTime = now;
+			nodes[2] = node;
+			return node;
+		});
+
+		if (nodes[1] != null) {
+			expirations.increment();
+			writeBuffer.add(new RemovalTask(nodes[1]));
+		}
+		afterWrite(nodes[0] != null ? new AddTask(nodes[0]) : new UpdateTask(nodes[2]));
+		@SuppressWarnings("unchecked")
+		V old = (V) previous[0];
+		return old;
+	}
+
+	private int weigh(K key, V value) {
+		int weight = weigher.applyAsInt(key, value);
+		if (weight < 0) {
+			throw new IllegalArgumentException("negative weight " + weight + " for " + key);
+		}
+		return weight;
+	}
+
+	/**
+	 * Installs a loaded value, unless the key got a value or was removed while
+	 * loading: a put() wins over the older load, a remove() is not undone.
+	 *
+	 * @return the value present afterwards, or the loaded one when the key was removed
+	 */
+	private V putLoaded(K key, V value, Load<V> load) {
+		int weight = weigh(key, value);
+		long now = ticker.getAsLong();
+
+		// [0] added node, [1] replaced expired node
+		@SuppressWarnings("unchecked")
+		Node<K, V>[] nodes = (Node<K, V>[]) new Node<?, ?>[2];
+		Object[] present = { value };
+		data.compute(key, (k, node) -> {
+			if (node != null && !isExpired(node, now)) {
+				present[0] = node.value;
+				return node;
+			}
+			if (load.invalidated) {
+				return node;
+			}
+			nodes[1] = node;
+			nodes[0] = new Node<>(k, value, weight, now);
+			return nodes[0];
+		});
+
+		if (nodes[1] != null) {
+			expirations.increment();
+			writeBuffer.add(new RemovalTask(nodes[1]));
+		}
+		if (nodes[0] != null) {
+			afterWrite(new AddTask(nodes[0]));
+		}
+		@SuppressWarnings("unchecked")
+		V result = (V) present[0];
+		return result;
+	}
+
+	public V remove(K key) {
+		Load<V> load = loading.get(key);
+		if (load != null) {
+			load.invalidated = true; // before the remove: the load sees the flag or is removed too
+		}
+		Node<K, V> node = data.remove(key);
+		if (node == null) {
+			return null;
+		}
+		afterWrite(new RemovalTask(node));
+		return isExpired(node, ticker.getAsLong()) ? null : node.value;
+	}
+
+	/**
+	 * Returns the cached value or loads it. Concurrent callers missing the SAME
+	 * key wait for one load instead of calling the loader themselves.
+	 *
+	 * A null from the loader is returned but not cached, and counted as a null
+	 * load, not a successful one. An exception is thrown to every waiting caller
+	 * and not cached either.
+	 *
+	 * The loaded value is only cached if the key is still absent: a value put()
+	 * meanwhile is kept and returned, a remove() or invalidateAll() meanwhile
+	 * leaves the key absent.
+	 *
+	 * A loader calling computeIfAbsent for the same key would wait for itself:
+	 * IllegalStateException, as ConcurrentHashMap's "Recursive update".
+	 */
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		Load<V> mine = new Load<>(Thread.currentThread());
+		Load<V> inFlight = loading.putIfAbsent(key, mine);
+		if (inFlight != null) {
+			if (inFlight.thread == Thread.currentThread()) {
+				throw new IllegalStateException("Recursive load of " + key);
+			}
+			coalescedLoads.increment();
+			return join(inFlight.future);
+		}
+		try {
+			// somebody may have finished loading between our miss and putIfAbsent
+			Node<K, V> node = data.get(key);
+			if (node != null && !isExpired(node, ticker.getAsLong())) {
+				value = node.value;
+			} else {
+				value = loader.apply(key);
+				if (value != null) {
+					loadSuccesses.increment();
+					value = putLoaded(key, value, mine);
+				} else {
+					nullLoads.increment();
+				}
+			}
+			mine.future.complete(value);
+			return value;
+		} catch (RuntimeException | Error e) {
+			loadFailures.increment();
+			mine.future.completeExceptionally(e);
+			throw e;
+		} finally {
+			loading.remove(key, mine);
+		}
+	}
+
+	/**
+	 * a load in flight and the thread running the loader, to detect recursion;
+	 * invalidated by a remove() of its key while loading
+	 */
+	private static final class Load<V> {
+		final CompletableFuture<V> future = new CompletableFuture<>();
+		final Thread thread;
+		volatile boolean invalidated;
+
+		Load(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+	private static <V> V join(CompletableFuture<V> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public void invalidateAll() {
+		for (Load<V> load : loading.values()) {
+			load.invalidated = true;
+		}
+		for (K key : data.keySet()) {
+			remove(key);
+		}
+	}
+
+	/** number of entries, may include expired entries not yet cleaned up */
+	public long estimatedSize() {
+		return data.size();
+	}
+
+	public long weightedSize() {
+		evictionLock.lock();
+		try {
+			return weightedSize;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/** replays the buffers and removes expired entries now */
+	public void cleanUp() {
+		evictionLock.lock();
+		try {
+			drainBuffers();
+		} finally {
+			evictionLock.unlock();
+		}
+		scheduleDrain();
+	}
+
+	/** entries the frequency sketch is sized for */
+	int sketchCapacity() {
+		evictionLock.lock();
+		try {
+			return sketch.capacity();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public CacheStats stats() {
+		return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(), nullLoads.sum(), coalescedLoads.sum(),
+				evictions.sum(), evictionWeight.sum(), expirations.sum());
+	}
+
+	private boolean isExpired(Node<K, V> node, long now) {
+		return (expireAfterWriteNanos > 0 && now - node.writeTime >= expireAfterWriteNanos)
+				|| (expireAfterAccessNanos > 0 && now - node.accessTime >= expireAfterAccessNanos);
+	}
+
+	private void afterWrite(Runnable task) {
+		writeBuffer.add(task);
+		scheduleDrain();
+	}
+
+	/**
+	 * Never blocks: if another thread holds the lock, it will replay our task.
+	 * The holder re-checks the write buffer AFTER unlocking, so a task added while
+	 * it was draining is not left behind.
+	 */
+	private void scheduleDrain() {
+		do {
+			if (!evictionLock.tryLock()) {
+				return;
+			}
+			try {
+				drainBuffers();
+			} finally {
+				evictionLock.unlock();
+			}
+		} while (!writeBuffer.isEmpty());
+	}
+
+	// ----- everything below runs under the evictionLock -----
+
+	private void drainBuffers() {
+		readBuffer.drainTo(this::onAccess);
+		Runnable task;
+		while ((task = writeBuffer.poll()) != null) {
+			task.run();
+		}
+		expireEntries();
+		evictEntries();
+	}
+
+	private final class AddTask implements Runnable {
+		private final Node<K, V> node;
+
+		AddTask(Node<K, V> node) {
+			this.node = node;
+		}
+
+		@Override
+		public void run() {
+			if (node.state == DEAD) {
+				return; // removed before we saw it
+			}
+			node.state = ALIVE;
+			node.policyWeight = node.weight;
+			node.region = WINDOW;
+			window.addLast(node);
+			windowWeightedSize += node.policyWeight;
+			weightedSize += node.policyWeight;
+			if (expireAfterWriteNanos > 0) {
+				writeOrder.addLast(node);
+			}
+			if (weighted) {
+				sketch.ensureCapacity(data.mappingCount());
+			}
+			sketch.increment(node.key);
+		}
+	}
+
+	private final class UpdateTask implements Runnable {
+		private final Node<K, V> node;
+
+		UpdateTask(Node<K, V> node) {
+			this.node = node;
+		}
+
+		@Override
+		public void run() {
+			if (node.state != ALIVE) {
+				return; // the AddTask will take the current weight
+			}
+			int diff = node.weight - node.policyWeight;
+			node.policyWeight += diff;
+			weightedSize += diff;
+			if (node.region == WINDOW) {
+				windowWeightedSize += diff;
+			} else if (node.region == PROTECTED) {
+				protectedWeightedSize += diff;
+			}
+			if (expireAfterWriteNanos > 0) {
+				writeOrder.moveToLast(node);
+			}
+			onAccess(node);
+		}
+	}
+
+	private final class RemovalTask implements Runnable {
+		private final Node<K, V> node;
+
+		RemovalTask(Node<K, V> node) {
+			this.node = node;
+		}
+
+		@Override
+		public void run() {
+			if (node.state == ALIVE) {
+				unlink(node);
+			}
+			node.state = DEAD;
+		}
+	}
+
+	private void onAccess(Node<K, V> node) {
+		if (node.state != ALIVE) {
+			return;
+		}
+		sketch.increment(node.key);
+		switch (node.region) {
+		case WINDOW:
+			window.moveToLast(node);
+			break;
+		case PROBATION:
+			// used again: promote to protected
+			probation.remove(node);
+			node.region = PROTECTED;
+			protectedDeque.addLast(node);
+			protectedWeightedSize += node.policyWeight;
+			while (protectedWeightedSize > protectedMaximum) {
+				Node<K, V> demoted = protectedDeque.peekFirst();
+				protectedDeque.remove(demoted);
+				protectedWeightedSize -= demoted.policyWeight;
+				demoted.region = PROBATION;
+				probation.addLast(demoted);
+			}
+			break;
+		default:
+			protectedDeque.moveToLast(node);
+			break;
+		}
+	}
+
+	private void unlink(Node<K, V> node) {
+		switch (node.region) {
+		case WINDOW:
+			window.remove(node);
+			windowWeightedSize -= node.policyWeight;
+			break;
+		case PROBATION:
+			probation.remove(node);
+			break;
+		default:
+			protectedDeque.remove(node);
+			protectedWeightedSize -= node.policyWeight;
+			break;
+		}
+		weightedSize -= node.policyWeight;
+		if (expireAfterWriteNanos > 0) {
+			writeOrder.remove(node);
+		}
+	}
+
+	private void evict(Node<K, V> node, boolean expired) {
+		if (data.remove(node.key, node)) {
+			if (expired) {
+				expirations.increment();
+			} else {
+				evictions.increment();
+				evictionWeight.add(node.policyWeight);
+			}
+		}
+		unlink(node);
+		node.state = DEAD;
+	}
+
+	/**
+	 * Access ordered deques are only approximately ordered by access time (the
+	 * read buffer is replayed later and is lossy), so this is a best effort
+	 * clean-up. get() never returns an expired entry anyway.
+	 */
+	private void expireEntries() {
+		long now = ticker.getAsLong();
+		if (expireAfterAccessNanos > 0) {
+			expireHeads(window, now);
+			expireHeads(probation, now);
+			expireHeads(protectedDeque, now);
+		}
+		if (expireAfterWriteNanos > 0) {
+			Node<K, V> node;
+			while ((node = writeOrder.peekFirst()) != null && now - node.writeTime >= expireAfterWriteNanos) {
+				evict(node, true);
+			}
+		}
+	}
+
+	private void expireHeads(NodeDeque<K, V> deque, long now) {
+		Node<K, V> node;
+		while ((node = deque.peekFirst()) != null && now - node.accessTime >= expireAfterAccessNanos) {
+			evict(node, true);
+		}
+	}
+
+	/**
+	 * W-TinyLFU: the window overflows into probation, and when the whole cache is
+	 * over the maximum, the entry coming from the window (candidate) competes with
+	 * the head of probation (victim), the less frequent one is evicted.
+	 */
+	private void evictEntries() {
+		while (windowWeightedSize > windowMaximum) {
+			Node<K, V> candidate = window.peekFirst();
+			window.remove(candidate);
+			windowWeightedSize -= candidate.policyWeight;
+			candidate.region = PROBATION;
+			probation.addLast(candidate);
+
+			while (weightedSize > maximumWeight && candidate.state == ALIVE) {
+				Node<K, V> victim = probation.peekFirst();
+				if (victim == candidate) {
+					victim = protectedDeque.peekFirst();
+				}
+				if (victim == null || candidate.policyWeight > maximumWeight
+						|| sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+					evict(candidate, false);
+				} else {
+					evict(victim, false);
+				}
+			}
+		}
+		// e.g. an update made an entry heavier
+		while (weightedSize > maximumWeight) {
+			Node<K, V> victim = probation.peekFirst();
+			if (victim == null) {
+				victim = protectedDeque.peekFirst();
+			}
+			if (victim == null) {
+				victim = window.peekFirst();
+			}
+			evict(victim, false);
+		}
+	}
+
+	static final class Node<K, V> {
+		final K key;
+		volatile V value;
+		volatile int weight;
+		volatile long writeTime;
+		volatile long accessTime;
+
+		// guarded by evictionLock
+		int state = PENDING;
+		int region;
+		int policyWeight;
+		Node<K, V> accessPrev;
+		Node<K, V> accessNext;
+		Node<K, V> writePrev;
+		Node<K, V> writeNext;
+
+		Node(K key, V value, int weight, long now) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+			this.writeTime = now;
+			this.accessTime = now;
+		}
+	}
+
+	/**
+	 * Intrusive doubly linked list over the access links or the write links of
+	 * the nodes: O(1) remove and move to tail, no node allocation.
+	 */
+	static final class NodeDeque<K, V> {
+		private final boolean writeLinks;
+		private Node<K, V> head;
+		private Node<K, V> tail;
+
+		NodeDeque(boolean writeLinks) {
+			this.writeLinks = writeLinks;
+		}
+
+		private Node<K, V> prev(Node<K, V> n) {
+			return writeLinks ? n.writePrev : n.accessPrev;
+		}
+
+		private Node<K, V> next(Node<K, V> n) {
+			return writeLinks ? n.writeNext : n.accessNext;
+		}
+
+		private void setPrev(Node<K, V> n, Node<K, V> prev) {
+			if (writeLinks) {
+				n.writePrev = prev;
+			} else {
+				n.accessPrev = prev;
+			}
+		}
+
+		private void setNext(Node<K, V> n, Node<K, V> next) {
+			if (writeLinks) {
+				n.writeNext = next;
+			} else {
+				n.accessNext = next;
+			}
+		}
+
+		Node<K, V> peekFirst() {
+			return head;
+		}
+
+		void addLast(Node<K, V> n) {
+			setPrev(n, tail);
+			setNext(n, null);
+			if (tail == null) {
+				head = n;
+			} else {
+				setNext(tail, n);
+			}
+			tail = n;
+		}
+
+		void remove(Node<K, V> n) {
+			Node<K, V> prev = prev(n);
+			Node<K, V> next = next(n);
+			if (prev == null) {
+				head = next;
+			} else {
+				setNext(prev, next);
+			}
+			if (next == null) {
+				tail = prev;
+			} else {
+				setPrev(next, prev);
+			}
+			setPrev(n, null);
+			setNext(n, null);
+		}
+
+		void moveToLast(Node<K, V> n) {
+			if (n != tail) {
+				remove(n);
+				addLast(n);
+			}
+		}
+	}
+
+	/**
+	 * Lossy striped ring buffers: each thread records its reads into the stripe of
+	 * its thread id, a full stripe drops the read (only the LRU order gets a bit
+	 * less exact) and asks for a drain.
+	 */
+	static final class ReadBuffer<K, V> {
+		private static final int STRIPE_SIZE = 16;
+		private static final int STRIPES = Math.min(64,
+				Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+
+		private final Stripe<K, V>[] stripes;
+
+		@SuppressWarnings("unchecked")
+		ReadBuffer() {
+			stripes = (Stripe<K, V>[]) new Stripe<?, ?>[STRIPES];
+			for (int i = 0; i < STRIPES; i++) {
+				stripes[i] = new Stripe<>();
+			}
+		}
+
+		static final class Stripe<K, V> {
+			final AtomicLong writeCounter = new AtomicLong();
+			volatile long readCounter;
+			final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(STRIPE_SIZE);
+		}
+
+		/**
+		 * @return true when the stripe is full and should be drained
+		 */
+		boolean offer(Node<K, V> node) {
+			long id = Thread.currentThread().threadId();
+			Stripe<K, V> stripe = stripes[(int) (id ^ (id >>> 16)) & (STRIPES - 1)];
+			long head = stripe.readCounter;
+			long tail = stripe.writeCounter.get();
+			long size = tail - head;
+			if (size >= STRIPE_SIZE) {
+				return true;
+			}
+			if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+				stripe.slots.lazySet((int) tail & (STRIPE_SIZE - 1), node);
+				return size + 1 >= STRIPE_SIZE;
+			}
+			return false; // contended: drop it
+		}
+
+		void drainTo(Consumer<Node<K, V>> consumer) {
+			for (Stripe<K, V> stripe : stripes) {
+				long head = stripe.readCounter;
+				long tail = stripe.writeCounter.get();
+				for (; head != tail; head++) {
+					int index = (int) head & (STRIPE_SIZE - 1);
+					Node<K, V> node = stripe.slots.get(index);
+					if (node == null) {
+						break; // reserved but not written yet, next drain will get it
+					}
+					stripe.slots.lazySet(index, null);
+					consumer.accept(node);
+				}
+				stripe.readCounter = head;
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch with 4 bit counters, 16 counters per long. An item is
+	 * counted in 4 counters, its frequency is the minimum of them (other items
+	 * colliding can only make it look bigger). After sampleSize increments every
+	 * counter is halved, so the sketch forgets old popularity.
+	 *
+	 * One long per expected entry, at most 2^24 (128 MB).
+	 */
+	static final class FrequencySketch {
+		private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+		private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+				0xcbf29ce484222325L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+		private static final long ONE_MASK = 0x1111111111111111L;
+
+		private long[] table;
+		private int tableMask;
+		private int sampleSize;
+		private int size;
+
+		FrequencySketch(long expectedSize) {
+			ensureCapacity(expectedSize);
+		}
+
+		/**
+		 * Grows the table for expectedSize entries, to the next power of 2: the
+		 * counts so far are lost, which happens only log2(entries) times.
+		 */
+		void ensureCapacity(long expectedSize) {
+			int n = (int) Math.max(8, Math.min(expectedSize, MAXIMUM_CAPACITY));
+			if (table != null && table.length >= n) {
+				return;
+			}
+			table = new long[Integer.highestOneBit(n - 1) << 1];
+			tableMask = table.length - 1;
+			sampleSize = 10 * table.length;
+			size = 0;
+		}
+
+		int capacity() {
+			return table.length;
+		}
+
+		int frequency(Object key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			int frequency = Integer.MAX_VALUE;
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(hash, i);
+				int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+				frequency = Math.min(frequency, count);
+			}
+			return frequency;
+		}
+
+		void increment(Object key) {
+			int hash = spread(key.hashCode());
+			int start = (hash & 3) << 2;
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				added |= incrementAt(indexOf(hash, i), start + i);
+			}
+			if (added && ++size == sampleSize) {
+				reset();
+			}
+		}
+
+		private boolean incrementAt(int i, int j) {
+			int offset = j << 2;
+			long mask = 0xfL << offset;
+			if ((table[i] & mask) != mask) {
+				table[i] += 1L << offset;
+				return true;
+			}
+			return false;
+		}
+
+		private void reset() {
+			int odd = 0;
+			for (int i = 0; i < table.length; i++) {
+				odd += Long.bitCount(table[i] & ONE_MASK);
+				table[i] = (table[i] >>> 1) & RESET_MASK;
+			}
+			size = (size - (odd >>> 2)) >>> 1;
+		}
+
+		private int indexOf(int item, int i) {
+			long hash = (item + SEED[i]) * SEED[i];
+			hash += hash >>> 32;
+			return ((int) hash) & tableMask;
+		}
+
+		private static int spread(int x) {
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			x = ((x >>> 16) ^ x) * 0x45d9f3b;
+			return (x >>> 16) ^ x;
+		}
+	}
+
+	public static final class CacheStats {
+		private final long hitCount;
+		private final long missCount;
+		private final long loadSuccessCount;
+		private final long loadFailureCount;
+		private final long nullLoadCount;
+		private final long coalescedLoadCount;
+		private final long evictionCount;
+		private final long evictionWeight;
+		private final long expirationCount;
+
+		CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long nullLoadCount,
+				long coalescedLoadCount,
+				long evictionCount, long evictionWeight, long expirationCount) {
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.loadSuccessCount = loadSuccessCount;
+			this.loadFailureCount = loadFailureCount;
+			this.nullLoadCount = nullLoadCount;
+			this.coalescedLoadCount = coalescedLoadCount;
+			this.evictionCount = evictionCount;
+			this.evictionWeight = evictionWeight;
+			this.expirationCount = expirationCount;
+		}
+
+		public long hitCount() {
+			return hitCount;
+		}
+
+		public long missCount() {
+			return missCount;
+		}
+
+		public double hitRate() {
+			long requests = hitCount + missCount;
+			return requests == 0 ? 1.0 : (double) hitCount / requests;
+		}
+
+		public long loadSuccessCount() {
+			return loadSuccessCount;
+		}
+
+		public long loadFailureCount() {
+			return loadFailureCount;
+		}
+
+		/** the loader returned null: nothing was cached */
+		public long nullLoadCount() {
+			return nullLoadCount;
+		}
+
+		public long coalescedLoadCount() {
+			return coalescedLoadCount;
+		}
+
+		public long evictionCount() {
+			return evictionCount;
+		}
+
+		public long evictionWeight() {
+			return evictionWeight;
+		}
+
+		public long expirationCount() {
+			return expirationCount;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"CacheStats[hits = %d, misses = %d, hit rate = %.3f, loads = %d, load failures = %d, null loads = %d, coalesced loads = %d, evictions = %d, eviction weight = %d, expirations = %d]",
+					hitCount, missCount, hitRate(), loadSuccessCount, loadFailureCount, nullLoadCount, coalescedLoadCount,
+					evictionCount, evictionWeight, expirationCount);
+		}
+	}
+
+	/**
+	 * 1. throughput against SynchronizedHashMapWithReadWriteLock, 3 readers per
+	 * writer
+	 *
+	 * 2. hit rate of a small cache over a skewed key distribution
+	 *
+	 * 3. coalesced loads
+	 */
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		int threads = 4;
+		int operations = 1_000_000;
+		int keys = 10_000;
+
+		SynchronizedHashMapWithReadWriteLock baseline = new SynchronizedHashMapWithReadWriteLock();
+		long begin = System.nanoTime();
+		runConcurrently(threads, t -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < operations; i++) {
+				String key = Integer.toString(random.nextInt(keys));
+				if (t == 0) {
+					baseline.put(key, key);
+				} else {
+					baseline.get(key);
+				}
+			}
+		});
+		System.out.printf("SynchronizedHashMapWithReadWriteLock T = %dms%n", (System.nanoTime() - begin) / 1_000_000);
+
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(keys).build();
+		begin = System.nanoTime();
+		runConcurrently(threads, t -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < operations; i++) {
+				String key = Integer.toString(random.nextInt(keys));
+				if (t == 0) {
+					cache.put(key, key);
+				} else {
+					cache.get(key);
+				}
+			}
+		});
+		System.out.printf("BoundedConcurrentCache               T = %dms, %s%n", (System.nanoTime() - begin) / 1_000_000,
+				cache.stats());
+
+		// few hot keys, long tail of one-hit wonders
+		BoundedConcurrentCache<Long, String> small = BoundedConcurrentCache.<Long, String>newBuilder()
+				.maximumSize(100).expireAfterAccess(Duration.ofMinutes(1)).build();
+		Random random = new Random(42);
+		for (int i = 0; i < 200_000; i++) {
+			long key = random.nextInt(10) < 8 ? random.nextInt(100) : random.nextInt(1_000_000);
+			small.computeIfAbsent(key, k -> Long.toString(k));
+		}
+		small.cleanUp();
+		System.out.println("skewed keys, maximumSize 100, size = " + small.estimatedSize() + ", " + small.stats());
+
+		BoundedConcurrentCache<String, String> users = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).expireAfterWrite(Duration.ofSeconds(30)).build();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		CountDownLatch start = new CountDownLatch(1);
+		CompletableFuture<?>[] lookups = new CompletableFuture<?>[8];
+		for (int i = 0; i < lookups.length; i++) {
+			lookups[i] = CompletableFuture.runAsync(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				users.computeIfAbsent("asatklichov", name -> {
+					sleep(200); // slow lookup
+					return name.toUpperCase();
+				});
+			}, executor);
+		}
+		start.countDown();
+		CompletableFuture.allOf(lookups).get();
+		executor.shutdown();
+		System.out.println("8 concurrent misses of one key: " + users.stats());
+	}
+
+	private static void sleep(long millis) {
+		try {
+			TimeUnit.MILLISECONDS.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private interface ThreadTask {
+		void run(int threadIndex);
+	}
+
+	private static void runConcurrently(int threads, ThreadTask task) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			int index = i;
+			workers[i] = new Thread(() -> task.run(index));
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+}
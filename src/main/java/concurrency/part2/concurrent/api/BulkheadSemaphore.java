@@ -0,0 +1,426 @@
+package concurrency.part2.concurrent.api;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counting semaphore for bulkheads: at most N permits of a downstream
+ * resource in use, e.g. GitHub calls of LookupService.
+ *
+ * <pre>
+ * OwnSemaphore (SemaphoresDemo)     j.u.c.Semaphore                BulkheadSemaphore
+ * one boolean signal, 1 permit     N permits, fixed               N permits, setPermits() at runtime
+ * synchronized + wait/notify:      acquire(n): a big request      acquire(n) is FIFO: nobody overtakes a
+ *   pins a virtual thread            can starve, smaller ones       waiting big request, it gets its n
+ *                                    keep overtaking it (unfair)    permits ATOMICALLY, never a part
+ * -                                -                              wait times as histograms
+ * -                                -                              acquireAsync(n) for CompletableFuture
+ *                                                                   pipelines, no thread waits
+ * </pre>
+ *
+ * State is guarded by a ReentrantLock, waiters park with LockSupport: no
+ * synchronized, no wait/notifyAll, a waiting virtual thread unmounts. A
+ * release wakes only the waiters it grants permits to, head first, and stops
+ * at the first one which does not fit.
+ *
+ * A request for more permits than the semaphore has waits until all its
+ * permits are free and then takes them all (availablePermits() goes negative
+ * until it releases). After a shrink by setPermits() availablePermits() may
+ * be negative too: holders are not interrupted, new requests wait until
+ * enough permits are released.
+ *
+ * A controller resizes it, e.g. the {@link LatencyController}.
+ */
+public class BulkheadSemaphore {
+
+	private static final class Waiter {
+		final int permits;
+		final Thread thread; // null for acquireAsync
+		final CompletableFuture<Void> future; // null for a blocking acquire
+		final long enqueuedNanos = System.nanoTime();
+		/** set under the lock, read by the parked thread */
+		volatile boolean granted;
+
+		Waiter(int permits, Thread thread, CompletableFuture<Void> future) {
+			this.permits = permits;
+			this.thread = thread;
+			this.future = future;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+	private final LatencyHistogram batchWaitTime = new LatencyHistogram();
+	private int permits;
+	private int available;
+
+	public BulkheadSemaphore(int permits) {
+		if (permits <= 0) {
+			throw new IllegalArgumentException("permits must be > 0: " + permits);
+		}
+		this.permits = permits;
+		this.available = permits;
+	}
+
+	public void acquire() throws InterruptedException {
+		acquire(1);
+	}
+
+	/** waits in FIFO order until all the permits are free, takes them at once */
+	public void acquire(int permits) throws InterruptedException {
+		acquire(permits, false, 0L);
+	}
+
+	/** only if the permits are free and nobody waits, no barging */
+	public boolean tryAcquire(int permits) {
+		try {
+			return acquire(permits, true, 0L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public boolean tryAcquire(int permits, long timeout, TimeUnit unit) throws InterruptedException {
+		return acquire(permits, true, unit.toNanos(timeout));
+	}
+
+	/**
+	 * No thread waits: the future completes when the permits are granted, in
+	 * the thread releasing them, the continuations run there. Cancel it to leave
+	 * the queue; release() only after it completed normally.
+	 */
+	public CompletableFuture<Void> acquireAsync(int permits) {
+		checkPermits(permits);
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		Waiter waiter = new Waiter(permits, null, future);
+		lock.lock();
+		try {
+			if (waiters.isEmpty() && available >= fit(permits)) {
+				available -= permits;
+				histogram(permits).record(0);
+				future.complete(null);
+				return future;
+			}
+			waiters.add(waiter);
+		} finally {
+			lock.unlock();
+		}
+		future.whenComplete((v, e) -> {
+			if (future.isCancelled()) {
+				abandon(waiter);
+			}
+		});
+		return future;
+	}
+
+	public void release() {
+		release(1);
+	}
+
+	public void release(int permits) {
+		checkPermits(permits);
+		List<Waiter> granted;
+		lock.lock();
+		try {
+			available += permits;
+			granted = grant();
+		} finally {
+			lock.unlock();
+		}
+		wake(granted);
+	}
+
+	/**
+	 * The controller's knob. Growing grants queued requests at once, shrinking
+	 * takes effect as permits are released.
+	 */
+	public void setPermits(int permits) {
+		checkPermits(permits);
+		List<Waiter> granted;
+		lock.lock();
+		try {
+			available += permits - this.permits;
+			this.permits = permits;
+			granted = grant();
+		} finally {
+			lock.unlock();
+		}
+		wake(granted);
+	}
+
+	private boolean acquire(int permits, boolean timed, long nanos) throws InterruptedException {
+		checkPermits(permits);
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		Waiter waiter;
+		lock.lock();
+		try {
+			if (waiters.isEmpty() && available >= fit(permits)) {
+				available -= permits;
+				histogram(permits).record(0);
+				return true;
+			}
+			if (timed && nanos <= 0) {
+				return false;
+			}
+			waiter = new Waiter(permits, Thread.currentThread(), null);
+			waiters.add(waiter);
+		} finally {
+			lock.unlock();
+		}
+
+		long deadline = waiter.enqueuedNanos + nanos;
+		while (!waiter.granted) {
+			if (Thread.interrupted()) {
+				if (abandon(waiter)) {
+					throw new InterruptedException();
+				}
+				Thread.currentThread().interrupt(); // granted meanwhile: keep the permits
+				return true;
+			}
+			if (timed) {
+				long left = deadline - System.nanoTime();
+				if (left <= 0) {
+					return !abandon(waiter);
+				}
+				LockSupport.parkNanos(this, left);
+			} else {
+				LockSupport.park(this);
+			}
+		}
+		return true;
+	}
+
+	/** @return false if it was granted meanwhile, the caller owns the permits */
+	private boolean abandon(Waiter waiter) {
+		List<Waiter> granted;
+		lock.lock();
+		try {
+			if (waiter.granted) {
+				return false;
+			}
+			waiters.remove(waiter);
+			granted = grant(); // it may have blocked the ones behind it
+		} finally {
+			lock.unlock();
+		}
+		wake(granted);
+		return true;
+	}
+
+	/** under the lock: grants the head of the queue while it fits, FIFO */
+	private List<Waiter> grant() {
+		List<Waiter> granted = null;
+		Waiter head;
+		while ((head = waiters.peek()) != null && available >= fit(head.permits)) {
+			waiters.poll();
+			available -= head.permits;
+			head.granted = true;
+			if (granted == null) {
+				granted = new ArrayList<>();
+			}
+			granted.add(head);
+		}
+		return granted;
+	}
+
+	/** outside of the lock: unparks, or runs the continuations of acquireAsync */
+	private void wake(List<Waiter> granted) {
+		if (granted == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Waiter waiter : granted) {
+			histogram(waiter.permits).record(now - waiter.enqueuedNanos);
+			if (waiter.thread != null) {
+				LockSupport.unpark(waiter.thread);
+			} else if (!waiter.future.complete(null)) {
+				release(waiter.permits); // cancelled in between
+			}
+		}
+	}
+
+	/** a request over the limit waits for all permits, not forever */
+	private int fit(int requested) {
+		return Math.min(requested, permits);
+	}
+
+	private LatencyHistogram histogram(int requested) {
+		return requested == 1 ? waitTime : batchWaitTime;
+	}
+
+	private static void checkPermits(int permits) {
+		if (permits <= 0) {
+			throw new IllegalArgumentException("permits must be > 0: " + permits);
+		}
+	}
+
+	public int getPermits() {
+		lock.lock();
+		try {
+			return permits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** negative after a shrink or an oversized request, until enough are released */
+	public int availablePermits() {
+		lock.lock();
+		try {
+			return available;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getQueueLength() {
+		lock.lock();
+		try {
+			return waiters.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** acquire() to grant of single permit requests, 0 when there was no wait */
+	public LatencyHistogram getWaitTime() {
+		return waitTime;
+	}
+
+	/** the same for requests of more than one permit */
+	public LatencyHistogram getBatchWaitTime() {
+		return batchWaitTime;
+	}
+
+	@Override
+	public String toString() {
+		return "BulkheadSemaphore[permits = " + getPermits() + ", available = " + availablePermits() + ", queued = "
+				+ getQueueLength() + ", wait p99 = "
+				+ TimeUnit.NANOSECONDS.toMicros(waitTime.getValueAtPercentile(99)) + "us, batch wait p99 = "
+				+ TimeUnit.NANOSECONDS.toMicros(batchWaitTime.getValueAtPercentile(99)) + "us]";
+	}
+
+	/**
+	 * Resizes a bulkhead from the latency of the calls it guards, run it every
+	 * interval with a ScheduledExecutorService:
+	 *
+	 * <pre>
+	 * p99 of the interval > target     permits * 3/4, at least minPermits: the
+	 *                                  downstream queues, send it less
+	 * p99 ok, requests waiting         permits + 1, at most maxPermits: probe
+	 * fewer than minSamples calls      nothing, too few to tell
+	 * </pre>
+	 *
+	 * The callers record() the latency of every guarded call, the histogram is
+	 * reset on every run.
+	 */
+	public static final class LatencyController implements Runnable {
+		private final BulkheadSemaphore bulkhead;
+		private final long targetNanos;
+		private final int minPermits;
+		private final int maxPermits;
+		private final int minSamples;
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		public LatencyController(BulkheadSemaphore bulkhead, Duration targetP99, int minPermits, int maxPermits,
+				int minSamples) {
+			if (minPermits <= 0 || maxPermits < minPermits) {
+				throw new IllegalArgumentException(
+						"expected 0 < minPermits <= maxPermits: " + minPermits + ", " + maxPermits);
+			}
+			this.bulkhead = bulkhead;
+			this.targetNanos = targetP99.toNanos();
+			this.minPermits = minPermits;
+			this.maxPermits = maxPermits;
+			this.minSamples = minSamples;
+		}
+
+		public void record(long nanos) {
+			latencies.record(nanos);
+		}
+
+		@Override
+		public void run() {
+			if (latencies.getCount() < minSamples) {
+				return;
+			}
+			long p99 = latencies.getValueAtPercentile(99);
+			latencies.reset();
+			int permits = bulkhead.getPermits();
+			if (p99 > targetNanos) {
+				bulkhead.setPermits(Math.max(minPermits, Math.min(permits - 1, permits * 3 / 4)));
+			} else if (bulkhead.getQueueLength() > 0) {
+				bulkhead.setPermits(Math.min(maxPermits, permits + 1));
+			}
+		}
+	}
+
+	/**
+	 * A downstream which is fast up to 8 concurrent calls and queues beyond,
+	 * behind a bulkhead of 32 permits and a LatencyController with a p99 target
+	 * of 5ms; 200 virtual threads call it, every tenth call needs 4 permits.
+	 * The controller keeps the permits around 8, the capacity of the downstream.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		BulkheadSemaphore bulkhead = new BulkheadSemaphore(32);
+		LatencyController controller = new LatencyController(bulkhead, Duration.ofMillis(5), 1, 64, 20);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(controller, 100, 100, TimeUnit.MILLISECONDS);
+		BulkheadSemaphore downstream = new BulkheadSemaphore(8); // its own capacity
+
+		CountDownLatch done = new CountDownLatch(200);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < 200; i++) {
+				int id = i;
+				executor.submit(() -> {
+					int permits = id % 10 == 0 ? 4 : 1;
+					try {
+						while (System.nanoTime() < deadline) {
+							bulkhead.acquire(permits);
+							long start = System.nanoTime();
+							try {
+								downstream.acquire();
+								try {
+									Thread.sleep(ThreadLocalRandom.current().nextInt(1, 4));
+								} finally {
+									downstream.release();
+								}
+							} finally {
+								controller.record(System.nanoTime() - start);
+								bulkhead.release(permits);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			for (int i = 0; i < 6; i++) {
+				Thread.sleep(500);
+				System.out.println(bulkhead);
+			}
+			done.await();
+		}
+		scheduler.shutdown();
+		System.out.println("single permit wait: " + bulkhead.getWaitTime());
+		System.out.println("4 permits wait:     " + bulkhead.getBatchWaitTime());
+	}
+}
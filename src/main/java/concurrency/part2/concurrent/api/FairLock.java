@@ -0,0 +1,72 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Fair Lock Below is shown the previous Lock class turned into a fair lock
+ * called FairLock.
+ * 
+ * You will notice that the implementation has changed a bit with respect to
+ * synchronization and wait() / notify() compared to the Lock class shown
+ * earlier.
+ *
+ * 
+ * Lock Fairness An unfair lock does not guarantee the order in which threads
+ * waiting to lock the lock will be given access to lock it. That means, that a
+ * waiting thread could risk waiting forever, if other threads keep trying to
+ * lock the lock, and are given priority over the waiting thread. This situation
+ * can lead to starvation. I cover starvation and fairness in more detail in my
+ * Starvation and Fairness Tutorial.
+ *
+ * Ref:
+ * https://jenkov.com/tutorials/java-concurrency/starvation-and-fairness.html
+ *
+ * A QueueObject per lock() and an O(n) remove per handoff: see
+ * {@link QueuedFairLock} for the same fairness on a CLH queue, and
+ * {@link FairLockBenchmark}.
+ */
+class FairLock {
+	private boolean isLocked = false;
+	private Thread lockingThread = null;
+	private List<QueueObject> waitingThreads = new ArrayList<QueueObject>();
+
+	public void lock() throws InterruptedException {
+		QueueObject queueObject = new QueueObject();
+		boolean isLockedForThisThread = true;
+		synchronized (this) {
+			waitingThreads.add(queueObject);
+		}
+
+		while (isLockedForThisThread) {
+			synchronized (this) {
+				isLockedForThisThread = isLocked || waitingThreads.get(0) != queueObject;
+				if (!isLockedForThisThread) {
+					isLocked = true;
+					waitingThreads.remove(queueObject);
+					lockingThread = Thread.currentThread();
+					return;
+				}
+			}
+			try {
+				queueObject.doWait();
+			} catch (InterruptedException e) {
+				synchronized (this) {
+					waitingThreads.remove(queueObject);
+				}
+				throw e;
+			}
+		}
+	}
+
+	public synchronized void unlock() {
+		if (this.lockingThread != Thread.currentThread()) {
+			throw new IllegalMonitorStateException("Calling thread has not locked this lock");
+		}
+		isLocked = false;
+		lockingThread = null;
+		if (waitingThreads.size() > 0) {
+			waitingThreads.get(0).doNotify();
+		}
+	}
+}
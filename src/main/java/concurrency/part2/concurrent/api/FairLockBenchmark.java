@@ -0,0 +1,174 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Throughput and fairness of
+ *
+ * <pre>
+ * - FairLock of LockzFairnessandStarvation (list of monitors)
+ * - QueuedFairLock (CLH queue)
+ * - ReentrantLock(true), fair
+ * - ReentrantLock(false), barging: whoever comes first, usually the thread
+ *   which just unlocked
+ *
+ * with 2/4/16 threads, each locking in a loop for a fixed time.
+ *
+ * ops/sec    lock + unlock per second, all threads
+ * CV         standard deviation / mean of the acquisitions per thread:
+ *            0 every thread got the lock equally often, 1 and more: some starve
+ * min/max    acquisitions of the least / most lucky thread
+ *
+ * usage: FairLockBenchmark [millis per run] [work in the critical section]
+ * </pre>
+ *
+ * Every configuration runs twice, only the second (warmed up) run is printed.
+ */
+public class FairLockBenchmark {
+
+	/** the common part of FairLock and java.util.concurrent.locks.Lock */
+	interface Mutex {
+		void lock() throws InterruptedException;
+
+		void unlock();
+	}
+
+	private static final int[] THREADS = { 2, 4, 16 };
+
+	record Result(double opsPerSecond, double cv, long min, long max) {
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 1_000;
+		int work = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		List<String> names = new ArrayList<>();
+		List<Supplier<Mutex>> locks = new ArrayList<>();
+		names.add("FairLock");
+		locks.add(() -> {
+			FairLock lock = new FairLock();
+			return mutex(lock::lock, lock::unlock);
+		});
+		names.add("QueuedFairLock");
+		locks.add(() -> {
+			QueuedFairLock lock = new QueuedFairLock();
+			return mutex(lock::lock, lock::unlock);
+		});
+		names.add("ReentrantLock(true)");
+		locks.add(() -> {
+			ReentrantLock lock = new ReentrantLock(true);
+			return mutex(lock::lock, lock::unlock);
+		});
+		names.add("ReentrantLock(false)");
+		locks.add(() -> {
+			ReentrantLock lock = new ReentrantLock(false);
+			return mutex(lock::lock, lock::unlock);
+		});
+
+		System.out.printf("%d ms per run, work %d, %d cores%n", millis, work, Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-22s %7s %15s %7s %12s %12s%n", "lock", "threads", "ops/sec", "CV", "min", "max");
+		for (int threads : THREADS) {
+			for (int i = 0; i < locks.size(); i++) {
+				run(locks.get(i).get(), threads, millis, work); // warm up
+				Result result = run(locks.get(i).get(), threads, millis, work);
+				System.out.printf("%-22s %7d %15.0f %7.3f %12d %12d%n", names.get(i), threads, result.opsPerSecond(),
+						result.cv(), result.min(), result.max());
+			}
+			System.out.println();
+		}
+	}
+
+	private interface Lock {
+		void lock() throws InterruptedException;
+	}
+
+	private static Mutex mutex(Lock lock, Runnable unlock) {
+		return new Mutex() {
+			public void lock() throws InterruptedException {
+				lock.lock();
+			}
+
+			public void unlock() {
+				unlock.run();
+			}
+		};
+	}
+
+	static Result run(Mutex mutex, int threads, long millis, int work) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		long[] acquisitions = new long[threads];
+		long[] shared = new long[1];
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+		for (int t = 0; t < threads; t++) {
+			int index = t;
+			new Thread(() -> {
+				long count = 0;
+				try {
+					start.await();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.nanoTime() < deadline) {
+						mutex.lock();
+						try {
+							for (int i = 0; i < work; i++) {
+								shared[0] += random.nextInt(8);
+							}
+						} finally {
+							mutex.unlock();
+						}
+						count++;
+						for (int i = 0; i < work; i++) { // outside: give the others a chance to arrive
+							Blackhole.consume(random.nextInt());
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					acquisitions[index] = count;
+					done.countDown();
+				}
+			}, "locker-" + t).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("benchmark did not finish");
+		}
+		long nanos = System.nanoTime() - begin;
+
+		long total = 0;
+		long min = Long.MAX_VALUE;
+		long max = 0;
+		for (long count : acquisitions) {
+			total += count;
+			min = Math.min(min, count);
+			max = Math.max(max, count);
+		}
+		double mean = (double) total / threads;
+		double variance = 0;
+		for (long count : acquisitions) {
+			variance += (count - mean) * (count - mean);
+		}
+		double cv = mean == 0 ? 0 : Math.sqrt(variance / threads) / mean;
+		return new Result(total / (nanos / 1e9), cv, min, max);
+	}
+
+	/** keeps the JIT from removing the work outside of the lock */
+	private static final class Blackhole {
+		static volatile int sink;
+
+		static void consume(int value) {
+			if (value == 42) {
+				sink = value;
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram for percentiles (p50, p99, ...) of many
+ * concurrently recorded latencies, in nanoseconds.
+ *
+ * <pre>
+ * Keeping every sample and sorting it costs memory per request. Instead values
+ * are counted in LOG-LINEAR buckets, the idea of HdrHistogram:
+ *  - 0..15ns get one bucket each
+ *  - every power of 2 range above is split into 16 linear sub buckets,
+ *    e.g. [1024, 2048) into buckets of 64ns
+ * so every recorded value is off by at most 1/16 (6.25%), whatever its size,
+ * and 960 buckets cover 0ns .. 292 years.
+ *
+ * record() is one atomic increment of its bucket, percentiles walk the buckets.
+ * </pre>
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketIndex(value));
+		count.increment();
+		sum.add(value);
+		if (value > max.get()) {
+			max.accumulateAndGet(value, Math::max);
+		}
+	}
+
+	/**
+	 * COORDINATED OMISSION correction for closed-loop measurements (the
+	 * recordValueWithExpectedInterval of HdrHistogram).
+	 *
+	 * <pre>
+	 * a client sends every 10ms, waiting for each response; the server stalls 1s:
+	 *   recorded    1 x 1000ms, the 99 requests it did not send meanwhile are missing
+	 *   corrected   1000ms, 990ms, 980ms, ... 10ms: what 99 requests sent on
+	 *               schedule would have waited
+	 * </pre>
+	 *
+	 * An open-loop client (send on schedule, measure from the scheduled time)
+	 * needs no correction, see LoadGenerator.
+	 */
+	public void recordCorrected(long nanos, long expectedIntervalNanos) {
+		record(nanos);
+		if (expectedIntervalNanos <= 0) {
+			return;
+		}
+		long missing = nanos - expectedIntervalNanos;
+		while (missing >= expectedIntervalNanos) {
+			record(missing);
+			missing -= expectedIntervalNanos;
+		}
+	}
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/** highest value which falls into the bucket */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param percentile 0..100, e.g. 99.9
+	 * @return the latency in nanos that percentile of the recorded values are
+	 *         lower or equal to (rounded up to its bucket), 0 if empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * Math.min(100.0, percentile) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.sumThenReset();
+		sum.sumThenReset();
+		max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count = %d, mean = %.2fms, p50 = %.2fms, p90 = %.2fms, p99 = %.2fms, p99.9 = %.2fms, max = %.2fms",
+				getCount(), getMean() / 1e6, toMillis(getValueAtPercentile(50)), toMillis(getValueAtPercentile(90)),
+				toMillis(getValueAtPercentile(99)), toMillis(getValueAtPercentile(99.9)), toMillis(getMax()));
+	}
+
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,428 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Hash map for read-mostly data, e.g. a config cache: get() takes no lock
+ * at all, it reads optimistically.
+ *
+ * <pre>
+ * StampedLockDemo                           OptimisticReadMap
+ * one StampedLock over one HashMap:         N SEGMENTS, each a StampedLock over its own
+ *   a put() invalidates every reader          table: a put() only invalidates the readers
+ *                                             of its segment
+ * get(): readLock(), a CAS on the lock      get(): tryOptimisticRead(), read, validate():
+ *   state, all readers write the same         no write to shared memory, readers on all
+ *   cache line                                cores scale
+ * readWithOptimisticLock() over a           chains whose nodes never change their key or
+ *   HashMap: a reader racing a resize can     next: a racing reader reads stale data at
+ *   see a broken table                        worst, which validate() rejects
+ * </pre>
+ *
+ * get(): up to optimisticRetries optimistic reads, then the read lock of the
+ * segment (the fallback, it cannot fail). Retries and fallbacks are counted,
+ * see stats(): many fallbacks mean the writers are too frequent for the number
+ * of segments.
+ *
+ * The tables work as the segments of the Java 5-7 ConcurrentHashMap: a write
+ * changes a value in place or puts a new node in front of its chain, a remove
+ * copies the nodes in front of the removed one, a resize copies all nodes.
+ * Null keys and values are not allowed.
+ */
+public class OptimisticReadMap<K, V> {
+
+	static final class Node<K, V> {
+		final int hash;
+		final K key;
+		final Node<K, V> next;
+		/** plain: only written under the write lock, a racing read is caught by validate() */
+		V value;
+
+		Node(int hash, K key, V value, Node<K, V> next) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/** a segment is its own lock, as in the Java 5-7 ConcurrentHashMap */
+	@SuppressWarnings("serial")
+	static final class Segment<K, V> extends StampedLock {
+		Node<K, V>[] table;
+		volatile int count;
+
+		Segment(int capacity) {
+			table = newTable(capacity);
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <K, V> Node<K, V>[] newTable(int capacity) {
+			return (Node<K, V>[]) new Node<?, ?>[capacity];
+		}
+
+		/** optimistic readers call it too: only reads, never throws on a stale table */
+		V find(Object key, int hash) {
+			Node<K, V>[] tab = table;
+			for (Node<K, V> node = tab[hash & (tab.length - 1)]; node != null; node = node.next) {
+				if (node.hash == hash && key.equals(node.key)) {
+					return node.value;
+				}
+			}
+			return null;
+		}
+
+		/** under the write lock */
+		V put(K key, int hash, V value, boolean onlyIfAbsent) {
+			Node<K, V>[] tab = table;
+			int index = hash & (tab.length - 1);
+			for (Node<K, V> node = tab[index]; node != null; node = node.next) {
+				if (node.hash == hash && key.equals(node.key)) {
+					V old = node.value;
+					if (!onlyIfAbsent) {
+						node.value = value;
+					}
+					return old;
+				}
+			}
+			tab[index] = new Node<>(hash, key, value, tab[index]);
+			int c = count + 1;
+			if (c > tab.length - (tab.length >>> 2)) { // load factor 0.75
+				resize();
+			}
+			count = c;
+			return null;
+		}
+
+		/** under the write lock */
+		V remove(Object key, int hash) {
+			Node<K, V>[] tab = table;
+			int index = hash & (tab.length - 1);
+			Node<K, V> first = tab[index];
+			for (Node<K, V> node = first; node != null; node = node.next) {
+				if (node.hash == hash && key.equals(node.key)) {
+					Node<K, V> chain = node.next;
+					for (Node<K, V> p = first; p != node; p = p.next) {
+						chain = new Node<>(p.hash, p.key, p.value, chain);
+					}
+					tab[index] = chain;
+					count = count - 1;
+					return node.value;
+				}
+			}
+			return null;
+		}
+
+		private void resize() {
+			Node<K, V>[] old = table;
+			Node<K, V>[] tab = newTable(old.length << 1);
+			int mask = tab.length - 1;
+			for (Node<K, V> head : old) {
+				for (Node<K, V> node = head; node != null; node = node.next) {
+					int index = node.hash & mask;
+					tab[index] = new Node<>(node.hash, node.key, node.value, tab[index]);
+				}
+			}
+			table = tab; // readers of the old table keep reading consistent (old) chains
+		}
+	}
+
+	public record Stats(long optimisticRetries, long readLockFallbacks) {
+	}
+
+	private final Segment<K, V>[] segments;
+	private final int segmentShift;
+	private final int optimisticRetries;
+	private final StripedCounter retries = new StripedCounter();
+	private final StripedCounter fallbacks = new StripedCounter();
+
+	@SuppressWarnings("unchecked")
+	private OptimisticReadMap(Builder builder) {
+		int count = Integer.highestOneBit(Math.max(1, builder.segments - 1)) << 1;
+		int perSegment = Integer.highestOneBit(Math.max(1, builder.initialCapacity / count * 4 / 3)) << 1;
+		segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment<>(Math.max(2, perSegment));
+		}
+		segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+		optimisticRetries = builder.optimisticRetries;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/** as HashMap: the high bits into the low ones, for the table index */
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/** the HIGH bits select the segment, the low ones the bucket in its table */
+	private Segment<K, V> segmentFor(int hash) {
+		return segments.length == 1 ? segments[0] : segments[(hash * 0x9E3779B9) >>> segmentShift];
+	}
+
+	public V get(Object key) {
+		int hash = hash(Objects.requireNonNull(key));
+		Segment<K, V> segment = segmentFor(hash);
+		for (int attempt = 0; attempt <= optimisticRetries; attempt++) {
+			long stamp = segment.tryOptimisticRead();
+			if (stamp != 0L) {
+				V value = segment.find(key, hash);
+				if (segment.validate(stamp)) {
+					return value;
+				}
+			}
+			if (attempt < optimisticRetries) {
+				retries.increment();
+				Thread.onSpinWait();
+			}
+		}
+		fallbacks.increment();
+		long stamp = segment.readLock();
+		try {
+			return segment.find(key, hash);
+		} finally {
+			segment.unlockRead(stamp);
+		}
+	}
+
+	public V getOrDefault(Object key, V defaultValue) {
+		V value = get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	/** @return the previous value, null if there was none */
+	public V put(K key, V value) {
+		return put(key, value, false);
+	}
+
+	public V putIfAbsent(K key, V value) {
+		return put(key, value, true);
+	}
+
+	private V put(K key, V value, boolean onlyIfAbsent) {
+		int hash = hash(Objects.requireNonNull(key));
+		Objects.requireNonNull(value);
+		Segment<K, V> segment = segmentFor(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.put(key, hash, value, onlyIfAbsent);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * An optimistic get() first, the loader runs under the write lock of the
+	 * segment: once per key, but it blocks the readers of the segment meanwhile,
+	 * keep it short.
+	 */
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null) {
+			return value;
+		}
+		int hash = hash(key);
+		Segment<K, V> segment = segmentFor(hash);
+		long stamp = segment.writeLock();
+		try {
+			value = segment.find(key, hash);
+			if (value == null) {
+				value = loader.apply(key);
+				if (value != null) {
+					segment.put(key, hash, value, false);
+				}
+			}
+			return value;
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	public V remove(Object key) {
+		int hash = hash(Objects.requireNonNull(key));
+		Segment<K, V> segment = segmentFor(hash);
+		long stamp = segment.writeLock();
+		try {
+			return segment.remove(key, hash);
+		} finally {
+			segment.unlockWrite(stamp);
+		}
+	}
+
+	/** the sum of the segments, not an atomic snapshot */
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			size += segment.count;
+		}
+		return size;
+	}
+
+	/** segment by segment, each under its read lock */
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		for (Segment<K, V> segment : segments) {
+			long stamp = segment.readLock();
+			try {
+				for (Node<K, V> head : segment.table) {
+					for (Node<K, V> node = head; node != null; node = node.next) {
+						action.accept(node.key, node.value);
+					}
+				}
+			} finally {
+				segment.unlockRead(stamp);
+			}
+		}
+	}
+
+	public Stats stats() {
+		return new Stats(retries.sum(), fallbacks.sum());
+	}
+
+	public static final class Builder {
+		private int segments = 4 * Runtime.getRuntime().availableProcessors();
+		private int initialCapacity = 64;
+		private int optimisticRetries = 2;
+
+		private Builder() {
+		}
+
+		/** rounded up to a power of 2, default 4 x cores */
+		public Builder segments(int segments) {
+			if (segments <= 0) {
+				throw new IllegalArgumentException("segments must be > 0: " + segments);
+			}
+			this.segments = segments;
+			return this;
+		}
+
+		/** of all segments together */
+		public Builder initialCapacity(int initialCapacity) {
+			if (initialCapacity < 0) {
+				throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+			}
+			this.initialCapacity = initialCapacity;
+			return this;
+		}
+
+		/** failed optimistic reads before get() takes the read lock, 0: one try only */
+		public Builder optimisticRetries(int optimisticRetries) {
+			if (optimisticRetries < 0) {
+				throw new IllegalArgumentException("optimisticRetries must be >= 0: " + optimisticRetries);
+			}
+			this.optimisticRetries = optimisticRetries;
+			return this;
+		}
+
+		public <K, V> OptimisticReadMap<K, V> build() {
+			return new OptimisticReadMap<>(this);
+		}
+	}
+
+	/**
+	 * A config cache: 1k keys, 1, 2, 4 ... readers, one writer changing a key
+	 * every 10 microseconds, against StampedLockDemo and ConcurrentHashMap.
+	 *
+	 * usage: OptimisticReadMap [millis per run]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 500;
+		int keys = 1_024;
+		String[] names = new String[keys];
+		for (int i = 0; i < keys; i++) {
+			names[i] = "config-" + i;
+		}
+
+		System.out.printf("%d ms per run, %d cores, reads/sec (million)%n%-20s", millis,
+				Runtime.getRuntime().availableProcessors(), "readers");
+		List<Integer> readerCounts = new ArrayList<>();
+		for (int readers = 1; readers <= 2 * Runtime.getRuntime().availableProcessors() || readers <= 4; readers *= 2) {
+			readerCounts.add(readers);
+			System.out.printf("%10d", readers);
+		}
+		System.out.println();
+
+		OptimisticReadMap<String, String> map = newBuilder().initialCapacity(keys).build();
+		StampedLockDemo demo = new StampedLockDemo();
+		ConcurrentHashMap<String, String> chm = new ConcurrentHashMap<>();
+		for (String name : names) {
+			map.put(name, name);
+			demo.put(name, name);
+			chm.put(name, name);
+		}
+		run("StampedLockDemo", readerCounts, millis, names, key -> {
+			try {
+				return demo.get(key);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}, demo::put);
+		run("StampedLockDemo opt.", readerCounts, millis, names, demo::readWithOptimisticLock, demo::put);
+		run("OptimisticReadMap", readerCounts, millis, names, map::get, map::put);
+		run("ConcurrentHashMap", readerCounts, millis, names, chm::get, chm::put);
+		System.out.println(map.stats());
+	}
+
+	private static void run(String name, List<Integer> readerCounts, long millis, String[] keys,
+			Function<String, String> get, BiConsumer<String, String> put) throws InterruptedException {
+		System.out.printf("%-20s", name);
+		for (int readers : readerCounts) {
+			runOnce(readers, millis, keys, get, put); // warm up
+			System.out.printf("%10.2f", runOnce(readers, millis, keys, get, put) / 1e6);
+		}
+		System.out.println();
+	}
+
+	/** @return reads per second */
+	private static double runOnce(int readers, long millis, String[] keys, Function<String, String> get,
+			BiConsumer<String, String> put) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		CountDownLatch done = new CountDownLatch(readers);
+		StripedCounter reads = new StripedCounter();
+		Thread writer = Thread.ofPlatform().daemon().start(() -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			while (System.nanoTime() < deadline) {
+				String key = keys[random.nextInt(keys.length)];
+				put.accept(key, key);
+				long until = System.nanoTime() + 10_000;
+				while (System.nanoTime() < until) {
+					Thread.onSpinWait();
+				}
+			}
+		});
+		for (int r = 0; r < readers; r++) {
+			Thread.ofPlatform().daemon().start(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long count = 0;
+				while ((count & 255) != 0 || System.nanoTime() < deadline) {
+					if (get.apply(keys[random.nextInt(keys.length)]) == null) {
+						throw new IllegalStateException("lost a key");
+					}
+					count++;
+				}
+				reads.add(count);
+				done.countDown();
+			});
+		}
+		long begin = System.nanoTime();
+		done.await();
+		double seconds = (System.nanoTime() - begin) / 1e9;
+		writer.join();
+		return reads.sum() / seconds;
+	}
+}
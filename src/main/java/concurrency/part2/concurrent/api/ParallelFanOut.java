@@ -0,0 +1,290 @@
+package concurrency.part2.concurrent.api;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Runs one call per input concurrently, e.g. one GitHub lookup per user name of
+ * LookupService.findAllByUserNames.
+ *
+ * <pre>
+ * userNames.forEach(lookup): N calls one after the other, T = sum of latencies
+ *
+ * ParallelFanOut: T = about max of latencies (N / maxInFlight rounds)
+ *  - at most maxInFlight calls run at the same time, as a SLIDING WINDOW: every
+ *    finished call starts the next one, nobody waits for the slowest of a batch
+ *  - every call has its own timeout
+ *  - PARTIAL results: a failed or timed out call does not fail the others, the
+ *    result tells which ones failed
+ *  - results are in INPUT order, whatever order the calls finish in
+ *  - latency of every call goes into a {@link LatencyHistogram}
+ * </pre>
+ *
+ * Blocking calls run on the given executor, a thread pool or
+ * Executors.newVirtualThreadPerTaskExecutor(). A timed out call is NOT
+ * interrupted, only no longer waited for, its in-flight slot is free again.
+ */
+public class ParallelFanOut {
+
+	private final int maxInFlight;
+	private final long timeoutNanos;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+
+	public ParallelFanOut(int maxInFlight, Duration perCallTimeout) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		this.timeoutNanos = perCallTimeout.toNanos();
+	}
+
+	/**
+	 * Blocking calls, run on the executor.
+	 */
+	public <T, R> CompletableFuture<FanOutResult<R>> invokeAll(List<T> inputs, Function<? super T, ? extends R> call,
+			Executor executor) {
+		return invokeAll(inputs, input -> CompletableFuture.supplyAsync(() -> call.apply(input), executor));
+	}
+
+	/**
+	 * Asynchronous calls, e.g. HttpClient.sendAsync or a cache lookup. The
+	 * returned future completes when every call is finished or timed out, it never
+	 * completes exceptionally.
+	 */
+	public <T, R> CompletableFuture<FanOutResult<R>> invokeAll(List<T> inputs,
+			Function<? super T, ? extends CompletionStage<? extends R>> call) {
+		Run<T, R> run = new Run<>(new ArrayList<>(inputs), call);
+		if (run.inputs.isEmpty()) {
+			run.done.complete(run.result());
+		}
+		for (int lane = 0; lane < Math.min(maxInFlight, run.inputs.size()); lane++) {
+			run.next();
+		}
+		return run.done;
+	}
+
+	/** latencies of every call so far */
+	public LatencyHistogram getLatencies() {
+		return latencies;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	private final class Run<T, R> {
+		final List<T> inputs;
+		final Function<? super T, ? extends CompletionStage<? extends R>> call;
+		final Object[] values;
+		final Throwable[] failures;
+		final long[] latencyNanos;
+		final AtomicInteger nextIndex = new AtomicInteger();
+		final AtomicInteger remaining;
+		final CompletableFuture<FanOutResult<R>> done = new CompletableFuture<>();
+
+		Run(List<T> inputs, Function<? super T, ? extends CompletionStage<? extends R>> call) {
+			this.inputs = inputs;
+			this.call = call;
+			this.values = new Object[inputs.size()];
+			this.failures = new Throwable[inputs.size()];
+			this.latencyNanos = new long[inputs.size()];
+			this.remaining = new AtomicInteger(inputs.size());
+		}
+
+		/**
+		 * One lane of the window: starts calls until one of them does not finish at
+		 * once (e.g. a cache miss), whose completion continues the lane. A loop and
+		 * not recursion, so a long run of cache hits does not grow the stack.
+		 */
+		void next() {
+			int index;
+			while ((index = nextIndex.getAndIncrement()) < inputs.size()) {
+				long start = System.nanoTime();
+				CompletableFuture<? extends R> future;
+				try {
+					// copy(): the timeout must not complete a future shared with others
+					future = call.apply(inputs.get(index)).toCompletableFuture().copy().orTimeout(timeoutNanos,
+							TimeUnit.NANOSECONDS);
+				} catch (RuntimeException e) {
+					future = CompletableFuture.failedFuture(e);
+				}
+				if (future.isDone()) {
+					finished(index, start, future);
+					continue;
+				}
+				int i = index;
+				CompletableFuture<? extends R> f = future;
+				future.whenComplete((value, failure) -> {
+					finished(i, start, f);
+					next();
+				});
+				return;
+			}
+		}
+
+		private void finished(int index, long start, CompletableFuture<? extends R> future) {
+			latencyNanos[index] = System.nanoTime() - start;
+			latencies.record(latencyNanos[index]);
+			try {
+				values[index] = future.join();
+			} catch (CompletionException e) {
+				failures[index] = e.getCause() != null ? e.getCause() : e;
+			} catch (CancellationException e) {
+				failures[index] = e;
+			}
+			// the decrement publishes the array writes to whoever completes the run
+			if (remaining.decrementAndGet() == 0) {
+				done.complete(result());
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		FanOutResult<R> result() {
+			return new FanOutResult<>((R[]) values, failures, latencyNanos);
+		}
+	}
+
+	/**
+	 * Value or failure of every input, in input order.
+	 */
+	public static final class FanOutResult<R> {
+		private final R[] values;
+		private final Throwable[] failures;
+		private final long[] latencyNanos;
+
+		FanOutResult(R[] values, Throwable[] failures, long[] latencyNanos) {
+			this.values = values;
+			this.failures = failures;
+			this.latencyNanos = latencyNanos;
+		}
+
+		public int size() {
+			return values.length;
+		}
+
+		public boolean isSuccess(int index) {
+			return failures[index] == null;
+		}
+
+		/** value of the input at index, null if it failed */
+		public R get(int index) {
+			return values[index];
+		}
+
+		/** failure of the input at index, e.g. a TimeoutException, null if it succeeded */
+		public Throwable getFailure(int index) {
+			return failures[index];
+		}
+
+		/** values of the successful calls, in input order */
+		public List<R> getValues() {
+			return Collections.unmodifiableList(IntStream.range(0, values.length).filter(this::isSuccess)
+					.mapToObj(i -> values[i]).collect(Collectors.toList()));
+		}
+
+		public int getSuccessCount() {
+			return (int) Arrays.stream(failures).filter(f -> f == null).count();
+		}
+
+		public int getFailureCount() {
+			return values.length - getSuccessCount();
+		}
+
+		public int getTimeoutCount() {
+			return (int) Arrays.stream(failures).filter(f -> f instanceof TimeoutException).count();
+		}
+
+		/** true when no call failed */
+		public boolean isComplete() {
+			return getFailureCount() == 0;
+		}
+
+		/** latency percentile (0..100) of the calls of this run, in nanos */
+		public long getLatencyPercentile(double percentile) {
+			if (latencyNanos.length == 0) {
+				return 0;
+			}
+			long[] sorted = latencyNanos.clone();
+			Arrays.sort(sorted);
+			int rank = (int) Math.ceil(sorted.length * Math.min(100.0, percentile) / 100.0);
+			return sorted[Math.max(0, rank - 1)];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("FanOutResult[calls = %d, failed = %d, timed out = %d, p50 = %dms, p99 = %dms]",
+					size(), getFailureCount(), getTimeoutCount(),
+					TimeUnit.NANOSECONDS.toMillis(getLatencyPercentile(50)),
+					TimeUnit.NANOSECONDS.toMillis(getLatencyPercentile(99)));
+		}
+	}
+
+	/**
+	 * 40 lookups of 50..450ms, every 10th one hangs for 5s:
+	 *
+	 * <pre>
+	 * sequential:                      T = about 30s
+	 * fan-out on 5 threads, 8 in flight:   limited by the 5 threads
+	 * fan-out on virtual threads, 8 in flight: limited by maxInFlight, the hanging
+	 *                                          calls time out after 1s
+	 * </pre>
+	 */
+	public static void main(String[] args) throws InterruptedException, ExecutionException {
+		List<String> userNames = IntStream.range(0, 40).mapToObj(i -> "user" + i).collect(Collectors.toList());
+		Random random = new Random(42);
+		long[] delays = userNames.stream().mapToLong(name -> 50 + random.nextInt(400)).toArray();
+		Function<String, String> lookup = name -> {
+			int i = Integer.parseInt(name.substring(4));
+			try {
+				Thread.sleep(i % 10 == 9 ? 5_000 : delays[i]);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return name.toUpperCase();
+		};
+
+		long start = System.nanoTime();
+		for (String name : userNames.subList(0, 10)) {
+			lookup.apply(name);
+		}
+		System.out.printf("sequential, first 10 of them     T = %dms%n",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		ExecutorService pool = Executors.newFixedThreadPool(5);
+		ParallelFanOut fanOut = new ParallelFanOut(8, Duration.ofSeconds(1));
+		start = System.nanoTime();
+		FanOutResult<String> result = fanOut.invokeAll(userNames, lookup, pool).get();
+		System.out.printf("fan-out, 5 threads               T = %dms, %s%n",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result);
+		pool.shutdownNow();
+
+		try (ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+			start = System.nanoTime();
+			result = fanOut.invokeAll(userNames, lookup, virtualThreads).get();
+			System.out.printf("fan-out, virtual threads         T = %dms, %s%n",
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result);
+			System.out.println("input order kept: " + result.get(0) + ", " + result.get(1) + " ... failed: "
+					+ result.getFailure(9));
+			System.out.println("all calls: " + fanOut.getLatencies());
+			virtualThreads.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package concurrency.part2.concurrent.api;
+
+class QueueObject {
+
+	private boolean isNotified = false;
+
+	public synchronized void doWait() throws InterruptedException {
+		while (!isNotified) {
+			this.wait();
+		}
+		this.isNotified = false;
+	}
+
+	public synchronized void doNotify() {
+		this.isNotified = true;
+		this.notify();
+	}
+
+	public boolean equals(Object o) {
+		return this == o;
+	}
+}
@@ -0,0 +1,436 @@
+package concurrency.part2.concurrent.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fair (FIFO) lock on a CLH queue, the design behind AbstractQueuedSynchronizer
+ * and what {@link FairLock} does with a list of monitors.
+ *
+ * <pre>
+ * FairLock                                  QueuedFairLock
+ * new QueueObject() per lock()              one node per thread, reused (ThreadLocal)
+ * synchronized(this) to enqueue, to check   one getAndSet of the tail to enqueue
+ *   "am I first?" after every wake up
+ * unlock: waitingThreads.remove(..), O(n)   unlock: one volatile write to the own node
+ *   ArrayList shift + notify                  and unpark of its successor, O(1)
+ * </pre>
+ *
+ * CLH queue: every thread waits on the node of its PREDECESSOR, nobody else
+ * looks at that node, so the waiting is local and a release wakes up exactly
+ * one thread.
+ *
+ * <pre>
+ * tail --> [C waits on B] --> [B waits on A] --> [A holds the lock]
+ *
+ * A unlocks: A.status = RELEASED, unpark(A.waiter = B). B owns the lock and
+ * takes A's node as its node for the next lock(): A moved on to its own
+ * predecessor's node the same way, no allocation while the queue turns.
+ * </pre>
+ *
+ * A waiter spins a little before it parks (multi core only): a short critical
+ * section is often over before a park / unpark round trip would be.
+ *
+ * TIMEOUT / INTERRUPT: the node is marked ABANDONED and keeps a link to its
+ * predecessor, its successor skips it and waits on that predecessor instead.
+ * No queue walk, no lock. The abandoning thread leaves the node behind and
+ * allocates a new one for its next lock().
+ *
+ * Reentrant, with conditions. No barging, a lock() never overtakes a waiter
+ * (tryLock() neither, unlike ReentrantLock.tryLock()).
+ *
+ * see {@link FairLockBenchmark}
+ */
+public class QueuedFairLock implements Lock {
+
+	private static final int WAITING = 0;
+	private static final int RELEASED = 1;
+	private static final int ABANDONED = 2;
+
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 128 : 0;
+
+	static final class Node {
+		volatile int status;
+		/** the thread waiting on this node, to unpark on release */
+		volatile Thread waiter;
+		/** set before status ABANDONED: where the successor waits next */
+		volatile Node pred;
+
+		Node(int status) {
+			this.status = status;
+		}
+	}
+
+	private static final VarHandle TAIL;
+
+	static {
+		try {
+			TAIL = MethodHandles.lookup().findVarHandle(QueuedFairLock.class, "tail", Node.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private volatile Node tail = new Node(RELEASED);
+	private final ThreadLocal<Node> myNode = ThreadLocal.withInitial(() -> new Node(WAITING));
+	/** written by the owner only, read by others for isLocked() */
+	private volatile Thread owner;
+	/** the node the owner enqueued, released by unlock() */
+	private Node ownerNode;
+	private int holds;
+
+	@Override
+	public void lock() {
+		if (!acquire(false, 0L)) {
+			throw new AssertionError("untimed, uninterruptible acquire failed");
+		}
+	}
+
+	@Override
+	public void lockInterruptibly() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		if (!acquire(true, 0L)) {
+			Thread.interrupted();
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * immediately, if nobody holds or waits for the lock. Abandoned nodes at the
+	 * tail are nobody: a timed out tryLock(time, unit) leaves one behind
+	 */
+	@Override
+	public boolean tryLock() {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			holds++;
+			return true;
+		}
+		Node t = tail;
+		Node pred = t;
+		while (pred.status == ABANDONED) {
+			pred = pred.pred;
+		}
+		if (pred.status != RELEASED) {
+			return false;
+		}
+		Node node = myNode.get();
+		node.status = WAITING;
+		node.waiter = null;
+		node.pred = null;
+		if (!TAIL.compareAndSet(this, t, node)) {
+			return false; // someone else just enqueued
+		}
+		pred = t;
+		while (pred.status == ABANDONED) {
+			pred = pred.pred;
+		}
+		if (pred.status != RELEASED) {
+			// the tail was released, then reused and enqueued again (ABA): leave the queue
+			abandon(node, pred);
+			return false;
+		}
+		owned(current, node, pred);
+		return true;
+	}
+
+	@Override
+	public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		long nanos = unit.toNanos(time);
+		if (nanos <= 0L) {
+			return tryLock();
+		}
+		boolean acquired = acquire(true, nanos);
+		if (!acquired && Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		return acquired;
+	}
+
+	@Override
+	public void unlock() {
+		if (owner != Thread.currentThread()) {
+			throw new IllegalMonitorStateException("Calling thread has not locked this lock");
+		}
+		if (--holds > 0) {
+			return;
+		}
+		Node node = ownerNode;
+		ownerNode = null;
+		owner = null;
+		node.status = RELEASED;
+		Thread waiter = node.waiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+	}
+
+	public boolean isLocked() {
+		return owner != null;
+	}
+
+	public boolean isHeldByCurrentThread() {
+		return owner == Thread.currentThread();
+	}
+
+	public int getHoldCount() {
+		return owner == Thread.currentThread() ? holds : 0;
+	}
+
+	@Override
+	public Condition newCondition() {
+		return new ConditionObject();
+	}
+
+	/**
+	 * @param timeoutNanos 0: no timeout
+	 * @return false if interrupted (interruptible only, the interrupt status is
+	 *         set) or timed out
+	 */
+	private boolean acquire(boolean interruptible, long timeoutNanos) {
+		Thread current = Thread.currentThread();
+		if (owner == current) {
+			holds++;
+			return true;
+		}
+		Node node = myNode.get();
+		node.status = WAITING;
+		node.waiter = null;
+		node.pred = null;
+		Node pred = (Node) TAIL.getAndSet(this, node);
+		return acquireQueued(node, pred, interruptible, timeoutNanos);
+	}
+
+	private boolean acquireQueued(Node node, Node pred, boolean interruptible, long timeoutNanos) {
+		Thread current = Thread.currentThread();
+		long deadline = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0L;
+		boolean interrupted = false;
+		int spins = SPINS;
+		while (true) {
+			int status = pred.status;
+			if (status == RELEASED) {
+				owned(current, node, pred);
+				if (interrupted) {
+					current.interrupt(); // lock() keeps the interrupt for later
+				}
+				return true;
+			}
+			if (status == ABANDONED) {
+				pred = pred.pred;
+				spins = SPINS;
+				continue;
+			}
+			if (spins > 0) {
+				spins--;
+				Thread.onSpinWait();
+				continue;
+			}
+			pred.waiter = current;
+			if (pred.status != WAITING) {
+				continue; // released or abandoned meanwhile: no park, unpark may have come already
+			}
+			if (deadline == 0L) {
+				LockSupport.park(this);
+			} else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L) {
+					abandon(node, pred);
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (Thread.interrupted()) {
+				if (interruptible) {
+					if (pred.status == RELEASED) {
+						interrupted = true;
+						continue; // got it anyway, keep it and the interrupt
+					}
+					abandon(node, pred);
+					current.interrupt();
+					return false;
+				}
+				interrupted = true;
+			}
+		}
+	}
+
+	/**
+	 * The node stays in the queue, its successor (if any) skips it. Abandoning
+	 * while pred releases is fine: the successor then skips to a RELEASED node
+	 * and owns the lock.
+	 */
+	private void abandon(Node node, Node pred) {
+		node.pred = pred;
+		node.status = ABANDONED;
+		Thread waiter = node.waiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+		myNode.set(new Node(WAITING)); // the successor still reads this one
+	}
+
+	private void owned(Thread current, Node node, Node pred) {
+		owner = current;
+		ownerNode = node;
+		holds = 1;
+		myNode.set(pred); // nobody waits on pred anymore
+	}
+
+	/**
+	 * The waiting threads are in a FIFO guarded by the lock itself: await() and
+	 * signal() are only called holding it.
+	 */
+	private final class ConditionObject implements Condition {
+		private final ArrayDeque<ConditionWaiter> waiters = new ArrayDeque<>();
+
+		@Override
+		public void await() throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (!doAwait(0L, true).signalled) {
+				throw new InterruptedException();
+			}
+		}
+
+		@Override
+		public void awaitUninterruptibly() {
+			doAwait(0L, false);
+		}
+
+		@Override
+		public long awaitNanos(long nanosTimeout) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (nanosTimeout <= 0L) {
+				return nanosTimeout;
+			}
+			long deadline = System.nanoTime() + nanosTimeout;
+			ConditionWaiter waiter = doAwait(nanosTimeout, true);
+			if (waiter.interrupted && !waiter.signalled) {
+				throw new InterruptedException();
+			}
+			return deadline - System.nanoTime();
+		}
+
+		@Override
+		public boolean await(long time, TimeUnit unit) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			long nanos = unit.toNanos(time);
+			if (nanos <= 0L) {
+				return false;
+			}
+			ConditionWaiter waiter = doAwait(nanos, true);
+			if (waiter.interrupted && !waiter.signalled) {
+				throw new InterruptedException();
+			}
+			return !waiter.timedOut;
+		}
+
+		@Override
+		public boolean awaitUntil(Date deadline) throws InterruptedException {
+			return await(deadline.getTime() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Releases all holds, parks until signalled, interrupted (if
+		 * interruptible) or timed out, and locks again with the same holds. A
+		 * signal racing with the interrupt wins: the interrupt status is set again.
+		 * A signal racing with the timeout loses: the caller sees a timeout, so the
+		 * signal goes on to the next waiter instead of getting lost.
+		 */
+		private ConditionWaiter doAwait(long timeoutNanos, boolean interruptible) {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalMonitorStateException("Calling thread has not locked this lock");
+			}
+			ConditionWaiter waiter = new ConditionWaiter(Thread.currentThread());
+			waiters.add(waiter);
+			int savedHolds = holds;
+			holds = 1;
+			unlock();
+
+			long deadline = timeoutNanos > 0L ? System.nanoTime() + timeoutNanos : 0L;
+			while (!waiter.signalled) {
+				if (deadline == 0L) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0L) {
+						waiter.timedOut = true;
+						break;
+					}
+					LockSupport.parkNanos(this, remaining);
+				}
+				if (Thread.interrupted()) {
+					waiter.interrupted = true;
+					if (interruptible) {
+						break;
+					}
+				}
+			}
+
+			acquire(false, 0L);
+			holds = savedHolds;
+			if (!waiter.signalled) {
+				waiters.remove(waiter); // timed out or interrupted, O(n) but only then
+			} else if (waiter.timedOut) {
+				signal(); // signalled after the timeout, before the lock was ours again
+			}
+			if (waiter.interrupted && (waiter.signalled || !interruptible)) {
+				Thread.currentThread().interrupt();
+			}
+			return waiter;
+		}
+
+		@Override
+		public void signal() {
+			checkOwner();
+			ConditionWaiter waiter = waiters.poll();
+			if (waiter != null) {
+				waiter.signalled = true;
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+
+		@Override
+		public void signalAll() {
+			checkOwner();
+			ConditionWaiter waiter;
+			while ((waiter = waiters.poll()) != null) {
+				waiter.signalled = true;
+				LockSupport.unpark(waiter.thread);
+			}
+		}
+
+		private void checkOwner() {
+			if (owner != Thread.currentThread()) {
+				throw new IllegalMonitorStateException("Calling thread has not locked this lock");
+			}
+		}
+	}
+
+	private static final class ConditionWaiter {
+		final Thread thread;
+		volatile boolean signalled;
+		boolean interrupted;
+		boolean timedOut;
+
+		ConditionWaiter(Thread thread) {
+			this.thread = thread;
+		}
+	}
+}
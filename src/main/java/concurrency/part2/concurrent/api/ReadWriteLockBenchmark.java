@@ -0,0 +1,254 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Read / write ratio x thread count sweep of
+ *
+ * <pre>
+ * - MyReadWriteLock of ReadWriteLockDemoz (synchronized + notifyAll)
+ * - ReentrantReadWriteLock
+ * - StampedLock, readLock() and tryOptimisticRead()
+ * - StripedReadWriteLock, readLock() (reentrant reads or not) and tryOptimisticRead()
+ *
+ * every operation reads or writes two longs under the lock, a write with the
+ * given probability: 50% down to 0.1%.
+ *
+ * usage: ReadWriteLockBenchmark [millis per run] [thread counts, e.g. 1,2,4,8,16]
+ * </pre>
+ *
+ * Printed: million operations per second, all threads. Every configuration
+ * runs twice, only the second (warmed up) run is printed.
+ */
+public class ReadWriteLockBenchmark {
+
+	/** a read or a write of the guarded data, under the lock */
+	interface Guarded {
+		long read() throws InterruptedException;
+
+		void write(long value) throws InterruptedException;
+	}
+
+	/** permille of reads */
+	private static final int[] READS = { 500, 900, 990, 999 };
+
+	public static void main(String[] args) throws InterruptedException {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 200;
+		int[] threadCounts = args.length > 1 ? parse(args[1]) : new int[] { 1, 2, 4, 8, 16 };
+
+		List<String> names = new ArrayList<>();
+		List<Supplier<Guarded>> locks = new ArrayList<>();
+		names.add("MyReadWriteLock");
+		locks.add(ReadWriteLockBenchmark::myReadWriteLock);
+		names.add("ReentrantReadWriteLock");
+		locks.add(ReadWriteLockBenchmark::reentrantReadWriteLock);
+		names.add("StampedLock read");
+		locks.add(() -> stampedLock(false));
+		names.add("StampedLock optimistic");
+		locks.add(() -> stampedLock(true));
+		names.add("Striped read");
+		locks.add(() -> stripedReadWriteLock(StripedReadWriteLock.newBuilder().build(), false));
+		names.add("Striped read, no reentr.");
+		locks.add(() -> stripedReadWriteLock(StripedReadWriteLock.newBuilder().reentrantReads(false).build(), false));
+		names.add("Striped optimistic");
+		locks.add(() -> stripedReadWriteLock(StripedReadWriteLock.newBuilder().build(), true));
+
+		System.out.printf("%d ms per run, %d cores, Mops/sec%n", millis, Runtime.getRuntime().availableProcessors());
+		for (int reads : READS) {
+			System.out.printf("%n%.1f%% reads / %.1f%% writes%n%-26s", reads / 10.0, (1000 - reads) / 10.0, "threads");
+			for (int threads : threadCounts) {
+				System.out.printf("%9d", threads);
+			}
+			System.out.println();
+			for (int i = 0; i < locks.size(); i++) {
+				System.out.printf("%-26s", names.get(i));
+				for (int threads : threadCounts) {
+					run(locks.get(i).get(), threads, reads, millis); // warm up
+					double ops = run(locks.get(i).get(), threads, reads, millis);
+					System.out.printf("%9.2f", ops / 1e6);
+				}
+				System.out.println();
+			}
+		}
+	}
+
+	private static int[] parse(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			values[i] = Integer.parseInt(parts[i].trim());
+		}
+		return values;
+	}
+
+	/** x and y are always written together, a read sees the same value in both */
+	private static final class Data {
+		long x;
+		long y;
+	}
+
+	private static Guarded myReadWriteLock() {
+		MyReadWriteLock lock = new MyReadWriteLock();
+		Data data = new Data();
+		return new Guarded() {
+			public long read() throws InterruptedException {
+				lock.lockRead();
+				try {
+					return data.x + data.y;
+				} finally {
+					lock.unlockRead();
+				}
+			}
+
+			public void write(long value) throws InterruptedException {
+				lock.lockWrite();
+				try {
+					data.x = value;
+					data.y = value;
+				} finally {
+					lock.unlockWrite();
+				}
+			}
+		};
+	}
+
+	private static Guarded reentrantReadWriteLock() {
+		ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		Data data = new Data();
+		return new Guarded() {
+			public long read() {
+				lock.readLock().lock();
+				try {
+					return data.x + data.y;
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			public void write(long value) {
+				lock.writeLock().lock();
+				try {
+					data.x = value;
+					data.y = value;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		};
+	}
+
+	private static Guarded stampedLock(boolean optimistic) {
+		StampedLock lock = new StampedLock();
+		Data data = new Data();
+		return new Guarded() {
+			public long read() {
+				if (optimistic) {
+					long stamp = lock.tryOptimisticRead();
+					long sum = data.x + data.y;
+					if (lock.validate(stamp)) {
+						return sum;
+					}
+				}
+				long stamp = lock.readLock();
+				try {
+					return data.x + data.y;
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+
+			public void write(long value) {
+				long stamp = lock.writeLock();
+				try {
+					data.x = value;
+					data.y = value;
+				} finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+		};
+	}
+
+	private static Guarded stripedReadWriteLock(StripedReadWriteLock lock, boolean optimistic) {
+		Data data = new Data();
+		return new Guarded() {
+			public long read() {
+				if (optimistic) {
+					long stamp = lock.tryOptimisticRead();
+					long sum = data.x + data.y;
+					if (lock.validate(stamp)) {
+						return sum;
+					}
+				}
+				lock.readLock().lock();
+				try {
+					return data.x + data.y;
+				} finally {
+					lock.readLock().unlock();
+				}
+			}
+
+			public void write(long value) {
+				lock.writeLock().lock();
+				try {
+					data.x = value;
+					data.y = value;
+				} finally {
+					lock.writeLock().unlock();
+				}
+			}
+		};
+	}
+
+	/** @return operations per second */
+	static double run(Guarded guarded, int threads, int readPermille, long millis) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(threads);
+		long[] operations = new long[threads];
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+
+		for (int t = 0; t < threads; t++) {
+			int index = t;
+			new Thread(() -> {
+				long count = 0;
+				long sink = 0;
+				try {
+					start.await();
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while ((count & 63) != 0 || System.nanoTime() < deadline) {
+						if (random.nextInt(1000) < readPermille) {
+							sink += guarded.read();
+						} else {
+							guarded.write(count);
+						}
+						count++;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					operations[index] = count + (sink == 42 ? 1 : 0);
+					done.countDown();
+				}
+			}, "rw-" + t).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("benchmark did not finish");
+		}
+		long nanos = System.nanoTime() - begin;
+		long total = 0;
+		for (long count : operations) {
+			total += count;
+		}
+		return total / (nanos / 1e9);
+	}
+}
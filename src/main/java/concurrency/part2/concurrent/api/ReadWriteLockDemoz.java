@@ -101,57 +101,6 @@ class ReadWriteLockDemo2 {
 	}
 }
 
-/**
- * 
- * see also {@link LockzFairnessandStarvation}
- * 
- * A java.util.concurrent.locks.ReadWriteLock is an advanced thread lock
- * mechanism. It allows multiple threads to read a certain resource, but only
- * one to write it, at a time.
- * 
- * A read / write lock is more sophisticated lock than the Lock implementations
- * shown in the text Locks in Java.
- * 
- * https://jenkov.com/tutorials/java-concurrency/read-write-locks.html
- * 
- * The ReadWriteLock has two lock methods and two unlock methods. One lock and
- * unlock method for read access and one lock and unlock for write access.
- *
- */
-class MyReadWriteLock {
-
-	private int readers = 0;
-	private int writers = 0;
-	private int writeRequests = 0;
-
-	public synchronized void lockRead() throws InterruptedException {
-		while (writers > 0 || writeRequests > 0) {
-			wait();
-		}
-		readers++;
-	}
-
-	public synchronized void unlockRead() {
-		readers--;
-		notifyAll();
-	}
-
-	public synchronized void lockWrite() throws InterruptedException {
-		writeRequests++;
-
-		while (readers > 0 || writers > 0) {
-			wait();
-		}
-		writeRequests--;
-		writers++;
-	}
-
-	public synchronized void unlockWrite() throws InterruptedException {
-		writers--;
-		notifyAll();
-	}
-}
-
 /**
  * 
  * See {@link ReadWriteLock_CacheExample} for new approach using ReadWriteLock *
@@ -17,6 +17,9 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * 
  * Below solution fixes race condition and all threads are busy with adding
  * resources
+ * 
+ * But the map is unbounded and every put blocks every reader, for a bounded
+ * cache with lock free reads see {@link BoundedConcurrentCache}
  */
 public class ReadWriteLock_CacheExample {
 
@@ -85,54 +88,3 @@ public class ReadWriteLock_CacheExample {
 		}
 	}
 }
-
-
-
-//other example
-class SynchronizedHashMapWithReadWriteLock {
-
-	Map<String, String> syncHashMap = new HashMap<>();
-	ReadWriteLock lock = new ReentrantReadWriteLock(); 
-	// ...
-	Lock writeLock = lock.writeLock(); 
-	Lock readLock = lock.readLock();
-
-	public void put(String key, String value) {
-		try {
-			writeLock.lock();
-			syncHashMap.put(key, value);
-		} finally {
-			writeLock.unlock();
-		}
-	}
-
-	public String remove(String key) {
-		try {
-			writeLock.lock();
-			return syncHashMap.remove(key);
-		} finally {
-			writeLock.unlock();
-		}
-	}
-	// ...
-
-
-	// ...
-	public String get(String key) {
-		try {
-			readLock.lock();
-			return syncHashMap.get(key);
-		} finally {
-			readLock.unlock();
-		}
-	}
-
-	public boolean containsKey(String key) {
-		try {
-			readLock.lock();
-			return syncHashMap.containsKey(key);
-		} finally {
-			readLock.unlock();
-		}
-	}
-}
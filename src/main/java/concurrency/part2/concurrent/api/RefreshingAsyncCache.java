@@ -0,0 +1,280 @@
+package concurrency.part2.concurrent.api;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Asynchronous loading cache in front of a slow (blocking) lookup, e.g. the
+ * GitHub call of LookupService.
+ *
+ * <pre>
+ * get(key) NEVER blocks, it returns a CompletableFuture:
+ *  - HIT: an already completed future
+ *  - MISS: the loader runs on the given executor. Concurrent misses of the same
+ *    key are COALESCED, they all get the same in-flight load, so N callers
+ *    cost ONE upstream call
+ *  - STALE (older than refreshAfterWrite): the old value is returned at once and
+ *    ONE background reload is started. If the reload fails the old value stays
+ *    until it expires
+ *  - EXPIRED (older than expireAfterWrite): treated as a miss
+ *  - failed loads are NOT cached, the next get() tries again
+ *  - invalidate() fences the load in flight: its callers still get its value,
+ *    but it is not cached, the next get() loads again
+ *
+ * Values are kept in a size bounded {@link BoundedConcurrentCache}.
+ * </pre>
+ *
+ * Do not give it the same small pool whose threads wait (join) for its results,
+ * e.g. the @Async pool: with all threads waiting nobody is left to run the
+ * loads.
+ */
+public class RefreshingAsyncCache<K, V> {
+
+	private final BoundedConcurrentCache<K, Loaded<V>> cache;
+	private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+	private final Function<? super K, ? extends V> loader;
+	private final Executor executor;
+	private final long refreshAfterWriteNanos;
+	private final LongSupplier ticker;
+
+	private final StripedCounter hits = new StripedCounter();
+	private final StripedCounter misses = new StripedCounter();
+	private final StripedCounter coalesced = new StripedCounter();
+	private final StripedCounter loads = new StripedCounter();
+	private final StripedCounter loadFailures = new StripedCounter();
+	private final StripedCounter refreshes = new StripedCounter();
+
+	/** value plus the time it was loaded */
+	static final class Loaded<V> {
+		final V value;
+		final long loadTime;
+
+		Loaded(V value, long loadTime) {
+			this.value = value;
+			this.loadTime = loadTime;
+		}
+	}
+
+	private RefreshingAsyncCache(Builder<K, V> builder) {
+		this.loader = builder.loader;
+		this.executor = builder.executor;
+		this.refreshAfterWriteNanos = builder.refreshAfterWriteNanos;
+		this.ticker = builder.ticker;
+		BoundedConcurrentCache.Builder<K, Loaded<V>> cacheBuilder = BoundedConcurrentCache.<K, Loaded<V>>newBuilder()
+				.maximumSize(builder.maximumSize).ticker(builder.ticker);
+		if (builder.expireAfterWrite != null) {
+			cacheBuilder.expireAfterWrite(builder.expireAfterWrite);
+		}
+		this.cache = cacheBuilder.build();
+	}
+
+	public static <K, V> Builder<K, V> newBuilder(Function<? super K, ? extends V> loader, Executor executor) {
+		return new Builder<>(loader, executor);
+	}
+
+	public static final class Builder<K, V> {
+		private final Function<? super K, ? extends V> loader;
+		private final Executor executor;
+		private long maximumSize = 1_000;
+		private long refreshAfterWriteNanos;
+		private Duration expireAfterWrite;
+		private LongSupplier ticker = System::nanoTime;
+
+		private Builder(Function<? super K, ? extends V> loader, Executor executor) {
+			this.loader = Objects.requireNonNull(loader);
+			this.executor = Objects.requireNonNull(executor);
+		}
+
+		public Builder<K, V> maximumSize(long maximumSize) {
+			this.maximumSize = maximumSize;
+			return this;
+		}
+
+		/** stale values are still served, but reloaded in the background */
+		public Builder<K, V> refreshAfterWrite(Duration duration) {
+			this.refreshAfterWriteNanos = duration.toNanos();
+			return this;
+		}
+
+		/** expired values are dropped, the next get() waits for a new load */
+		public Builder<K, V> expireAfterWrite(Duration duration) {
+			this.expireAfterWrite = duration;
+			return this;
+		}
+
+		public Builder<K, V> ticker(LongSupplier ticker) {
+			this.ticker = ticker;
+			return this;
+		}
+
+		public RefreshingAsyncCache<K, V> build() {
+			if (refreshAfterWriteNanos > 0 && expireAfterWrite != null
+					&& refreshAfterWriteNanos >= expireAfterWrite.toNanos()) {
+				throw new IllegalStateException("refreshAfterWrite must be shorter than expireAfterWrite");
+			}
+			return new RefreshingAsyncCache<>(this);
+		}
+	}
+
+	public CompletableFuture<V> get(K key) {
+		Loaded<V> loaded = cache.get(key);
+		if (loaded != null) {
+			hits.increment();
+			if (refreshAfterWriteNanos > 0 && ticker.getAsLong() - loaded.loadTime >= refreshAfterWriteNanos
+					&& !inFlight.containsKey(key)) {
+				refreshes.increment();
+				load(key);
+			}
+			return CompletableFuture.completedFuture(loaded.value);
+		}
+		misses.increment();
+		// copy(): callers completing or cancelling their future must not touch the
+		// shared one
+		return load(key).copy();
+	}
+
+	/** value if cached, without loading or refreshing it */
+	public V getIfPresent(K key) {
+		Loaded<V> loaded = cache.get(key);
+		return loaded == null ? null : loaded.value;
+	}
+
+	public void invalidate(K key) {
+		// first: a load still running no longer owns the key and will not put
+		inFlight.remove(key);
+		cache.remove(key);
+	}
+
+	public void invalidateAll() {
+		inFlight.clear();
+		cache.invalidateAll();
+	}
+
+	public long estimatedSize() {
+		return cache.estimatedSize();
+	}
+
+	/** starts a load of the key unless one is already running, returns the running one */
+	private CompletableFuture<V> load(K key) {
+		CompletableFuture<V> future = new CompletableFuture<>();
+		CompletableFuture<V> running = inFlight.putIfAbsent(key, future);
+		if (running != null) {
+			coalesced.increment();
+			return running;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					V value = loader.apply(key);
+					if (value == null) {
+						throw new IllegalStateException("loader returned null for " + key);
+					}
+					// put only while still in flight: atomic against invalidate()
+					inFlight.computeIfPresent(key, (k, current) -> {
+						if (current != future) {
+							return current;
+						}
+						cache.put(key, new Loaded<>(value, ticker.getAsLong()));
+						return null;
+					});
+					loads.increment();
+					future.complete(value);
+				} catch (Throwable e) {
+					loadFailures.increment();
+					inFlight.remove(key, future);
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			loadFailures.increment();
+			inFlight.remove(key, future);
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/** misses which joined a load that was already running */
+	public long getCoalescedCount() {
+		return coalesced.sum();
+	}
+
+	public long getLoadCount() {
+		return loads.sum();
+	}
+
+	public long getLoadFailureCount() {
+		return loadFailures.sum();
+	}
+
+	public long getRefreshCount() {
+		return refreshes.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RefreshingAsyncCache[size = %d, hits = %d, misses = %d, coalesced = %d, loads = %d, "
+				+ "load failures = %d, refreshes = %d]", estimatedSize(), getHitCount(), getMissCount(),
+				getCoalescedCount(), getLoadCount(), getLoadFailureCount(), getRefreshCount());
+	}
+
+	/**
+	 * 50 concurrent lookups of 5 users with a 300ms upstream: 5 upstream calls
+	 * instead of 50, and every later lookup is a hit.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		AtomicInteger upstreamCalls = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		RefreshingAsyncCache<String, String> users = RefreshingAsyncCache.<String, String>newBuilder(name -> {
+			upstreamCalls.incrementAndGet();
+			try {
+				Thread.sleep(300);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return name.toUpperCase();
+		}, executor).maximumSize(100).refreshAfterWrite(Duration.ofSeconds(1))
+				.expireAfterWrite(Duration.ofMinutes(1)).build();
+
+		String[] names = { "asatklichov", "teverett", "johnpapa", "code4z", "DAP" };
+		CountDownLatch done = new CountDownLatch(50);
+		long start = System.nanoTime();
+		for (int i = 0; i < 50; i++) {
+			users.get(names[i % names.length]).thenAccept(user -> done.countDown());
+		}
+		done.await();
+		System.out.printf("50 lookups T = %dms, upstream calls = %d%n",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), upstreamCalls.get());
+
+		start = System.nanoTime();
+		for (int i = 0; i < 50; i++) {
+			users.get(names[i % names.length]).join();
+		}
+		System.out.printf("50 cached lookups T = %dms, upstream calls = %d%n",
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), upstreamCalls.get());
+
+		Thread.sleep(1_100);
+		System.out.println("stale value served at once: " + users.get("asatklichov").join());
+		Thread.sleep(500);
+		System.out.println("after background refresh, upstream calls = " + upstreamCalls.get() + ", " + users);
+		executor.shutdown();
+	}
+}
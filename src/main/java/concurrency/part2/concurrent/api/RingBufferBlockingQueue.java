@@ -0,0 +1,485 @@
+package concurrency.part2.concurrent.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free bounded MPMC (multi producer, multi consumer) ring buffer, the
+ * array-backed alternative of the hand-rolled BlockingQueue of
+ * {@link CustomThreadPool}.
+ *
+ * <pre>
+ * The hand-rolled BlockingQueue removes from the head of a LinkedList under one
+ * monitor, allocates a node per enqueue and wakes every waiter with notifyAll().
+ *
+ * Here (Dmitry Vyukov's bounded MPMC queue):
+ *
+ *  - elements live in a pre-allocated array, capacity is rounded up to a power of 2
+ *  - every slot has a SEQUENCE number, telling whose turn it is:
+ *        sequence == pos        slot is free for the producer of ticket pos
+ *        sequence == pos + 1    slot is filled for the consumer of ticket pos
+ *  - producers CAS the tail ticket, consumers CAS the head ticket, there is no lock
+ *    on the fast path, and a producer and a consumer never touch the same counter
+ *  - head, tail and the slot sequences are padded to own cache lines
+ *    (same idea as VolatileLongPadded in FalseSharing)
+ *
+ * put()/take() need to wait when the ring is full/empty, see {@link WaitStrategy}
+ *
+ * remove(Object), also through the iterator (ThreadPoolExecutor.remove/purge):
+ * the element is swapped for a TOMBSTONE in its slot, consumers skip it. The
+ * slot stays taken until the tombstone reaches the head, but size(), isEmpty()
+ * and remainingCapacity() leave the live tombstones out: ThreadPoolExecutor
+ * decides on isEmpty() whether a worker of a shut down pool may still take().
+ * </pre>
+ */
+public class RingBufferBlockingQueue<E> extends RingBufferHead<E> implements BlockingQueue<E> {
+
+	/**
+	 * How put()/take() wait for a free/filled slot.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * park on a Condition, woken up by a signal() - only when somebody waits, so
+		 * the fast path stays lock free. Lowest CPU usage.
+		 */
+		BLOCKING,
+		/** busy spin with Thread.onSpinWait(). Lowest latency, burns a core per waiter. */
+		SPINNING,
+		/** spin, then yield, then parkNanos with growing pauses. No signalling at all. */
+		TIMED
+	}
+
+	/** 8 longs = 64 bytes, one cache line per slot sequence */
+	private static final int SEQUENCE_STRIDE = 8;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	/** 1us << 20 is already past MAX_PARK_NANOS, a larger shift would wrap (mod 64) */
+	private static final int MAX_BACKOFF_SHIFT = 20;
+	/** a removed element, skipped by the consumer of its slot */
+	private static final Object TOMBSTONE = new Object();
+	private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+	private final Object[] buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final WaitStrategy waitStrategy;
+
+	// only used by WaitStrategy.BLOCKING
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final AtomicInteger waitingConsumers = new AtomicInteger();
+	private final AtomicInteger waitingProducers = new AtomicInteger();
+	/** tombstones not consumed yet */
+	private final AtomicInteger tombstones = new AtomicInteger();
+
+	public RingBufferBlockingQueue(int capacity) {
+		this(capacity, WaitStrategy.BLOCKING);
+	}
+
+	public RingBufferBlockingQueue(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 2 || capacity > (1 << 26)) {
+			throw new IllegalArgumentException("capacity must be between 2 and 2^26: " + capacity);
+		}
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.buffer = new Object[size];
+		this.mask = size - 1;
+		this.sequences = new AtomicLongArray(size * SEQUENCE_STRIDE);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i * SEQUENCE_STRIDE, i);
+		}
+		this.waitStrategy = Objects.requireNonNull(waitStrategy);
+	}
+
+	@Override
+	public boolean offer(E e) {
+		Objects.requireNonNull(e);
+		long pos = tail;
+		int index;
+		while (true) {
+			index = (int) pos & mask;
+			long diff = sequences.getAcquire(index * SEQUENCE_STRIDE) - pos;
+			if (diff == 0) {
+				if (TAIL.compareAndSet(this, pos, pos + 1)) {
+					break;
+				}
+				pos = tail;
+			} else if (diff < 0) {
+				return false; // full: the consumer of the previous lap did not free the slot yet
+			} else {
+				pos = tail; // another producer took this ticket
+			}
+		}
+		buffer[index] = e;
+		sequences.setRelease(index * SEQUENCE_STRIDE, pos + 1);
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			signal(notEmpty, waitingConsumers);
+		}
+		return true;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		Object e;
+		while ((e = pollSlot()) == TOMBSTONE) {
+			// removed, its slot is free again: next one
+			tombstones.decrementAndGet();
+			if (waitStrategy == WaitStrategy.BLOCKING) {
+				// while head was past the tombstone and the count not yet down, a
+				// consumer may have seen isEmpty() and gone waiting for a live element
+				signal(notEmpty, waitingConsumers);
+			}
+		}
+		return (E) e;
+	}
+
+	/** the element or TOMBSTONE of the head slot, null when empty */
+	private Object pollSlot() {
+		long pos = head;
+		int index;
+		while (true) {
+			index = (int) pos & mask;
+			long diff = sequences.getAcquire(index * SEQUENCE_STRIDE) - (pos + 1);
+			if (diff == 0) {
+				if (HEAD.compareAndSet(this, pos, pos + 1)) {
+					break;
+				}
+				pos = head;
+			} else if (diff < 0) {
+				return null; // empty: the producer of this ticket did not publish yet
+			} else {
+				pos = head; // another consumer took this ticket
+			}
+		}
+		// a swap, not a read: either remove() or this consumer gets the element
+		Object e = SLOT.getAndSet(buffer, index, null);
+		// free the slot for the producer of the next lap
+		sequences.setRelease(index * SEQUENCE_STRIDE, pos + mask + 1);
+		if (waitStrategy == WaitStrategy.BLOCKING) {
+			signal(notFull, waitingProducers);
+		}
+		return e;
+	}
+
+	/** the first published element which is not removed, weakly consistent */
+	@Override
+	@SuppressWarnings("unchecked")
+	public E peek() {
+		long currentTail = tail;
+		for (long pos = head; pos < currentTail; pos++) {
+			int index = (int) pos & mask;
+			long diff = sequences.getAcquire(index * SEQUENCE_STRIDE) - (pos + 1);
+			if (diff < 0) {
+				return null; // not published yet
+			}
+			Object e = SLOT.getAcquire(buffer, index);
+			if (diff == 0 && e != null && e != TOMBSTONE) {
+				return (E) e;
+			}
+		}
+		return null;
+	}
+
+	/** removes one occurrence, lock free; O(size) */
+	@Override
+	public boolean remove(Object o) {
+		if (o == null) {
+			return false;
+		}
+		long currentTail = tail;
+		for (long pos = head; pos < currentTail; pos++) {
+			int index = (int) pos & mask;
+			Object e = SLOT.getAcquire(buffer, index);
+			if (e != null && e != TOMBSTONE && o.equals(e) && removeAt(pos, e)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** false if the element at pos was taken (or removed) meanwhile */
+	private boolean removeAt(long pos, Object e) {
+		int index = (int) pos & mask;
+		if (sequences.getAcquire(index * SEQUENCE_STRIDE) == pos + 1
+				&& SLOT.compareAndSet(buffer, index, e, TOMBSTONE)) {
+			tombstones.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void put(E e) throws InterruptedException {
+		offer(e, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+		Objects.requireNonNull(e);
+		long deadline = deadline(timeout, unit);
+		for (int waits = 0; !offer(e); waits++) {
+			if (!await(waits, deadline, notFull, waitingProducers, false)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public E take() throws InterruptedException {
+		return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = deadline(timeout, unit);
+		E e;
+		for (int waits = 0; (e = poll()) == null; waits++) {
+			if (!await(waits, deadline, notEmpty, waitingConsumers, true)) {
+				return null;
+			}
+		}
+		return e;
+	}
+
+	private static long deadline(long timeout, TimeUnit unit) {
+		long nanos = unit.toNanos(timeout);
+		return nanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + nanos;
+	}
+
+	/**
+	 * Waits once according to the wait strategy.
+	 *
+	 * @return false when the deadline has passed
+	 */
+	private boolean await(int waits, long deadline, Condition condition, AtomicInteger waiters, boolean forElement)
+			throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		long remaining = deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+		if (remaining <= 0) {
+			return false;
+		}
+		switch (waitStrategy) {
+		case SPINNING:
+			Thread.onSpinWait();
+			break;
+		case TIMED:
+			if (waits < 100) {
+				Thread.onSpinWait();
+			} else if (waits < 200) {
+				Thread.yield();
+			} else {
+				long backoff = 1_000L << Math.min(waits - 200, MAX_BACKOFF_SHIFT);
+				LockSupport.parkNanos(this, Math.min(remaining, Math.min(MAX_PARK_NANOS, backoff)));
+			}
+			break;
+		case BLOCKING:
+			lock.lockInterruptibly();
+			try {
+				// register first, then re-check: either we see the new state, or the other
+				// side sees us as waiter and signals - no lost wake up
+				waiters.incrementAndGet();
+				try {
+					// a producer waits for a SLOT, tombstones still take one
+					if (forElement ? isEmpty() : occupiedSlots() >= capacity()) {
+						condition.awaitNanos(remaining);
+					}
+				} finally {
+					waiters.decrementAndGet();
+				}
+			} finally {
+				lock.unlock();
+			}
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Wakes up ONE waiter, and takes the lock only if somebody really waits.
+	 */
+	private void signal(Condition condition, AtomicInteger waiters) {
+		VarHandle.fullFence(); // publish the slot before reading the waiters count
+		if (waiters.get() > 0) {
+			lock.lock();
+			try {
+				condition.signal();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** live elements, without the tombstones of removed ones */
+	@Override
+	public int size() {
+		return (int) Math.max(0, occupiedSlots() - tombstones.get());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/** slots between head and tail, tombstones included */
+	private long occupiedSlots() {
+		while (true) {
+			long before = head;
+			long currentTail = tail;
+			long after = head;
+			if (before == after) {
+				return Math.max(0, Math.min(currentTail - after, capacity()));
+			}
+		}
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/** what offer() accepts once the tombstones ahead are consumed */
+	@Override
+	public int remainingCapacity() {
+		return capacity() - size();
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super E> c, int maxElements) {
+		Objects.requireNonNull(c);
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		int n = 0;
+		E e;
+		while (n < maxElements && (e = poll()) != null) {
+			c.add(e);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Weakly consistent snapshot of the published elements. remove() removes
+	 * the last returned element if it is still queued.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Iterator<E> iterator() {
+		List<E> snapshot = new ArrayList<>();
+		List<Long> positions = new ArrayList<>();
+		long currentTail = tail;
+		for (long pos = head; pos < currentTail; pos++) {
+			int index = (int) pos & mask;
+			Object e = SLOT.getAcquire(buffer, index);
+			if (sequences.getAcquire(index * SEQUENCE_STRIDE) == pos + 1 && e != null && e != TOMBSTONE) {
+				snapshot.add((E) e);
+				positions.add(pos);
+			}
+		}
+		return new Iterator<E>() {
+			private int next;
+			private int last = -1;
+
+			public boolean hasNext() {
+				return next < snapshot.size();
+			}
+
+			public E next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				last = next++;
+				return snapshot.get(last);
+			}
+
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				removeAt(positions.get(last), snapshot.get(last));
+				last = -1;
+			}
+		};
+	}
+
+	public WaitStrategy getWaitStrategy() {
+		return waitStrategy;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		BlockingQueue<String> queue = new RingBufferBlockingQueue<>(4);
+		Thread consumer = new Thread(() -> {
+			try {
+				String message;
+				while (!(message = queue.take()).equals("STOP")) {
+					System.out.println("took " + message + " by " + Thread.currentThread().getName());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		consumer.start();
+		for (int i = 0; i < 10; i++) {
+			queue.put("message-" + i); // blocks while the 4 slots are full
+		}
+		queue.put("STOP");
+		consumer.join();
+		System.out.println("Throughput comparison: see RingBufferBlockingQueueBenchmark");
+	}
+}
+
+/**
+ * Padding classes: the JVM can reorder fields within a class but not across the
+ * class hierarchy, so head and tail end up on separate cache lines, away from
+ * the object header and the other fields too.
+ */
+abstract class RingBufferPad0<E> extends AbstractQueue<E> {
+	long p00, p01, p02, p03, p04, p05, p06, p07;
+}
+
+abstract class RingBufferTail<E> extends RingBufferPad0<E> {
+	protected volatile long tail;
+}
+
+abstract class RingBufferPad1<E> extends RingBufferTail<E> {
+	long p10, p11, p12, p13, p14, p15, p16, p17;
+}
+
+abstract class RingBufferHead<E> extends RingBufferPad1<E> {
+	protected static final VarHandle TAIL;
+	protected static final VarHandle HEAD;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			TAIL = lookup.findVarHandle(RingBufferTail.class, "tail", long.class);
+			HEAD = lookup.findVarHandle(RingBufferHead.class, "head", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	protected volatile long head;
+	long p20, p21, p22, p23, p24, p25, p26, p27;
+}
@@ -0,0 +1,145 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Producer/consumer throughput of
+ *
+ * <pre>
+ * - the hand-rolled BlockingQueue of CustomThreadPool (LinkedList + synchronized + notifyAll)
+ * - java.util.concurrent.ArrayBlockingQueue
+ * - java.util.concurrent.LinkedBlockingQueue
+ * - RingBufferBlockingQueue with every WaitStrategy
+ *
+ * with 1/4/16 producers and the same number of consumers.
+ *
+ * usage: RingBufferBlockingQueueBenchmark [messages] [capacity]
+ * </pre>
+ *
+ * Every configuration runs twice, only the second (warmed up) run is printed.
+ */
+public class RingBufferBlockingQueueBenchmark {
+
+	/**
+	 * the common part of the hand-rolled BlockingQueue and of
+	 * java.util.concurrent.BlockingQueue
+	 */
+	interface Channel {
+		void put(Integer message) throws InterruptedException;
+
+		Object take() throws InterruptedException;
+	}
+
+	private static final int[] THREADS = { 1, 4, 16 };
+
+	public static void main(String[] args) throws InterruptedException {
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_600_000;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 1_024;
+
+		List<String> names = new ArrayList<>();
+		List<Supplier<Channel>> channels = new ArrayList<>();
+
+		names.add("CustomThreadPool.BlockingQueue");
+		channels.add(() -> {
+			BlockingQueue queue = new BlockingQueue(capacity);
+			return channel(queue::enqueue, queue::dequeue);
+		});
+		names.add("ArrayBlockingQueue");
+		channels.add(() -> {
+			ArrayBlockingQueue<Integer> queue = new ArrayBlockingQueue<>(capacity);
+			return channel(queue::put, queue::take);
+		});
+		names.add("LinkedBlockingQueue");
+		channels.add(() -> {
+			LinkedBlockingQueue<Integer> queue = new LinkedBlockingQueue<>(capacity);
+			return channel(queue::put, queue::take);
+		});
+		for (RingBufferBlockingQueue.WaitStrategy strategy : RingBufferBlockingQueue.WaitStrategy.values()) {
+			names.add("RingBufferBlockingQueue." + strategy);
+			channels.add(() -> {
+				RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<>(capacity, strategy);
+				return channel(queue::put, queue::take);
+			});
+		}
+
+		System.out.printf("%d messages, capacity %d, %d cores%n", messages, capacity,
+				Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-40s %10s %15s%n", "queue", "P x C", "msgs/sec");
+		for (int threads : THREADS) {
+			for (int i = 0; i < channels.size(); i++) {
+				run(channels.get(i).get(), threads, messages); // warm up
+				long nanos = run(channels.get(i).get(), threads, messages);
+				System.out.printf("%-40s %4d x %-4d %15.0f%n", names.get(i), threads, threads,
+						messages / (nanos / 1e9));
+			}
+			System.out.println();
+		}
+	}
+
+	private interface Put {
+		void put(Integer message) throws InterruptedException;
+	}
+
+	private interface Take {
+		Object take() throws InterruptedException;
+	}
+
+	private static Channel channel(Put put, Take take) {
+		return new Channel() {
+			public void put(Integer message) throws InterruptedException {
+				put.put(message);
+			}
+
+			public Object take() throws InterruptedException {
+				return take.take();
+			}
+		};
+	}
+
+	private static long run(Channel channel, int threads, int messages) throws InterruptedException {
+		int perThread = messages / threads;
+		CountDownLatch start = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2 * threads);
+		Integer message = 42;
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < perThread; i++) {
+						channel.put(message);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}, "producer-" + t).start();
+			new Thread(() -> {
+				try {
+					start.await();
+					for (int i = 0; i < perThread; i++) {
+						channel.take();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			}, "consumer-" + t).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		if (!done.await(5, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("benchmark did not finish");
+		}
+		return System.nanoTime() - begin;
+	}
+}
@@ -7,7 +7,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
 
 
-
+/**
+ * A semaphore of one permit, as a signal between two threads. For N permits,
+ * batch acquire and wait times see {@link BulkheadSemaphore}: no synchronized,
+ * so a waiting virtual thread is not pinned.
+ */
 class OwnSemaphore {
 	private boolean signal = false;
 
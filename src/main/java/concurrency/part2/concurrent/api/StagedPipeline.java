@@ -0,0 +1,367 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Staged pipeline (SEDA): every stage has its OWN threads and a BOUNDED input
+ * queue, e.g. blocking HTTP calls, then CPU heavy parsing of the responses.
+ *
+ * <pre>
+ * submit() -> [queue 64] -> http     16 threads -> [queue 8] -> heavySum  cores threads -> sink
+ *                           blocking send                       CPU only
+ *
+ * thenAcceptAsync(heavySum) instead: the CPU work goes to the common ForkJoin
+ * pool, sized for the cores of the machine, not for the I/O in front of it, and
+ * nothing stops the HTTP calls from piling up responses faster than they are
+ * processed.
+ * </pre>
+ *
+ * BACKPRESSURE: a stage worker put()s its result into the queue of the next
+ * stage, and blocks while that queue is full. A slow CPU stage fills its queue,
+ * the http workers block, the first queue fills, submit() blocks: at most
+ * (queue + threads) items per stage are in memory, whatever the input size.
+ *
+ * stats() per stage, for sizing:
+ *
+ * <pre>
+ * utilization  time the threads spent in the stage function / (threads x elapsed)
+ * blocked      time the threads waited for room in the next queue / (threads x elapsed),
+ *              for the last stage the time spent in the sink
+ * queue        current and highest size of the input queue
+ * service      LatencyHistogram of the stage function
+ *
+ * utilization ~100% and a full input queue  -> the bottleneck, more threads (if it
+ *                                              is I/O) or cores (if it is CPU)
+ * high blocked                              -> waits for the next stage, more
+ *                                              threads here do not help
+ * low utilization, empty queue              -> oversized
+ * threads needed ~ throughput x mean service time (Little's law)
+ * </pre>
+ *
+ * A function which throws (an Error too) counts as failed, the item goes to the
+ * error handler and does not reach the next stage. A throwing error handler goes
+ * to the uncaught exception handler of the worker, which keeps working.
+ *
+ * close() waits until every submitted item went through all stages, stage after
+ * stage. Like ExecutorService.close() it is not interruptible: an interrupt is
+ * remembered and re-asserted when it returns. A submit() racing close() either
+ * gets in before the stages stop, or fails with IllegalStateException.
+ */
+public class StagedPipeline<I> implements AutoCloseable {
+
+	/** a poison pill per worker, stops the stage on close() */
+	private static final Object STOP = new Object();
+
+	public record StageStats(String name, int threads, int queueSize, int queueCapacity, int maxQueueSize,
+			long processed, long failed, double utilization, double blocked, LatencyHistogram service) {
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%-10s threads %3d | queue %4d / %4d (max %4d) | processed %7d, failed %4d | busy %5.1f%%, blocked %5.1f%% | service p50 %.2fms, p99 %.2fms",
+					name, threads, queueSize, queueCapacity, maxQueueSize, processed, failed, utilization * 100,
+					blocked * 100, service.getValueAtPercentile(50) / 1e6, service.getValueAtPercentile(99) / 1e6);
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<>();
+	private final long startNanos = System.nanoTime();
+	/** submit() holds the read lock while enqueueing, close() the write lock */
+	private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+	private volatile boolean closed;
+
+	private StagedPipeline(Builder<I, ?> builder, Consumer<Object> sink) {
+		for (int i = 0; i < builder.specs.size(); i++) {
+			stages.add(new Stage(builder.specs.get(i)));
+		}
+		for (int i = 0; i < stages.size(); i++) {
+			Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+			stages.get(i).start(next, sink, builder.errorHandler);
+		}
+	}
+
+	public static <I> Builder<I, I> newBuilder() {
+		return new Builder<>();
+	}
+
+	/** blocks while the first queue is full */
+	public void submit(I input) throws InterruptedException {
+		Objects.requireNonNull(input);
+		closeLock.readLock().lockInterruptibly();
+		try {
+			checkOpen();
+			stages.get(0).enqueue(input);
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	/** false if the first queue stayed full for the timeout */
+	public boolean trySubmit(I input, long timeout, TimeUnit unit) throws InterruptedException {
+		Objects.requireNonNull(input);
+		closeLock.readLock().lockInterruptibly();
+		try {
+			checkOpen();
+			return stages.get(0).offer(input, timeout, unit);
+		} finally {
+			closeLock.readLock().unlock();
+		}
+	}
+
+	public List<StageStats> stats() {
+		long now = System.nanoTime();
+		return stages.stream().map(stage -> stage.stats(now)).toList();
+	}
+
+	/** one line per stage */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		for (StageStats stats : stats()) {
+			report.append(stats).append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+
+	/** no more submit(), waits until every stage drained its queue */
+	@Override
+	public void close() {
+		// waits for the submit() calls in progress, their items go in before the STOPs
+		closeLock.writeLock().lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		boolean interrupted = false;
+		for (Stage stage : stages) {
+			interrupted |= stage.stop();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("pipeline is closed");
+		}
+	}
+
+	private record StageSpec(String name, int threads, int queueCapacity, Function<Object, Object> function) {
+	}
+
+	/**
+	 * busySince / blockedSince per worker: 0 when not busy / blocked, so stats()
+	 * also counts the item a worker is in the middle of, e.g. a 1 s heavySum.
+	 */
+	private final class Stage {
+		final StageSpec spec;
+		final BlockingQueue<Object> queue;
+		final List<Thread> workers = new ArrayList<>();
+		final AtomicInteger maxQueueSize = new AtomicInteger();
+		final StripedCounter processed = new StripedCounter();
+		final StripedCounter failed = new StripedCounter();
+		final StripedCounter busyNanos = new StripedCounter();
+		final StripedCounter blockedNanos = new StripedCounter();
+		final AtomicLongArray busySince;
+		final AtomicLongArray blockedSince;
+		final LatencyHistogram service = new LatencyHistogram();
+
+		Stage(StageSpec spec) {
+			this.spec = spec;
+			this.queue = new RingBufferBlockingQueue<>(spec.queueCapacity());
+			this.busySince = new AtomicLongArray(spec.threads());
+			this.blockedSince = new AtomicLongArray(spec.threads());
+		}
+
+		void start(Stage next, Consumer<Object> sink, BiConsumer<Object, Throwable> errorHandler) {
+			for (int i = 0; i < spec.threads(); i++) {
+				int worker = i;
+				Thread thread = new Thread(() -> work(worker, next, sink, errorHandler), spec.name() + "-" + i);
+				thread.setDaemon(true);
+				workers.add(thread);
+				thread.start();
+			}
+		}
+
+		void enqueue(Object item) throws InterruptedException {
+			queue.put(item);
+			maxQueueSize.accumulateAndGet(queue.size(), Math::max);
+		}
+
+		boolean offer(Object item, long timeout, TimeUnit unit) throws InterruptedException {
+			boolean added = queue.offer(item, timeout, unit);
+			if (added) {
+				maxQueueSize.accumulateAndGet(queue.size(), Math::max);
+			}
+			return added;
+		}
+
+		private void work(int worker, Stage next, Consumer<Object> sink, BiConsumer<Object, Throwable> errorHandler) {
+			try {
+				while (true) {
+					Object item = queue.take();
+					if (item == STOP) {
+						return;
+					}
+					long start = System.nanoTime();
+					busySince.set(worker, start);
+					Object result;
+					try {
+						result = spec.function().apply(item);
+					} catch (Throwable e) {
+						result = null;
+						failed.increment();
+						onError(errorHandler, item, e);
+					} finally {
+						long end = System.nanoTime();
+						busySince.set(worker, 0);
+						busyNanos.add(end - start);
+						service.record(end - start);
+					}
+					processed.increment();
+					if (result == null) {
+						continue; // failed, or filtered out by returning null
+					}
+					long blockedStart = System.nanoTime();
+					blockedSince.set(worker, blockedStart);
+					try {
+						if (next != null) {
+							next.enqueue(result);
+						} else {
+							sink.accept(result);
+						}
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Throwable e) {
+						onError(errorHandler, result, e);
+					} finally {
+						blockedSince.set(worker, 0);
+						blockedNanos.add(System.nanoTime() - blockedStart);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/** a throwing error handler must not kill the worker: nobody would take its STOP */
+		private void onError(BiConsumer<Object, Throwable> errorHandler, Object item, Throwable failure) {
+			try {
+				errorHandler.accept(item, failure);
+			} catch (Throwable e) {
+				e.addSuppressed(failure);
+				Thread current = Thread.currentThread();
+				current.getUncaughtExceptionHandler().uncaughtException(current, e);
+			}
+		}
+
+		/**
+		 * One STOP per worker, behind every item already queued. Only stops
+		 * offering when no worker is left to make room (one was interrupted).
+		 *
+		 * @return true if interrupted while waiting
+		 */
+		boolean stop() {
+			boolean interrupted = false;
+			int stops = 0;
+			while (stops < workers.size()) {
+				try {
+					if (queue.offer(STOP, 100, TimeUnit.MILLISECONDS)) {
+						stops++;
+					} else if (workers.stream().noneMatch(Thread::isAlive)) {
+						break;
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			for (Thread worker : workers) {
+				while (worker.isAlive()) {
+					try {
+						worker.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			return interrupted;
+		}
+
+		StageStats stats(long now) {
+			long busy = busyNanos.sum();
+			long blocked = blockedNanos.sum();
+			for (int i = 0; i < spec.threads(); i++) {
+				long since = busySince.get(i);
+				busy += since == 0 ? 0 : Math.max(0, now - since);
+				since = blockedSince.get(i);
+				blocked += since == 0 ? 0 : Math.max(0, now - since);
+			}
+			double capacity = (double) spec.threads() * Math.max(1, now - startNanos);
+			return new StageStats(spec.name(), spec.threads(), queue.size(), queue.remainingCapacity() + queue.size(),
+					maxQueueSize.get(), processed.sum(), failed.sum(), Math.min(1, busy / capacity),
+					Math.min(1, blocked / capacity), service);
+		}
+	}
+
+	/**
+	 * T is the output type of the last stage so far, the input of the next
+	 * stage() or of the sink.
+	 */
+	public static final class Builder<I, T> {
+		private final List<StageSpec> specs = new ArrayList<>();
+		private BiConsumer<Object, Throwable> errorHandler = (item, failure) -> {
+		};
+
+		private Builder() {
+		}
+
+		/**
+		 * threads run function for every item of the input queue. queueCapacity is
+		 * rounded up to a power of 2 ({@link RingBufferBlockingQueue}). A null
+		 * result drops the item.
+		 */
+		@SuppressWarnings("unchecked")
+		public <R> Builder<I, R> stage(String name, int threads, int queueCapacity,
+				Function<? super T, ? extends R> function) {
+			if (threads <= 0) {
+				throw new IllegalArgumentException("threads must be > 0: " + threads);
+			}
+			if (queueCapacity < 2) {
+				throw new IllegalArgumentException("queueCapacity must be >= 2: " + queueCapacity);
+			}
+			specs.add(new StageSpec(Objects.requireNonNull(name), threads, queueCapacity,
+					(Function<Object, Object>) Objects.requireNonNull(function)));
+			return (Builder<I, R>) this;
+		}
+
+		/** the item a stage failed on (or the result the sink failed on), and the failure */
+		public Builder<I, T> onError(BiConsumer<Object, Throwable> errorHandler) {
+			this.errorHandler = Objects.requireNonNull(errorHandler);
+			return this;
+		}
+
+		/** the sink runs on the threads of the last stage */
+		@SuppressWarnings("unchecked")
+		public StagedPipeline<I> build(Consumer<? super T> sink) {
+			if (specs.isEmpty()) {
+				throw new IllegalStateException("a pipeline needs at least one stage");
+			}
+			return new StagedPipeline<>(this, (Consumer<Object>) Objects.requireNonNull(sink));
+		}
+	}
+}
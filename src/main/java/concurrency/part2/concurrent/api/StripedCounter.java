@@ -0,0 +1,279 @@
+package concurrency.part2.concurrent.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Striped counter, the idea behind java.util.concurrent.atomic.LongAdder.
+ *
+ * <pre>
+ * AtomicCounterz / MyAtomicCounter: all threads CAS the SAME int, under
+ * contention most CASes fail and are retried (see "# increments" printed by
+ * AtomicCounterDemo), and the cache line bounces between all cores.
+ *
+ * StripedCounter:
+ *  - without contention it CASes a single base value, like AtomicLong
+ *  - the first failed CAS switches to CELLS: every thread has a probe (a
+ *    random hash) which selects its cell, so threads mostly update different cells
+ *  - when two threads collide on a cell, the cell table doubles (up to the number
+ *    of CPUs), or the losing thread re-hashes its probe to move to another cell
+ *  - each cell is padded like VolatileLongPadded in FalseSharing, so two cells never
+ *    share a cache line
+ *  - sum() adds base + all cells. It is not an atomic snapshot while updates are
+ *    running, but it is exact once they are finished
+ * </pre>
+ *
+ * Same increment()/decrement()/value() API as {@link Counter},
+ * {@link SynchronizedCounter} and {@link AtomicCounterz}.
+ */
+public class StripedCounter {
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Padded like FalseSharing.VolatileLongPadded. casFailures is written by
+	 * every thread whose CAS on this cell failed, the base cell's by all of them
+	 * before the cells exist: it has its own cache line so those writes do not
+	 * bounce the line of value, and it is a plain read + write, not a CAS. A
+	 * statistic, racing increments may lose a few counts.
+	 */
+	static final class Cell {
+		long q1, q2, q3, q4, q5, q6, q7;
+		volatile long value;
+		long q11, q12, q13, q14, q15, q16, q17;
+		volatile long casFailures;
+		long q21, q22, q23, q24, q25, q26, q27;
+
+		Cell(long x) {
+			value = x;
+		}
+
+		boolean cas(long expected, long newValue) {
+			return VALUE.compareAndSet(this, expected, newValue);
+		}
+
+		void casFailed() {
+			CAS_FAILURES.setOpaque(this, (long) CAS_FAILURES.getOpaque(this) + 1L);
+		}
+
+		private static final VarHandle VALUE;
+		private static final VarHandle CAS_FAILURES;
+
+		static {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				VALUE = lookup.findVarHandle(Cell.class, "value", long.class);
+				CAS_FAILURES = lookup.findVarHandle(Cell.class, "casFailures", long.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+
+	/** per thread probe, 0 means not initialized yet */
+	private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[1]);
+
+	private final Cell base = new Cell(0L);
+	private volatile Cell[] cells;
+	/** spin lock used while creating or resizing cells */
+	private volatile int cellsBusy;
+
+	private static final VarHandle CELLS_BUSY;
+
+	static {
+		try {
+			CELLS_BUSY = MethodHandles.lookup().findVarHandle(StripedCounter.class, "cellsBusy", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	public void increment() {
+		add(1L);
+	}
+
+	public void decrement() {
+		add(-1L);
+	}
+
+	/**
+	 * Same as {@link Counter#value()}, see {@link #sum()} for the full long value
+	 */
+	public int value() {
+		return (int) sum();
+	}
+
+	public void add(long x) {
+		Cell[] cs = cells;
+		if (cs == null) {
+			long b = base.value;
+			if (base.cas(b, b + x)) {
+				return;
+			}
+			base.casFailed();
+		} else {
+			int[] probe = PROBE.get();
+			if (probe[0] != 0) {
+				Cell c = cs[(cs.length - 1) & probe[0]];
+				long v;
+				if (c != null && c.cas(v = c.value, v + x)) {
+					return;
+				}
+			}
+		}
+		addContended(x);
+	}
+
+	/**
+	 * Slow path: creates/resizes cells or moves the thread to another cell until
+	 * one CAS succeeds.
+	 */
+	private void addContended(long x) {
+		int[] probe = PROBE.get();
+		if (probe[0] == 0) {
+			probe[0] = ThreadLocalRandom.current().nextInt() | 1;
+		}
+		boolean collided = false;
+		while (true) {
+			Cell[] cs = cells;
+			if (cs != null) {
+				Cell c = cs[(cs.length - 1) & probe[0]];
+				if (c == null) {
+					if (cellsBusy == 0 && lockCells()) {
+						try {
+							Cell[] current = cells;
+							int i = (current.length - 1) & probe[0];
+							if (current[i] == null) {
+								current[i] = new Cell(x);
+								return;
+							}
+						} finally {
+							cellsBusy = 0;
+						}
+					}
+					collided = false;
+				} else {
+					long v = c.value;
+					if (c.cas(v, v + x)) {
+						return;
+					}
+					c.casFailed();
+					if (cs.length >= NCPU || cells != cs) {
+						collided = false; // at max size or already resized: just re-hash
+					} else if (!collided) {
+						collided = true; // re-hash once before growing
+					} else if (cellsBusy == 0 && lockCells()) {
+						try {
+							if (cells == cs) {
+								Cell[] grown = new Cell[cs.length << 1];
+								System.arraycopy(cs, 0, grown, 0, cs.length);
+								cells = grown;
+							}
+						} finally {
+							cellsBusy = 0;
+						}
+						collided = false;
+						continue;
+					}
+				}
+				probe[0] = rehash(probe[0]);
+			} else if (cellsBusy == 0 && cells == null && lockCells()) {
+				try {
+					if (cells == null) {
+						Cell[] created = new Cell[2];
+						created[probe[0] & 1] = new Cell(x);
+						cells = created;
+						return;
+					}
+				} finally {
+					cellsBusy = 0;
+				}
+			} else {
+				long b = base.value;
+				if (base.cas(b, b + x)) {
+					return;
+				}
+				base.casFailed();
+			}
+		}
+	}
+
+	private boolean lockCells() {
+		return CELLS_BUSY.compareAndSet(this, 0, 1);
+	}
+
+	/** xorshift, a cheap way to pick another cell */
+	private static int rehash(int probe) {
+		probe ^= probe << 13;
+		probe ^= probe >>> 17;
+		probe ^= probe << 5;
+		return probe;
+	}
+
+	public long sum() {
+		long sum = base.value;
+		Cell[] cs = cells;
+		if (cs != null) {
+			for (Cell c : cs) {
+				if (c != null) {
+					sum += c.value;
+				}
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the sum and resets every cell to 0. Updates running concurrently
+	 * are either counted in the returned sum or left in the counter, none is lost.
+	 */
+	public long sumThenReset() {
+		long sum = (long) Cell.VALUE.getAndSet(base, 0L);
+		Cell[] cs = cells;
+		if (cs != null) {
+			for (Cell c : cs) {
+				if (c != null) {
+					sum += (long) Cell.VALUE.getAndSet(c, 0L);
+				}
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * number of failed CAS attempts so far, i.e. how contended the counter is.
+	 * Approximate, see {@link Cell}.
+	 */
+	public long getCasFailures() {
+		long failures = base.casFailures;
+		Cell[] cs = cells;
+		if (cs != null) {
+			for (Cell c : cs) {
+				if (c != null) {
+					failures += c.casFailures;
+				}
+			}
+		}
+		return failures;
+	}
+
+	/** number of cells in use, 0 while the counter was never contended */
+	public int getCellCount() {
+		Cell[] cs = cells;
+		int n = 0;
+		if (cs != null) {
+			for (Cell c : cs) {
+				if (c != null) {
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -0,0 +1,526 @@
+package concurrency.part2.concurrent.api;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reader-writer lock for read-mostly data: readers on different cores do not
+ * touch the same cache line, writers go first.
+ *
+ * <pre>
+ * MyReadWriteLock                           StripedReadWriteLock
+ * every lockRead / unlockRead enters the    a reader adds 1 / -1 to ITS stripe of the
+ *   same monitor, readers++ / readers--:      reader count (padded cells, by thread):
+ *   one cache line bounces between cores      readers on other cores use other lines
+ * unlockRead: notifyAll(), wakes every      unlockRead: unparks the writer, only if a
+ *   waiting reader and writer                 writer is waiting
+ * writeRequests > 0 blocks new readers      the same: writer preference
+ * </pre>
+ *
+ * <pre>
+ * reader:  stripe += 1, then writer == null?  yes: holds the read lock (the fast path)
+ *                                             no:  stripe -= 1, unpark the writer, park
+ *                                                  until writer == null, try again
+ * writer:  writer mutex, writer = me, then wait until the sum of the stripes is 0
+ * unlock:  writer = null, unpark the parked readers, all at once
+ * </pre>
+ *
+ * Both sides write a volatile, then read the other's (Dekker): the reader sees
+ * the writer, or the writer sees the reader in its stripe, never neither. A
+ * constant stream of writers can starve the readers, as in MyReadWriteLock.
+ *
+ * OPTIMISTIC READS as StampedLock: tryOptimisticRead() returns a stamp (0
+ * while a writer is active), read, then validate(stamp) tells whether a writer
+ * came in between; no write to shared memory at all.
+ *
+ * <pre>
+ * long stamp = lock.tryOptimisticRead();
+ * int x = this.x, y = this.y;
+ * if (!lock.validate(stamp)) {
+ *     lock.readLock().lock(); ... read again ... unlock
+ * }
+ * </pre>
+ *
+ * REENTRANCY: the write lock is reentrant and a writer may take the read lock
+ * (downgrade). Read reentrancy costs a ThreadLocal lookup per lock / unlock,
+ * on by default: without it a thread locking for read twice while a writer
+ * waits deadlocks (the second lock waits for the writer, which waits for the
+ * first). Upgrading read to write always deadlocks, with read reentrancy on
+ * it throws IllegalStateException instead.
+ *
+ * No conditions. See {@link ReadWriteLockBenchmark}.
+ */
+public class StripedReadWriteLock implements ReadWriteLock {
+
+	private static final int NCPU = Runtime.getRuntime().availableProcessors();
+	private static final int SPINS = NCPU > 1 ? 256 : 0;
+
+	/** padded like StripedCounter.Cell */
+	static final class ReaderCell {
+		long q1, q2, q3, q4, q5, q6, q7;
+		volatile long readers;
+		long q11, q12, q13, q14, q15, q16, q17;
+
+		void add(long delta) {
+			READERS.getAndAdd(this, delta);
+		}
+
+		private static final VarHandle READERS;
+
+		static {
+			try {
+				READERS = MethodHandles.lookup().findVarHandle(ReaderCell.class, "readers", long.class);
+			} catch (ReflectiveOperationException e) {
+				throw new ExceptionInInitializerError(e);
+			}
+		}
+	}
+
+	private final ReaderCell[] cells;
+	private final int mask;
+	/** writers queue here, one at a time sets writer */
+	private final Lock writerMutex;
+	/** readers parked while a writer holds or waits for the lock */
+	private final Queue<Thread> waitingReaders = new ConcurrentLinkedQueue<>();
+	/** the writer holding or waiting for the write lock */
+	private volatile Thread writer;
+	private int writeHolds;
+	/** even: no writer active, odd: a writer holds the lock. Never 0, the failed stamp */
+	private volatile long version = 2;
+	private final ThreadLocal<int[]> readHolds;
+	private final ReadLock readLock = new ReadLock();
+	private final WriteLock writeLock = new WriteLock();
+
+	private static final VarHandle VERSION;
+
+	static {
+		try {
+			VERSION = MethodHandles.lookup().findVarHandle(StripedReadWriteLock.class, "version", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** reentrant reads, 2 x cores stripes */
+	public StripedReadWriteLock() {
+		this(newBuilder());
+	}
+
+	private StripedReadWriteLock(Builder builder) {
+		int stripes = Integer.highestOneBit(Math.max(1, builder.stripes - 1)) << 1;
+		this.cells = new ReaderCell[stripes];
+		for (int i = 0; i < stripes; i++) {
+			cells[i] = new ReaderCell();
+		}
+		this.mask = stripes - 1;
+		this.writerMutex = builder.fairWriters ? new QueuedFairLock() : new ReentrantLock();
+		this.readHolds = builder.reentrantReads ? ThreadLocal.withInitial(() -> new int[1]) : null;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	@Override
+	public Lock readLock() {
+		return readLock;
+	}
+
+	@Override
+	public Lock writeLock() {
+		return writeLock;
+	}
+
+	/** a stamp for validate(), 0 if a writer holds the lock */
+	public long tryOptimisticRead() {
+		long stamp = version;
+		return (stamp & 1) == 0 ? stamp : 0L;
+	}
+
+	/** true if no writer locked since the stamp was taken, always false for 0 */
+	public boolean validate(long stamp) {
+		VarHandle.acquireFence(); // the reads of the data before the read of version
+		return stamp != 0L && version == stamp;
+	}
+
+	public boolean isWriteLocked() {
+		return (version & 1) != 0;
+	}
+
+	public boolean isWriteLockedByCurrentThread() {
+		return writer == Thread.currentThread() && (version & 1) != 0;
+	}
+
+	/** the sum of the stripes, not an atomic snapshot */
+	public long getReadLockCount() {
+		long sum = 0;
+		for (ReaderCell cell : cells) {
+			sum += cell.readers;
+		}
+		return sum;
+	}
+
+	private ReaderCell cell() {
+		long id = Thread.currentThread().threadId();
+		return cells[(int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask];
+	}
+
+	/** @return true if the lock was taken by reentrancy, no stripe to touch */
+	private boolean reenterRead() {
+		if (readHolds != null) {
+			int[] holds = readHolds.get();
+			if (holds[0] > 0) {
+				holds[0]++;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void readAcquired() {
+		if (readHolds != null) {
+			readHolds.get()[0] = 1;
+		}
+	}
+
+	/** @return true if it got the read lock without waiting */
+	private boolean tryReadFast(ReaderCell cell) {
+		cell.add(1);
+		Thread w = writer;
+		if (w == null) {
+			return true;
+		}
+		if (w == Thread.currentThread() && (version & 1) != 0) {
+			return true; // downgrade: the writer reads too
+		}
+		cell.add(-1);
+		LockSupport.unpark(w); // it may wait for this stripe
+		return false;
+	}
+
+	/**
+	 * @param deadline 0: no timeout
+	 * @return false if timed out or interrupted (interruptible only, the
+	 *         interrupt status is set then)
+	 */
+	private boolean acquireRead(boolean interruptible, long deadline) {
+		if (reenterRead()) {
+			return true;
+		}
+		ReaderCell cell = cell();
+		Thread current = Thread.currentThread();
+		boolean interrupted = false;
+		while (!tryReadFast(cell)) {
+			while (true) {
+				waitingReaders.add(current); // again after every wake up: a new writer may have come
+				if (writer == null) {
+					break;
+				}
+				if (deadline == 0L) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0L) {
+						return false;
+					}
+					LockSupport.parkNanos(this, remaining);
+				}
+				if (Thread.interrupted()) {
+					if (interruptible) {
+						current.interrupt();
+						return false;
+					}
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			current.interrupt();
+		}
+		readAcquired();
+		return true;
+	}
+
+	/** all of them: readers do not exclude each other */
+	private void wakeUpReaders() {
+		Thread reader;
+		while ((reader = waitingReaders.poll()) != null) {
+			LockSupport.unpark(reader);
+		}
+	}
+
+	private void releaseRead() {
+		if (readHolds != null) {
+			int[] holds = readHolds.get();
+			if (holds[0] <= 0) {
+				throw new IllegalMonitorStateException("Calling thread has not locked this lock for read");
+			}
+			if (--holds[0] > 0) {
+				return;
+			}
+		}
+		cell().add(-1);
+		Thread w = writer;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+	/**
+	 * Called holding the writer mutex.
+	 *
+	 * @param deadline 0: no timeout
+	 * @return false if timed out or interrupted (interruptible only, the
+	 *         interrupt status is set then), the writer mutex is still held then
+	 */
+	private boolean awaitReaders(Thread current, boolean interruptible, long deadline) {
+		writer = current;
+		int spins = SPINS;
+		boolean interrupted = false;
+		while (getReadLockCount() != 0) {
+			if (spins > 0) {
+				spins--;
+				Thread.onSpinWait();
+				continue;
+			}
+			if (deadline == 0L) {
+				LockSupport.park(this);
+			} else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0L) {
+					writer = null;
+					wakeUpReaders();
+					return false;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			// a set interrupt status makes park() return at once: clear it, also
+			// when not interruptible, and set it again once the lock is ours
+			if (Thread.interrupted()) {
+				if (interruptible) {
+					current.interrupt();
+					writer = null;
+					wakeUpReaders();
+					return false;
+				}
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			current.interrupt();
+		}
+		VERSION.getAndAdd(this, 1L); // odd, a full fence: optimistic readers see it before the writes
+		writeHolds = 1;
+		return true;
+	}
+
+	private void checkNoReadHold() {
+		if (readHolds != null && readHolds.get()[0] > 0) {
+			throw new IllegalStateException("read lock held: upgrading to the write lock would deadlock");
+		}
+	}
+
+	private final class ReadLock implements Lock {
+
+		@Override
+		public void lock() {
+			acquireRead(false, 0L);
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			if (Thread.interrupted() || !acquireRead(true, 0L)) {
+				Thread.interrupted();
+				throw new InterruptedException();
+			}
+		}
+
+		/** only if no writer holds or waits for the lock */
+		@Override
+		public boolean tryLock() {
+			if (reenterRead()) {
+				return true;
+			}
+			if (tryReadFast(cell())) {
+				readAcquired();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (acquireRead(true, (System.nanoTime() + unit.toNanos(time)) | 1L)) { // | 1: never the 0 of "no timeout"
+				return true;
+			}
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			return false;
+		}
+
+		@Override
+		public void unlock() {
+			releaseRead();
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException("no conditions for the read lock");
+		}
+	}
+
+	private final class WriteLock implements Lock {
+
+		@Override
+		public void lock() {
+			Thread current = Thread.currentThread();
+			if (isWriteLockedByCurrentThread()) {
+				writeHolds++;
+				return;
+			}
+			checkNoReadHold();
+			writerMutex.lock();
+			awaitReaders(current, false, 0L);
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			Thread current = Thread.currentThread();
+			if (isWriteLockedByCurrentThread()) {
+				writeHolds++;
+				return;
+			}
+			checkNoReadHold();
+			writerMutex.lockInterruptibly();
+			if (!awaitReaders(current, true, 0L)) {
+				writerMutex.unlock();
+				Thread.interrupted();
+				throw new InterruptedException();
+			}
+		}
+
+		/** only if nobody reads, writes or waits to write */
+		@Override
+		public boolean tryLock() {
+			Thread current = Thread.currentThread();
+			if (isWriteLockedByCurrentThread()) {
+				writeHolds++;
+				return true;
+			}
+			checkNoReadHold();
+			if (!writerMutex.tryLock()) {
+				return false;
+			}
+			writer = current;
+			if (getReadLockCount() != 0) {
+				writer = null;
+				writerMutex.unlock();
+				return false;
+			}
+			VERSION.getAndAdd(StripedReadWriteLock.this, 1L);
+			writeHolds = 1;
+			return true;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			Thread current = Thread.currentThread();
+			if (isWriteLockedByCurrentThread()) {
+				writeHolds++;
+				return true;
+			}
+			checkNoReadHold();
+			long deadline = System.nanoTime() + unit.toNanos(time);
+			if (!writerMutex.tryLock(time, unit)) {
+				return false;
+			}
+			if (!awaitReaders(current, true, deadline | 1L)) { // | 1: never the 0 of "no timeout"
+				writerMutex.unlock();
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public void unlock() {
+			if (!isWriteLockedByCurrentThread()) {
+				throw new IllegalMonitorStateException("Calling thread has not locked this lock for write");
+			}
+			if (--writeHolds > 0) {
+				return;
+			}
+			version++; // even again, after the writes
+			writer = null;
+			wakeUpReaders();
+			writerMutex.unlock();
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException("no conditions for the write lock");
+		}
+	}
+
+	public static final class Builder {
+		private int stripes = 2 * NCPU;
+		private boolean reentrantReads = true;
+		private boolean fairWriters;
+
+		private Builder() {
+		}
+
+		/** reader stripes, rounded up to a power of 2 */
+		public Builder stripes(int stripes) {
+			if (stripes <= 0) {
+				throw new IllegalArgumentException("stripes must be > 0: " + stripes);
+			}
+			this.stripes = stripes;
+			return this;
+		}
+
+		/**
+		 * false: no ThreadLocal lookup per read lock / unlock, but a thread must
+		 * not lock for read twice, and may unlock a read lock another thread locked
+		 * (as a Semaphore)
+		 */
+		public Builder reentrantReads(boolean reentrantReads) {
+			this.reentrantReads = reentrantReads;
+			return this;
+		}
+
+		/**
+		 * true: writers get the lock in arrival order ({@link QueuedFairLock}).
+		 * false, the default: a barging ReentrantLock, more throughput when many
+		 * threads write, as fair locks hand over to a parked thread every time.
+		 */
+		public Builder fairWriters(boolean fairWriters) {
+			this.fairWriters = fairWriters;
+			return this;
+		}
+
+		public StripedReadWriteLock build() {
+			return new StripedReadWriteLock(this);
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package concurrency.part2.concurrent.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Work stealing thread pool, the "modern" version of {@link CustomThreadPool}.
+ *
+ * <pre>
+ * CustomThreadPool puts every task into ONE synchronized BlockingQueue, so all
+ * submitters and all PoolThread2 workers fight for the same monitor, and each
+ * enqueue/dequeue may wake up everybody with notifyAll().
+ *
+ * Here instead:
+ *
+ *  - every worker owns its own deque. A worker takes tasks from the HEAD of its
+ *    own deque, and when it is empty it STEALS from the TAIL of the other
+ *    workers' deques (opposite ends, so owner and thief rarely meet)
+ *  - a task submitted by a worker goes to its own deque, a task submitted from
+ *    outside goes to a randomly chosen worker deque
+ *  - idle workers park (LockSupport.park), a new task unparks exactly ONE idle
+ *    worker - no thundering herd of notifyAll()
+ *  - admission is bounded (maxQueuedTasks), overflow goes to a pluggable
+ *    RejectionPolicy (ABORT, CALLER_RUNS, DISCARD)
+ *  - shutdown() runs the already queued tasks, shutdownNow() hands them back,
+ *    awaitTermination() waits until the last worker exits
+ *
+ * It is an ExecutorService, so it can be used anywhere ThreadPoolExecutor is,
+ * see {@link ACustomizableThreadPools#getMyWorkStealingExecutorService(int, int)}
+ * </pre>
+ */
+public class WorkStealingThreadPool extends AbstractExecutorService {
+
+	/**
+	 * What to do with a task which can not be accepted, because the pool is full
+	 * or already shut down.
+	 */
+	@FunctionalInterface
+	public interface RejectionPolicy {
+
+		void rejected(Runnable task, WorkStealingThreadPool pool);
+
+		RejectionPolicy ABORT = (task, pool) -> {
+			throw new RejectedExecutionException("Task " + task + " rejected from " + pool);
+		};
+
+		/** a simple way of back pressure, the submitter is slowed down */
+		RejectionPolicy CALLER_RUNS = (task, pool) -> {
+			if (!pool.isShutdown()) {
+				task.run();
+			}
+		};
+
+		RejectionPolicy DISCARD = (task, pool) -> {
+		};
+	}
+
+	private static final int RUNNING = 0;
+	private static final int SHUTDOWN = 1;
+	private static final int STOP = 2;
+	private static final int TERMINATED = 3;
+
+	private static final ThreadLocal<Worker> CURRENT_WORKER = new ThreadLocal<>();
+
+	private final Worker[] workers;
+	private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queuedTasks = new AtomicInteger();
+	private final AtomicInteger state = new AtomicInteger(RUNNING);
+	private final AtomicInteger liveWorkers;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private final int maxQueuedTasks;
+	private final RejectionPolicy rejectionPolicy;
+
+	public WorkStealingThreadPool(int noOfThreads, int maxQueuedTasks) {
+		this(noOfThreads, maxQueuedTasks, RejectionPolicy.ABORT, new WorkerThreadFactory("work-stealing-pool"));
+	}
+
+	public WorkStealingThreadPool(int noOfThreads, int maxQueuedTasks, RejectionPolicy rejectionPolicy,
+			ThreadFactory threadFactory) {
+		if (noOfThreads <= 0 || maxQueuedTasks <= 0) {
+			throw new IllegalArgumentException("noOfThreads and maxQueuedTasks must be positive");
+		}
+		this.maxQueuedTasks = maxQueuedTasks;
+		this.rejectionPolicy = Objects.requireNonNull(rejectionPolicy);
+		this.liveWorkers = new AtomicInteger(noOfThreads);
+		this.workers = new Worker[noOfThreads];
+		for (int i = 0; i < noOfThreads; i++) {
+			workers[i] = new Worker(i);
+			workers[i].thread = threadFactory.newThread(workers[i]);
+		}
+		for (Worker worker : workers) {
+			worker.thread.start();
+		}
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		Objects.requireNonNull(task);
+		if (state.get() != RUNNING || !reserveSlot()) {
+			rejectionPolicy.rejected(task, this);
+			return;
+		}
+		Worker self = CURRENT_WORKER.get();
+		Worker target = self != null && self.pool() == this ? self
+				: workers[ThreadLocalRandom.current().nextInt(workers.length)];
+		target.deque.offerLast(task);
+		signalWork();
+
+		// shutdownNow() may have drained the deques just before our offer
+		if (state.get() >= STOP && target.deque.removeLastOccurrence(task)) {
+			queuedTasks.decrementAndGet();
+			rejectionPolicy.rejected(task, this);
+		}
+	}
+
+	private boolean reserveSlot() {
+		int queued;
+		do {
+			queued = queuedTasks.get();
+			if (queued >= maxQueuedTasks) {
+				return false;
+			}
+		} while (!queuedTasks.compareAndSet(queued, queued + 1));
+		return true;
+	}
+
+	/**
+	 * Wakes up ONE parked worker, if there is any. Busy workers will find the new
+	 * task anyway before they go idle.
+	 */
+	private void signalWork() {
+		Worker idle;
+		while ((idle = idleWorkers.poll()) != null) {
+			if (idle.idle) {
+				idle.idle = false;
+				LockSupport.unpark(idle.thread);
+				return;
+			}
+		}
+	}
+
+	private void signalAll() {
+		Worker idle;
+		while ((idle = idleWorkers.poll()) != null) {
+			idle.idle = false;
+			LockSupport.unpark(idle.thread);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		state.compareAndSet(RUNNING, SHUTDOWN);
+		signalAll();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		int current;
+		do {
+			current = state.get();
+		} while (current < STOP && !state.compareAndSet(current, STOP));
+
+		List<Runnable> notStarted = new ArrayList<>();
+		drainQueues(notStarted);
+		for (Worker worker : workers) {
+			worker.thread.interrupt();
+		}
+		signalAll();
+		return notStarted;
+	}
+
+	private void drainQueues(List<Runnable> into) {
+		for (Worker worker : workers) {
+			Runnable task;
+			while ((task = worker.deque.pollFirst()) != null) {
+				queuedTasks.decrementAndGet();
+				into.add(task);
+			}
+		}
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return state.get() >= SHUTDOWN;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return state.get() == TERMINATED;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return terminated.await(timeout, unit);
+	}
+
+	public int getPoolSize() {
+		return workers.length;
+	}
+
+	public int getQueuedTaskCount() {
+		return queuedTasks.get();
+	}
+
+	public long getCompletedTaskCount() {
+		long completed = 0;
+		for (Worker worker : workers) {
+			completed += worker.completedTasks;
+		}
+		return completed;
+	}
+
+	public long getStealCount() {
+		long steals = 0;
+		for (Worker worker : workers) {
+			steals += worker.steals;
+		}
+		return steals;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + "[state = " + state.get() + ", pool size = " + workers.length + ", queued tasks = "
+				+ queuedTasks.get() + ", completed tasks = " + getCompletedTaskCount() + ", steals = " + getStealCount()
+				+ "]";
+	}
+
+	private void workerExited() {
+		if (liveWorkers.decrementAndGet() == 0) {
+			state.set(TERMINATED);
+			terminated.countDown();
+		}
+	}
+
+	private final class Worker implements Runnable {
+
+		private final int index;
+		private final ConcurrentLinkedDeque<Runnable> deque = new ConcurrentLinkedDeque<>();
+		private Thread thread;
+		private volatile boolean idle;
+		// written only by the owning worker, so no contention on them
+		private volatile long completedTasks;
+		private volatile long steals;
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		WorkStealingThreadPool pool() {
+			return WorkStealingThreadPool.this;
+		}
+
+		@Override
+		public void run() {
+			CURRENT_WORKER.set(this);
+			try {
+				while (true) {
+					Runnable task = nextTask();
+					if (task != null) {
+						runTask(task);
+						continue;
+					}
+					int s = state.get();
+					if (s >= STOP || (s == SHUTDOWN && queuedTasks.get() == 0)) {
+						break;
+					}
+					awaitWork();
+				}
+			} finally {
+				CURRENT_WORKER.remove();
+				workerExited();
+			}
+		}
+
+		private Runnable nextTask() {
+			if (state.get() >= STOP) {
+				return null;
+			}
+			Runnable task = deque.pollFirst();
+			if (task == null) {
+				task = steal();
+			}
+			if (task != null) {
+				queuedTasks.decrementAndGet();
+			}
+			return task;
+		}
+
+		private Runnable steal() {
+			int n = workers.length;
+			int start = ThreadLocalRandom.current().nextInt(n);
+			for (int i = 0; i < n; i++) {
+				Worker victim = workers[(start + i) % n];
+				if (victim == this) {
+					continue;
+				}
+				Runnable task = victim.deque.pollLast();
+				if (task != null) {
+					steals++;
+					return task;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Registers as idle, then re-checks for work before parking: either the
+		 * submitter sees us in idleWorkers, or we see its queuedTasks increment, so no
+		 * signal can get lost.
+		 */
+		private void awaitWork() {
+			idle = true;
+			idleWorkers.offer(this);
+			if (queuedTasks.get() > 0 || state.get() != RUNNING) {
+				idleWorkers.remove(this);
+				idle = false;
+				return;
+			}
+			while (idle && state.get() == RUNNING) {
+				LockSupport.park(this);
+			}
+			idle = false;
+		}
+
+		private void runTask(Runnable task) {
+			// clear a stale interrupt, unless shutdownNow() is the one interrupting
+			if (Thread.interrupted() && state.get() >= STOP) {
+				thread.interrupt();
+			}
+			try {
+				task.run();
+			} catch (Throwable t) {
+				// report exception, but keep pool thread alive
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+			} finally {
+				completedTasks++;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Worker-" + index;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger threadId = new AtomicInteger(1);
+		private final String name;
+
+		WorkerThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r, name + "-Thread_" + threadId.getAndIncrement());
+		}
+	}
+
+	/**
+	 * Same amount of tiny tasks through CustomThreadPool and through
+	 * WorkStealingThreadPool
+	 */
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int tasks = 1_000_000;
+
+		CustomThreadPool customThreadPool = new CustomThreadPool(threads, 1_000);
+		CountDownLatch done = new CountDownLatch(tasks);
+		long begin = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			customThreadPool.execute(done::countDown);
+		}
+		done.await();
+		System.out.printf("CustomThreadPool       %d threads, %d tasks - T = %dms%n", threads, tasks,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+		customThreadPool.stop();
+
+		ExecutorService workStealingPool = new WorkStealingThreadPool(threads, 1_000,
+				RejectionPolicy.CALLER_RUNS, new WorkerThreadFactory("work-stealing-pool"));
+		CountDownLatch done2 = new CountDownLatch(tasks);
+		begin = System.nanoTime();
+		for (int i = 0; i < tasks; i++) {
+			workStealingPool.execute(done2::countDown);
+		}
+		done2.await();
+		System.out.printf("WorkStealingThreadPool %d threads, %d tasks - T = %dms%n", threads, tasks,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+		System.out.println(workStealingPool);
+
+		workStealingPool.shutdown();
+		System.out.println("terminated = " + workStealingPool.awaitTermination(5, TimeUnit.SECONDS));
+	}
+}
@@ -34,6 +34,7 @@ public class AnIntro_TCP_Sockets {
 }
 
 //https://datatracker.ietf.org/doc/html/rfc862
+// serves exactly one client: see sockets.EchoServer for NIO reactors / virtual threads and many clients
 class EchoServer {
 	public static void main(String[] args) throws IOException {
 
@@ -0,0 +1,72 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.IOException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Upload with multipart If the server endpoint expects binary data in the
+ * request body, an application could send a POST request with
+ * BodyPublishers.ofFile. This publisher reads a file from the filesystem and
+ * sends the bytes in the body to the server.
+ * 
+ * However, in this case, we need to send some additional data in the POST
+ * request body and use a multipart form post with the Content-Type
+ * multipart/form-data. The request body is specially formatted as a series of
+ * parts, separated with boundaries. Unfortunately, the Java 11 HTTP client does
+ * not provide any convenient support for this kind of body, but we can build it
+ * from scratch.
+ * 
+ * The following method takes a Map of key/value pairs and a boundary and then
+ * builds the multipart body.
+ *
+ */
+class FileUpload {
+
+	public static BodyPublisher ofMimeMultipartData(Map<Object, Object> data, String boundary) throws IOException {
+		var byteArrays = new ArrayList<byte[]>();
+		byte[] separator = ("--" + boundary + "\r\nContent-Disposition: form-data; name=")
+				.getBytes(StandardCharsets.UTF_8);
+		for (Map.Entry<Object, Object> entry : data.entrySet()) {
+			byteArrays.add(separator);
+
+			if (entry.getValue() instanceof Path) {
+				var path = (Path) entry.getValue();
+				String mimeType = Files.probeContentType(path);
+				byteArrays.add(("\"" + entry.getKey() + "\"; filename=\"" + path.getFileName() + "\"\r\nContent-Type: "
+						+ mimeType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+				byteArrays.add(Files.readAllBytes(path));
+				byteArrays.add("\r\n".getBytes(StandardCharsets.UTF_8));
+			} else {
+				byteArrays.add(("\"" + entry.getKey() + "\"\r\n\r\n" + entry.getValue() + "\r\n")
+						.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		byteArrays.add(("--" + boundary + "--").getBytes(StandardCharsets.UTF_8));
+		return BodyPublishers.ofByteArrays(byteArrays);
+
+	}
+
+	/**
+	 * The same body, but files are read while the request is sent, in 64 KB
+	 * buffers, see {@link MultipartBodyPublisher}. Heap use does not grow with the
+	 * file size, and Content-Length is known up front.
+	 */
+	public static BodyPublisher ofMimeMultipartDataStreaming(Map<Object, Object> data, String boundary) {
+		MultipartBodyPublisher.Builder builder = MultipartBodyPublisher.newBuilder().boundary(boundary);
+		for (Map.Entry<Object, Object> entry : data.entrySet()) {
+			if (entry.getValue() instanceof Path path) {
+				builder.filePart(String.valueOf(entry.getKey()), path);
+			} else {
+				builder.textPart(String.valueOf(entry.getKey()), entry.getValue());
+			}
+		}
+		return builder.build();
+	}
+
+}
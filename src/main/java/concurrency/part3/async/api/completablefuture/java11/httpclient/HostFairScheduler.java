@@ -0,0 +1,415 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Fair scheduling of requests to MANY hosts in front of one HttpClient. With a
+ * plain FIFO executor, as in the Z_* demos, a list where a few big hosts come
+ * first fills every thread with them and the small hosts wait behind, while the
+ * big hosts get hammered.
+ *
+ * <pre>
+ * submit(request) --> queue of its host (host:port)
+ *
+ *   host A [r r r r r r]  bucket 20/s, inFlight 4/4    skipped: at its concurrency
+ *   host B [r r]          bucket empty, next in 30ms   skipped: wakes up later
+ *   host C [r]            bucket 3 tokens              sends
+ *        ^ deficit round robin over hosts with queued requests
+ *
+ * a host may send when: deficit >= 1 (weight added per round)
+ *                       AND a token in its bucket (requests/second + burst)
+ *                       AND its inFlight < maxPerHost
+ *                       AND total inFlight < maxInFlight
+ * </pre>
+ *
+ * Deficit round robin gives every host with work its share, weight w = w
+ * requests per round, in O(1) per request (all requests cost 1, so it is a
+ * weighted round robin). A host blocked by its bucket or its
+ * concurrency does not block the others: the round goes on, so total throughput
+ * stays as high as the hosts allow. Scheduling runs under one lock; requests are
+ * sent and futures completed outside of it. A timer thread wakes the scheduler
+ * when the next token of a waiting host is due.
+ *
+ * A host with nothing queued, nothing in flight and a full bucket is the same
+ * as a new one: such idle hosts are dropped whenever the map of hosts has
+ * doubled, so crawling a million hosts does not keep a million buckets.
+ */
+public class HostFairScheduler implements AutoCloseable {
+
+	/**
+	 * Tokens refill at ratePerSecond up to burst, a request takes one. Not thread
+	 * safe, used under the scheduler lock.
+	 */
+	public static final class TokenBucket {
+		private final double ratePerNano;
+		private final double burst;
+		private double tokens;
+		private long lastRefillNanos;
+
+		public TokenBucket(double ratePerSecond, double burst, long nowNanos) {
+			if (ratePerSecond <= 0 || burst < 1) {
+				throw new IllegalArgumentException("ratePerSecond must be > 0 and burst >= 1: " + ratePerSecond + ", "
+						+ burst);
+			}
+			this.ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+			this.burst = burst;
+			this.tokens = burst;
+			this.lastRefillNanos = nowNanos;
+		}
+
+		private void refill(long nowNanos) {
+			tokens = Math.min(burst, tokens + (nowNanos - lastRefillNanos) * ratePerNano);
+			lastRefillNanos = nowNanos;
+		}
+
+		public boolean tryTake(long nowNanos) {
+			refill(nowNanos);
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+
+		/** 0 if a token is available now */
+		public long nanosUntilToken(long nowNanos) {
+			refill(nowNanos);
+			return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano);
+		}
+
+		public double getTokens(long nowNanos) {
+			refill(nowNanos);
+			return tokens;
+		}
+
+		/** as a new bucket: forgetting it changes nothing */
+		public boolean isFull(long nowNanos) {
+			return getTokens(nowNanos) >= burst;
+		}
+	}
+
+	private record Pending<T>(HttpRequest request, BodyHandler<T> handler, CompletableFuture<HttpResponse<T>> future) {
+	}
+
+	private static final class Host {
+		final String key;
+		final int weight;
+		final TokenBucket bucket;
+		final ArrayDeque<Pending<?>> queue = new ArrayDeque<>();
+		int inFlight;
+		boolean active;
+		long sent;
+
+		Host(String key, int weight, TokenBucket bucket) {
+			this.key = key;
+			this.weight = weight;
+			this.bucket = bucket;
+		}
+
+		boolean isIdle(long nowNanos) {
+			return queue.isEmpty() && inFlight == 0 && bucket.isFull(nowNanos);
+		}
+	}
+
+	private static final int MIN_EVICTION_SIZE = 64;
+
+	private final HttpClient httpClient;
+	private final int maxInFlight;
+	private final int maxPerHost;
+	private final int maxQueuedPerHost;
+	private final double ratePerSecond;
+	private final int burst;
+	private final Map<String, Integer> weights;
+	private final Map<String, Double> rates;
+
+	private final Map<String, Host> hosts = new HashMap<>();
+	/** hosts.size() at which idle hosts are evicted */
+	private int evictionSize = MIN_EVICTION_SIZE;
+	/** hosts with queued requests, in round robin order */
+	private final ArrayDeque<Host> active = new ArrayDeque<>();
+	private final ScheduledExecutorService timer;
+	private ScheduledFuture<?> wakeUp;
+	private long wakeUpAtNanos;
+	private int inFlight;
+	private boolean closed;
+
+	private HostFairScheduler(Builder builder) {
+		this.httpClient = builder.httpClient;
+		this.maxInFlight = builder.maxInFlight;
+		this.maxPerHost = builder.maxPerHost;
+		this.maxQueuedPerHost = builder.maxQueuedPerHost;
+		this.ratePerSecond = builder.ratePerSecond;
+		this.burst = builder.burst;
+		this.weights = Map.copyOf(builder.weights);
+		this.rates = Map.copyOf(builder.rates);
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "HostFairScheduler-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public static Builder newBuilder(HttpClient httpClient) {
+		return new Builder(httpClient);
+	}
+
+	/**
+	 * Queues the request behind the others of its host. The future completes like
+	 * the one of HttpClient.sendAsync; cancelling it while queued removes the
+	 * request from the queue when its turn comes.
+	 */
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> handler) {
+		CompletableFuture<HttpResponse<T>> future = new CompletableFuture<>();
+		String key = LimitedHttpClient.hostKey(request.uri());
+		synchronized (this) {
+			if (closed) {
+				return CompletableFuture.failedFuture(new RejectedExecutionException("closed"));
+			}
+			long now = System.nanoTime();
+			Host host = hosts.get(key);
+			if (host == null) {
+				if (hosts.size() >= evictionSize) {
+					hosts.values().removeIf(h -> h.isIdle(now));
+					evictionSize = Math.max(MIN_EVICTION_SIZE, hosts.size() * 2);
+				}
+				host = new Host(key, weights.getOrDefault(key, 1),
+						new TokenBucket(rates.getOrDefault(key, ratePerSecond), burst, now));
+				hosts.put(key, host);
+			}
+			if (host.queue.size() >= maxQueuedPerHost) {
+				return CompletableFuture
+						.failedFuture(new RejectedExecutionException(key + ": " + maxQueuedPerHost + " queued"));
+			}
+			host.queue.add(new Pending<>(request, handler, future));
+			if (!host.active) {
+				host.active = true;
+				active.addLast(host);
+			}
+		}
+		dispatch();
+		return future;
+	}
+
+	private void dispatch() {
+		List<Runnable> sends = new ArrayList<>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			long nextTokenNanos = Long.MAX_VALUE;
+			int idleVisits = 0; // hosts visited in a row which could not send
+			while (inFlight < maxInFlight && !active.isEmpty() && idleVisits < active.size()) {
+				Host host = active.pollFirst();
+				// every request costs 1, and a host which could not spend its quantum does
+				// not carry it over: no burst after waiting for its bucket
+				int deficit = host.weight;
+				boolean sent = false;
+				while (deficit >= 1 && inFlight < maxInFlight && host.inFlight < maxPerHost) {
+					Pending<?> pending = host.queue.peek();
+					if (pending == null) {
+						break;
+					}
+					if (pending.future().isDone()) { // cancelled while queued
+						host.queue.poll();
+						continue;
+					}
+					if (!host.bucket.tryTake(now)) {
+						nextTokenNanos = Math.min(nextTokenNanos, host.bucket.nanosUntilToken(now));
+						break;
+					}
+					host.queue.poll();
+					deficit--;
+					host.inFlight++;
+					host.sent++;
+					inFlight++;
+					sent = true;
+					sends.add(() -> send(host, pending));
+				}
+				if (host.queue.isEmpty()) {
+					host.active = false;
+				} else {
+					active.addLast(host);
+				}
+				idleVisits = sent ? 0 : idleVisits + 1;
+			}
+			if (nextTokenNanos != Long.MAX_VALUE && !closed) {
+				scheduleWakeUp(now, nextTokenNanos);
+			}
+		}
+		sends.forEach(Runnable::run);
+	}
+
+	private void scheduleWakeUp(long now, long delayNanos) {
+		long at = now + delayNanos;
+		if (wakeUp != null && !wakeUp.isDone() && wakeUpAtNanos <= at) {
+			return; // an earlier one is coming
+		}
+		if (wakeUp != null) {
+			wakeUp.cancel(false);
+		}
+		wakeUpAtNanos = at;
+		wakeUp = timer.schedule(() -> wakeUp(at), delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Forgets the running wake-up first: it is not done while it dispatches, and
+	 * scheduleWakeUp would take it for an earlier one still coming, no host
+	 * waiting for its bucket would ever be woken again.
+	 */
+	private void wakeUp(long at) {
+		synchronized (this) {
+			if (wakeUpAtNanos == at) { // not replaced by an earlier one meanwhile
+				wakeUp = null;
+			}
+		}
+		dispatch();
+	}
+
+	private <T> void send(Host host, Pending<T> pending) {
+		CompletableFuture<HttpResponse<T>> response;
+		try {
+			response = httpClient.sendAsync(pending.request(), pending.handler());
+		} catch (RuntimeException e) {
+			done(host);
+			pending.future().completeExceptionally(e);
+			return;
+		}
+		response.whenComplete((result, failure) -> {
+			done(host);
+			if (failure != null) {
+				pending.future().completeExceptionally(failure);
+			} else {
+				pending.future().complete(result);
+			}
+		});
+	}
+
+	private void done(Host host) {
+		synchronized (this) {
+			host.inFlight--;
+			inFlight--;
+		}
+		dispatch();
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return hosts.values().stream().mapToInt(host -> host.queue.size()).sum();
+	}
+
+	/** hosts known, idle ones included until they are evicted */
+	public synchronized int getHostCount() {
+		return hosts.size();
+	}
+
+	/** host:port -> queued / inFlight / sent / tokens, one line per host */
+	public synchronized String getHostStats() {
+		long now = System.nanoTime();
+		return hosts.values().stream()
+				.map(host -> String.format("%s queued = %d, inFlight = %d, sent = %d, tokens = %.1f", host.key,
+						host.queue.size(), host.inFlight, host.sent, host.bucket.getTokens(now)))
+				.sorted().collect(Collectors.joining("\n"));
+	}
+
+	/** queued requests fail with CancellationException, sent ones complete */
+	@Override
+	public void close() {
+		List<Pending<?>> dropped = new ArrayList<>();
+		synchronized (this) {
+			closed = true;
+			for (Host host : hosts.values()) {
+				dropped.addAll(host.queue);
+				host.queue.clear();
+			}
+			active.clear();
+		}
+		timer.shutdownNow();
+		dropped.forEach(pending -> pending.future().completeExceptionally(new CancellationException("closed")));
+	}
+
+	public static final class Builder {
+		private final HttpClient httpClient;
+		private int maxInFlight = 64;
+		private int maxPerHost = 6;
+		private int maxQueuedPerHost = 100_000;
+		private double ratePerSecond = 10;
+		private int burst = 5;
+		private final Map<String, Integer> weights = new HashMap<>();
+		private final Map<String, Double> rates = new HashMap<>();
+
+		private Builder(HttpClient httpClient) {
+			this.httpClient = Objects.requireNonNull(httpClient);
+		}
+
+		/** requests in flight over all hosts */
+		public Builder maxInFlight(int maxInFlight) {
+			this.maxInFlight = positive(maxInFlight, "maxInFlight");
+			return this;
+		}
+
+		/** requests in flight per host, browsers use 6 connections per host */
+		public Builder maxPerHost(int maxPerHost) {
+			this.maxPerHost = positive(maxPerHost, "maxPerHost");
+			return this;
+		}
+
+		public Builder maxQueuedPerHost(int maxQueuedPerHost) {
+			this.maxQueuedPerHost = positive(maxQueuedPerHost, "maxQueuedPerHost");
+			return this;
+		}
+
+		/** requests per second per host, and how many may go at once after a pause */
+		public Builder ratePerHost(double ratePerSecond, int burst) {
+			if (ratePerSecond <= 0) {
+				throw new IllegalArgumentException("ratePerSecond must be > 0: " + ratePerSecond);
+			}
+			this.ratePerSecond = ratePerSecond;
+			this.burst = positive(burst, "burst");
+			return this;
+		}
+
+		/** a host given as host:port gets weight requests per round, default 1 */
+		public Builder weight(String hostAndPort, int weight) {
+			weights.put(hostAndPort, positive(weight, "weight"));
+			return this;
+		}
+
+		/** another rate for one host, e.g. an API with a documented quota */
+		public Builder rate(String hostAndPort, double ratePerSecond) {
+			if (ratePerSecond <= 0) {
+				throw new IllegalArgumentException("ratePerSecond must be > 0: " + ratePerSecond);
+			}
+			rates.put(hostAndPort, ratePerSecond);
+			return this;
+		}
+
+		private static int positive(int value, String name) {
+			if (value <= 0) {
+				throw new IllegalArgumentException(name + " must be > 0: " + value);
+			}
+			return value;
+		}
+
+		public HostFairScheduler build() {
+			return new HostFairScheduler(this);
+		}
+	}
+}
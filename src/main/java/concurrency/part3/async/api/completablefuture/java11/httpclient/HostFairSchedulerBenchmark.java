@@ -0,0 +1,126 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+/**
+ * FIFO executor vs {@link HostFairScheduler} on a crawl like
+ * domains_list500.txt: a few big hosts first in the list, many small ones after.
+ *
+ * <pre>
+ * local {@link StubHttpServer}s, one port = one host
+ *   2 slow hosts: 200ms per request, 400 requests each, listed FIRST
+ *   8 fast hosts:   5ms per request,  25 requests each
+ *
+ * FIFO      Executors.newFixedThreadPool(32) + blocking send, in list order,
+ *           like the Z_* demos: the 32 threads all go to the slow hosts
+ * fair      HostFairScheduler maxInFlight 32, maxPerHost 6, 50 requests/s per host
+ * </pre>
+ *
+ * Printed per host group: time from start until its requests completed (p50,
+ * max), and the most concurrent requests one host of the group saw.
+ *
+ * Expect the fast hosts to be done within a few hundred ms with "fair" instead
+ * of at the very end with FIFO. The slow hosts take longer with "fair": 6 in
+ * flight x 200ms caps them at 30 requests/s, that is the point of maxPerHost.
+ */
+public class HostFairSchedulerBenchmark {
+
+	private static StubHttpServer stubHost(int latencyMs) throws IOException {
+		return StubHttpServer.newBuilder().route("/", Route.noContent().status(200).latency(Duration.ofMillis(latencyMs)))
+				.start();
+	}
+
+	private static String url(StubHttpServer host, int i) {
+		return host.uri("/page" + i).toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<StubHttpServer> slowHosts = new ArrayList<>();
+		List<StubHttpServer> fastHosts = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			slowHosts.add(stubHost(200));
+		}
+		for (int i = 0; i < 8; i++) {
+			fastHosts.add(stubHost(5));
+		}
+		List<URI> crawl = new ArrayList<>();
+		for (int i = 0; i < 400; i++) {
+			for (StubHttpServer host : slowHosts) {
+				crawl.add(URI.create(url(host, i)));
+			}
+		}
+		for (int i = 0; i < 25; i++) {
+			for (StubHttpServer host : fastHosts) {
+				crawl.add(URI.create(url(host, i)));
+			}
+		}
+		HttpClient httpClient = HttpClient.newHttpClient();
+
+		try {
+			System.out.printf("%d requests: 2 slow hosts x 400 first, then 8 fast hosts x 25%n", crawl.size());
+			try (ExecutorService fifo = Executors.newFixedThreadPool(32)) {
+				run("FIFO", crawl, slowHosts, fastHosts, uri -> CompletableFuture.supplyAsync(() -> {
+					try {
+						return httpClient.send(HttpRequest.newBuilder(uri).build(),
+								HttpResponse.BodyHandlers.discarding());
+					} catch (IOException | InterruptedException e) {
+						throw new IllegalStateException(e);
+					}
+				}, fifo));
+			}
+			try (HostFairScheduler fair = HostFairScheduler.newBuilder(httpClient).maxInFlight(32).maxPerHost(6)
+					.ratePerHost(50, 5).build()) {
+				run("fair", crawl, slowHosts, fastHosts, uri -> fair
+						.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding()));
+			}
+		} finally {
+			slowHosts.forEach(StubHttpServer::close);
+			fastHosts.forEach(StubHttpServer::close);
+		}
+	}
+
+	private static void run(String name, List<URI> crawl, List<StubHttpServer> slowHosts,
+			List<StubHttpServer> fastHosts, Function<URI, CompletableFuture<HttpResponse<Void>>> send) {
+		slowHosts.forEach(StubHttpServer::resetMaxConcurrent);
+		fastHosts.forEach(StubHttpServer::resetMaxConcurrent);
+		LatencyHistogram slowDone = new LatencyHistogram();
+		LatencyHistogram fastDone = new LatencyHistogram();
+		List<String> slowPorts = slowHosts.stream().map(host -> ":" + host.getPort() + "/").toList();
+		long start = System.nanoTime();
+		List<CompletableFuture<?>> all = new ArrayList<>();
+		for (URI uri : crawl) {
+			boolean slow = slowPorts.stream().anyMatch(uri.toString()::contains);
+			all.add(send.apply(uri).whenComplete((response, failure) -> (slow ? slowDone : fastDone)
+					.record(System.nanoTime() - start)));
+		}
+		CompletableFuture.allOf(all.toArray(CompletableFuture[]::new)).join();
+		long total = System.nanoTime() - start;
+
+		System.out.printf(
+				"%-5s total %5dms | fast hosts done p50 = %5dms, max = %5dms, max concurrent per host = %d"
+						+ " | slow hosts done p50 = %5dms, max = %5dms, max concurrent per host = %d%n",
+				name, TimeUnit.NANOSECONDS.toMillis(total),
+				TimeUnit.NANOSECONDS.toMillis(fastDone.getValueAtPercentile(50)),
+				TimeUnit.NANOSECONDS.toMillis(fastDone.getMax()),
+				fastHosts.stream().mapToInt(StubHttpServer::getMaxConcurrent).max().orElse(0),
+				TimeUnit.NANOSECONDS.toMillis(slowDone.getValueAtPercentile(50)),
+				TimeUnit.NANOSECONDS.toMillis(slowDone.getMax()),
+				slowHosts.stream().mapToInt(StubHttpServer::getMaxConcurrent).max().orElse(0));
+	}
+}
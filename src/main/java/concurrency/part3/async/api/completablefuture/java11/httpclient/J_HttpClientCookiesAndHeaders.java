@@ -12,7 +12,6 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.util.List;
 
 /**
  * he main class in the java.net package for handling cookies is CookieHandler.
@@ -116,6 +115,8 @@ public class J_HttpClientCookiesAndHeaders {
 		 * allow to accept cookies at all
 		 */
 		// null - in memory PersistentStore will be used, accept all cookies
+		// to keep cookies across restarts, without the lock of the in memory store:
+		// new CookieManager(PersistentCookieStore.newBuilder(Path.of("cookies.journal")).build(), CookiePolicy.ACCEPT_ALL)
  
 		CookieManager cookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
 		 
@@ -175,60 +176,3 @@ public class J_HttpClientCookiesAndHeaders {
 	}
 
 }
-
-/**
- * if we would like our CookieStore implementation to behave like the hard disk
- * and retain the cookies across JVM restarts, we must customize it’s storage
- * and retrieval mechanism.
- */
-class PersistentCookieStore implements CookieStore, Runnable {
-	private CookieStore store;
-
-	public PersistentCookieStore() {
-		store = new CookieManager().getCookieStore();
-		// deserialize cookies into store
-		Runtime.getRuntime().addShutdownHook(new Thread(this));
-	}
-
-	@Override
-	public void run() {
-		// serialize cookies to persistent storage
-	}
-
-	@Override
-	public void add(URI uri, HttpCookie cookie) {
-		store.add(uri, cookie);
-
-	}
-
-	@Override
-	public List<HttpCookie> get(URI uri) {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public List<HttpCookie> getCookies() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public List<URI> getURIs() {
-		// TODO Auto-generated method stub
-		return null;
-	}
-
-	@Override
-	public boolean remove(URI uri, HttpCookie cookie) {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-	@Override
-	public boolean removeAll() {
-		// TODO Auto-generated method stub
-		return false;
-	}
-
-}
\ No newline at end of file
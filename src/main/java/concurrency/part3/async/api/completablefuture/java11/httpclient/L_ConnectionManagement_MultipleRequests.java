@@ -128,7 +128,9 @@ class MultipleRequests {
 
 		Collection<HttpRequest> paths = null; // Read it ...
 
-		var client = HttpClient.newHttpClient();
+		// sendAsync of HttpClient would send all of them at once, the limited client
+		// sends as many as the server answers without getting slower, see LimitedHttpClient
+		var client = LimitedHttpClient.withDefaults(HttpClient.newHttpClient());
 
 		List<HttpRequest> requests = paths.stream().map(path -> "https://localhost:8443" + path).map(URI::create)
 				.map(uri -> HttpRequest.newBuilder(uri).build()).collect(Collectors.toList());
@@ -0,0 +1,154 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import concurrency.part2.concurrent.api.AdaptiveConcurrencyLimiter;
+import concurrency.part2.concurrent.api.AdaptiveConcurrencyLimiter.LimitAlgorithm;
+import concurrency.part2.concurrent.api.AdaptiveConcurrencyLimiter.Permit;
+
+/**
+ * HttpClient.sendAsync behind adaptive concurrency limits, instead of firing
+ * every request at once like MultipleRequests and
+ * Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF do: 500
+ * domains = 500 sockets at the same moment, file descriptors run out and
+ * servers answer 429.
+ *
+ * <pre>
+ * sendAsync(request) --> host limiter (one per host:port) --> global limiter --> HttpClient
+ *                              ^ onSuccess / onDropped             ^ onSuccess / onIgnore
+ *                              +-----------------------------------+----------------+
+ * </pre>
+ *
+ * The host permit is taken first: a request waiting for a slow host holds no
+ * global permit, so one overloaded host does not block the others. A response
+ * 429 or 503, a timeout or an I/O error (connection refused, reset) count as
+ * DROPPED and shrink the HOST limit only: one failing host says nothing about
+ * the capacity of this client, for the global limit such a call is ignored.
+ * Any other response is a success whose round trip time is a sample for both.
+ *
+ * <pre>
+ * LimitedHttpClient client = new LimitedHttpClient(HttpClient.newHttpClient(),
+ *         () -> new AdaptiveConcurrencyLimiter.Gradient(20, 1, 200, 1.5),
+ *         () -> new AdaptiveConcurrencyLimiter.Aimd(4, 1, 32, 0.9, TimeUnit.SECONDS.toNanos(5)), 10_000);
+ * client.sendAsync(request, BodyHandlers.discarding()).thenAccept(...);
+ * System.out.println(client.getMetrics());
+ * </pre>
+ */
+public class LimitedHttpClient {
+
+	private final HttpClient httpClient;
+	private final AdaptiveConcurrencyLimiter globalLimiter;
+	private final Supplier<? extends LimitAlgorithm> hostAlgorithm;
+	private final int maxQueued;
+	private final Map<String, AdaptiveConcurrencyLimiter> hostLimiters = new ConcurrentHashMap<>();
+
+	/**
+	 * @param globalAlgorithm one instance for the global limit
+	 * @param hostAlgorithm   a NEW instance for every host, algorithms keep state
+	 * @param maxQueued       requests waiting per limiter, more fail with
+	 *                        RejectedExecutionException
+	 */
+	public LimitedHttpClient(HttpClient httpClient, Supplier<? extends LimitAlgorithm> globalAlgorithm,
+			Supplier<? extends LimitAlgorithm> hostAlgorithm, int maxQueued) {
+		this.httpClient = Objects.requireNonNull(httpClient);
+		this.globalLimiter = new AdaptiveConcurrencyLimiter("global", globalAlgorithm.get(), maxQueued);
+		this.hostAlgorithm = Objects.requireNonNull(hostAlgorithm);
+		this.maxQueued = maxQueued;
+	}
+
+	/** Gradient 20..1000 globally, Aimd 4..64 per host, 10s rtt counts as a drop */
+	public static LimitedHttpClient withDefaults(HttpClient httpClient) {
+		return new LimitedHttpClient(httpClient, () -> new AdaptiveConcurrencyLimiter.Gradient(20, 1, 1_000, 1.5),
+				() -> new AdaptiveConcurrencyLimiter.Aimd(4, 1, 64, 0.9, Duration.ofSeconds(10).toNanos()),
+				100_000);
+	}
+
+	/** same contract as HttpClient.sendAsync, sent when both limits allow */
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, BodyHandler<T> responseBodyHandler) {
+		AdaptiveConcurrencyLimiter hostLimiter = hostLimiters.computeIfAbsent(hostKey(request.uri()),
+				host -> new AdaptiveConcurrencyLimiter(host, hostAlgorithm.get(), maxQueued));
+		return hostLimiter.acquire().thenCompose(hostPermit -> globalLimiter.acquire()
+				.whenComplete((globalPermit, rejected) -> {
+					if (rejected != null) {
+						hostPermit.onIgnore();
+					}
+				}).thenCompose(globalPermit -> send(request, responseBodyHandler, hostPermit, globalPermit)));
+	}
+
+	private <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, BodyHandler<T> responseBodyHandler,
+			Permit hostPermit, Permit globalPermit) {
+		CompletableFuture<HttpResponse<T>> response;
+		try {
+			response = httpClient.sendAsync(request, responseBodyHandler);
+		} catch (RuntimeException e) {
+			// e.g. IllegalArgumentException, nothing was sent
+			hostPermit.onIgnore();
+			globalPermit.onIgnore();
+			throw e;
+		}
+		return response.whenComplete((result, failure) -> {
+			if (isDropped(result, failure)) {
+				hostPermit.onDropped();
+				globalPermit.onIgnore();
+			} else {
+				hostPermit.onSuccess();
+				globalPermit.onSuccess();
+			}
+		});
+	}
+
+	static boolean isDropped(HttpResponse<?> response, Throwable failure) {
+		if (failure != null) {
+			Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+					? failure.getCause()
+					: failure;
+			// HttpTimeoutException, ConnectException, connection reset ...
+			return cause instanceof IOException;
+		}
+		return response.statusCode() == 429 || response.statusCode() == 503;
+	}
+
+	static String hostKey(URI uri) {
+		return uri.getHost() + ":" + (uri.getPort() != -1 ? uri.getPort() : "https".equals(uri.getScheme()) ? 443 : 80);
+	}
+
+	public HttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	public AdaptiveConcurrencyLimiter getGlobalLimiter() {
+		return globalLimiter;
+	}
+
+	/** the limiter of host:port, null before the first request to it */
+	public AdaptiveConcurrencyLimiter getHostLimiter(String hostAndPort) {
+		return hostLimiters.get(hostAndPort);
+	}
+
+	/** global first, then the hosts with the most queued requests */
+	public List<AdaptiveConcurrencyLimiter> getLimiters() {
+		return Stream.concat(Stream.of(globalLimiter),
+				hostLimiters.values().stream().sorted((a, b) -> Integer.compare(b.getQueued(), a.getQueued())))
+				.collect(Collectors.toList());
+	}
+
+	/** one line per limiter: limit, in flight, queued, drops, queueing delay */
+	public String getMetrics() {
+		return getLimiters().stream().map(Object::toString).collect(Collectors.joining("\n"));
+	}
+}
@@ -0,0 +1,381 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part2.concurrent.api.StripedCounter;
+
+/**
+ * One engine for what the Z_HttpClient* demos and
+ * AsyncMethodApplication.validateLink each do by hand: GET every link of a
+ * list, discard the body, report the status.
+ *
+ * <pre>
+ * input (file or stdin) --readLine--> [permit] --submit--> strategy executor
+ *                                        ^                       |
+ *                                        |            httpClient.send(GET, discarding)
+ *                                        |                       |
+ *                                        +----release---- sink.accept(LinkResult)
+ * </pre>
+ *
+ * Memory stays flat whatever the input size: lines are read one at a time, and
+ * at most maxInFlight links are between the reader and the sink, so the reader
+ * waits for a permit instead of queueing the whole file. Results are not kept,
+ * the sink gets each one when its request completes (so NOT in input order,
+ * {@link LinkResult#lineNumber()} tells where it came from). Only counters and
+ * a fixed size {@link LatencyHistogram} are aggregated in the {@link Summary}.
+ *
+ * The strategies run the blocking send() on different pools, see
+ * {@link ExecutionStrategy}, over ONE shared HttpClient: its connection pool,
+ * HTTP/2 multiplexing and selector thread are reused by every request.
+ *
+ * <pre>
+ * LinkValidator validator = LinkValidator.newBuilder().strategy(ExecutionStrategy.VIRTUAL_THREADS)
+ *         .maxInFlight(512).requestTimeout(Duration.ofSeconds(10)).build();
+ * Summary summary = validator.validate(Path.of("domains.txt"), System.out::println);
+ * </pre>
+ */
+public class LinkValidator {
+
+	/** where blocking send() runs, the same pools the demos compare */
+	public enum ExecutionStrategy {
+		/** Executors.newFixedThreadPool(threads), tasks wait in an unbounded queue */
+		PLATFORM_POOL,
+		/** Executors.newCachedThreadPool(), one thread per in-flight link */
+		CACHED_POOL,
+		/** ForkJoinPool(threads), work stealing, meant for CPU work: blocks its workers */
+		FORK_JOIN,
+		/** one virtual thread per link, blocking send() only unmounts the carrier */
+		VIRTUAL_THREADS;
+
+		ExecutorService newExecutor(int threads) {
+			return switch (this) {
+			case PLATFORM_POOL -> Executors.newFixedThreadPool(threads);
+			case CACHED_POOL -> Executors.newCachedThreadPool();
+			case FORK_JOIN -> new ForkJoinPool(threads);
+			case VIRTUAL_THREADS -> Executors.newVirtualThreadPerTaskExecutor();
+			};
+		}
+	}
+
+	public enum Outcome {
+		/** 2xx */
+		OK,
+		/** 3xx which was not followed */
+		REDIRECT,
+		/** 4xx */
+		CLIENT_ERROR,
+		/** 5xx */
+		SERVER_ERROR,
+		/** no response within requestTimeout */
+		TIMEOUT,
+		/** invalid link, DNS, connection refused, reset ... */
+		FAILED;
+
+		static Outcome of(int statusCode) {
+			if (statusCode >= 500) {
+				return SERVER_ERROR;
+			}
+			if (statusCode >= 400) {
+				return CLIENT_ERROR;
+			}
+			return statusCode >= 300 ? REDIRECT : OK;
+		}
+	}
+
+	/**
+	 * @param statusCode 0 unless a response was received
+	 * @param error      null unless TIMEOUT or FAILED
+	 */
+	public record LinkResult(long lineNumber, String link, Outcome outcome, int statusCode, long latencyNanos,
+			String error) {
+
+		public boolean isOk() {
+			return outcome == Outcome.OK;
+		}
+
+		/** one JSON object, one line */
+		public String toJson() {
+			return "{\"line\":" + lineNumber + ",\"link\":\"" + escape(link) + "\",\"outcome\":\"" + outcome
+					+ "\",\"status\":" + statusCode + ",\"latencyMs\":"
+					+ String.format(Locale.ROOT, "%.3f", latencyNanos / 1_000_000.0)
+					+ (error == null ? "" : ",\"error\":\"" + escape(error) + "\"") + "}";
+		}
+
+		private static String escape(String s) {
+			StringBuilder sb = new StringBuilder(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '"' || c == '\\') {
+					sb.append('\\').append(c);
+				} else if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+
+	/** totals of one validate() run */
+	public static final class Summary {
+		private final StripedCounter[] outcomes = new StripedCounter[Outcome.values().length];
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		private long elapsedNanos;
+
+		Summary() {
+			for (int i = 0; i < outcomes.length; i++) {
+				outcomes[i] = new StripedCounter();
+			}
+		}
+
+		void record(LinkResult result) {
+			outcomes[result.outcome().ordinal()].increment();
+			latencies.record(result.latencyNanos());
+		}
+
+		public long getCount(Outcome outcome) {
+			return outcomes[outcome.ordinal()].sum();
+		}
+
+		public long getTotal() {
+			return latencies.getCount();
+		}
+
+		public LatencyHistogram getLatencies() {
+			return latencies;
+		}
+
+		public Duration getElapsed() {
+			return Duration.ofNanos(elapsedNanos);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder().append(getTotal()).append(" links in ")
+					.append(TimeUnit.NANOSECONDS.toMillis(elapsedNanos)).append("ms");
+			for (Outcome outcome : Outcome.values()) {
+				sb.append(", ").append(outcome).append(" = ").append(getCount(outcome));
+			}
+			return sb.append(", latency ").append(latencies).toString();
+		}
+	}
+
+	private final HttpClient httpClient;
+	private final ExecutionStrategy strategy;
+	private final int threads;
+	private final int maxInFlight;
+	private final Duration requestTimeout;
+
+	private LinkValidator(Builder builder) {
+		this.httpClient = builder.httpClient != null ? builder.httpClient
+				: HttpClient.newBuilder().followRedirects(Redirect.NORMAL).connectTimeout(builder.connectTimeout)
+						.build();
+		this.strategy = builder.strategy;
+		this.threads = builder.threads;
+		this.maxInFlight = builder.maxInFlight;
+		this.requestTimeout = builder.requestTimeout;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/** reads links from the file, or from stdin when path is "-" */
+	public Summary validate(String path, Consumer<LinkResult> sink) throws IOException, InterruptedException {
+		if ("-".equals(path)) {
+			// not closed, stdin belongs to the caller
+			return validate(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), sink);
+		}
+		return validate(Path.of(path), sink);
+	}
+
+	public Summary validate(Path path, Consumer<LinkResult> sink) throws IOException, InterruptedException {
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			return validate(reader, sink);
+		}
+	}
+
+	/**
+	 * Validates every link of the reader, one per line. Blank lines and lines
+	 * starting with # are skipped, a link without scheme gets http://. Returns
+	 * when every result was given to the sink.
+	 *
+	 * @param sink called concurrently from the strategy's threads, must be
+	 *             thread safe; a RuntimeException from it goes to the thread's
+	 *             uncaught exception handler and does not stop the run
+	 */
+	public Summary validate(BufferedReader reader, Consumer<LinkResult> sink)
+			throws IOException, InterruptedException {
+		Objects.requireNonNull(sink, "sink");
+		Summary summary = new Summary();
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		AtomicLong lineNumbers = new AtomicLong();
+		long start = System.nanoTime();
+		try (ExecutorService executor = strategy.newExecutor(threads)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				long lineNumber = lineNumbers.incrementAndGet();
+				String link = line.strip();
+				if (link.isEmpty() || link.startsWith("#")) {
+					continue;
+				}
+				inFlight.acquire();
+				try {
+					executor.execute(() -> {
+						try {
+							LinkResult result = validateLink(lineNumber, link);
+							summary.record(result);
+							sink.accept(result);
+						} finally {
+							inFlight.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					inFlight.release();
+					throw e;
+				}
+			}
+			// every permit back = every link done
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		}
+		summary.elapsedNanos = System.nanoTime() - start;
+		return summary;
+	}
+
+	/** GETs one link on the calling thread, never throws */
+	public LinkResult validateLink(long lineNumber, String link) {
+		long start = System.nanoTime();
+		try {
+			HttpRequest request = HttpRequest.newBuilder(toUri(link)).timeout(requestTimeout).GET().build();
+			// body discarded, only the status matters
+			HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+			return new LinkResult(lineNumber, link, Outcome.of(response.statusCode()), response.statusCode(),
+					System.nanoTime() - start, null);
+		} catch (HttpTimeoutException e) {
+			return new LinkResult(lineNumber, link, Outcome.TIMEOUT, 0, System.nanoTime() - start, e.toString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new LinkResult(lineNumber, link, Outcome.FAILED, 0, System.nanoTime() - start, e.toString());
+		} catch (IOException | RuntimeException e) {
+			// RuntimeException: IllegalArgumentException of an invalid URI
+			return new LinkResult(lineNumber, link, Outcome.FAILED, 0, System.nanoTime() - start, e.toString());
+		}
+	}
+
+	private static URI toUri(String link) {
+		return URI.create(link.contains("://") ? link : "http://" + link);
+	}
+
+	public HttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	public ExecutionStrategy getStrategy() {
+		return strategy;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public static final class Builder {
+		private HttpClient httpClient;
+		private ExecutionStrategy strategy = ExecutionStrategy.VIRTUAL_THREADS;
+		private int threads = Runtime.getRuntime().availableProcessors() * 4;
+		private int maxInFlight = 256;
+		private Duration connectTimeout = Duration.ofSeconds(5);
+		private Duration requestTimeout = Duration.ofSeconds(10);
+
+		private Builder() {
+		}
+
+		/** shared client, default: follows redirects, connectTimeout */
+		public Builder httpClient(HttpClient httpClient) {
+			this.httpClient = Objects.requireNonNull(httpClient);
+			return this;
+		}
+
+		public Builder strategy(ExecutionStrategy strategy) {
+			this.strategy = Objects.requireNonNull(strategy);
+			return this;
+		}
+
+		/** pool size of PLATFORM_POOL and parallelism of FORK_JOIN */
+		public Builder threads(int threads) {
+			if (threads <= 0) {
+				throw new IllegalArgumentException("threads must be > 0: " + threads);
+			}
+			this.threads = threads;
+			return this;
+		}
+
+		/** links read but not yet given to the sink, bounds memory and open connections */
+		public Builder maxInFlight(int maxInFlight) {
+			if (maxInFlight <= 0) {
+				throw new IllegalArgumentException("maxInFlight must be > 0: " + maxInFlight);
+			}
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		/** ignored when an httpClient is given */
+		public Builder connectTimeout(Duration connectTimeout) {
+			this.connectTimeout = Objects.requireNonNull(connectTimeout);
+			return this;
+		}
+
+		public Builder requestTimeout(Duration requestTimeout) {
+			this.requestTimeout = Objects.requireNonNull(requestTimeout);
+			return this;
+		}
+
+		public LinkValidator build() {
+			return new LinkValidator(this);
+		}
+	}
+
+	/**
+	 * <pre>
+	 * args: [file or - for stdin] [strategy] [maxInFlight]
+	 * defaults: domains_list500.txt  VIRTUAL_THREADS  256
+	 *
+	 * cat domains_list500.txt | java ... LinkValidator - PLATFORM_POOL 64 > results.ndjson
+	 * </pre>
+	 *
+	 * One JSON line per link on stdout, the summary on stderr.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String input = args.length > 0 ? args[0] : Util.DOMAINS_TXT2;
+		ExecutionStrategy strategy = args.length > 1 ? ExecutionStrategy.valueOf(args[1])
+				: ExecutionStrategy.VIRTUAL_THREADS;
+		int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+		LinkValidator validator = LinkValidator.newBuilder().strategy(strategy).maxInFlight(maxInFlight).build();
+		Summary summary = validator.validate(input, result -> System.out.println(result.toJson()));
+		System.err.println(strategy + ": " + summary);
+	}
+}
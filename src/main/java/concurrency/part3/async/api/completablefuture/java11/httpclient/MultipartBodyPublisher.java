@@ -0,0 +1,305 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * multipart/form-data body which STREAMS its file parts, where
+ * FileUpload.ofMimeMultipartData reads every file with Files.readAllBytes: a 2
+ * GB upload needs 2 GB of heap there (and fails, a byte[] holds at most 2 GB).
+ *
+ * <pre>
+ * segments, built once:   [--boundary + headers][file A][\r\n--boundary + headers][value]...[--boundary--]
+ *                              byte[]            path, size        byte[]
+ *
+ * subscribe() -> new cursor over the segments, one per request (retries,
+ *                redirects and HTTP/2 resets subscribe again)
+ * request(n)  -> n buffers: a header byte[], or the next chunkSize bytes of
+ *                the file read from a FileChannel opened when its part starts
+ * </pre>
+ *
+ * Nothing is read before it is demanded, so the heap holds the chunks the
+ * HttpClient has not written yet, not the files. contentLength() is the sum of
+ * the headers and Files.size() of every file, known up front: the request is
+ * sent with Content-Length instead of chunked. A file whose size changed since
+ * build() fails the request.
+ *
+ * Every chunk is a NEW buffer: the HttpClient may keep a published buffer until
+ * it is written, a reused buffer could be overwritten before. Heap buffers by
+ * default, as BodyPublishers.ofFile; direct(true) reads into direct buffers,
+ * which saves one copy per chunk into the socket but is only freed by the GC.
+ *
+ * <pre>
+ * MultipartBodyPublisher body = MultipartBodyPublisher.newBuilder()
+ *         .textPart("description", "nightly build").filePart("file", Path.of("build.zip")).build();
+ * HttpRequest request = HttpRequest.newBuilder(uri).header("Content-Type", body.getContentType())
+ *         .POST(body).build();
+ * </pre>
+ */
+public class MultipartBodyPublisher implements BodyPublisher {
+
+	/** a byte[] when file is null, otherwise the file */
+	private record Segment(byte[] bytes, Path file, long size) {
+	}
+
+	private final String boundary;
+	private final List<Segment> segments;
+	private final int chunkSize;
+	private final boolean direct;
+	private final long contentLength;
+
+	private MultipartBodyPublisher(Builder builder) {
+		this.boundary = builder.boundary;
+		this.chunkSize = builder.chunkSize;
+		this.direct = builder.direct;
+		this.segments = List.copyOf(builder.segments);
+		long length = 0;
+		for (Segment segment : segments) {
+			length += segment.size();
+		}
+		this.contentLength = length;
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/** value of the Content-Type header */
+	public String getContentType() {
+		return "multipart/form-data; boundary=" + boundary;
+	}
+
+	public String getBoundary() {
+		return boundary;
+	}
+
+	@Override
+	public long contentLength() {
+		return contentLength;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		Cursor cursor = new Cursor(subscriber);
+		subscriber.onSubscribe(cursor);
+	}
+
+	/**
+	 * Demand is added by request(n) from any thread, even from inside onNext.
+	 * Only one thread drains at a time (wip), the others just add their demand.
+	 */
+	private final class Cursor implements Flow.Subscription {
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean done;
+		private volatile Throwable error;
+		private int segment;
+		private FileChannel channel;
+		private long filePosition;
+
+		Cursor(Flow.Subscriber<? super ByteBuffer> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				// signalled by the draining thread, never at the same time as onNext
+				error = new IllegalArgumentException("request must be > 0: " + n);
+				drain();
+				return;
+			}
+			demand.getAndAccumulate(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			done = true;
+			drain(); // closes the file, unless another thread drains and will
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				if (error != null) {
+					fail(error);
+				}
+				while (!done && demand.get() > 0) {
+					ByteBuffer next;
+					try {
+						next = next();
+					} catch (IOException | UncheckedIOException e) {
+						fail(e);
+						break;
+					}
+					if (next == null) {
+						done = true;
+						subscriber.onComplete();
+						break;
+					}
+					demand.decrementAndGet();
+					subscriber.onNext(next);
+				}
+				if (done) {
+					closeFile();
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		/** the next buffer, null after the last one */
+		private ByteBuffer next() throws IOException {
+			while (segment < segments.size()) {
+				Segment current = segments.get(segment);
+				if (current.file() == null) {
+					segment++;
+					return ByteBuffer.wrap(current.bytes());
+				}
+				if (channel == null) {
+					channel = FileChannel.open(current.file(), StandardOpenOption.READ);
+					filePosition = 0;
+				}
+				if (filePosition < current.size()) {
+					int size = (int) Math.min(chunkSize, current.size() - filePosition);
+					ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, filePosition + buffer.position()) < 0) {
+							throw new IOException(current.file() + " shrank below " + current.size()
+									+ " bytes since the body was built");
+						}
+					}
+					filePosition += size;
+					return buffer.flip();
+				}
+				if (channel.size() != current.size()) {
+					throw new IOException(current.file() + " is " + channel.size() + " bytes, the body was built for "
+							+ current.size());
+				}
+				closeFile();
+				segment++;
+			}
+			return null;
+		}
+
+		private void fail(Throwable e) {
+			if (!done) {
+				done = true;
+				closeFile();
+				subscriber.onError(e);
+			}
+		}
+
+		private void closeFile() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// read only, nothing lost
+				}
+				channel = null;
+			}
+		}
+	}
+
+	public static final class Builder {
+		private String boundary = UUID.randomUUID().toString();
+		private int chunkSize = 64 * 1024;
+		private boolean direct;
+		private final List<Segment> segments = new ArrayList<>();
+		private final List<String[]> pendingParts = new ArrayList<>();
+		private final List<Path> pendingFiles = new ArrayList<>();
+
+		private Builder() {
+		}
+
+		public Builder boundary(String boundary) {
+			this.boundary = Objects.requireNonNull(boundary);
+			return this;
+		}
+
+		/** bytes read from a file per buffer */
+		public Builder chunkSize(int chunkSize) {
+			if (chunkSize <= 0) {
+				throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+			}
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		public Builder direct(boolean direct) {
+			this.direct = direct;
+			return this;
+		}
+
+		public Builder textPart(String name, Object value) {
+			pendingParts.add(new String[] { name, String.valueOf(value) });
+			pendingFiles.add(null);
+			return this;
+		}
+
+		/** Content-Type from Files.probeContentType, application/octet-stream if unknown */
+		public Builder filePart(String name, Path file) {
+			pendingParts.add(new String[] { name, null });
+			pendingFiles.add(Objects.requireNonNull(file));
+			return this;
+		}
+
+		/** the same layout as FileUpload.ofMimeMultipartData */
+		public MultipartBodyPublisher build() {
+			segments.clear();
+			String separator = "--" + boundary + "\r\nContent-Disposition: form-data; name=";
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < pendingParts.size(); i++) {
+				String name = pendingParts.get(i)[0];
+				Path file = pendingFiles.get(i);
+				text.append(separator);
+				if (file == null) {
+					text.append('"').append(name).append("\"\r\n\r\n").append(pendingParts.get(i)[1]).append("\r\n");
+					continue;
+				}
+				String mimeType;
+				long size;
+				try {
+					mimeType = Files.probeContentType(file);
+					size = Files.size(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				text.append('"').append(name).append("\"; filename=\"").append(file.getFileName())
+						.append("\"\r\nContent-Type: ").append(mimeType != null ? mimeType : "application/octet-stream")
+						.append("\r\n\r\n");
+				addText(text);
+				segments.add(new Segment(null, file, size));
+				text.append("\r\n");
+			}
+			text.append("--").append(boundary).append("--");
+			addText(text);
+			return new MultipartBodyPublisher(this);
+		}
+
+		private void addText(StringBuilder text) {
+			byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+			segments.add(new Segment(bytes, null, bytes.length));
+			text.setLength(0);
+		}
+	}
+}
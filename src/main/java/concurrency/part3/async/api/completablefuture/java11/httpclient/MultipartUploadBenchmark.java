@@ -0,0 +1,110 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import concurrency.part4.reactive.api.custom.server.StubHttpServer;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+/**
+ * FileUpload.ofMimeMultipartData (Files.readAllBytes) vs
+ * FileUpload.ofMimeMultipartDataStreaming ({@link MultipartBodyPublisher}),
+ * uploading one file to a local {@link StubHttpServer} which reads and drops
+ * the body.
+ *
+ * <pre>
+ * args: [file size MB]
+ * default: 128, readAllBytes needs the file size in heap: -Xmx1g
+ *
+ * printed per approach: MB/s, and peak heap used during the upload minus heap
+ * used before (sum of the peaks of the heap pools, an upper bound)
+ * </pre>
+ */
+public class MultipartUploadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+		Path file = Files.createTempFile("upload", ".bin");
+		writeFile(file, sizeMb * 1024L * 1024L);
+
+		StubHttpServer sink = StubHttpServer.newBuilder().route("/upload", Route.noContent()).start();
+
+		HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		URI uri = sink.uri("/upload");
+		Map<Object, Object> data = new LinkedHashMap<>();
+		data.put("description", "benchmark");
+		data.put("file", file);
+		String boundary = "benchmark-boundary";
+		try {
+			System.out.printf("uploading %d MB%n", sizeMb);
+			for (int round = 0; round < 2; round++) { // the first round warms up
+				run("readAllBytes", client, uri, boundary, sink,
+						() -> FileUpload.ofMimeMultipartData(data, boundary));
+				run("streaming", client, uri, boundary, sink,
+						() -> FileUpload.ofMimeMultipartDataStreaming(data, boundary));
+			}
+		} finally {
+			sink.close();
+			Files.delete(file);
+		}
+	}
+
+	interface BodyFactory {
+		BodyPublisher create() throws IOException;
+	}
+
+	private static void run(String name, HttpClient client, URI uri, String boundary, StubHttpServer sink,
+			BodyFactory body) throws IOException, InterruptedException {
+		System.gc();
+		Thread.sleep(200);
+		long before = heapUsed();
+		ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+		long receivedBefore = sink.getBytesReceived();
+		long start = System.nanoTime();
+		BodyPublisher publisher = body.create();
+		HttpResponse<Void> response = client.send(HttpRequest.newBuilder(uri)
+				.header("Content-Type", "multipart/form-data; boundary=" + boundary).POST(publisher).build(),
+				HttpResponse.BodyHandlers.discarding());
+		long nanos = System.nanoTime() - start;
+
+		long peak = ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP).mapToLong(pool -> pool.getPeakUsage().getUsed())
+				.sum();
+		System.out.printf("%-12s HTTP %d, %6.1f MB/s, peak heap +%5d MB, Content-Length %s%n", name,
+				response.statusCode(), (sink.getBytesReceived() - receivedBefore) / (1024.0 * 1024.0) / (nanos / 1e9),
+				(peak - before) / (1024 * 1024),
+				publisher.contentLength() < 0 ? "unknown (chunked)" : String.valueOf(publisher.contentLength()));
+	}
+
+	private static long heapUsed() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream().filter(pool -> pool.getType() == MemoryType.HEAP)
+				.mapToLong(pool -> pool.getUsage().getUsed()).sum();
+	}
+
+	private static void writeFile(Path file, long size) throws IOException {
+		ByteBuffer block = ByteBuffer.allocateDirect(1024 * 1024);
+		for (int i = 0; i < block.capacity(); i++) {
+			block.put((byte) i);
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (long written = 0; written < size; written += block.capacity()) {
+				channel.write(block.clear());
+			}
+		}
+	}
+}
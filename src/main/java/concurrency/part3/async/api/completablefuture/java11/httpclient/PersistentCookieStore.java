@@ -0,0 +1,602 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CookieStore which keeps its cookies across JVM restarts, for
+ * HttpClient.newBuilder().cookieHandler(new CookieManager(store, policy)).
+ *
+ * The default store of CookieManager (InMemoryCookieStore) takes one
+ * ReentrantLock for every get/add and scans its cookie lists: with thousands
+ * of sendAsync in flight every request and every response queues on that lock.
+ *
+ * <pre>
+ * domain  ->  path  ->  name  ->  cookie, expiresAt, origin
+ * (ConcurrentHashMap on each level, domain without the leading dot)
+ *
+ * get(https://a.shop.example.com/cart/items)
+ *   domains  a.shop.example.com, shop.example.com, example.com, com
+ *   paths    /, /cart, /cart/, /cart/items
+ *   -> a few map lookups per request, no lock, no scan
+ *
+ * add / remove  -> compute() on the domain: one bin lock, other domains go on,
+ *                  then one record on a lock free queue
+ * removeAll     -> the same per domain: an add racing it is either cleared
+ *                  and journaled before the clear, or kept and journaled after
+ * writer thread -> every flushInterval appends the queued records to the
+ *                  journal, compacts it, sweeps expired cookies
+ * </pre>
+ *
+ * Journal: one line per add ("+"), remove ("-") or cleared domain ("!"), replayed
+ * on build(). When it has grown past compactAfter records and twice the live
+ * cookies, it is rewritten from the map into journal.tmp and moved over the
+ * journal. Only cookies with Max-Age / Expires are persisted, session cookies
+ * are gone after a restart as in a browser. Records are not fsynced: a crash
+ * loses at most the last flushInterval, a torn last line is skipped.
+ *
+ * Expired cookies are removed when get() meets them, and by the writer thread
+ * which sweeps sweepBatch domains per run, so a big store is never scanned at
+ * once.
+ *
+ * Domains match by suffix for every cookie (RFC 6265, a cookie for
+ * example.com is also sent to a.example.com). CookieManager sets the domain
+ * and path of cookies which came without them before add(), and filters the
+ * result of get() by secure, httpOnly and port.
+ */
+public class PersistentCookieStore implements CookieStore, AutoCloseable {
+
+	/** expiresAt is Long.MAX_VALUE for a session cookie */
+	private record StoredCookie(HttpCookie cookie, long expiresAt, String origin) {
+
+		boolean persistent() {
+			return expiresAt != Long.MAX_VALUE;
+		}
+	}
+
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, ConcurrentHashMap<String, StoredCookie>>> domains = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+	private final Path journal;
+	private final Clock clock;
+	private final int compactAfter;
+	private final int sweepBatch;
+	private final ScheduledExecutorService writer;
+
+	// writer thread only
+	private BufferedWriter out;
+	private long journalRecords;
+	private long liveAtCompaction;
+	private Iterator<String> sweepCursor;
+	private volatile IOException lastFailure;
+
+	private PersistentCookieStore(Builder builder) throws IOException {
+		this.journal = builder.journal;
+		this.clock = builder.clock;
+		this.compactAfter = builder.compactAfter;
+		this.sweepBatch = builder.sweepBatch;
+		load();
+		compact();
+		this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "cookie-journal");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = builder.flushInterval.toMillis();
+		writer.scheduleWithFixedDelay(this::writerTick, interval, interval, TimeUnit.MILLISECONDS);
+		if (builder.shutdownHook) {
+			Runtime.getRuntime().addShutdownHook(new Thread(this::close, "cookie-journal-shutdown"));
+		}
+	}
+
+	public static Builder newBuilder(Path journal) {
+		return new Builder(journal);
+	}
+
+	@Override
+	public void add(URI uri, HttpCookie cookie) {
+		Objects.requireNonNull(cookie);
+		String domain = domainKey(cookie.getDomain() != null ? cookie.getDomain() : uri == null ? null : uri.getHost());
+		if (domain == null) {
+			return;
+		}
+		String path = cookie.getPath() != null ? cookie.getPath() : "/";
+		long maxAge = cookie.getMaxAge();
+		if (maxAge == 0) { // Max-Age=0 or an Expires in the past: delete
+			removeCookie(domain, path, cookie.getName());
+			return;
+		}
+		long now = clock.millis();
+		long expiresAt = maxAge < 0 ? Long.MAX_VALUE : now + Math.min(maxAge, Long.MAX_VALUE / 2000) * 1000;
+		StoredCookie stored = new StoredCookie(cookie, expiresAt, origin(uri, domain));
+		domains.compute(domain, (key, paths) -> {
+			if (paths == null) {
+				paths = new ConcurrentHashMap<>();
+			}
+			StoredCookie old = paths.computeIfAbsent(path, p -> new ConcurrentHashMap<>()).put(cookie.getName(),
+					stored);
+			// inside the bin lock: records of one domain are queued in the order of the map updates
+			if (stored.persistent()) {
+				pending.add(addRecord(domain, path, stored));
+			} else if (old != null && old.persistent()) {
+				pending.add(removeRecord(domain, path, cookie.getName()));
+			}
+			return paths;
+		});
+	}
+
+	@Override
+	public List<HttpCookie> get(URI uri) {
+		Objects.requireNonNull(uri);
+		String host = domainKey(uri.getHost());
+		if (host == null) {
+			return List.of();
+		}
+		List<String> paths = candidatePaths(uri.getPath());
+		long now = clock.millis();
+		List<HttpCookie> cookies = new ArrayList<>();
+		for (String domain : candidateDomains(host)) {
+			Map<String, ConcurrentHashMap<String, StoredCookie>> byPath = domains.get(domain);
+			if (byPath == null) {
+				continue;
+			}
+			for (String path : paths) {
+				Map<String, StoredCookie> byName = byPath.get(path);
+				if (byName == null) {
+					continue;
+				}
+				for (StoredCookie stored : byName.values()) {
+					if (stored.expiresAt() <= now) {
+						expire(domain, path, stored);
+					} else {
+						cookies.add(stored.cookie());
+					}
+				}
+			}
+		}
+		return cookies;
+	}
+
+	@Override
+	public List<HttpCookie> getCookies() {
+		long now = clock.millis();
+		List<HttpCookie> cookies = new ArrayList<>();
+		forEachLive(now, (domain, path, stored) -> cookies.add(stored.cookie()));
+		return cookies;
+	}
+
+	@Override
+	public List<URI> getURIs() {
+		Set<String> origins = new LinkedHashSet<>();
+		forEachLive(clock.millis(), (domain, path, stored) -> origins.add(stored.origin()));
+		return origins.stream().map(URI::create).toList();
+	}
+
+	@Override
+	public boolean remove(URI uri, HttpCookie cookie) {
+		Objects.requireNonNull(cookie);
+		String domain = domainKey(cookie.getDomain() != null ? cookie.getDomain() : uri == null ? null : uri.getHost());
+		if (domain == null) {
+			return false;
+		}
+		return removeCookie(domain, cookie.getPath() != null ? cookie.getPath() : "/", cookie.getName());
+	}
+
+	@Override
+	public boolean removeAll() {
+		boolean[] removed = new boolean[1];
+		for (String domain : domains.keySet()) {
+			domains.computeIfPresent(domain, (key, paths) -> {
+				// inside the bin lock add() takes: the record is queued in the order of the map updates
+				pending.add(clearRecord(domain));
+				removed[0] = true;
+				return null;
+			});
+		}
+		return removed[0];
+	}
+
+	/** appends the queued records now, the writer thread does it every flushInterval */
+	public void flush() throws IOException {
+		try {
+			writer.submit(() -> {
+				writePending();
+				return null;
+			}).get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/** the last failure of the writer thread, null if none */
+	public IOException getLastFailure() {
+		return lastFailure;
+	}
+
+	/** flushes and stops the writer thread, the store still works in memory */
+	@Override
+	public void close() {
+		if (writer.isShutdown()) {
+			return;
+		}
+		writer.execute(() -> {
+			try {
+				writePending();
+			} catch (IOException e) {
+				lastFailure = e;
+			} finally {
+				closeWriter();
+			}
+		});
+		writer.shutdown();
+		try {
+			writer.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private boolean removeCookie(String domain, String path, String name) {
+		boolean[] removed = new boolean[1];
+		domains.computeIfPresent(domain, (key, paths) -> {
+			Map<String, StoredCookie> byName = paths.get(path);
+			StoredCookie old = byName == null ? null : byName.remove(name);
+			if (old != null) {
+				removed[0] = true;
+				if (old.persistent()) {
+					pending.add(removeRecord(domain, path, name));
+				}
+				if (byName.isEmpty()) {
+					paths.remove(path);
+				}
+			}
+			return paths.isEmpty() ? null : paths;
+		});
+		return removed[0];
+	}
+
+	/**
+	 * Removes this cookie only if it was not replaced meanwhile. Not journaled:
+	 * replay skips expired cookies anyway, compaction drops them.
+	 */
+	private void expire(String domain, String path, StoredCookie stored) {
+		domains.computeIfPresent(domain, (key, paths) -> {
+			Map<String, StoredCookie> byName = paths.get(path);
+			if (byName != null && byName.remove(stored.cookie().getName(), stored) && byName.isEmpty()) {
+				paths.remove(path);
+			}
+			return paths.isEmpty() ? null : paths;
+		});
+	}
+
+	private interface CookieVisitor {
+		void visit(String domain, String path, StoredCookie stored);
+	}
+
+	private void forEachLive(long now, CookieVisitor visitor) {
+		domains.forEach((domain, paths) -> paths.forEach((path, byName) -> byName.values().forEach(stored -> {
+			if (stored.expiresAt() > now) {
+				visitor.visit(domain, path, stored);
+			}
+		})));
+	}
+
+	private void writerTick() {
+		try {
+			writePending();
+			if (journalRecords > compactAfter && journalRecords > 2 * liveAtCompaction) {
+				compact();
+			}
+		} catch (IOException e) {
+			lastFailure = e;
+			closeWriter(); // reopened on the next tick
+		}
+		sweep();
+	}
+
+	private void writePending() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		if (out == null) {
+			out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND);
+		}
+		String record;
+		while ((record = pending.poll()) != null) {
+			out.write(record);
+			out.write('\n');
+			journalRecords++;
+		}
+		out.flush();
+	}
+
+	/**
+	 * The map already contains every queued record, and replaying them after
+	 * the snapshot gives the same state: the queue is kept, not cleared.
+	 */
+	private void compact() throws IOException {
+		closeWriter();
+		Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+		long now = clock.millis();
+		long[] live = new long[1];
+		try (BufferedWriter snapshot = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+			IOException[] failure = new IOException[1];
+			forEachLive(now, (domain, path, stored) -> {
+				if (stored.persistent() && failure[0] == null) {
+					try {
+						snapshot.write(addRecord(domain, path, stored));
+						snapshot.write('\n');
+						live[0]++;
+					} catch (IOException e) {
+						failure[0] = e;
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+		}
+		Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journalRecords = live[0];
+		liveAtCompaction = live[0];
+	}
+
+	private void sweep() {
+		if (sweepCursor == null || !sweepCursor.hasNext()) {
+			sweepCursor = domains.keySet().iterator(); // weakly consistent, survives concurrent updates
+		}
+		long now = clock.millis();
+		for (int i = 0; i < sweepBatch && sweepCursor.hasNext(); i++) {
+			String domain = sweepCursor.next();
+			Map<String, ConcurrentHashMap<String, StoredCookie>> paths = domains.get(domain);
+			if (paths != null) {
+				paths.forEach((path, byName) -> byName.values().forEach(stored -> {
+					if (stored.expiresAt() <= now) {
+						expire(domain, path, stored);
+					}
+				}));
+			}
+		}
+	}
+
+	private void closeWriter() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				lastFailure = e;
+			}
+			out = null;
+		}
+	}
+
+	private void load() throws IOException {
+		if (!Files.exists(journal)) {
+			return;
+		}
+		long now = clock.millis();
+		try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				try {
+					switch (fields[0]) {
+					case "!" -> {
+						if (fields.length > 1) {
+							domains.remove(decode(fields[1]));
+						} else {
+							domains.clear(); // journals written before clears were per domain
+						}
+					}
+					case "-" -> removeLoaded(decode(fields[1]), decode(fields[2]), decode(fields[3]));
+					case "+" -> {
+						long expiresAt = Long.parseLong(fields[5]);
+						if (expiresAt > now) {
+							HttpCookie cookie = new HttpCookie(decode(fields[3]), decode(fields[4]));
+							cookie.setDomain(decode(fields[9]));
+							cookie.setPath(decode(fields[2]));
+							cookie.setSecure(Boolean.parseBoolean(fields[6]));
+							cookie.setHttpOnly(Boolean.parseBoolean(fields[7]));
+							cookie.setVersion(Integer.parseInt(fields[8]));
+							cookie.setMaxAge((expiresAt - now + 999) / 1000);
+							domains.computeIfAbsent(decode(fields[1]), d -> new ConcurrentHashMap<>())
+									.computeIfAbsent(cookie.getPath(), p -> new ConcurrentHashMap<>())
+									.put(cookie.getName(), new StoredCookie(cookie, expiresAt, decode(fields[10])));
+						} else {
+							removeLoaded(decode(fields[1]), decode(fields[2]), decode(fields[3]));
+						}
+					}
+					default -> {
+					}
+					}
+				} catch (RuntimeException e) {
+					// torn last line after a crash, or a cookie HttpCookie rejects: skip
+				}
+			}
+		}
+	}
+
+	private void removeLoaded(String domain, String path, String name) {
+		Map<String, ConcurrentHashMap<String, StoredCookie>> paths = domains.get(domain);
+		Map<String, StoredCookie> byName = paths == null ? null : paths.get(path);
+		if (byName != null) {
+			byName.remove(name);
+			if (byName.isEmpty()) {
+				paths.remove(path);
+			}
+			if (paths.isEmpty()) {
+				domains.remove(domain);
+			}
+		}
+	}
+
+	private static String addRecord(String domain, String path, StoredCookie stored) {
+		HttpCookie cookie = stored.cookie();
+		return String.join("\t", "+", encode(domain), encode(path), encode(cookie.getName()),
+				encode(cookie.getValue()), String.valueOf(stored.expiresAt()), String.valueOf(cookie.getSecure()),
+				String.valueOf(cookie.isHttpOnly()), String.valueOf(cookie.getVersion()), encode(cookie.getDomain()),
+				encode(stored.origin()));
+	}
+
+	private static String removeRecord(String domain, String path, String name) {
+		return String.join("\t", "-", encode(domain), encode(path), encode(name));
+	}
+
+	private static String clearRecord(String domain) {
+		return String.join("\t", "!", encode(domain));
+	}
+
+	private static String encode(String value) {
+		return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	private static String decode(String value) {
+		return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+	}
+
+	private static String origin(URI uri, String domain) {
+		String scheme = uri != null && uri.getScheme() != null ? uri.getScheme() : "http";
+		String host = uri != null && uri.getHost() != null ? uri.getHost() : domain;
+		return scheme + "://" + host;
+	}
+
+	/** lower case, no leading dot, null for none */
+	static String domainKey(String domain) {
+		if (domain == null || domain.isEmpty()) {
+			return null;
+		}
+		String key = domain.startsWith(".") ? domain.substring(1) : domain;
+		return key.isEmpty() ? null : key.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * The host and its parent domains. An IP address only matches itself, a
+	 * host without a dot also host.local (CookieManager names its cookies so).
+	 */
+	static List<String> candidateDomains(String host) {
+		List<String> candidates = new ArrayList<>();
+		candidates.add(host);
+		if (host.indexOf(':') >= 0 || host.chars().allMatch(c -> c == '.' || Character.isDigit(c))) {
+			return candidates;
+		}
+		if (host.indexOf('.') < 0) {
+			candidates.add(host + ".local");
+			return candidates;
+		}
+		for (int dot = host.indexOf('.'); dot >= 0 && dot < host.length() - 1; dot = host.indexOf('.', dot + 1)) {
+			candidates.add(host.substring(dot + 1));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Every cookie path which matches the request path (RFC 6265 5.1.4): "/",
+	 * then for each "/" the prefix with and without it, then the path itself.
+	 */
+	static List<String> candidatePaths(String requestPath) {
+		String path = requestPath == null || requestPath.isEmpty() ? "/" : requestPath;
+		List<String> candidates = new ArrayList<>();
+		candidates.add("/");
+		for (int i = 1; i < path.length(); i++) {
+			if (path.charAt(i) == '/') {
+				candidates.add(path.substring(0, i));
+				candidates.add(path.substring(0, i + 1));
+			}
+		}
+		if (!path.endsWith("/")) {
+			candidates.add(path);
+		}
+		return candidates;
+	}
+
+	public static final class Builder {
+		private final Path journal;
+		private Duration flushInterval = Duration.ofSeconds(1);
+		private int compactAfter = 10_000;
+		private int sweepBatch = 256;
+		private Clock clock = Clock.systemUTC();
+		private boolean shutdownHook = true;
+
+		private Builder(Path journal) {
+			this.journal = Objects.requireNonNull(journal);
+		}
+
+		/** how often the writer thread appends to the journal and sweeps */
+		public Builder flushInterval(Duration flushInterval) {
+			if (flushInterval.isNegative() || flushInterval.isZero()) {
+				throw new IllegalArgumentException("flushInterval must be > 0: " + flushInterval);
+			}
+			this.flushInterval = flushInterval;
+			return this;
+		}
+
+		/** journal records before a compaction is considered */
+		public Builder compactAfter(int compactAfter) {
+			if (compactAfter <= 0) {
+				throw new IllegalArgumentException("compactAfter must be > 0: " + compactAfter);
+			}
+			this.compactAfter = compactAfter;
+			return this;
+		}
+
+		/** domains checked for expired cookies per flushInterval */
+		public Builder sweepBatch(int sweepBatch) {
+			if (sweepBatch <= 0) {
+				throw new IllegalArgumentException("sweepBatch must be > 0: " + sweepBatch);
+			}
+			this.sweepBatch = sweepBatch;
+			return this;
+		}
+
+		public Builder clock(Clock clock) {
+			this.clock = Objects.requireNonNull(clock);
+			return this;
+		}
+
+		/** close() at JVM shutdown, true by default */
+		public Builder shutdownHook(boolean shutdownHook) {
+			this.shutdownHook = shutdownHook;
+			return this;
+		}
+
+		/** replays the journal, then compacts it */
+		public PersistentCookieStore build() {
+			try {
+				return new PersistentCookieStore(this);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
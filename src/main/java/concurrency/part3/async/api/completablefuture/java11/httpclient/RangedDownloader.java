@@ -0,0 +1,455 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodySubscriber;
+import java.net.http.HttpResponse.ResponseInfo;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.stream.IntStream;
+
+import concurrency.part2.concurrent.api.ParallelFanOut;
+import concurrency.part2.concurrent.api.ParallelFanOut.FanOutResult;
+
+/**
+ * Downloads a large file as N byte ranges over parallel connections, and
+ * resumes an interrupted download, unlike FileDownload of
+ * N_FileDownloadUpload: one BodyHandlers.ofFile stream, one connection,
+ * restart from zero.
+ *
+ * <pre>
+ * HEAD url            -> Accept-Ranges: bytes, Content-Length, ETag / Last-Modified
+ * target.part         preallocated to Content-Length
+ * target.part.journal url, length, validator, chunk size, then one line per
+ *                     finished chunk: "chunk index sha256"
+ *
+ * chunk i: GET Range: bytes=start-end, If-Range: validator
+ *          206 -> every ByteBuffer the HttpClient delivers is written at its
+ *                 offset into the shared FileChannel (positional writes, thread
+ *                 safe) and fed into the chunk's SHA-256, nothing else is kept
+ *          200 -> the file changed on the server (If-Range failed): abort
+ *
+ * all chunks done -> force, rename target.part -> target, delete the journal
+ * </pre>
+ *
+ * At most parallelism chunks are downloading at once ({@link ParallelFanOut}),
+ * a failed chunk is retried. If chunks still fail, download() throws and keeps
+ * the .part and journal: the next download() of the same url and target
+ * re-reads the finished chunks, verifies their SHA-256 and only fetches the
+ * others. The verification also catches a chunk which was in the journal but
+ * never reached the disk before a crash. A server without ranges or length
+ * gets one plain stream.
+ *
+ * Without a strong ETag or a Last-Modified there is no If-Range, nothing
+ * tells whether the file changed since the journal was written: such a
+ * download is never resumed, it starts over from zero.
+ */
+public class RangedDownloader {
+
+	public record DownloadResult(Path path, long length, int chunks, int resumedChunks, boolean ranged) {
+	}
+
+	private final HttpClient httpClient;
+	private final int parallelism;
+	private final long chunkSize;
+	private final int retries;
+	private final Duration chunkTimeout;
+
+	private RangedDownloader(Builder builder) {
+		this.httpClient = builder.httpClient;
+		this.parallelism = builder.parallelism;
+		this.chunkSize = builder.chunkSize;
+		this.retries = builder.retries;
+		this.chunkTimeout = builder.chunkTimeout;
+	}
+
+	public static Builder newBuilder(HttpClient httpClient) {
+		return new Builder(httpClient);
+	}
+
+	public DownloadResult download(URI uri, Path target) throws IOException, InterruptedException {
+		HttpResponse<Void> head = httpClient.send(HttpRequest.newBuilder(uri).HEAD().build(),
+				HttpResponse.BodyHandlers.discarding());
+		long length = head.headers().firstValueAsLong("Content-Length").orElse(-1);
+		boolean ranges = head.statusCode() == 200 && length > 0
+				&& head.headers().allValues("Accept-Ranges").stream().anyMatch(v -> v.contains("bytes"));
+		if (!ranges) {
+			return downloadWhole(uri, target);
+		}
+		String validator = validator(head.headers());
+		Path part = sibling(target, ".part");
+		Path journalPath = sibling(target, ".part.journal");
+		Journal journal = new Journal(uri.toString(), length, validator, chunkSize);
+		int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+
+		try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			// no validator: the chunks on disk may be of another version of the file
+			Map<Integer, String> done = validator == null ? new ConcurrentHashMap<>() : journal.readFinished(journalPath);
+			if (done.isEmpty() || channel.size() != length) {
+				done.clear();
+				channel.truncate(0);
+				preallocate(channel, length);
+				journal.create(journalPath);
+			}
+			int resumed = 0;
+			List<Integer> todo = new ArrayList<>();
+			for (int i = 0; i < chunks; i++) {
+				String sha256 = done.get(i);
+				if (sha256 != null && sha256.equals(sha256(channel, start(i), end(i, length)))) {
+					resumed++;
+				} else {
+					todo.add(i);
+				}
+			}
+
+			ParallelFanOut fanOut = new ParallelFanOut(parallelism, chunkTimeout);
+			try (BufferedWriter journalWriter = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+					StandardOpenOption.APPEND)) {
+				FanOutResult<String> result = fanOut.invokeAll(todo,
+						(Integer i) -> downloadChunk(uri, validator, channel, i, length, retries).thenApply(sha256 -> {
+							journal.append(journalWriter, i, sha256);
+							return sha256;
+						})).join();
+				if (result.getFailureCount() > 0) {
+					int first = IntStream.range(0, result.size()).filter(i -> !result.isSuccess(i)).findFirst()
+							.getAsInt();
+					throw new IOException(
+							result.getFailureCount() + " of " + todo.size() + " chunks failed, run again to resume",
+							result.getFailure(first));
+				}
+			}
+			channel.force(true);
+			Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+			Files.delete(journalPath);
+			return new DownloadResult(target, length, chunks, resumed, true);
+		}
+	}
+
+	private DownloadResult downloadWhole(URI uri, Path target) throws IOException, InterruptedException {
+		Path part = sibling(target, ".part");
+		HttpResponse<Path> response = httpClient.send(HttpRequest.newBuilder(uri).build(),
+				HttpResponse.BodyHandlers.ofFile(part));
+		if (response.statusCode() != 200) {
+			Files.deleteIfExists(part);
+			throw new IOException(uri + ": HTTP " + response.statusCode());
+		}
+		Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+		return new DownloadResult(target, Files.size(target), 1, 0, false);
+	}
+
+	private CompletableFuture<String> downloadChunk(URI uri, String validator, FileChannel channel, int index,
+			long length, int retriesLeft) {
+		long start = start(index);
+		long end = end(index, length);
+		HttpRequest.Builder request = HttpRequest.newBuilder(uri).header("Range", "bytes=" + start + "-" + (end - 1));
+		if (validator != null) {
+			request.header("If-Range", validator);
+		}
+		return httpClient.sendAsync(request.build(), new ChunkHandler(channel, start, end))
+				.thenApply(HttpResponse::body).exceptionallyCompose(e -> {
+					Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+					if (retriesLeft > 0 && !(cause instanceof ChangedOnServerException) && channel.isOpen()) {
+						return downloadChunk(uri, validator, channel, index, length, retriesLeft - 1);
+					}
+					return CompletableFuture.failedFuture(cause);
+				});
+	}
+
+	private long start(int index) {
+		return index * chunkSize;
+	}
+
+	private long end(int index, long length) {
+		return Math.min(length, (index + 1) * chunkSize);
+	}
+
+	private static String validator(HttpHeaders headers) {
+		// If-Range needs a strong ETag, a weak one (W/"...") is never equal
+		Optional<String> etag = headers.firstValue("ETag").filter(tag -> !tag.startsWith("W/"));
+		return etag.or(() -> headers.firstValue("Last-Modified")).orElse(null);
+	}
+
+	private static void preallocate(FileChannel channel, long length) throws IOException {
+		// sparse where the file system supports it, the chunks fill it
+		channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+	}
+
+	private static Path sibling(Path target, String suffix) {
+		return target.resolveSibling(target.getFileName() + suffix);
+	}
+
+	static String sha256(FileChannel channel, long start, long end) throws IOException {
+		MessageDigest digest = newSha256();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		long position = start;
+		while (position < end) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				break;
+			}
+			position += read;
+			digest.update(buffer.flip());
+		}
+		return HexFormat.of().formatHex(digest.digest());
+	}
+
+	private static MessageDigest newSha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JDK has SHA-256
+		}
+	}
+
+	static final class ChangedOnServerException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ChangedOnServerException(String message) {
+			super(message);
+		}
+	}
+
+	/** 206 with the expected Content-Range: write at offset, else fail at once */
+	private static final class ChunkHandler implements BodyHandler<String> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+
+		ChunkHandler(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public BodySubscriber<String> apply(ResponseInfo info) {
+			if (info.statusCode() == 200) {
+				return failing(new ChangedOnServerException("got the whole file instead of bytes " + start + "-"
+						+ (end - 1) + ", it changed on the server"));
+			}
+			String expected = "bytes " + start + "-" + (end - 1) + "/";
+			if (info.statusCode() != 206
+					|| !info.headers().firstValue("Content-Range").orElse("").startsWith(expected)) {
+				return failing(new IOException("HTTP " + info.statusCode() + ", Content-Range "
+						+ info.headers().firstValue("Content-Range").orElse("none") + ", expected " + expected));
+			}
+			return new ChunkSubscriber(channel, start, end);
+		}
+
+		private static BodySubscriber<String> failing(IOException e) {
+			// cancels the subscription instead of reading a body we do not want
+			return new BodySubscriber<>() {
+				@Override
+				public CompletionStage<String> getBody() {
+					return CompletableFuture.failedFuture(e);
+				}
+
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					subscription.cancel();
+				}
+
+				@Override
+				public void onNext(List<ByteBuffer> item) {
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+				}
+
+				@Override
+				public void onComplete() {
+				}
+			};
+		}
+	}
+
+	/**
+	 * Writes the body at start + bytes so far, one request(1) at a time: the
+	 * HttpClient does not read faster than the disk takes it.
+	 */
+	private static final class ChunkSubscriber implements BodySubscriber<String> {
+		private final FileChannel channel;
+		private final long end;
+		private final MessageDigest digest = newSha256();
+		private final CompletableFuture<String> body = new CompletableFuture<>();
+		private Flow.Subscription subscription;
+		private long position;
+
+		ChunkSubscriber(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.position = start;
+			this.end = end;
+		}
+
+		@Override
+		public CompletionStage<String> getBody() {
+			return body;
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(1);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			try {
+				for (ByteBuffer buffer : buffers) {
+					if (position + buffer.remaining() > end) {
+						throw new IOException("more bytes than the range");
+					}
+					digest.update(buffer.duplicate());
+					while (buffer.hasRemaining()) {
+						position += channel.write(buffer, position);
+					}
+				}
+				subscription.request(1);
+			} catch (IOException e) {
+				subscription.cancel();
+				body.completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			body.completeExceptionally(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			if (position != end) {
+				body.completeExceptionally(new IOException("chunk ended at " + position + ", expected " + end));
+			} else {
+				body.complete(HexFormat.of().formatHex(digest.digest()));
+			}
+		}
+	}
+
+	/**
+	 * Append only, so a crash in the middle of a line loses at most that chunk.
+	 * The header must match, otherwise the download starts again.
+	 */
+	private static final class Journal {
+		private final List<String> header;
+
+		Journal(String url, long length, String validator, long chunkSize) {
+			this.header = List.of("url " + url, "length " + length, "validator " + validator, "chunkSize " + chunkSize);
+		}
+
+		Map<Integer, String> readFinished(Path path) throws IOException {
+			Map<Integer, String> finished = new ConcurrentHashMap<>();
+			if (!Files.exists(path)) {
+				return finished;
+			}
+			List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+			if (lines.size() < header.size() || !lines.subList(0, header.size()).equals(header)) {
+				return finished;
+			}
+			for (String line : lines.subList(header.size(), lines.size())) {
+				String[] fields = line.split(" ");
+				if (fields.length == 3 && fields[0].equals("chunk") && fields[2].length() == 64) {
+					finished.put(Integer.parseInt(fields[1]), fields[2]);
+				}
+			}
+			return finished;
+		}
+
+		void create(Path path) throws IOException {
+			Files.write(path, header, StandardCharsets.UTF_8);
+		}
+
+		synchronized void append(BufferedWriter writer, int index, String sha256) {
+			try {
+				writer.write("chunk " + index + " " + sha256);
+				writer.newLine();
+				writer.flush();
+			} catch (IOException e) {
+				// the chunk is on disk, only its resume is lost
+				throw new CompletionException(e);
+			}
+		}
+	}
+
+	public static final class Builder {
+		private final HttpClient httpClient;
+		private int parallelism = 4;
+		private long chunkSize = 8 * 1024 * 1024;
+		private int retries = 2;
+		private Duration chunkTimeout = Duration.ofMinutes(10);
+
+		private Builder(HttpClient httpClient) {
+			this.httpClient = Objects.requireNonNull(httpClient);
+		}
+
+		/** chunks downloading at the same time, one connection each with HTTP/1.1 */
+		public Builder parallelism(int parallelism) {
+			if (parallelism <= 0) {
+				throw new IllegalArgumentException("parallelism must be > 0: " + parallelism);
+			}
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/** also the unit of resume: an interrupted chunk is downloaded again */
+		public Builder chunkSize(long chunkSize) {
+			if (chunkSize <= 0) {
+				throw new IllegalArgumentException("chunkSize must be > 0: " + chunkSize);
+			}
+			this.chunkSize = chunkSize;
+			return this;
+		}
+
+		public Builder retries(int retries) {
+			this.retries = Math.max(0, retries);
+			return this;
+		}
+
+		public Builder chunkTimeout(Duration chunkTimeout) {
+			this.chunkTimeout = Objects.requireNonNull(chunkTimeout);
+			return this;
+		}
+
+		public RangedDownloader build() {
+			return new RangedDownloader(this);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		var url = args.length > 0 ? args[0] : "https://www.7-zip.org/a/7z2406-x64.exe";
+		var target = Path.of(args.length > 1 ? args[1] : "7z.exe");
+		RangedDownloader downloader = RangedDownloader.newBuilder(HttpClient.newHttpClient()).parallelism(4)
+				.chunkSize(256 * 1024).build();
+		long start = System.nanoTime();
+		DownloadResult result = downloader.download(URI.create(url), target);
+		System.out.println(result + " in " + Duration.ofNanos(System.nanoTime() - start).toMillis() + "ms");
+	}
+}
@@ -6,8 +6,10 @@ import java.time.Instant;
 public class Util {
 
 	                                                                                                            
-	public static final String DOMAINS_TXT = "C:\\workspace-17\\multithreading-java-vs-nodejs\\src\\main\\java\\concurrency\\part3\\async\\api\\completablefuture\\java11\\httpclient\\domains_list100.txt";// domains.txt
-	public static final String DOMAINS_TXT2 = "C:\\workspace-17\\multithreading-java-vs-nodejs\\src\\main\\java\\concurrency\\part3\\async\\api\\completablefuture\\java11\\httpclient\\domains_list500.txt";
+	/** relative to the project directory, the working directory of mvn and the IDE */
+	public static final String DOMAINS_DIR = "src/main/java/concurrency/part3/async/api/completablefuture/java11/httpclient/";
+	public static final String DOMAINS_TXT = DOMAINS_DIR + "domains_list100.txt";// domains.txt
+	public static final String DOMAINS_TXT2 = DOMAINS_DIR + "domains_list500.txt";
 
 	public static void printElapsedTime(Instant start) {
 		Instant finish = Instant.now();
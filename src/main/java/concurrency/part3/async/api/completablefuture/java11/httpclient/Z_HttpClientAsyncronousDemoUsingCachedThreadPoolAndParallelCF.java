@@ -21,7 +21,7 @@ import java.util.stream.Collectors;
 
 public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF {
 
-	private static HttpClient httpClient;
+	private static LimitedHttpClient httpClient;
 
 	public static void main(String[] args) throws IOException, InterruptedException {
 
@@ -47,7 +47,9 @@ public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF {
 
 		Instant start = Instant.now();
 
-		httpClient = HttpClient.newHttpClient();
+		// not all 500 requests at once: adaptive limits globally and per host, see the
+		// metrics printed at the end
+		httpClient = LimitedHttpClient.withDefaults(HttpClient.newHttpClient());
 
 		/*
 		 * By default Async tasks run via CompletableFuture using ForkJoin pool -
@@ -68,6 +70,7 @@ public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF {
 
 		printElapsedTime(start);
 		Thread.sleep(2000);
+		System.out.println(httpClient.getMetrics());
 		System.out.println(
 				"Run this async tasks in parallel with HttpClientAsyncronousInPrallelDemo, and compare result");
 	}
@@ -19,10 +19,15 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+import concurrency.part2.concurrent.api.BulkheadSemaphore;
+
 public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF2 {
 
 	private static HttpClient httpClient;
 
+	// at most 16 requests in flight, the others wait for a permit without a thread
+	private static final BulkheadSemaphore bulkhead = new BulkheadSemaphore(16);
+
 	public static void main(String[] args) throws IOException, InterruptedException {
 
 		/**
@@ -66,6 +71,7 @@ public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF2 {
 
 		printElapsedTime(start);
 		Thread.sleep(2000);
+		System.out.println(bulkhead + "\nwait: " + bulkhead.getWaitTime());
 		System.out.println(
 				"Run this async tasks in parallel with HttpClientAsyncronousInPrallelDemo, and compare result");
 	}
@@ -73,8 +79,11 @@ public class Z_HttpClientAsyncronousDemoUsingCachedThreadPoolAndParallelCF2 {
 	private static CompletableFuture<String> validateLink(String link) {
 		HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(link)).GET().build();
 
-		// including exception handling, also discarding body
-		return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.discarding())
+		// including exception handling, also discarding body; the permit is released
+		// however the request ends
+		return bulkhead.acquireAsync(1)
+				.thenCompose(permit -> httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.discarding())
+						.whenComplete((response, e) -> bulkhead.release()))
 				.thenApply(
 						asynResult -> 200 == asynResult.statusCode() ? link + " access OK  " : link + " access Failed")
 				// Resiliency
@@ -21,6 +21,12 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
+/**
+ * heavySum runs with thenAcceptAsync on the common ForkJoin pool, whatever the
+ * number of HTTP calls in flight, see
+ * {@link Z_HttpClientAsyncronousDemoUsingStagedPipeline} for separately sized
+ * I/O and CPU stages with backpressure between them.
+ */
 public class Z_HttpClientAsyncronousDemoUsingFixedThreadPoolWithParallelCF2 {
 
 	private static HttpClient httpClient;
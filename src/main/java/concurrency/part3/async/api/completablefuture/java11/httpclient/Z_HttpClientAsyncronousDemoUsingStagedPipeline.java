@@ -0,0 +1,88 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static concurrency.part3.async.api.completablefuture.java11.httpclient.Util.DOMAINS_TXT2;
+import static concurrency.part3.async.api.completablefuture.java11.httpclient.Util.heavySum;
+import static concurrency.part3.async.api.completablefuture.java11.httpclient.Util.printElapsedTime;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpClient.Redirect;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import concurrency.part2.concurrent.api.StagedPipeline;
+
+/**
+ * Z_HttpClientAsyncronousDemoUsingFixedThreadPoolWithParallelCF2 with a
+ * {@link StagedPipeline} instead of thenAcceptAsync(heavySum) on the common
+ * ForkJoin pool.
+ *
+ * <pre>
+ * submit(link) -> [32] -> http      16 threads, blocking send, the I/O stage
+ *              -> [ 8] -> heavySum  availableProcessors threads, the CPU stage
+ *              -> sink: println
+ * </pre>
+ *
+ * The http threads only wait on the network, heavySum never runs on them nor
+ * on the HttpClient executor. When heavySum falls behind, its queue fills and
+ * the http threads stop sending: at most 32 + 16 + 8 + cores links are in
+ * progress, not 500 responses waiting in memory.
+ *
+ * The report every 2 seconds shows which stage to resize: heavySum busy ~100%
+ * with a full queue and http blocked, i.e. CPU bound, adding http threads
+ * would not help.
+ */
+public class Z_HttpClientAsyncronousDemoUsingStagedPipeline {
+
+	record Checked(String link, int status) {
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Instant start = Instant.now();
+		HttpClient httpClient = HttpClient.newBuilder().followRedirects(Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(5)).build();
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		StagedPipeline<String> pipeline = StagedPipeline.<String>newBuilder()
+				.stage("http", 16, 32, (String link) -> {
+					try {
+						HttpRequest request = HttpRequest.newBuilder(URI.create(link)).timeout(Duration.ofSeconds(10))
+								.GET().build();
+						return new Checked(link,
+								httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode());
+					} catch (IOException | IllegalArgumentException e) {
+						return new Checked(link, -1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return null;
+					}
+				}).stage("heavySum", cores, 8, (Checked checked) -> {
+					heavySum(new Random(checked.link().hashCode()).nextInt());
+					return checked;
+				}).build(checked -> System.out.println(
+						checked.link() + (checked.status() == 200 ? " access OK" : " access Failed " + checked.status())));
+
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		reporter.scheduleAtFixedRate(() -> System.out.print(pipeline.report()), 2, 2, TimeUnit.SECONDS);
+
+		List<String> links = Files.readAllLines(Path.of(DOMAINS_TXT2));
+		for (String link : links) {
+			pipeline.submit(link); // blocks while the http queue is full
+		}
+		pipeline.close();
+		reporter.shutdown();
+
+		System.out.print(pipeline.report());
+		printElapsedTime(start);
+	}
+}
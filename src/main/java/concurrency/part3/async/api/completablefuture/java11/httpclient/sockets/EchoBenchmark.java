@@ -0,0 +1,160 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part2.concurrent.api.StripedCounter;
+import concurrency.part3.async.api.completablefuture.java11.httpclient.sockets.EchoServer.Mode;
+
+/**
+ * 10k connections against both {@link EchoServer} modes: throughput and tail
+ * latency of a round trip (write a message, read its echo).
+ *
+ * <pre>
+ * 1. connect   every connection, at most 500 connects in progress (the backlog)
+ * 2. echo      all connections at once, each sends messages one after the
+ *              other and waits for each echo
+ * 3. report    round trips / s, MB / s, latency percentiles
+ * </pre>
+ *
+ * The client is the same for both: a virtual thread with a blocking Socket per
+ * connection. Client and server run in this JVM, 10k connections are 20k
+ * file descriptors: raise the limit first, e.g. ulimit -n 65536.
+ *
+ * args: [connections] [messages per connection] [message size] [NIO|VIRTUAL]
+ */
+public class EchoBenchmark {
+
+	private static final int MAX_CONNECTING = 500;
+
+	record Result(Mode mode, int connected, long failed, long connectMillis, int serverConnections, long roundTrips,
+			long errors, long elapsedNanos, int messageSize, LatencyHistogram latency) {
+
+		double roundTripsPerSecond() {
+			return roundTrips / (elapsedNanos / 1e9);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"%-7s connected %d (failed %d) in %d ms, open on the server %d%n        %,.0f round trips/s, %.1f MB/s echoed, errors %d | %s",
+					mode, connected, failed, connectMillis, serverConnections, roundTripsPerSecond(),
+					roundTrips * (double) messageSize / (elapsedNanos / 1e9) / 1e6, errors, latency);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		List<Mode> modes = args.length > 3 ? List.of(Mode.valueOf(args[3])) : List.of(Mode.values());
+
+		for (Mode mode : modes) {
+			try (EchoServer server = EchoServer.newBuilder().mode(mode).port(0).start()) {
+				System.out.println(run(server, mode, connections, messages, messageSize));
+			}
+		}
+	}
+
+	static Result run(EchoServer server, Mode mode, int connections, int messages, int messageSize)
+			throws InterruptedException {
+		Socket[] sockets = new Socket[connections];
+		StripedCounter failed = new StripedCounter();
+		Semaphore connecting = new Semaphore(MAX_CONNECTING);
+		long connectStart = System.nanoTime();
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < connections; i++) {
+				int index = i;
+				connecting.acquire();
+				executor.execute(() -> {
+					try {
+						Socket socket = new Socket("localhost", server.getPort());
+						socket.setTcpNoDelay(true);
+						sockets[index] = socket;
+					} catch (IOException e) {
+						failed.increment(); // e.g. too many open files
+					} finally {
+						connecting.release();
+					}
+				});
+			}
+		}
+		long connectMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart);
+		int connected = (int) Arrays.stream(sockets).filter(Objects::nonNull).count();
+		awaitAccepted(server, connected);
+
+		byte[] message = new byte[messageSize];
+		ThreadLocalRandom.current().nextBytes(message);
+		LatencyHistogram latency = new LatencyHistogram();
+		StripedCounter roundTrips = new StripedCounter();
+		StripedCounter errors = new StripedCounter();
+		CountDownLatch start = new CountDownLatch(1);
+		long begin;
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (Socket socket : sockets) {
+				if (socket != null) {
+					executor.execute(() -> echo(socket, message, messages, start, latency, roundTrips, errors));
+				}
+			}
+			begin = System.nanoTime();
+			start.countDown(); // all at once, not while the others still start
+		}
+		long elapsed = System.nanoTime() - begin;
+		int serverConnections = server.getOpenConnections();
+		for (Socket socket : sockets) {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+		}
+		return new Result(mode, connected, failed.sum(), connectMillis, serverConnections, roundTrips.sum(),
+				errors.sum(), elapsed, messageSize, latency);
+	}
+
+	private static void echo(Socket socket, byte[] message, int messages, CountDownLatch start,
+			LatencyHistogram latency, StripedCounter roundTrips, StripedCounter errors) {
+		byte[] echo = new byte[message.length];
+		try {
+			start.await();
+			OutputStream out = socket.getOutputStream();
+			InputStream in = socket.getInputStream();
+			for (int i = 0; i < messages; i++) {
+				long sent = System.nanoTime();
+				out.write(message);
+				if (in.readNBytes(echo, 0, echo.length) < echo.length || !Arrays.equals(message, echo)) {
+					errors.increment();
+					return;
+				}
+				latency.record(System.nanoTime() - sent);
+				roundTrips.increment();
+			}
+		} catch (IOException e) {
+			errors.increment();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** the last connects may still wait in the backlog */
+	private static void awaitAccepted(EchoServer server, int connections) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (server.getAcceptedConnections() < connections && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+}
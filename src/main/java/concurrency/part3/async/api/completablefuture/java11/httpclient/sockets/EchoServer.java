@@ -0,0 +1,117 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient.sockets;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * TCP echo server (RFC 862) for many clients at once, the EchoServer of
+ * AnIntro_TCP_Sockets accepts exactly one connection and serves it with
+ * blocking readLine / println.
+ *
+ * <pre>
+ * Mode.NIO      {@link NioEchoServer}: one acceptor thread + N reactor threads, each a
+ *               Selector over its share of the connections. Threads: N + 1, whatever
+ *               the number of connections.
+ * Mode.VIRTUAL  {@link VirtualThreadEchoServer}: one virtual thread per connection with
+ *               blocking read / write, the code of the original EchoServer.
+ * </pre>
+ *
+ * Every byte is echoed as it arrives, no lines, no "SERVER: " prefix. Run
+ * {@link EchoBenchmark} to compare both with 10k connections.
+ *
+ * <pre>
+ * try (EchoServer server = EchoServer.newBuilder().mode(Mode.NIO).reactors(4).start()) {
+ *     new Socket("localhost", server.getPort()) ...
+ * }
+ * </pre>
+ */
+public interface EchoServer extends AutoCloseable {
+
+	enum Mode {
+		NIO, VIRTUAL
+	}
+
+	static Builder newBuilder() {
+		return new Builder();
+	}
+
+	int getPort();
+
+	/** connections accepted and not closed yet */
+	int getOpenConnections();
+
+	/** connections accepted since start */
+	long getAcceptedConnections();
+
+	long getBytesEchoed();
+
+	/** closes the server socket and every connection */
+	@Override
+	void close();
+
+	final class Builder {
+		String host = "localhost";
+		int port = 6060;
+		int backlog = 4096;
+		int bufferSize = 4 * 1024;
+		int reactors = Runtime.getRuntime().availableProcessors();
+		Mode mode = Mode.NIO;
+
+		private Builder() {
+		}
+
+		public Builder host(String host) {
+			this.host = Objects.requireNonNull(host);
+			return this;
+		}
+
+		/** 6060 as the original EchoServer, 0 for any free port, see getPort() */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * connections waiting to be accepted, capped by the OS
+		 * (net.core.somaxconn). Too small and a burst of connects waits for SYN
+		 * retries, 1 s and more.
+		 */
+		public Builder backlog(int backlog) {
+			this.backlog = backlog;
+			return this;
+		}
+
+		/**
+		 * NIO: the read buffer of each reactor and of each connection the client
+		 * does not read fast enough from. VIRTUAL: the buffer of every connection.
+		 */
+		public Builder bufferSize(int bufferSize) {
+			if (bufferSize <= 0) {
+				throw new IllegalArgumentException("bufferSize must be > 0: " + bufferSize);
+			}
+			this.bufferSize = bufferSize;
+			return this;
+		}
+
+		/** selector threads for NIO */
+		public Builder reactors(int reactors) {
+			if (reactors <= 0) {
+				throw new IllegalArgumentException("reactors must be > 0: " + reactors);
+			}
+			this.reactors = reactors;
+			return this;
+		}
+
+		public Builder mode(Mode mode) {
+			this.mode = Objects.requireNonNull(mode);
+			return this;
+		}
+
+		public EchoServer start() throws IOException {
+			return switch (mode) {
+			case NIO -> new NioEchoServer(this);
+			case VIRTUAL -> new VirtualThreadEchoServer(this);
+			};
+		}
+	}
+}
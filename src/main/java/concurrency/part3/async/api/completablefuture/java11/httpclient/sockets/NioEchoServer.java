@@ -0,0 +1,269 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient.sockets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import concurrency.part2.concurrent.api.StripedCounter;
+
+/**
+ * Multi-reactor echo server: the threads do not depend on the number of
+ * connections.
+ *
+ * <pre>
+ *                      accept()              register
+ * clients --> [acceptor thread] --> round robin --> [reactor 0] Selector: conn 0, 2, 4 ...
+ *                                               --> [reactor 1] Selector: conn 1, 3, 5 ...
+ * </pre>
+ *
+ * The acceptor hands a new connection over through the queue of its reactor
+ * and wakes the Selector up, only the reactor thread touches its Selector
+ * (register() from another thread blocks while the reactor is in select()).
+ *
+ * BUFFERS: each reactor reads into ONE direct ByteBuffer shared by all of its
+ * connections and writes it straight back. Usually the socket takes all of it.
+ * When it does not (a PARTIAL WRITE, the client reads slower than it sends),
+ * the rest is copied into a buffer of the reactor's pool and the connection
+ * switches from OP_READ to OP_WRITE: it is not read again before the client
+ * took the echo, so a slow client costs one buffer, never a growing queue.
+ *
+ * <pre>
+ * 10k idle connections:  NIO      N + 1 threads, N read buffers
+ *                        VIRTUAL  10k virtual threads, 10k buffers
+ * </pre>
+ *
+ * Direct buffers: the socket reads and writes them without the copy a heap
+ * buffer needs, allocating them is slow, which is why they are reused.
+ */
+public class NioEchoServer implements EchoServer {
+
+	/** released buffers kept per reactor, the others are left to the GC */
+	private static final int MAX_POOLED_BUFFERS = 64;
+
+	private final ServerSocketChannel serverChannel;
+	private final Reactor[] reactors;
+	private final Thread acceptor;
+	private final AtomicInteger open = new AtomicInteger();
+	private final StripedCounter accepted = new StripedCounter();
+	private final StripedCounter echoed = new StripedCounter();
+	private volatile boolean closed;
+
+	NioEchoServer(Builder builder) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(builder.host, builder.port), builder.backlog);
+		reactors = new Reactor[builder.reactors];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new Reactor(i, builder.bufferSize);
+		}
+		acceptor = Thread.ofPlatform().daemon().name("echo-acceptor").start(this::accept);
+	}
+
+	private void accept() {
+		int next = 0;
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept(); // blocking, only the connections are non-blocking
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println("accept failed: " + e); // e.g. too many open files
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				}
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			open.incrementAndGet();
+			accepted.increment();
+			reactors[next].register(channel);
+			next = (next + 1) % reactors.length;
+		}
+	}
+
+	@Override
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	@Override
+	public int getOpenConnections() {
+		return open.get();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getBytesEchoed() {
+		return echoed.sum();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closeQuietly(serverChannel);
+		for (Reactor reactor : reactors) {
+			reactor.selector.wakeup();
+		}
+		try {
+			acceptor.join();
+			for (Reactor reactor : reactors) {
+				reactor.thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Everything but register() runs on the reactor thread: the buffers and the
+	 * pool need no synchronization. The attachment of a key is the buffer with
+	 * the bytes the socket did not take yet, null while the connection reads.
+	 */
+	private final class Reactor {
+		final Selector selector;
+		final Thread thread;
+		final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+		final ByteBuffer readBuffer;
+		final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+		final int bufferSize;
+
+		Reactor(int index, int bufferSize) throws IOException {
+			this.selector = Selector.open();
+			this.bufferSize = bufferSize;
+			this.readBuffer = ByteBuffer.allocateDirect(bufferSize);
+			this.thread = Thread.ofPlatform().daemon().name("echo-reactor-" + index).start(this::run);
+		}
+
+		void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		private void run() {
+			try {
+				while (!closed) {
+					selector.select(this::handle); // no selectedKeys() set to iterate and clear
+					SocketChannel channel;
+					while ((channel = registrations.poll()) != null) {
+						try {
+							channel.register(selector, SelectionKey.OP_READ);
+						} catch (ClosedChannelException e) {
+							open.decrementAndGet();
+						}
+					}
+				}
+			} catch (IOException e) {
+				System.err.println(thread.getName() + " failed: " + e);
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					close(key);
+				}
+				SocketChannel channel;
+				while ((channel = registrations.poll()) != null) {
+					closeQuietly(channel);
+					open.decrementAndGet();
+				}
+				closeQuietly(selector);
+			}
+		}
+
+		private void handle(SelectionKey key) {
+			try {
+				if (key.isWritable()) {
+					write(key);
+				} else if (key.isReadable()) {
+					read(key);
+				}
+			} catch (IOException e) {
+				close(key); // e.g. connection reset by the client
+			}
+		}
+
+		private void read(SelectionKey key) throws IOException {
+			SocketChannel channel = (SocketChannel) key.channel();
+			readBuffer.clear();
+			int read = channel.read(readBuffer);
+			if (read < 0) {
+				close(key);
+				return;
+			}
+			if (read == 0) {
+				return;
+			}
+			readBuffer.flip();
+			echoed.add(channel.write(readBuffer));
+			if (readBuffer.hasRemaining()) { // partial write
+				ByteBuffer pending = take();
+				pending.put(readBuffer).flip();
+				key.attach(pending);
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void write(SelectionKey key) throws IOException {
+			ByteBuffer pending = (ByteBuffer) key.attachment();
+			echoed.add(((SocketChannel) key.channel()).write(pending));
+			if (!pending.hasRemaining()) {
+				key.attach(null);
+				release(pending);
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		private void close(SelectionKey key) {
+			if (!key.channel().isOpen()) {
+				return; // closed already
+			}
+			key.cancel();
+			closeQuietly(key.channel());
+			if (key.attachment() instanceof ByteBuffer pending) {
+				key.attach(null);
+				release(pending);
+			}
+			open.decrementAndGet();
+		}
+
+		private ByteBuffer take() {
+			ByteBuffer buffer = pool.poll();
+			return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		private void release(ByteBuffer buffer) {
+			if (pool.size() < MAX_POOLED_BUFFERS) {
+				pool.add(buffer.clear());
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient.sockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import concurrency.part2.concurrent.api.StripedCounter;
+
+/**
+ * The EchoServer of AnIntro_TCP_Sockets with a virtual thread per connection
+ * instead of one connection per server: the same blocking read / write code.
+ *
+ * <pre>
+ * clients --> [acceptor thread] accept() --> virtual thread: read -> write -> read ...
+ *                                        --> virtual thread: read -> write -> read ...
+ * </pre>
+ *
+ * A blocking read of a virtual thread parks it and frees its carrier thread,
+ * the JDK polls the socket with its own Selector underneath. write() blocks
+ * until the socket took everything, partial writes need no code here.
+ */
+public class VirtualThreadEchoServer implements EchoServer {
+
+	private final ServerSocket serverSocket;
+	private final Thread acceptor;
+	private final int bufferSize;
+	private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+	private final StripedCounter accepted = new StripedCounter();
+	private final StripedCounter echoed = new StripedCounter();
+	private volatile boolean closed;
+
+	VirtualThreadEchoServer(Builder builder) throws IOException {
+		this.bufferSize = builder.bufferSize;
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(builder.host, builder.port), builder.backlog);
+		this.acceptor = Thread.ofPlatform().daemon().name("echo-acceptor").start(this::accept);
+	}
+
+	private void accept() {
+		Thread.Builder connectionThreads = Thread.ofVirtual().name("echo-", 0);
+		while (!closed) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				connections.add(socket);
+				accepted.increment();
+				connectionThreads.start(() -> serve(socket));
+			} catch (IOException e) {
+				if (!closed) {
+					System.err.println("accept failed: " + e); // e.g. too many open files
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+				}
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		byte[] buffer = new byte[bufferSize];
+		try (socket; InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+				echoed.add(read);
+			}
+		} catch (IOException e) {
+			// connection reset by the client, or closed by close()
+		} finally {
+			connections.remove(socket);
+		}
+	}
+
+	@Override
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public int getOpenConnections() {
+		return connections.size();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getBytesEchoed() {
+		return echoed.sum();
+	}
+
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			serverSocket.close();
+			acceptor.join();
+		} catch (IOException e) {
+			// closing anyway
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Socket socket : connections) {
+			try {
+				socket.close(); // the blocked read() of its thread fails, the thread ends
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,443 @@
+package concurrency.part4.reactive.api.custom.server;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part2.concurrent.api.StripedCounter;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+/**
+ * HTTP load generator on java.net.http.HttpClient, for the Java servers of the
+ * project and the nodejs-app servers alike. Unlike {@link MyHttpClient} (one
+ * request) or a loop of send() (CLOSED loop), it can send on a fixed schedule.
+ *
+ * <pre>
+ * CLOSED loop, N connections: send, wait for the response, send the next one
+ *   the server stalls 1s -> the client stalls with it and sends nothing:
+ *   1 slow sample instead of 1s x rate, p99 looks fine while users would
+ *   queue for up to a second = COORDINATED OMISSION
+ *
+ * OPEN loop, rate R: request i is due at start + i/R, whether or not the
+ * earlier ones were answered
+ *   latency = response time - DUE time, the queueing in front of a stalled
+ *   server is measured, as the users arriving meanwhile would see it
+ * </pre>
+ *
+ * Both latencies are recorded:
+ *
+ * <pre>
+ * latency      OPEN: from the due time. CLOSED: from the send, corrected with
+ *              LatencyHistogram.recordCorrected(latency, connections / rate)
+ * service      from the actual send, uncorrected: what a closed-loop tool reports
+ * error        latency of the errors (status >= 400, I/O failures), apart: a
+ *              fast 503 in the latency histogram would make an overloaded
+ *              server look faster
+ * </pre>
+ *
+ * Every reportInterval the p50/p99/p99.9/max of that interval is reported
+ * (histograms of the interval only), at the end the totals after the warmup.
+ * maxInFlight bounds the open requests: beyond it sends wait, and become late,
+ * their latency still counts from the due time.
+ *
+ * Run against:
+ *
+ * <pre>
+ * StubHttpServer / MySimpleHttpServer   http://localhost:8000/serve
+ * Spring Boot app                       http://localhost:9999/...
+ * nodejs-app                            node src/server-calc-callback.js
+ *                                       http://localhost:3000/  (and /sum, CPU bound)
+ * </pre>
+ */
+public class LoadGenerator {
+
+	public enum Mode {
+		OPEN, CLOSED
+	}
+
+	public record IntervalReport(double elapsedSeconds, long completed, long errors, double rps, long p50, long p99,
+			long p999, long max) {
+
+		@Override
+		public String toString() {
+			return String.format("%6.1fs | %7d ok, %5d errors, %8.1f rps | p50 %8.2fms, p99 %8.2fms, p99.9 %8.2fms, max %8.2fms",
+					elapsedSeconds, completed, errors, rps, p50 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6);
+		}
+	}
+
+	public record Result(Mode mode, double targetRps, double achievedRps, long sent, long completed, long errors,
+			long late, LatencyHistogram latency, LatencyHistogram service, LatencyHistogram errorLatency,
+			List<IntervalReport> intervals) {
+
+		@Override
+		public String toString() {
+			return String.format("%s loop, target %.1f rps, achieved %.1f rps, sent %d, completed %d, errors %d, late %d%n"
+					+ "  latency (corrected) %s%n  service (raw)       %s%n  errors              %s", mode, targetRps,
+					achievedRps, sent, completed, errors, late, latency, service, errorLatency);
+		}
+	}
+
+	/** histograms of one report interval, swapped by the reporter */
+	private static final class Interval {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final StripedCounter completed = new StripedCounter();
+		final StripedCounter errors = new StripedCounter();
+	}
+
+	private final HttpClient httpClient;
+	private final Supplier<HttpRequest> request;
+	private final Mode mode;
+	private final double rate;
+	private final int connections;
+	private final int maxInFlight;
+	private final long durationNanos;
+	private final long warmupNanos;
+	private final long reportIntervalNanos;
+	private final Consumer<IntervalReport> reporter;
+
+	private LoadGenerator(Builder builder) {
+		this.httpClient = builder.httpClient;
+		this.request = builder.request;
+		this.mode = builder.mode;
+		this.rate = builder.rate;
+		this.connections = builder.connections;
+		this.maxInFlight = builder.maxInFlight;
+		this.durationNanos = builder.duration.toNanos();
+		this.warmupNanos = builder.warmup.toNanos();
+		this.reportIntervalNanos = builder.reportInterval.toNanos();
+		this.reporter = builder.reporter;
+	}
+
+	public static Builder newBuilder(Supplier<HttpRequest> request) {
+		return new Builder(request);
+	}
+
+	public static Builder newBuilder(URI uri) {
+		HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+		return new Builder(() -> request);
+	}
+
+	/** blocks for warmup + duration, and until the last responses arrived */
+	public Result run() throws InterruptedException {
+		Run run = new Run();
+		ScheduledExecutorService reporting = Executors.newSingleThreadScheduledExecutor();
+		reporting.scheduleAtFixedRate(run::report, reportIntervalNanos, reportIntervalNanos, TimeUnit.NANOSECONDS);
+		try {
+			if (mode == Mode.OPEN) {
+				run.openLoop();
+			} else {
+				run.closedLoop();
+			}
+		} finally {
+			reporting.shutdown();
+			reporting.awaitTermination(1, TimeUnit.SECONDS);
+		}
+		run.report();
+		double seconds = Math.max(1, run.lastCompletion - run.measuredFrom) / 1e9;
+		return new Result(mode, rate, run.measuredCompleted.sum() / seconds, run.sent, run.measuredCompleted.sum(),
+				run.measuredErrors.sum(), run.late, run.latency, run.service, run.errorLatency,
+				List.copyOf(run.intervals));
+	}
+
+	private final class Run {
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		final long measuredFrom = start + warmupNanos;
+		final long end = measuredFrom + durationNanos;
+		/** for the late check and the correction only, the schedule is dueTime() */
+		final long intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LatencyHistogram service = new LatencyHistogram();
+		final LatencyHistogram errorLatency = new LatencyHistogram();
+		final StripedCounter measuredCompleted = new StripedCounter();
+		final StripedCounter measuredErrors = new StripedCounter();
+		final AtomicReference<Interval> interval = new AtomicReference<>(new Interval());
+		final List<IntervalReport> intervals = Collections.synchronizedList(new ArrayList<>());
+		volatile long lastReport = start;
+		volatile long lastCompletion = start;
+		long sent; // the sending thread(s) only, read after they finished
+		long late;
+
+		void openLoop() throws InterruptedException {
+			Semaphore inFlight = new Semaphore(maxInFlight);
+			for (long i = 0;; i++) {
+				long due = dueTime(i);
+				if (due >= end) {
+					break;
+				}
+				sleepUntil(due);
+				inFlight.acquire(); // full: this and the next sends are late, still measured from due
+				long sendTime = System.nanoTime();
+				if (sendTime - due > intervalNanos) {
+					late++;
+				}
+				sent++;
+				CompletableFuture<HttpResponse<Void>> response;
+				try {
+					response = httpClient.sendAsync(request.get(), HttpResponse.BodyHandlers.discarding());
+				} catch (RuntimeException e) {
+					// e.g. a bad request from the supplier: an error, and the permit back
+					response = CompletableFuture.failedFuture(e);
+				}
+				response.whenComplete((received, failure) -> {
+					long now = System.nanoTime();
+					completed(due, now - due, now - sendTime, received, failure, 0);
+					inFlight.release();
+				});
+			}
+			inFlight.acquire(maxInFlight); // the last responses
+		}
+
+		/**
+		 * Each connection sends every connections / rate, but only after its
+		 * previous response: a slow response delays its next sends, they are
+		 * skipped, not sent later. recordCorrected adds the skipped ones back.
+		 */
+		void closedLoop() throws InterruptedException {
+			long period = intervalNanos * connections;
+			long[] sentPerConnection = new long[connections];
+			long[] latePerConnection = new long[connections];
+			List<Thread> threads = new ArrayList<>();
+			for (int c = 0; c < connections; c++) {
+				int connection = c;
+				threads.add(Thread.ofPlatform().name("closed-loop-" + c).start(() -> {
+					// slot k of this connection is request k * connections + connection of the schedule
+					for (long k = 0, due; (due = dueTime(k * connections + connection)) < end; k++) {
+						sleepUntil(due);
+						long sendTime = System.nanoTime();
+						if (sendTime - due > period) {
+							latePerConnection[connection]++;
+							k += (sendTime - due) / period; // skip the missed slots
+							due = dueTime(k * connections + connection);
+						}
+						sentPerConnection[connection]++;
+						HttpResponse<Void> response = null;
+						Throwable failure = null;
+						try {
+							response = httpClient.send(request.get(), HttpResponse.BodyHandlers.discarding());
+						} catch (IOException e) {
+							failure = e;
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						long now = System.nanoTime();
+						completed(due, now - sendTime, now - sendTime, response, failure, period);
+					}
+				}));
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			for (int c = 0; c < connections; c++) {
+				sent += sentPerConnection[c];
+				late += latePerConnection[c];
+			}
+		}
+
+		long dueTime(long i) {
+			return start + offsetNanos(i, rate);
+		}
+
+		void completed(long due, long latencyNanos, long serviceNanos, HttpResponse<Void> response, Throwable failure,
+				long expectedInterval) {
+			boolean error = failure != null || response.statusCode() >= 400;
+			Interval current = interval.get();
+			boolean measured = due >= measuredFrom;
+			if (error) {
+				current.errors.increment();
+				if (measured) {
+					measuredErrors.increment();
+					errorLatency.record(latencyNanos);
+				}
+				return;
+			}
+			current.completed.increment();
+			current.latency.recordCorrected(latencyNanos, expectedInterval);
+			if (measured) {
+				measuredCompleted.increment();
+				latency.recordCorrected(latencyNanos, expectedInterval);
+				service.record(serviceNanos);
+				lastCompletion = System.nanoTime();
+			}
+		}
+
+		void report() {
+			long now = System.nanoTime();
+			Interval done = interval.getAndSet(new Interval());
+			double seconds = Math.max(1, now - lastReport) / 1e9;
+			lastReport = now;
+			long completed = done.completed.sum();
+			LatencyHistogram h = done.latency;
+			IntervalReport report = new IntervalReport((now - start) / 1e9, completed, done.errors.sum(),
+					completed / seconds, h.getValueAtPercentile(50), h.getValueAtPercentile(99),
+					h.getValueAtPercentile(99.9), h.getMax());
+			intervals.add(report);
+			reporter.accept(report);
+		}
+	}
+
+	/**
+	 * i / rate in nanoseconds, computed for every i: start + i * (long) (1e9 /
+	 * rate) would truncate the interval once and drift, 3.33ns at 3e8/s is 3ns,
+	 * 11% too fast
+	 */
+	static long offsetNanos(long i, double rate) {
+		return (long) (i * 1e9 / rate);
+	}
+
+	/** parks, then spins the last 50µs: parkNanos alone oversleeps by 50µs+ */
+	private static void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			if (remaining > TimeUnit.MICROSECONDS.toNanos(50)) {
+				LockSupport.parkNanos(remaining - TimeUnit.MICROSECONDS.toNanos(50));
+			} else {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	public static final class Builder {
+		private final Supplier<HttpRequest> request;
+		private HttpClient httpClient;
+		private Mode mode = Mode.OPEN;
+		private double rate = 100;
+		private int connections = 16;
+		private int maxInFlight = 10_000;
+		private Duration duration = Duration.ofSeconds(30);
+		private Duration warmup = Duration.ofSeconds(5);
+		private Duration reportInterval = Duration.ofSeconds(1);
+		private Consumer<IntervalReport> reporter = System.out::println;
+
+		private Builder(Supplier<HttpRequest> request) {
+			this.request = Objects.requireNonNull(request);
+		}
+
+		/** HTTP/1.1 by default: the JDK HttpServer and node http do not speak h2c */
+		public Builder httpClient(HttpClient httpClient) {
+			this.httpClient = Objects.requireNonNull(httpClient);
+			return this;
+		}
+
+		public Builder mode(Mode mode) {
+			this.mode = Objects.requireNonNull(mode);
+			return this;
+		}
+
+		/** requests per second, in total, at most one per nanosecond */
+		public Builder rate(double rate) {
+			if (!(rate > 0) || rate > TimeUnit.SECONDS.toNanos(1)) {
+				throw new IllegalArgumentException("rate must be > 0 and <= 1e9: " + rate);
+			}
+			this.rate = rate;
+			return this;
+		}
+
+		/** CLOSED only: sending threads, one request each at a time */
+		public Builder connections(int connections) {
+			if (connections <= 0) {
+				throw new IllegalArgumentException("connections must be > 0: " + connections);
+			}
+			this.connections = connections;
+			return this;
+		}
+
+		/** OPEN only: requests waiting for a response at most */
+		public Builder maxInFlight(int maxInFlight) {
+			if (maxInFlight <= 0) {
+				throw new IllegalArgumentException("maxInFlight must be > 0: " + maxInFlight);
+			}
+			this.maxInFlight = maxInFlight;
+			return this;
+		}
+
+		/** measured time, after the warmup */
+		public Builder duration(Duration duration) {
+			this.duration = Objects.requireNonNull(duration);
+			return this;
+		}
+
+		/** sent and reported per interval, not in the totals */
+		public Builder warmup(Duration warmup) {
+			this.warmup = Objects.requireNonNull(warmup);
+			return this;
+		}
+
+		public Builder reportInterval(Duration reportInterval) {
+			if (reportInterval.isNegative() || reportInterval.isZero()) {
+				throw new IllegalArgumentException("reportInterval must be > 0: " + reportInterval);
+			}
+			this.reportInterval = reportInterval;
+			return this;
+		}
+
+		public Builder reporter(Consumer<IntervalReport> reporter) {
+			this.reporter = Objects.requireNonNull(reporter);
+			return this;
+		}
+
+		public LoadGenerator build() {
+			if (httpClient == null) {
+				httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+						.connectTimeout(Duration.ofSeconds(5)).build();
+			}
+			return new LoadGenerator(this);
+		}
+	}
+
+	/**
+	 * args: [url|local] [rps] [seconds] [OPEN|CLOSED] [connections]
+	 *
+	 * "local" (the default) starts a StubHttpServer whose /serve answers in 1ms
+	 * but pauses 200ms every 2s, and runs both loops against it: compare p99 and
+	 * p99.9 of latency and service.
+	 */
+	public static void main(String[] args) throws Exception {
+		String target = args.length > 0 ? args[0] : "local";
+		double rps = args.length > 1 ? Double.parseDouble(args[1]) : 200;
+		Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+		int connections = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+
+		if (!target.equals("local")) {
+			Mode mode = args.length > 3 ? Mode.valueOf(args[3]) : Mode.OPEN;
+			System.out.println(newBuilder(URI.create(target)).mode(mode).rate(rps).connections(connections)
+					.duration(duration).build().run());
+			return;
+		}
+		try (StubHttpServer server = StubHttpServer.newBuilder()
+				.route("/serve", Route.ok("ok").latency(Duration.ofMillis(1))).start()) {
+			Supplier<HttpRequest> request = () -> HttpRequest.newBuilder(server.uri("/serve")).GET().build();
+			// the stall: a pause of the whole server, as a GC pause would be
+			ScheduledExecutorService pauses = Executors.newSingleThreadScheduledExecutor();
+			pauses.scheduleAtFixedRate(() -> server.pauseFor(Duration.ofMillis(200)), 1, 2, TimeUnit.SECONDS);
+			try {
+				for (Mode mode : Mode.values()) {
+					System.out.println(mode + " loop, " + rps + " rps, server paused 200ms every 2s");
+					Result result = newBuilder(request).mode(mode).rate(rps).connections(connections)
+							.warmup(Duration.ofSeconds(2)).duration(duration).build().run();
+					System.out.println(result);
+					System.out.println();
+				}
+			} finally {
+				pauses.shutdownNow();
+			}
+		}
+	}
+}
@@ -10,6 +10,8 @@ import com.sun.net.httpserver.HttpServer;
 /**
  * My custom HTTP Server
  *
+ * No executor: every request runs on the single dispatcher thread. For a
+ * configurable local benchmark target see {@link StubHttpServer}.
  */
 public class MySimpleHttpServer {
 
@@ -0,0 +1,431 @@
+package concurrency.part4.reactive.api.custom.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import concurrency.part2.concurrent.api.StripedCounter;
+
+/**
+ * {@link MySimpleHttpServer} grown into a local target for the client
+ * benchmarks, so they run offline and measure the client, not the internet.
+ *
+ * <pre>
+ * MySimpleHttpServer                      StubHttpServer
+ * no executor: every request on the       Mode: DISPATCHER (the same), FIXED pool,
+ *   single dispatcher thread                WORK_STEALING, VIRTUAL thread per request
+ * body.getBytes() per request             body encoded once per route
+ * request body not read                   request body drained: the connection
+ *                                           stays open for the next request (keep-alive)
+ * one fixed answer                        per route: status, body / body size,
+ *                                           latency + jitter, error rate, reset rate,
+ *                                           max concurrent (more get the error status)
+ * </pre>
+ *
+ * Latency is a sleep on the handling thread, as a blocking backend would do:
+ * with FIXED(n) at most n requests are in progress, with VIRTUAL the latency
+ * costs no thread. The counters (requests, bytes received, concurrent requests
+ * per server) tell what the client really did, e.g. how many requests it had
+ * in flight.
+ *
+ * <pre>
+ * try (StubHttpServer server = StubHttpServer.newBuilder().mode(Mode.VIRTUAL)
+ *         .route("/slow", Route.ok("slow").latency(Duration.ofMillis(200)))
+ *         .route("/flaky", Route.ok("flaky").errorRate(0.1, 503)).start()) {
+ *     client.send(HttpRequest.newBuilder(server.uri("/slow")).build(), ...);
+ * }
+ * </pre>
+ *
+ * TCP_NODELAY is on for every HttpServer of the JVM if a stub is the first one
+ * created, see createWithNoDelay. The JDK server closes keep-alive connections
+ * idle for 30 s (-Dsun.net.httpserver.idleInterval) and keeps at most 200 idle
+ * ones (-Dsun.net.httpserver.maxIdleConnections).
+ */
+public class StubHttpServer implements AutoCloseable {
+
+	public enum Mode {
+		/** no executor, as MySimpleHttpServer: one request at a time */
+		DISPATCHER,
+		/** Executors.newFixedThreadPool(threads) */
+		FIXED,
+		/** Executors.newWorkStealingPool(threads) */
+		WORK_STEALING,
+		/** Executors.newVirtualThreadPerTaskExecutor() */
+		VIRTUAL
+	}
+
+	/**
+	 * Immutable, every setter returns a copy. The body is encoded when the
+	 * route is created, a request only writes the same byte[] again.
+	 */
+	public static final class Route {
+		private final int status;
+		private final byte[] body;
+		private final String contentType;
+		private final Map<String, String> headers;
+		private final long latencyNanos;
+		private final long jitterNanos;
+		private final double errorRate;
+		private final int errorStatus;
+		private final double resetRate;
+		private final int maxConcurrent;
+
+		private Route(int status, byte[] body, String contentType, Map<String, String> headers, long latencyNanos,
+				long jitterNanos, double errorRate, int errorStatus, double resetRate, int maxConcurrent) {
+			this.status = status;
+			this.body = body;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.latencyNanos = latencyNanos;
+			this.jitterNanos = jitterNanos;
+			this.errorRate = errorRate;
+			this.errorStatus = errorStatus;
+			this.resetRate = resetRate;
+			this.maxConcurrent = maxConcurrent;
+		}
+
+		public static Route ok(String body) {
+			return new Route(200, body.getBytes(StandardCharsets.UTF_8), "text/plain; charset=utf-8", Map.of(), 0, 0,
+					0, 503, 0, Integer.MAX_VALUE);
+		}
+
+		/** size bytes of generated content, e.g. for download benchmarks */
+		public static Route ofSize(int size) {
+			byte[] body = new byte[size];
+			for (int i = 0; i < size; i++) {
+				body[i] = (byte) ('a' + i % 26);
+			}
+			return new Route(200, body, "application/octet-stream", Map.of(), 0, 0, 0, 503, 0,
+					Integer.MAX_VALUE);
+		}
+
+		/** 204 without a body, e.g. a sink for uploads */
+		public static Route noContent() {
+			return new Route(204, new byte[0], null, Map.of(), 0, 0, 0, 503, 0, Integer.MAX_VALUE);
+		}
+
+		public Route status(int status) {
+			return new Route(status, body, contentType, headers, latencyNanos, jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		public Route contentType(String contentType) {
+			return new Route(status, body, contentType, headers, latencyNanos, jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		public Route header(String name, String value) {
+			Map<String, String> copy = new LinkedHashMap<>(headers);
+			copy.put(name, value);
+			return new Route(status, body, contentType, Map.copyOf(copy), latencyNanos, jitterNanos, errorRate,
+					errorStatus, resetRate, maxConcurrent);
+		}
+
+		public Route latency(Duration latency) {
+			return new Route(status, body, contentType, headers, latency.toNanos(), jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		/** plus a uniformly random 0..jitter on top of latency */
+		public Route jitter(Duration jitter) {
+			return new Route(status, body, contentType, headers, latencyNanos, jitter.toNanos(), errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		/** this fraction of the requests gets errorStatus and no body */
+		public Route errorRate(double errorRate, int errorStatus) {
+			checkRate(errorRate);
+			return new Route(status, body, contentType, headers, latencyNanos, jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		/** this fraction of the connections is closed without a response */
+		public Route resetRate(double resetRate) {
+			checkRate(resetRate);
+			return new Route(status, body, contentType, headers, latencyNanos, jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		/**
+		 * above maxConcurrent requests in progress on this route, the others get
+		 * errorStatus at once: an overloaded server shedding load
+		 */
+		public Route maxConcurrent(int maxConcurrent) {
+			if (maxConcurrent <= 0) {
+				throw new IllegalArgumentException("maxConcurrent must be > 0: " + maxConcurrent);
+			}
+			return new Route(status, body, contentType, headers, latencyNanos, jitterNanos, errorRate, errorStatus,
+					resetRate, maxConcurrent);
+		}
+
+		private static void checkRate(double rate) {
+			if (rate < 0 || rate > 1) {
+				throw new IllegalArgumentException("rate must be between 0 and 1: " + rate);
+			}
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Map<String, StripedCounter> requests = new LinkedHashMap<>();
+	private final StripedCounter bytesReceived = new StripedCounter();
+	private final StripedCounter overloaded = new StripedCounter();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger maxOpen = new AtomicInteger();
+	private volatile long pausedUntil;
+
+	private StubHttpServer(Builder builder) throws IOException {
+		this.server = createWithNoDelay(new InetSocketAddress(builder.host, builder.port), builder.backlog);
+		this.executor = switch (builder.mode) {
+		case DISPATCHER -> null;
+		case FIXED -> Executors.newFixedThreadPool(builder.threads);
+		case WORK_STEALING -> Executors.newWorkStealingPool(builder.threads);
+		case VIRTUAL -> Executors.newVirtualThreadPerTaskExecutor();
+		};
+		server.setExecutor(executor);
+		builder.routes.forEach((path, route) -> {
+			StripedCounter counter = new StripedCounter();
+			AtomicInteger routeOpen = new AtomicInteger();
+			requests.put(path, counter);
+			server.createContext(path, exchange -> handle(exchange, route, counter, routeOpen));
+		});
+		server.start();
+	}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * The JDK server writes headers and body separately: with Nagle on, the body
+	 * waits for the delayed ACK of the headers, ~40ms per response on a reused
+	 * connection. sun.net.httpserver.nodelay turns it off, but it is read ONCE
+	 * per JVM, when the first HttpServer is created: it is set only for that
+	 * moment, unless given with -D, and applies to every HttpServer of the JVM.
+	 * An HttpServer created elsewhere before the first stub decides it instead.
+	 */
+	private static HttpServer createWithNoDelay(InetSocketAddress address, int backlog) throws IOException {
+		synchronized (StubHttpServer.class) {
+			if (System.getProperty("sun.net.httpserver.nodelay") != null) {
+				return HttpServer.create(address, backlog);
+			}
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+			try {
+				return HttpServer.create(address, backlog);
+			} finally {
+				System.clearProperty("sun.net.httpserver.nodelay");
+			}
+		}
+	}
+
+	private void handle(HttpExchange exchange, Route route, StripedCounter counter, AtomicInteger routeOpen)
+			throws IOException {
+		maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+		int concurrent = routeOpen.incrementAndGet();
+		try (exchange) {
+			counter.increment();
+			bytesReceived.add(drain(exchange.getRequestBody()));
+			if (concurrent > route.maxConcurrent) {
+				overloaded.increment();
+				exchange.sendResponseHeaders(route.errorStatus, -1);
+				return;
+			}
+			long pause = pausedUntil - System.nanoTime();
+			if (pause > 0) {
+				TimeUnit.NANOSECONDS.sleep(pause);
+			}
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			long sleep = route.latencyNanos + (route.jitterNanos > 0 ? random.nextLong(route.jitterNanos + 1) : 0);
+			if (sleep > 0) {
+				TimeUnit.NANOSECONDS.sleep(sleep);
+			}
+			if (route.resetRate > 0 && random.nextDouble() < route.resetRate) {
+				return; // closed without response headers: the client sees the connection reset
+			}
+			if (route.errorRate > 0 && random.nextDouble() < route.errorRate) {
+				exchange.sendResponseHeaders(route.errorStatus, -1);
+				return;
+			}
+			if (route.contentType != null) {
+				exchange.getResponseHeaders().set("Content-Type", route.contentType);
+			}
+			route.headers.forEach(exchange.getResponseHeaders()::set);
+			if (route.body.length == 0) {
+				exchange.sendResponseHeaders(route.status, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(route.status, route.body.length); // Content-Length: no chunking
+			try (OutputStream os = exchange.getResponseBody()) {
+				os.write(route.body);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			routeOpen.decrementAndGet();
+			open.decrementAndGet();
+		}
+	}
+
+	/** a connection is only reused after its request body was read to the end */
+	private static long drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[16 * 1024];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * Every request arriving or in progress waits until the pause is over, as
+	 * in a stop-the-world GC pause of the server.
+	 */
+	public void pauseFor(Duration pause) {
+		pausedUntil = System.nanoTime() + pause.toNanos();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public URI uri(String path) {
+		return URI.create("http://" + server.getAddress().getHostString() + ":" + getPort() + path);
+	}
+
+	public long getRequestCount(String path) {
+		StripedCounter counter = requests.get(path);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	public long getRequestCount() {
+		return requests.values().stream().mapToLong(StripedCounter::sum).sum();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.sum();
+	}
+
+	/** requests answered with errorStatus because of a route's maxConcurrent */
+	public long getOverloadedCount() {
+		return overloaded.sum();
+	}
+
+	/** requests in progress right now */
+	public int getConcurrent() {
+		return open.get();
+	}
+
+	/** most requests in progress at the same time, since start or resetMaxConcurrent() */
+	public int getMaxConcurrent() {
+		return maxOpen.get();
+	}
+
+	public void resetMaxConcurrent() {
+		maxOpen.set(open.get());
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public static final class Builder {
+		private String host = "localhost";
+		private int port;
+		private int backlog = 1024;
+		private Mode mode = Mode.VIRTUAL;
+		private int threads = Runtime.getRuntime().availableProcessors();
+		private final Map<String, Route> routes = new LinkedHashMap<>();
+
+		private Builder() {
+		}
+
+		public Builder host(String host) {
+			this.host = Objects.requireNonNull(host);
+			return this;
+		}
+
+		/** 0, the default: any free port, see getPort() */
+		public Builder port(int port) {
+			this.port = port;
+			return this;
+		}
+
+		/** connections waiting to be accepted, 0 is the small system default */
+		public Builder backlog(int backlog) {
+			this.backlog = backlog;
+			return this;
+		}
+
+		public Builder mode(Mode mode) {
+			this.mode = Objects.requireNonNull(mode);
+			return this;
+		}
+
+		/** for FIXED and WORK_STEALING */
+		public Builder threads(int threads) {
+			if (threads <= 0) {
+				throw new IllegalArgumentException("threads must be > 0: " + threads);
+			}
+			this.threads = threads;
+			return this;
+		}
+
+		/** the route answers path and everything below it, as HttpServer.createContext */
+		public Builder route(String path, Route route) {
+			routes.put(Objects.requireNonNull(path), Objects.requireNonNull(route));
+			return this;
+		}
+
+		public StubHttpServer start() throws IOException {
+			return new StubHttpServer(this);
+		}
+	}
+
+	/**
+	 * args: [port] [DISPATCHER|FIXED|WORK_STEALING|VIRTUAL] [threads]
+	 *
+	 * <pre>
+	 * /serve  MySimpleHttpServer's answer
+	 * /slow   100ms + 0..50ms
+	 * /big    1 MB
+	 * /flaky  10% 503, 1% reset
+	 * /upload drains the body, 204
+	 * </pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		Builder builder = newBuilder().host("0.0.0.0").port(args.length > 0 ? Integer.parseInt(args[0]) : 8000)
+				.route("/serve", Route.ok("My Simple HTTP Simple server"))
+				.route("/slow", Route.ok("slow").latency(Duration.ofMillis(100)).jitter(Duration.ofMillis(50)))
+				.route("/big", Route.ofSize(1024 * 1024))
+				.route("/flaky", Route.ok("flaky").errorRate(0.1, 503).resetRate(0.01))
+				.route("/upload", Route.noContent());
+		if (args.length > 1) {
+			builder.mode(Mode.valueOf(args[1]));
+		}
+		if (args.length > 2) {
+			builder.threads(Integer.parseInt(args[2]));
+		}
+		StubHttpServer server = builder.start();
+		System.out.println("StubHttpServer on port " + server.getPort() + ", routes " + server.requests.keySet());
+	}
+}
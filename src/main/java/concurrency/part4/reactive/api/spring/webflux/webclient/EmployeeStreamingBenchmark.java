@@ -0,0 +1,201 @@
+package concurrency.part4.reactive.api.spring.webflux.webclient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.reactivestreams.Subscription;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part2.concurrent.api.StripedCounter;
+import concurrency.web.apps.springboot.AsyncMethodApplication;
+import concurrency.web.apps.springboot.EmployeeReactiveController;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.SignalType;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Time to first byte and memory per connection of GET /employees at many
+ * concurrent streams, see {@link EmployeeReactiveController}:
+ *
+ * <pre>
+ * json           Accept: application/json      whole list collected, then written
+ * ndjson         Accept: application/x-ndjson  batches of 64 employees / 20ms
+ * ndjson-batch-1 Accept: application/x-ndjson  one write + flush per employee
+ * sse            Accept: text/event-stream     batches of 64 employees / 20ms
+ * </pre>
+ *
+ * For every variant all streams are opened at once by
+ * {@link ReactiveWebClient#streamEmployees} on ONE Reactor Netty event loop
+ * group. Each stream requests its first buffer only,
+ * then holds until every stream got one: at that moment all connections are
+ * open, and heap used after GC minus heap used before, divided by the streams,
+ * is the memory per connection (client + server, they share this JVM). Then
+ * all streams read to the end.
+ *
+ * <pre>
+ * args: [concurrent streams] [employees]
+ * defaults: 10000             10000
+ *
+ * 10k connections need 20k file descriptors (client + server side): ulimit -n 65536
+ * -Dreactor.schedulers.defaultBoundedElasticOnVirtualThreads=true runs the
+ *  server side emitters on virtual threads instead of 10 x cores platform threads
+ * </pre>
+ *
+ * Holding demand matters once a stream is bigger than the socket buffers: the
+ * server's emitter.send() then blocks, and the repository is not read further,
+ * while the json variant has the whole list in memory per stream anyway.
+ */
+public class EmployeeStreamingBenchmark {
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	record Variant(String name, MediaType accept, String query) {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int streams = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+		int employees = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+
+		ConfigurableApplicationContext context = new SpringApplicationBuilder(AsyncMethodApplication.class)
+				.properties("server.port=0", "server.tomcat.max-connections=" + (streams * 2),
+						"server.tomcat.accept-count=" + streams, "employees.seed=" + employees,
+						"spring.main.banner-mode=off", "logging.level.root=warn",
+						"spring.devtools.restart.enabled=false")
+				.run();
+		ConnectionProvider connections = ConnectionProvider.builder("employee-streams").maxConnections(streams)
+				.pendingAcquireMaxCount(-1).pendingAcquireTimeout(Duration.ofMinutes(1)).build();
+		try {
+			String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+			WebClient client = ReactiveWebClient.create(base, connections);
+
+			Variant[] variants = { new Variant("json", MediaType.APPLICATION_JSON, ""),
+					new Variant("ndjson", MediaType.APPLICATION_NDJSON, ""),
+					new Variant("ndjson-batch-1", MediaType.APPLICATION_NDJSON, "?batch=1"),
+					new Variant("sse", MediaType.TEXT_EVENT_STREAM, "") };
+
+			System.out.printf("%d concurrent streams of %d employees%n", streams, employees);
+			for (Variant variant : variants) {
+				run(client, variant, Math.min(streams, 100)); // warm up
+				Result result = run(client, variant, streams);
+				System.out.printf(
+						"%-15s ttfb p50 = %4dms, p99 = %5dms, max = %5dms | %6.1f KB per stream, %5d threads "
+								+ "| all done in %5dms, %.1f MB read, errors = %d%n",
+						variant.name(), TimeUnit.NANOSECONDS.toMillis(result.ttfb.getValueAtPercentile(50)),
+						TimeUnit.NANOSECONDS.toMillis(result.ttfb.getValueAtPercentile(99)),
+						TimeUnit.NANOSECONDS.toMillis(result.ttfb.getMax()), result.bytesPerStream / 1024.0,
+						result.threads, TimeUnit.NANOSECONDS.toMillis(result.totalNanos),
+						result.bytes.sum() / (1024.0 * 1024.0), result.errors.sum());
+			}
+		} finally {
+			connections.dispose();
+			context.close();
+		}
+	}
+
+	static final class Result {
+		final LatencyHistogram ttfb = new LatencyHistogram();
+		final StripedCounter bytes = new StripedCounter();
+		final StripedCounter errors = new StripedCounter();
+		long bytesPerStream;
+		int threads;
+		long totalNanos;
+	}
+
+	private static Result run(WebClient client, Variant variant, int streams) throws InterruptedException {
+		Result result = new Result();
+		CountDownLatch firstBuffers = new CountDownLatch(streams);
+		CountDownLatch done = new CountDownLatch(streams);
+		CompletableFuture<Void> resume = new CompletableFuture<>();
+
+		long heapBefore = usedHeapAfterGc();
+		long start = System.nanoTime();
+		for (int i = 0; i < streams; i++) {
+			ReactiveWebClient.streamEmployees(client, variant.accept(), variant.query())
+					.subscribe(new HoldingSubscriber(result, firstBuffers, done, resume, System.nanoTime()));
+		}
+		if (!firstBuffers.await(2, TimeUnit.MINUTES)) {
+			System.out.printf("%s: only %d of %d streams got a first buffer%n", variant.name(),
+					streams - firstBuffers.getCount(), streams);
+		}
+		result.bytesPerStream = Math.max(0, usedHeapAfterGc() - heapBefore) / streams;
+		result.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		resume.complete(null);
+		done.await(5, TimeUnit.MINUTES);
+		result.totalNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	private static long usedHeapAfterGc() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return MEMORY.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * request(1), records the time to the first buffer, and requests the rest only
+	 * when resume completes. Without demand Reactor Netty stops reading the socket,
+	 * so the server sees a slow client.
+	 */
+	static final class HoldingSubscriber extends BaseSubscriber<DataBuffer> {
+
+		private final Result result;
+		private final CountDownLatch firstBuffers;
+		private final CountDownLatch done;
+		private final CompletableFuture<Void> resume;
+		private final long startNanos;
+		private boolean first = true;
+
+		HoldingSubscriber(Result result, CountDownLatch firstBuffers, CountDownLatch done,
+				CompletableFuture<Void> resume, long startNanos) {
+			this.result = result;
+			this.firstBuffers = firstBuffers;
+			this.done = done;
+			this.resume = resume;
+			this.startNanos = startNanos;
+		}
+
+		@Override
+		protected void hookOnSubscribe(Subscription subscription) {
+			request(1);
+		}
+
+		@Override
+		protected void hookOnNext(DataBuffer buffer) {
+			result.bytes.add(buffer.readableByteCount());
+			DataBufferUtils.release(buffer);
+			if (first) {
+				first = false;
+				result.ttfb.record(System.nanoTime() - startNanos);
+				firstBuffers.countDown();
+				resume.thenRun(() -> request(Long.MAX_VALUE));
+			}
+		}
+
+		@Override
+		protected void hookOnError(Throwable throwable) {
+			result.errors.increment();
+		}
+
+		@Override
+		protected void hookFinally(SignalType type) {
+			if (first) { // failed or empty, do not wait for it
+				first = false;
+				firstBuffers.countDown();
+			}
+			done.countDown();
+		}
+	}
+}
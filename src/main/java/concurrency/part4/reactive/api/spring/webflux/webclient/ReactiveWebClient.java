@@ -1,11 +1,19 @@
 package concurrency.part4.reactive.api.spring.webflux.webclient;
 
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.web.reactive.function.client.WebClient;
 
 import concurrency.web.apps.springboot.Employee;
 import concurrency.web.apps.springboot.EmployeeReactiveController;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 /**
  * See {@link EmployeeReactiveController} {@link EmployeeReactiveControllerTest}
@@ -27,8 +35,43 @@ public class ReactiveWebClient {
 		employeeFlux.subscribe(System.out::println);
 		Thread.sleep(2000);
 
+		// the same, streamed: one JSON document per line, printed as it arrives
+		streamEmployees(client, MediaType.APPLICATION_NDJSON, "?batch=1").map(ReactiveWebClient::toStringAndRelease)
+				.subscribe(System.out::print);
+		Thread.sleep(2000);
+
 		System.out.println("done");
 	}
+
+	/**
+	 * A client for many concurrent streams, e.g. EmployeeStreamingBenchmark:
+	 * every request gets a connection of connections, all on one Reactor Netty
+	 * event loop group.
+	 */
+	static WebClient create(String baseUrl, ConnectionProvider connections) {
+		return WebClient.builder().baseUrl(baseUrl)
+				.clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections))).build();
+	}
+
+	/**
+	 * GET /employees as the raw buffers read from the socket, no decoding: the
+	 * subscriber's demand is what Reactor Netty reads, a subscriber which stops
+	 * requesting is a slow client for the server.
+	 *
+	 * @param accept application/json, application/x-ndjson or text/event-stream
+	 * @param query  e.g. "?batch=1", or ""
+	 */
+	static Flux<DataBuffer> streamEmployees(WebClient client, MediaType accept, String query) {
+		return client.get().uri("/employees" + query).accept(accept).retrieve().bodyToFlux(DataBuffer.class);
+	}
+
+	private static String toStringAndRelease(DataBuffer buffer) {
+		try {
+			return buffer.toString(StandardCharsets.UTF_8);
+		} finally {
+			DataBufferUtils.release(buffer);
+		}
+	}
 }
 
 class ReactiveWebClientForMVCUsage {
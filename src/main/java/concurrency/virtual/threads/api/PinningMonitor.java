@@ -0,0 +1,200 @@
+package concurrency.virtual.threads.api;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Detects PINNED virtual threads while the application runs.
+ *
+ * <pre>
+ * A virtual thread which blocks (sleep, socket read, lock.lock() ...) normally
+ * unmounts from its carrier thread, see BlockingVirtualThreadsUsingSleep. But in
+ * Java 21 it can NOT unmount while it is
+ *  - inside a synchronized block/method, or
+ *  - in a native method
+ * then it is PINNED: the carrier (one of only #cores ForkJoinPool workers) blocks
+ * with it, and a few pinned threads can stall all other virtual threads.
+ *
+ * The JVM reports each pinned block as the JFR event jdk.VirtualThreadPinned,
+ * this class streams these events in-process and groups them by the first
+ * application frame (the synchronized code to replace by a ReentrantLock, see
+ * BlockingVirtualThreadsUsingReentrantLockPinningFix).
+ *
+ * Without code: java -Djdk.tracePinnedThreads=full ... prints the stack of every
+ * pinned thread to System.out.
+ * </pre>
+ */
+public class PinningMonitor implements AutoCloseable {
+
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	private final Duration threshold;
+	private final ConcurrentHashMap<String, Site> sites = new ConcurrentHashMap<>();
+	private final AtomicLong pinnedCount = new AtomicLong();
+	private volatile RecordingStream stream;
+
+	/** where threads got pinned, and how often */
+	static final class Site {
+		final String stackTrace;
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong totalNanos = new AtomicLong();
+		final AtomicLong maxNanos = new AtomicLong();
+
+		Site(String stackTrace) {
+			this.stackTrace = stackTrace;
+		}
+	}
+
+	/**
+	 * @param threshold pinned blocks shorter than this are ignored, JFR's default
+	 *                  is 20ms
+	 */
+	public PinningMonitor(Duration threshold) {
+		this.threshold = threshold;
+	}
+
+	public synchronized void start() {
+		if (stream != null) {
+			return;
+		}
+		RecordingStream recordingStream = new RecordingStream();
+		recordingStream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+		recordingStream.setMaxAge(Duration.ofSeconds(10));
+		recordingStream.onEvent(PINNED_EVENT, this::onPinned);
+		recordingStream.startAsync();
+		stream = recordingStream;
+	}
+
+	private void onPinned(RecordedEvent event) {
+		RecordedStackTrace stackTrace = event.getStackTrace();
+		String site = stackTrace == null ? "unknown" : applicationFrame(stackTrace);
+		Site s = sites.computeIfAbsent(site, k -> new Site(format(stackTrace)));
+		long nanos = event.getDuration().toNanos();
+		s.count.incrementAndGet();
+		s.totalNanos.addAndGet(nanos);
+		s.maxNanos.accumulateAndGet(nanos, Math::max);
+		pinnedCount.incrementAndGet();
+	}
+
+	/** first frame that is not JDK code, i.e. the code holding the monitor */
+	private static String applicationFrame(RecordedStackTrace stackTrace) {
+		for (RecordedFrame frame : stackTrace.getFrames()) {
+			String type = frame.getMethod().getType().getName();
+			if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+				return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+			}
+		}
+		RecordedFrame top = stackTrace.getFrames().isEmpty() ? null : stackTrace.getFrames().get(0);
+		return top == null ? "unknown" : top.getMethod().getType().getName() + "." + top.getMethod().getName();
+	}
+
+	private static String format(RecordedStackTrace stackTrace) {
+		if (stackTrace == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (RecordedFrame frame : stackTrace.getFrames()) {
+			sb.append("\tat ").append(frame.getMethod().getType().getName()).append('.')
+					.append(frame.getMethod().getName()).append(':').append(frame.getLineNumber()).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public long getPinnedCount() {
+		return pinnedCount.get();
+	}
+
+	public int getSiteCount() {
+		return sites.size();
+	}
+
+	/**
+	 * Pinning sites, most frequent first, with the stack trace of the first event
+	 * of each site.
+	 */
+	public String report() {
+		if (stream == null) {
+			return "pinning monitor not started";
+		}
+		List<java.util.Map.Entry<String, Site>> sorted = new ArrayList<>(sites.entrySet());
+		sorted.sort(Comparator.comparingLong((java.util.Map.Entry<String, Site> e) -> e.getValue().count.get())
+				.reversed());
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("pinned virtual threads: %d (threshold %dms), sites: %d%n", pinnedCount.get(),
+				threshold.toMillis(), sorted.size()));
+		for (java.util.Map.Entry<String, Site> entry : sorted) {
+			Site site = entry.getValue();
+			sb.append(String.format("%n%s  pinned %d times, total %dms, max %dms%n%s", entry.getKey(),
+					site.count.get(), TimeUnit.NANOSECONDS.toMillis(site.totalNanos.get()),
+					TimeUnit.NANOSECONDS.toMillis(site.maxNanos.get()), site.stackTrace));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized void close() {
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+	}
+
+	/**
+	 * 20 virtual threads blocking inside synchronized: pinned. The same with a
+	 * ReentrantLock: not pinned.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		try (PinningMonitor monitor = new PinningMonitor(Duration.ofMillis(5))) {
+			monitor.start();
+			Thread.sleep(500); // let the stream start
+
+			Object monitorLock = new Object();
+			runVirtualThreads(20, () -> {
+				synchronized (monitorLock) {
+					sleep(10);
+				}
+			});
+			ReentrantLock lock = new ReentrantLock();
+			runVirtualThreads(20, () -> {
+				lock.lock();
+				try {
+					sleep(10);
+				} finally {
+					lock.unlock();
+				}
+			});
+
+			Thread.sleep(2_000); // events are flushed about once a second
+			System.out.println(monitor.report());
+		}
+	}
+
+	private static void runVirtualThreads(int n, Runnable task) throws InterruptedException {
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			threads.add(Thread.ofVirtual().start(task));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
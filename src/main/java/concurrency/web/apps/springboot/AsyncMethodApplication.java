@@ -2,23 +2,21 @@ package concurrency.web.apps.springboot;
 
 import static concurrency.part3.async.api.completablefuture.java11.httpclient.Util.DOMAINS_TXT2;
 
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.List;
+import java.time.Duration;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.stream.Collectors;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import concurrency.part3.async.api.completablefuture.java11.httpclient.LinkValidator;
+import concurrency.virtual.threads.api.PinningMonitor;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -56,7 +54,6 @@ import lombok.extern.slf4j.Slf4j;
 public class AsyncMethodApplication {
 	
 	private LookupService lookupService;
-	private static HttpClient httpClient;
 	
 	/*
 	 * public Application(LookupService lookupService) { this.lookupService =
@@ -77,9 +74,22 @@ public class AsyncMethodApplication {
 	 * https://docs.spring.io/spring-framework/docs/current/spring-framework-reference/integration.html#scheduling-task-executor
 	 * 
 	 * @Bean(name = "taskExecutor")
+	 * 
+	 * With the "virtual" profile (spring.threads.virtual.enabled=true) every @Async
+	 * call runs on its own virtual thread, like the Tomcat requests: no 5 thread
+	 * limit, blocking calls just unmount the virtual thread.
+	 * 
+	 * <pre>
+	 * mvn spring-boot:run -Dspring-boot.run.profiles=virtual
+	 * </pre>
 	 */
 	@Bean
-	public Executor taskExecutor() {
+	public Executor taskExecutor(@Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+		if (virtualThreads) {
+			SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("LookupThread-");
+			executor.setVirtualThreads(true);
+			return executor;
+		}
 		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
 		//log.debug("Creating Async Task Executor");
 		executor.setCorePoolSize(5);
@@ -89,7 +99,45 @@ public class AsyncMethodApplication {
 		executor.initialize();
 		return executor;
 	}
-	
+
+	/**
+	 * Runs the GitHub calls of the LookupService cache. It must be a different pool
+	 * than taskExecutor: @Async findUsers() waits for the lookups, so with a shared
+	 * pool 5 concurrent findUsers() would wait for lookups which never get a
+	 * thread.
+	 *
+	 * With two Executor beans @Async still picks the one named taskExecutor.
+	 * 
+	 * lookup.executor=virtual runs every lookup on its own virtual thread instead,
+	 * then lookup.fan-out.max-in-flight limits the concurrent GitHub calls of one
+	 * request and lookup.bulkhead.permits those of all requests.
+	 */
+	@Bean
+	public Executor lookupExecutor(@Value("${lookup.executor:platform}") String type) {
+		if ("virtual".equalsIgnoreCase(type)) {
+			SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor("GitHubLookup-");
+			executor.setVirtualThreads(true);
+			return executor;
+		}
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(10);
+		executor.setMaxPoolSize(10);
+		executor.setQueueCapacity(1000);
+		executor.setThreadNamePrefix("GitHubLookup-");
+		executor.initialize();
+		return executor;
+	}
+
+	/**
+	 * Reports virtual threads pinned by synchronized + blocking I/O, see
+	 * http://localhost:9999/pinning
+	 */
+	@Bean(initMethod = "start", destroyMethod = "close")
+	@Profile("virtual")
+	public PinningMonitor pinningMonitor(@Value("${lookup.pinning.threshold:20ms}") Duration threshold) {
+		return new PinningMonitor(threshold);
+	}
+
 	public void run2(String... args) throws Exception {
 		long start = System.currentTimeMillis();
 		//log.info("Time start: " + new Date(System.currentTimeMillis()));
@@ -115,30 +163,11 @@ public class AsyncMethodApplication {
 		//log.info("Elapsed time: " + (System.currentTimeMillis() - start));
 		
 		////second part  
-		httpClient = HttpClient.newHttpClient();
-		List<CompletableFuture<String>> completableFutureStringListResponse = Files.lines(Path.of(DOMAINS_TXT2))
-				.map(AsyncMethodApplication::validateLink).collect(Collectors.toList());
-		completableFutureStringListResponse.stream().map(CompletableFuture::join).forEach(System.out::println);
-		// CPU intensive calc
-//		completableFutureStringListResponse.stream().map(CompletableFuture::join).forEach(v -> {
-//			long s = (long) (Math.random() *10 + 1);
-//			Random generator = new Random(s);
-//			heavySum(generator.nextInt());
-//			System.out.println(v);
-//		});
+		LinkValidator.Summary summary = LinkValidator.newBuilder().build().validate(DOMAINS_TXT2,
+				result -> System.out.println(result.link() + (result.isOk() ? " access OK  " : " access Failed")));
+		System.out.println(summary);
  
 		System.out.println("Result with Spring @Async");
 	}
 
-	private static CompletableFuture<String> validateLink(String link) {
-		HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(link)).GET().build();
-
-		// including exception handling
-		return httpClient.sendAsync(httpRequest, HttpResponse.BodyHandlers.discarding())
-				.thenApply(
-						asynResult -> 200 == asynResult.statusCode() ? link + " access OK  " : link + " access Failed")
-				.exceptionally(e -> "Error occured once accessing to " + link + ", reasonis: " + e.getMessage());
-
-	}
-
 }
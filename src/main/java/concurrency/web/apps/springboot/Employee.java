@@ -1,4 +1,4 @@
 package concurrency.web.apps.springboot;
 
-public record Employee(String name, String age) {
+public record Employee(String id, String name, String age) {
 }
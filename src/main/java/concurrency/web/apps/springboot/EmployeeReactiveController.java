@@ -1,16 +1,29 @@
 package concurrency.web.apps.springboot;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.util.List;
 
+import org.reactivestreams.Subscription;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import io.reactivex.Observable;
+import reactor.core.publisher.BaseSubscriber;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 /**
  * See also functional programming model {@link EmployeeRouterFunctionalRequestHandlerController} 
@@ -19,34 +32,109 @@ import reactor.core.publisher.Mono;
 @RequestMapping("/employees")
 public class EmployeeReactiveController {
 
-	// private final EmployeeRepository employeeRepository; TODO
+	private final EmployeeRepository employeeRepository;
+	private final ObjectMapper objectMapper;
+
+	public EmployeeReactiveController(EmployeeRepository employeeRepository, ObjectMapper objectMapper) {
+		this.employeeRepository = employeeRepository;
+		this.objectMapper = objectMapper;
+	}
 
 	// http://localhost:9999/employees/87
 	@GetMapping("/{id}")
 	public Mono<Employee> getEmployeeById(@PathVariable String id) {
-		// return employeeRepository.findEmployeeById(id);
-		Employee user = new Employee("Alma", id);
-
-		return Mono.just(user);
+		return employeeRepository.findEmployeeById(id)
+				.switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND)));
 	}
 
+	/**
+	 * All employees as ONE JSON array. Spring MVC collects the whole Flux into a
+	 * List before it writes the first byte, use the streaming variants below for
+	 * long lists.
+	 */
 	// http://localhost:9999/employees
 	@GetMapping
 	public Flux<Employee> getEmployees() {
-		// return employeeRepository.findAllEmployees();
-		Employee user1 = new Employee("Hurma", "85");
-		Employee user2 = new Employee("Enar", "47");
-		Employee user3 = new Employee("Uzum", "53");
+		return employeeRepository.findAllEmployees();
+	}
 
-		return Flux.just(user1, user2, user3).delayElements(Duration.ofMillis(500));
+	/**
+	 * The same employees, STREAMED: one JSON document per line (NDJSON) or one
+	 * Server-Sent Event per employee, written while they are read from the
+	 * repository, see {@link BatchingEmitterSubscriber}.
+	 * 
+	 * <pre>
+	 * curl -H "Accept: application/x-ndjson" http://localhost:9999/employees
+	 * curl -H "Accept: text/event-stream" "http://localhost:9999/employees?batch=1"
+	 * </pre>
+	 * 
+	 * @param batch   employees per network write, 1 = write and flush each one
+	 * @param flushMs a batch which is not full is written after this time
+	 */
+	@GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+	public ResponseEntity<ResponseBodyEmitter> streamEmployeesAsNdjson(
+			@RequestParam(defaultValue = "" + BatchingEmitterSubscriber.DEFAULT_BATCH) int batch,
+			@RequestParam(defaultValue = "" + BatchingEmitterSubscriber.DEFAULT_FLUSH_MS) long flushMs) {
+		return stream(MediaType.APPLICATION_NDJSON, employee -> objectMapper.writeValueAsString(employee) + "\n",
+				batch, flushMs);
+	}
+
+	@GetMapping(produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	public ResponseEntity<ResponseBodyEmitter> streamEmployeesAsServerSentEvents(
+			@RequestParam(defaultValue = "" + BatchingEmitterSubscriber.DEFAULT_BATCH) int batch,
+			@RequestParam(defaultValue = "" + BatchingEmitterSubscriber.DEFAULT_FLUSH_MS) long flushMs) {
+		return stream(MediaType.TEXT_EVENT_STREAM,
+				employee -> "id:" + employee.id() + "\nevent:employee\ndata:" + objectMapper.writeValueAsString(employee)
+						+ "\n\n",
+				batch, flushMs);
+	}
+
+	private ResponseEntity<ResponseBodyEmitter> stream(MediaType mediaType, JsonFormatter format, int batch,
+			long flushMs) {
+		ResponseBodyEmitter emitter = new ResponseBodyEmitter(-1L); // no timeout, streams may be long
+		Flux<String> batches = employeeRepository.findAllEmployees().map(format::formatUnchecked)
+				.bufferTimeout(Math.max(1, Math.min(batch, 1_000)), Duration.ofMillis(Math.max(1, flushMs)), true)
+				.map(lines -> String.join("", lines));
+		// emitter.send() blocks while the client is slow: never on the parallel
+		// thread bufferTimeout flushes its partial batches on, nor on an R2DBC
+		// thread. prefetch 1 keeps the one batch at a time backpressure
+		batches.publishOn(Schedulers.boundedElastic(), 1)
+				.subscribe(new BatchingEmitterSubscriber(emitter, mediaType));
+		return ResponseEntity.ok().contentType(mediaType).header("Cache-Control", "no-cache")
+				.header("X-Accel-Buffering", "no").body(emitter);
+	}
+
+	@FunctionalInterface
+	interface JsonFormatter {
+		String format(Employee employee) throws JsonProcessingException;
+
+		default String formatUnchecked(Employee employee) {
+			try {
+				return format(employee);
+			} catch (JsonProcessingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	// http://localhost:9999/employees/page?after=87&size=10
+	@GetMapping("/page")
+	public Flux<Employee> getEmployeesPage(@RequestParam(required = false) String after,
+			@RequestParam(defaultValue = "" + EmployeeRepository.DEFAULT_PAGE_SIZE) int size) {
+		return employeeRepository.findEmployeesAfter(after, Math.min(size, 1_000));
+	}
+
+	// http://localhost:9999/employees/name/Alma
+	@GetMapping("/name/{name}")
+	public Flux<Employee> getEmployeesByName(@PathVariable String name) {
+		return employeeRepository.findEmployeesByName(name);
 	}
 
 	@GetMapping("/iterable")
 	public Flux<Employee> getEmps() {
-		// return employeeRepository.findAllEmployees();
-		Employee user1 = new Employee("Hurma", "85");
-		Employee user2 = new Employee("Enar", "47");
-		Employee user3 = new Employee("Uzum", "53");
+		Employee user1 = new Employee("1", "Hurma", "85");
+		Employee user2 = new Employee("2", "Enar", "47");
+		Employee user3 = new Employee("3", "Uzum", "53");
 
 		return Flux.fromIterable(List.of(user1, user2, user3));
 	}
@@ -61,13 +149,71 @@ public class EmployeeReactiveController {
 	 */
 	@GetMapping("/iterableRx")
 	public Observable<Employee> getEmpz() {
-		// return employeeRepository.findAllEmployees();
-		Employee user1 = new Employee("Hurma", "85");
-		Employee user2 = new Employee("Enar", "47");
-		Employee user3 = new Employee("Uzum", "53");
+		return Observable.fromPublisher(employeeRepository.findAllEmployees().take(3));
+
+	}
+
+}
+
+/**
+ * Writes batches of pre formatted employees to a streaming HTTP response, ONE
+ * batch at a time:
+ *
+ * <pre>
+ * request(1) -> batch arrives -> emitter.send() (blocks while the client's TCP
+ * window is full) -> request(1) -> ...
+ * </pre>
+ *
+ * so a slow client slows the repository down instead of filling the heap.
+ * bufferTimeout(batch, flushMs, fairBackpressure) in front of it joins small
+ * employees into one network write (one flush), but never holds a partial batch
+ * longer than flushMs. A client which disconnects cancels the subscription.
+ *
+ * send() blocks: subscribe it behind publishOn(Schedulers.boundedElastic()),
+ * never directly on a parallel or event loop thread. Batches sent before the
+ * handler has returned are held by the emitter until the response is
+ * committed, at most a batch or two with publishOn's prefetch of 1.
+ */
+class BatchingEmitterSubscriber extends BaseSubscriber<String> {
+
+	static final int DEFAULT_BATCH = 64;
+	static final long DEFAULT_FLUSH_MS = 20;
 
-		return Observable.fromArray(user1, user2, user3);
+	private final ResponseBodyEmitter emitter;
+	private final MediaType mediaType;
 
+	BatchingEmitterSubscriber(ResponseBodyEmitter emitter, MediaType mediaType) {
+		this.emitter = emitter;
+		this.mediaType = mediaType;
+		emitter.onCompletion(this::dispose);
+		emitter.onTimeout(this::dispose);
+		emitter.onError(e -> dispose());
 	}
 
+	@Override
+	protected void hookOnSubscribe(Subscription subscription) {
+		request(1);
+	}
+
+	@Override
+	protected void hookOnNext(String batch) {
+		try {
+			emitter.send(batch, mediaType);
+			request(1);
+		} catch (IOException | IllegalStateException e) {
+			// client gone or response already completed
+			cancel();
+			emitter.completeWithError(e);
+		}
+	}
+
+	@Override
+	protected void hookOnComplete() {
+		emitter.complete();
+	}
+
+	@Override
+	protected void hookOnError(Throwable throwable) {
+		emitter.completeWithError(throwable);
+	}
 }
@@ -0,0 +1,95 @@
+package concurrency.web.apps.springboot;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.stream.IntStream;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Employees for {@link EmployeeReactiveController},
+ * {@link EmployeeSpringMVCController} and
+ * {@link EmployeeRouterFunctionalRequestHandlerController}.
+ *
+ * <pre>
+ * InMemoryEmployeeRepository: ConcurrentSkipListMap by id + index by name
+ * R2dbcEmployeeRepository:    reactive SQL (R2DBC), H2 in memory by default
+ *
+ * choose with employees.repository=memory|r2dbc
+ * </pre>
+ *
+ * findAllEmployees() never loads all employees into memory. It pulls PAGES of
+ * pageSize employees, ordered by id, and queries the next page only when the
+ * subscriber has consumed the current one and requests more (KEYSET paging:
+ * "id > last id of the previous page", no OFFSET to skip over). A slow client
+ * therefore holds at most one page open, however many employees there are.
+ */
+public interface EmployeeRepository {
+
+	int DEFAULT_PAGE_SIZE = 100;
+
+	Mono<Employee> findEmployeeById(String id);
+
+	/**
+	 * One page: at most limit employees with an id greater than afterId, ordered
+	 * by id.
+	 *
+	 * @param afterId null for the first page
+	 */
+	Flux<Employee> findEmployeesAfter(String afterId, int limit);
+
+	Flux<Employee> findEmployeesByName(String name);
+
+	Mono<Employee> add(Employee employee);
+
+	Mono<Long> count();
+
+	int getPageSize();
+
+	/** all employees ordered by id, streamed page by page on demand */
+	default Flux<Employee> findAllEmployees() {
+		return streamPages(this::findEmployeesAfter, getPageSize());
+	}
+
+	/**
+	 * Keyset paging driven by demand: generate() emits a "next page" tick only
+	 * when it is requested, and concatMap without prefetch (0) requests the next
+	 * tick only when the current page is finished AND the subscriber still wants
+	 * more. A subscriber which stops requesting stops the queries, and rows of
+	 * the running page are requested from the driver one by one as well.
+	 *
+	 * The last id seen is the start of the next page, a page with less than
+	 * pageSize employees is the last one.
+	 */
+	static Flux<Employee> streamPages(BiFunction<String, Integer, Flux<Employee>> pageQuery, int pageSize) {
+		return Flux.defer(() -> {
+			AtomicReference<String> lastId = new AtomicReference<>();
+			AtomicBoolean lastPage = new AtomicBoolean();
+			return Flux.<Boolean>generate(sink -> {
+				if (lastPage.get()) {
+					sink.complete();
+				} else {
+					sink.next(Boolean.TRUE);
+				}
+			}).concatMap(nextPage -> {
+				AtomicInteger rows = new AtomicInteger();
+				return pageQuery.apply(lastId.get(), pageSize).doOnNext(employee -> {
+					lastId.set(employee.id());
+					rows.incrementAndGet();
+				}).doOnComplete(() -> lastPage.set(rows.get() < pageSize));
+			}, 0);
+		});
+	}
+
+	/** test data, names of fruits like the old hard coded employees */
+	static List<Employee> sampleEmployees(int n) {
+		String[] names = { "Alma", "Hurma", "Enar", "Uzum", "Erik", "Armyt", "Garpyz", "Injir" };
+		return IntStream.rangeClosed(1, n)
+				.mapToObj(i -> new Employee(Integer.toString(i), names[i % names.length], Integer.toString(20 + i % 45)))
+				.toList();
+	}
+}
@@ -0,0 +1,47 @@
+package concurrency.web.apps.springboot;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+
+/**
+ * employees.repository=memory (default) or r2dbc, and employees.seed sample
+ * employees added at startup.
+ */
+@Configuration
+@Slf4j
+public class EmployeeRepositoryConfig {
+
+	@Bean
+	@ConditionalOnProperty(name = "employees.repository", havingValue = "memory", matchIfMissing = true)
+	public EmployeeRepository inMemoryEmployeeRepository(
+			@Value("${employees.page-size:" + EmployeeRepository.DEFAULT_PAGE_SIZE + "}") int pageSize) {
+		return new InMemoryEmployeeRepository(pageSize);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "employees.repository", havingValue = "r2dbc")
+	public EmployeeRepository r2dbcEmployeeRepository(DatabaseClient databaseClient,
+			@Value("${employees.page-size:" + EmployeeRepository.DEFAULT_PAGE_SIZE + "}") int pageSize) {
+		R2dbcEmployeeRepository repository = new R2dbcEmployeeRepository(databaseClient, pageSize);
+		repository.initialize().block();
+		return repository;
+	}
+
+	@Bean
+	public ApplicationRunner employeeSeeder(EmployeeRepository employeeRepository,
+			@Value("${employees.seed:1000}") int seed) {
+		return args -> {
+			// 16 adds at a time, not 1 after the other and not all at once
+			Long count = Flux.fromIterable(EmployeeRepository.sampleEmployees(seed))
+					.flatMap(employeeRepository::add, 16).then(employeeRepository.count()).block();
+			log.info("{} employees in {}", count, employeeRepository.getClass().getSimpleName());
+		};
+	}
+}
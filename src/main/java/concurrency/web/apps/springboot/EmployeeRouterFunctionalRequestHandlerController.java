@@ -60,7 +60,11 @@ import reactor.core.publisher.Mono;
 @Configuration
 public class EmployeeRouterFunctionalRequestHandlerController {
 
-	// private final EmployeeRepository employeeRepository; TODO
+	private final EmployeeRepository employeeRepository;
+
+	public EmployeeRouterFunctionalRequestHandlerController(EmployeeRepository employeeRepository) {
+		this.employeeRepository = employeeRepository;
+	}
 
 	/**
 	 * The first thing to notice is that you’ve chosen to statically import a few
@@ -110,15 +114,20 @@ public class EmployeeRouterFunctionalRequestHandlerController {
 				String.class)).andRoute(GET("/bye"), request -> ok().body(just("See ya!"), String.class));
 	}
 
-	// http://localhost:9999/funEmp
+	// http://localhost:9999/funEmp http://localhost:9999/funEmp/87
 	@Bean
 	public RouterFunction<?> routerFunction() {
-		return route(GET("/funEmp"), this::emp);
+		return route(GET("/funEmp"), this::emps).andRoute(GET("/funEmp/{id}"), this::emp);
+	}
+
+	public Mono<ServerResponse> emps(ServerRequest request) {
+		return ServerResponse.ok().body(employeeRepository.findAllEmployees(), Employee.class);
 	}
 
 	public Mono<ServerResponse> emp(ServerRequest request) {
-		Employee user = new Employee("Alma", request.pathVariable("id"));
-		return ServerResponse.ok().body(Mono.just(user), Employee.class);
+		return employeeRepository.findEmployeeById(request.pathVariable("id"))
+				.flatMap(employee -> ServerResponse.ok().bodyValue(employee))
+				.switchIfEmpty(ServerResponse.notFound().build());
 	}
 
 }
@@ -1,22 +1,31 @@
 package concurrency.web.apps.springboot;
 
+import java.time.Duration;
+
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 @RestController
 @RequestMapping("/employeez")
 public class EmployeeSpringMVCController {
 
-	// private final EmployeeRepository employeeRepository; TODO
+	private final EmployeeRepository employeeRepository;
+
+	public EmployeeSpringMVCController(EmployeeRepository employeeRepository) {
+		this.employeeRepository = employeeRepository;
+	}
 
+	/**
+	 * Classic MVC: the request thread waits (block) for the reactive repository.
+	 */
 	@GetMapping("/{id}")
 	public Employee getEmployeeById(@PathVariable String id) {
-		// return employeeRepository.findEmployeeById(id);
-		Employee user = new Employee("Alma", id);
-
-		return user;
+		return employeeRepository.findEmployeeById(id).blockOptional(Duration.ofSeconds(5))
+				.orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND));
 	}
 
 }
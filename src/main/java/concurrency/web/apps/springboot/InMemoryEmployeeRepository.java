@@ -0,0 +1,83 @@
+package concurrency.web.apps.springboot;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Thread safe in-memory {@link EmployeeRepository}, no locks:
+ *
+ * <pre>
+ * byId:   ConcurrentSkipListMap, sorted, so a page "after id X" is a tailMap view
+ *         walked lazily, O(log n) to find the start
+ * byName: ConcurrentHashMap name -> sorted set of ids, the secondary index
+ * </pre>
+ *
+ * Iterators of both are weakly consistent: a page being streamed never throws
+ * ConcurrentModificationException while employees are added.
+ */
+public class InMemoryEmployeeRepository implements EmployeeRepository {
+
+	private final ConcurrentSkipListMap<String, Employee> byId = new ConcurrentSkipListMap<>();
+	private final Map<String, Set<String>> byName = new ConcurrentHashMap<>();
+	private final int pageSize;
+
+	public InMemoryEmployeeRepository() {
+		this(DEFAULT_PAGE_SIZE);
+	}
+
+	public InMemoryEmployeeRepository(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	@Override
+	public Mono<Employee> findEmployeeById(String id) {
+		return Mono.fromSupplier(() -> byId.get(id));
+	}
+
+	@Override
+	public Flux<Employee> findEmployeesAfter(String afterId, int limit) {
+		return Flux.defer(() -> {
+			NavigableMap<String, Employee> page = afterId == null ? byId : byId.tailMap(afterId, false);
+			return Flux.fromIterable(page.values()).take(limit, true);
+		});
+	}
+
+	@Override
+	public Flux<Employee> findEmployeesByName(String name) {
+		return Flux.defer(() -> Flux.fromIterable(byName.getOrDefault(name, Collections.emptySet())))
+				.mapNotNull(byId::get);
+	}
+
+	/** adds or replaces the employee with the same id */
+	@Override
+	public Mono<Employee> add(Employee employee) {
+		return Mono.fromSupplier(() -> {
+			// index first: a reader following the index to a not yet added id gets null
+			// and skips it, but never misses an added employee
+			byName.computeIfAbsent(employee.name(), k -> new ConcurrentSkipListSet<>()).add(employee.id());
+			Employee previous = byId.put(employee.id(), employee);
+			if (previous != null && !previous.name().equals(employee.name())) {
+				byName.get(previous.name()).remove(previous.id());
+			}
+			return employee;
+		});
+	}
+
+	@Override
+	public Mono<Long> count() {
+		return Mono.fromSupplier(() -> (long) byId.size());
+	}
+
+	@Override
+	public int getPageSize() {
+		return pageSize;
+	}
+}
@@ -0,0 +1,166 @@
+package concurrency.web.apps.springboot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.sun.net.httpserver.HttpServer;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part2.concurrent.api.StripedCounter;
+import concurrency.virtual.threads.api.PinningMonitor;
+
+/**
+ * Load test of /findAll and /findAllAsynch, once with the default profile
+ * (Tomcat pool of 200 threads, @Async pool of 5 threads, lookup pool of 10
+ * threads) and once with the "virtual" profile (virtual threads everywhere).
+ *
+ * <pre>
+ * - GitHub is replaced by a local stub server which answers every user after
+ *   a fixed latency, so only the server side threading is compared
+ * - every request asks for NEW user names, so no lookup is a cache hit
+ * - closed loop: each client sends its next request when the previous one is
+ *   answered. Simple, but it hides queueing delay (coordinated omission), so
+ *   read p99 as a lower bound
+ *
+ * args: [seconds per run] [concurrent clients] [upstream latency ms] [users per request]
+ * defaults:  10               400                   100                  5
+ * </pre>
+ *
+ * Expect /findAllAsynch on the default profile to be capped by the 5 @Async
+ * threads, and both endpoints to be capped by the 10 lookup threads there.
+ */
+public class LookupLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		int upstreamLatencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int usersPerRequest = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		HttpServer upstream = startStubUpstream(upstreamLatencyMs);
+		String lookupUrl = "http://localhost:" + upstream.getAddress().getPort() + "/users/%s";
+		HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor())
+				.connectTimeout(Duration.ofSeconds(5)).build();
+		AtomicLong userIds = new AtomicLong();
+
+		System.out.printf("%d clients, upstream latency %dms, %d users per request, %ds per run%n", clients,
+				upstreamLatencyMs, usersPerRequest, seconds);
+		try {
+			for (String profile : new String[] { "default", "virtual" }) {
+				ConfigurableApplicationContext context = new SpringApplicationBuilder(AsyncMethodApplication.class)
+						.profiles(profile)
+						.properties("server.port=0", "lookup.url=" + lookupUrl, "spring.main.banner-mode=off",
+								"logging.level.root=warn", "logging.level.concurrency.web.apps.springboot=error",
+								"spring.devtools.restart.enabled=false")
+						.run();
+				try {
+					String base = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+					for (String endpoint : new String[] { "/findAll", "/findAllAsynch" }) {
+						// warm up, then measure
+						run(client, base + endpoint, clients, Math.max(1, seconds / 5), usersPerRequest, userIds);
+						Result result = run(client, base + endpoint, clients, seconds, usersPerRequest, userIds);
+						System.out.printf(
+								"%-8s %-15s %8.1f req/s, errors = %d, partial = %d, p50 = %dms, p99 = %dms, max = %dms%n",
+								profile, endpoint, result.requests / (double) seconds, result.errors, result.partial,
+								TimeUnit.NANOSECONDS.toMillis(result.latencies.getValueAtPercentile(50)),
+								TimeUnit.NANOSECONDS.toMillis(result.latencies.getValueAtPercentile(99)),
+								TimeUnit.NANOSECONDS.toMillis(result.latencies.getMax()));
+					}
+					if (context.containsBean("pinningMonitor")) {
+						System.out.println(context.getBean(PinningMonitor.class).report());
+					}
+				} finally {
+					context.close();
+				}
+			}
+		} finally {
+			upstream.stop(0);
+		}
+	}
+
+	static final class Result {
+		final LatencyHistogram latencies = new LatencyHistogram();
+		final StripedCounter errorCounter = new StripedCounter();
+		final StripedCounter partialCounter = new StripedCounter();
+		long requests;
+		long errors;
+		/** answered, but some lookups failed or timed out */
+		long partial;
+	}
+
+	private static Result run(HttpClient client, String url, int clients, int seconds, int usersPerRequest,
+			AtomicLong userIds) throws InterruptedException {
+		Result result = new Result();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int c = 0; c < clients; c++) {
+				executor.execute(() -> {
+					while (System.nanoTime() < deadline) {
+						String userNames = IntStream.range(0, usersPerRequest)
+								.mapToObj(i -> "user" + userIds.incrementAndGet()).collect(Collectors.joining(","));
+						HttpRequest request = HttpRequest.newBuilder(URI.create(url + "?userNames=" + userNames))
+								.timeout(Duration.ofSeconds(30)).build();
+						long start = System.nanoTime();
+						try {
+							HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+							if (response.statusCode() != 200) {
+								result.errorCounter.increment();
+							} else if (response.body().split("\"name\":", -1).length - 1 < usersPerRequest) {
+								result.partialCounter.increment();
+							}
+						} catch (IOException e) {
+							result.errorCounter.increment();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							return;
+						}
+						result.latencies.record(System.nanoTime() - start);
+					}
+				});
+			}
+		}
+		result.requests = result.latencies.getCount();
+		result.errors = result.errorCounter.sum();
+		result.partial = result.partialCounter.sum();
+		return result;
+	}
+
+	/** answers /users/{name} like api.github.com after latencyMs, on virtual threads */
+	private static HttpServer startStubUpstream(int latencyMs) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+		server.createContext("/users/", exchange -> {
+			try {
+				Thread.sleep(latencyMs);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String name = exchange.getRequestURI().getPath().substring("/users/".length());
+			byte[] body = ("{\"name\":\"" + name + "\",\"url\":\"https://api.github.com/users/" + name + "\"}")
+					.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		return server;
+	}
+}
@@ -1,6 +1,7 @@
 package concurrency.web.apps.springboot;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -13,6 +14,7 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import concurrency.virtual.threads.api.PinningMonitor;
 import lombok.extern.slf4j.Slf4j;
 
 @RestController
@@ -22,6 +24,9 @@ public class LookupResource {
 	@Autowired
 	private LookupService lookupService;
 
+	@Autowired(required = false)
+	private PinningMonitor pinningMonitor;
+
 	/**
 	 * PivotalSoftware, CloudFoundry, Spring-Projects ,asatklichov, teverett,
 	 * johnpapa ,LSP ,DAP, code4z
@@ -63,19 +68,19 @@ public class LookupResource {
 
 	@ResponseBody
 	@RequestMapping(value = "/findAllAsynch", method = RequestMethod.GET)
-	public List<User> findAllUsersAsynch(@RequestParam List<String> userNames) throws InterruptedException {
+	public CompletableFuture<ResponseEntity<List<User>>> findAllUsersAsynch(@RequestParam List<String> userNames)
+			throws InterruptedException {
 
 		long start = System.currentTimeMillis();
 		// log.info("Time start: " + new Date(System.currentTimeMillis()));
 
-		// CompletableFuture<List<User>>
-
-		return (List<User>) lookupService.findUsers(userNames).<ResponseEntity>thenApply(ResponseEntity::ok)
-				.exceptionally(handleGetCarFailure);
+		// returning the CompletableFuture itself frees the Tomcat thread, Spring MVC
+		// writes the response once it completes
+		return lookupService.findUsers(userNames).thenApply(ResponseEntity::ok).exceptionally(handleGetCarFailure);
 
 	}
 
-	private static Function<Throwable, ResponseEntity<? extends List<User>>> handleGetCarFailure = throwable -> {
+	private static Function<Throwable, ResponseEntity<List<User>>> handleGetCarFailure = throwable -> {
 		// log.error("Failed to read records: {}", throwable);
 		return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
 	};
@@ -124,4 +129,45 @@ public class LookupResource {
 
 	}
 
+	/*
+	 * http://localhost:9999/cacheStats
+	 * 
+	 */
+	@ResponseBody
+	@RequestMapping(value = "/cacheStats", method = RequestMethod.GET)
+	public String getCacheStats() {
+		return lookupService.getUserCache().toString();
+	}
+
+	/*
+	 * http://localhost:9999/latency, percentiles of every user lookup
+	 * 
+	 */
+	@ResponseBody
+	@RequestMapping(value = "/latency", method = RequestMethod.GET)
+	public String getLatency() {
+		return lookupService.getFanOut().getLatencies().toString();
+	}
+
+	/*
+	 * http://localhost:9999/bulkhead, GitHub calls in flight and wait times
+	 * 
+	 */
+	@ResponseBody
+	@RequestMapping(value = "/bulkhead", method = RequestMethod.GET)
+	public String getBulkhead() {
+		return lookupService.getBulkhead() + "\nwait: " + lookupService.getBulkhead().getWaitTime();
+	}
+
+	/*
+	 * http://localhost:9999/pinning, only with the "virtual" profile
+	 * 
+	 */
+	@ResponseBody
+	@RequestMapping(value = "/pinning", method = RequestMethod.GET)
+	public String getPinning() {
+		return pinningMonitor == null ? "Pinning monitor is off, run with the \"virtual\" profile"
+				: pinningMonitor.report();
+	}
+
 }
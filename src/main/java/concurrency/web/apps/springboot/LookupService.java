@@ -1,35 +1,96 @@
 package concurrency.web.apps.springboot;
 
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import concurrency.part2.concurrent.api.BulkheadSemaphore;
+import concurrency.part2.concurrent.api.ParallelFanOut;
+import concurrency.part2.concurrent.api.ParallelFanOut.FanOutResult;
+import concurrency.part2.concurrent.api.RefreshingAsyncCache;
 import lombok.extern.slf4j.Slf4j;
 
 @Service
 @Slf4j
 public class LookupService {
 
-	// https://api.github.com/users/asatklichov
-	private static final String URL = "https://api.github.com/users/%s";
-
 	private final RestTemplate restTemplate;
 
-	public LookupService(RestTemplateBuilder restTemplateBuilder) {
+	// https://api.github.com/users/asatklichov, configurable to point it to a stub
+	// server
+	private final String url;
+
+	private final RefreshingAsyncCache<String, User> userCache;
+
+	private final ParallelFanOut fanOut;
+
+	private final BulkheadSemaphore bulkhead;
+
+	/**
+	 * GitHub lookups are cached: concurrent lookups of the same user share one
+	 * call, values older than refresh-after-write are reloaded in the background
+	 * and dropped after expire-after-write.
+	 * 
+	 * The loads run on lookupExecutor, NOT on the @Async taskExecutor, whose
+	 * threads wait for them.
+	 * 
+	 * findAllByUserNames looks up to max-in-flight users at the same time, each
+	 * with its own timeout. max-in-flight=1 is the old one-after-the-other loop.
+	 * 
+	 * max-in-flight is per request, the bulkhead limits the GitHub calls of all
+	 * requests together. Its permits must be fewer than the platform
+	 * lookupExecutor's 10 threads to limit anything, with lookup.executor=virtual
+	 * it is the only global limit.
+	 */
+	public LookupService(RestTemplateBuilder restTemplateBuilder,
+			@Qualifier("lookupExecutor") Executor lookupExecutor,
+			@Value("${lookup.url:https://api.github.com/users/%s}") String url,
+			@Value("${lookup.cache.maximum-size:1000}") long maximumSize,
+			@Value("${lookup.cache.refresh-after-write:1m}") Duration refreshAfterWrite,
+			@Value("${lookup.cache.expire-after-write:10m}") Duration expireAfterWrite,
+			@Value("${lookup.fan-out.max-in-flight:8}") int maxInFlight,
+			@Value("${lookup.fan-out.timeout:5s}") Duration timeout,
+			@Value("${lookup.bulkhead.permits:8}") int bulkheadPermits) {
 		this.restTemplate = restTemplateBuilder.build();
+		this.url = url;
+		this.userCache = RefreshingAsyncCache.<String, User>newBuilder(this::fetchUser, lookupExecutor)
+				.maximumSize(maximumSize).refreshAfterWrite(refreshAfterWrite).expireAfterWrite(expireAfterWrite)
+				.build();
+		this.fanOut = new ParallelFanOut(maxInFlight, timeout);
+		this.bulkhead = new BulkheadSemaphore(bulkheadPermits);
+	}
+
+	/**
+	 * the blocking GitHub call, only used by the cache. A lookup executor thread
+	 * waits for a bulkhead permit, a virtual one unmounts meanwhile.
+	 */
+	private User fetchUser(String userName) {
+		try {
+			bulkhead.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted waiting for the bulkhead", e);
+		}
+		try {
+			return restTemplate.getForObject(String.format(url, userName), User.class);
+		} finally {
+			bulkhead.release();
+		}
 	}
 
 	/**
-	 * To compare how long this takes without the asynchronous feature, try
-	 * commenting out the @Async annotation and runing the service again. The total
-	 * elapsed time should increase noticeably, because each query takes at least a
-	 * second. You can also tune the Executor to increase the corePoolSize attribute
-	 * for instance.
+	 * Cached, never blocks. No @Async any more: the cache already runs the
+	 * GitHub call on lookupExecutor and returns a completed future on a hit. To
+	 * compare: the first lookup of a user takes at least a second, the next ones
+	 * are immediate.
 	 * 
 	 * https://docs.spring.io/spring-framework/docs/current/spring-framework-reference/integration.html#scheduling-task-executor
 	 * 
@@ -37,14 +98,10 @@ public class LookupService {
 	 * @return
 	 * @throws InterruptedException
 	 */
-	@Async
 	public CompletableFuture<User> findUser(String userName) throws InterruptedException {
 		
 		//log.info("Looking up " + userName);
-		User user = restTemplate.getForObject(String.format(URL, userName), User.class);
-		// delay to demon
-		// Thread.sleep(3000L);
-		return CompletableFuture.completedFuture(user);
+		return userCache.get(userName);
 	}
 
 	/**
@@ -60,13 +117,40 @@ public class LookupService {
 		return CompletableFuture.completedFuture(findAllByUserNames(userNames));
 	}
 
+	/**
+	 * Users in the order of userNames. PARTIAL result: users which failed or timed
+	 * out are left out, see {@link #findAllByUserNamesWithFailures(List)}.
+	 */
 	public List<User> findAllByUserNames(List<String> userNames) {
-		List<User> users = new ArrayList<User>();
-		userNames.forEach(userName -> {
-			users.add(restTemplate.getForObject(String.format(URL, userName), User.class));
-		});
+		FanOutResult<User> result = findAllByUserNamesWithFailures(userNames).join();
+		for (int i = 0; i < result.size(); i++) {
+			if (!result.isSuccess(i)) {
+				log.warn("Lookup of {} failed: {}", userNames.get(i), result.getFailure(i).toString());
+			}
+		}
+		return result.getValues();
+	}
+
+	/**
+	 * Looks up every user concurrently, at most lookup.fan-out.max-in-flight at a
+	 * time, and tells which lookups failed.
+	 */
+	public CompletableFuture<FanOutResult<User>> findAllByUserNamesWithFailures(List<String> userNames) {
+		return fanOut.invokeAll(userNames, userCache::get);
+	}
+
+	/** latency of every lookup, cache hits included */
+	public ParallelFanOut getFanOut() {
+		return fanOut;
+	}
+
+	/** GitHub calls in flight, wait times for a permit; setPermits() resizes it */
+	public BulkheadSemaphore getBulkhead() {
+		return bulkhead;
+	}
 
-		return users;
+	public RefreshingAsyncCache<String, User> getUserCache() {
+		return userCache;
 	}
 
 }
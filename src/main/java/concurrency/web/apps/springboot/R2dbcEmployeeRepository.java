@@ -0,0 +1,95 @@
+package concurrency.web.apps.springboot;
+
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import io.r2dbc.spi.Readable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive SQL {@link EmployeeRepository}: R2DBC drivers send the query and
+ * return rows as a Publisher, no thread is blocked while waiting for the
+ * database, and rows are read from the connection as they are requested.
+ *
+ * <pre>
+ * page query, the index of the primary key finds the first row directly:
+ *   SELECT id, name, age FROM employee WHERE id > :afterId ORDER BY id LIMIT :limit
+ * </pre>
+ *
+ * By default Spring Boot gives an in-memory H2 database (r2dbc-h2), set
+ * spring.r2dbc.url for a real one, e.g. r2dbc:postgresql://localhost/employees.
+ */
+public class R2dbcEmployeeRepository implements EmployeeRepository {
+
+	private static final String COLUMNS = "SELECT id, name, age FROM employee";
+
+	private final DatabaseClient client;
+	private final int pageSize;
+
+	public R2dbcEmployeeRepository(DatabaseClient client) {
+		this(client, DEFAULT_PAGE_SIZE);
+	}
+
+	public R2dbcEmployeeRepository(DatabaseClient client, int pageSize) {
+		this.client = client;
+		this.pageSize = pageSize;
+	}
+
+	/** creates the table and the name index unless they exist */
+	public Mono<Void> initialize() {
+		return client
+				.sql("CREATE TABLE IF NOT EXISTS employee (id VARCHAR(36) PRIMARY KEY, name VARCHAR(255) NOT NULL, "
+						+ "age VARCHAR(8))")
+				.then().then(client.sql("CREATE INDEX IF NOT EXISTS employee_name ON employee (name)").then());
+	}
+
+	@Override
+	public Mono<Employee> findEmployeeById(String id) {
+		return client.sql(COLUMNS + " WHERE id = :id").bind("id", id).map(R2dbcEmployeeRepository::toEmployee).one();
+	}
+
+	@Override
+	public Flux<Employee> findEmployeesAfter(String afterId, int limit) {
+		if (afterId == null) {
+			return client.sql(COLUMNS + " ORDER BY id LIMIT :limit").bind("limit", limit)
+					.map(R2dbcEmployeeRepository::toEmployee).all();
+		}
+		return client.sql(COLUMNS + " WHERE id > :afterId ORDER BY id LIMIT :limit").bind("afterId", afterId)
+				.bind("limit", limit).map(R2dbcEmployeeRepository::toEmployee).all();
+	}
+
+	@Override
+	public Flux<Employee> findEmployeesByName(String name) {
+		return client.sql(COLUMNS + " WHERE name = :name ORDER BY id").bind("name", name)
+				.map(R2dbcEmployeeRepository::toEmployee).all();
+	}
+
+	/**
+	 * Replaces the employee with the same id, or inserts it. Not atomic: two
+	 * concurrent adds of the same new id make one of them fail with a duplicate
+	 * key.
+	 */
+	@Override
+	public Mono<Employee> add(Employee employee) {
+		Mono<Long> insert = client.sql("INSERT INTO employee (id, name, age) VALUES (:id, :name, :age)")
+				.bind("id", employee.id()).bind("name", employee.name()).bind("age", employee.age()).fetch()
+				.rowsUpdated();
+		return client.sql("UPDATE employee SET name = :name, age = :age WHERE id = :id").bind("id", employee.id())
+				.bind("name", employee.name()).bind("age", employee.age()).fetch().rowsUpdated()
+				.flatMap(updated -> updated > 0 ? Mono.just(updated) : insert).thenReturn(employee);
+	}
+
+	@Override
+	public Mono<Long> count() {
+		return client.sql("SELECT COUNT(*) AS n FROM employee").map(row -> row.get("n", Long.class)).one();
+	}
+
+	@Override
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	private static Employee toEmployee(Readable row) {
+		return new Employee(row.get("id", String.class), row.get("name", String.class), row.get("age", String.class));
+	}
+}
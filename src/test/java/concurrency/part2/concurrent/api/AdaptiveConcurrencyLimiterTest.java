@@ -0,0 +1,81 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part2.concurrent.api.AdaptiveConcurrencyLimiter.Permit;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void aimdGrowsWhileUsedAndBacksOffOnDrop() {
+		AdaptiveConcurrencyLimiter.Aimd aimd = new AdaptiveConcurrencyLimiter.Aimd(10, 2, 12, 0.5, 1_000 * MS);
+		assertEquals(11, aimd.update(10, 5 * MS, 10, false));
+		assertEquals(10, aimd.update(10, 5 * MS, 2, false)); // not used, not grown
+		assertEquals(12, aimd.update(12, 5 * MS, 12, false)); // max
+		assertEquals(5, aimd.update(10, 5 * MS, 10, true));
+		assertEquals(5, aimd.update(10, 2_000 * MS, 10, false)); // too slow = dropped
+		assertEquals(2, aimd.update(3, 5 * MS, 3, true)); // min
+	}
+
+	@Test
+	public void gradientShrinksWhenRttGrowsBeforeAnyError() {
+		AdaptiveConcurrencyLimiter.Gradient gradient = new AdaptiveConcurrencyLimiter.Gradient(20, 1, 100, 1.5);
+		int limit = 20;
+		for (int i = 0; i < 200; i++) {
+			limit = gradient.update(limit, 10 * MS, limit, false);
+		}
+		int grown = limit;
+		assertTrue(grown > 20, "limit " + grown);
+		for (int i = 0; i < 50; i++) {
+			limit = gradient.update(limit, 50 * MS, limit, false);
+		}
+		assertTrue(limit < grown / 2, grown + " -> " + limit);
+	}
+
+	@Test
+	public void overTheLimitWaitsInFifoOrderThenIsRejected() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("test",
+				new AdaptiveConcurrencyLimiter.Aimd(2, 1, 2, 0.5, 1_000 * MS), 2);
+		Permit first = limiter.acquire().join();
+		Permit second = limiter.tryAcquire();
+		CompletableFuture<Permit> cancelled = limiter.acquire();
+		CompletableFuture<Permit> third = limiter.acquire();
+		CompletableFuture<Permit> rejected = limiter.acquire();
+
+		assertNull(limiter.tryAcquire());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(2, limiter.getQueued());
+		assertTrue(rejected.isCompletedExceptionally());
+		assertTrue(rejected.handle((p, e) -> e instanceof RejectedExecutionException).join());
+
+		cancelled.cancel(false);
+		assertEquals(1, limiter.getQueued(), "a cancelled waiter leaves the queue");
+		CompletableFuture<Permit> fourth = limiter.acquire();
+		assertFalse(fourth.isDone());
+		assertEquals(1, limiter.getRejectedCount(), "the cancelled waiter's place was free");
+		fourth.cancel(false);
+		first.onSuccess();
+		first.onSuccess(); // released once only
+		assertTrue(third.isDone());
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+
+		second.onIgnore();
+		third.join().onDropped();
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(1, limiter.getLimit());
+		assertEquals(1, limiter.getDroppedCount());
+		assertEquals(1, limiter.getRejectedCount());
+	}
+}
@@ -0,0 +1,86 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveForkJoinTest {
+
+	@Test
+	public void reductionsMatchTheSequentialResult() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			AdaptiveForkJoin engine = AdaptiveForkJoin.newBuilder().pool(pool).minChunk(16).build();
+			int[] ints = new Random(1).ints(1_000_003).toArray();
+			long[] longs = new Random(2).longs(100_000, -1_000, 1_000).toArray();
+			double[] doubles = new Random(3).doubles(100_000).toArray();
+
+			assertEquals(Arrays.stream(ints).asLongStream().sum(), engine.sum(ints));
+			assertEquals(Arrays.stream(longs).sum(), engine.sum(longs));
+			assertEquals(Arrays.stream(longs).max().getAsLong(), engine.reduce(longs, Long.MIN_VALUE, Math::max));
+			assertEquals(Arrays.stream(doubles).sum(), engine.sum(doubles), 1e-6);
+			assertEquals(Arrays.stream(doubles).min().getAsDouble(),
+					engine.reduce(doubles, Double.POSITIVE_INFINITY, Math::min));
+			assertEquals(10_000_000L * 9_999_999 / 2, engine.sumRange(0, 10_000_000, i -> i));
+			assertEquals(0, engine.sum(new int[0]));
+			assertTrue(engine.getLeafCount() > 1, "split at all");
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void partsAreCombinedInIndexOrder() {
+		AdaptiveForkJoin engine = AdaptiveForkJoin.newBuilder().minChunk(1).build();
+
+		// first index with i % 1000 == 999: "left if found" is associative but not
+		// commutative, any other order finds a later one
+		long first = engine.reduce(0, 100_000, (from, to) -> {
+			for (long i = from; i < to; i++) {
+				if (i % 1_000 == 999) {
+					return i;
+				}
+			}
+			return -1;
+		}, (left, right) -> left >= 0 ? left : right);
+
+		assertEquals(999, first);
+	}
+
+	@Test
+	public void negativeRangesSplitToo() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			AdaptiveForkJoin engine = AdaptiveForkJoin.newBuilder().pool(pool).minChunk(16).build();
+
+			// -1 - 2 - ... - n = -n(n + 1) / 2
+			assertEquals(-100_000_000L * 100_000_001 / 2, engine.sumRange(-100_000_000, 0, i -> i));
+			assertTrue(engine.getLeafCount() > 1, "split at all");
+			assertEquals(-1_000, engine.sumRange(-1_000, 1_000, i -> i));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void forEachRangeCoversEveryIndexOnce() {
+		AdaptiveForkJoin engine = AdaptiveForkJoin.newBuilder().minChunk(8).build();
+		AtomicIntegerArray visits = new AtomicIntegerArray(100_000);
+
+		engine.forEachRange(0, visits.length(), (from, to) -> {
+			for (long i = from; i < to; i++) {
+				visits.incrementAndGet((int) i);
+			}
+		});
+
+		for (int i = 0; i < visits.length(); i++) {
+			assertEquals(1, visits.get(i), "index " + i);
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class BoundedConcurrentCacheTest {
+
+	@Test
+	public void staysWithinMaximumSize() {
+		BoundedConcurrentCache<Integer, String> cache = BoundedConcurrentCache.<Integer, String>newBuilder()
+				.maximumSize(100).build();
+		for (int i = 0; i < 10_000; i++) {
+			cache.put(i, "v" + i);
+		}
+		cache.cleanUp();
+		assertEquals(100, cache.estimatedSize());
+		assertEquals(100, cache.weightedSize());
+		assertEquals(9_900, cache.stats().evictionCount());
+	}
+
+	@Test
+	public void frequentlyUsedEntriesSurviveAScan() {
+		BoundedConcurrentCache<Integer, String> cache = BoundedConcurrentCache.<Integer, String>newBuilder()
+				.maximumSize(100).build();
+		for (int round = 0; round < 20; round++) {
+			for (int hot = 0; hot < 50; hot++) {
+				cache.computeIfAbsent(hot, k -> "hot");
+			}
+		}
+		for (int cold = 1_000; cold < 11_000; cold++) {
+			cache.put(cold, "cold");
+		}
+		cache.cleanUp();
+		int hotLeft = 0;
+		for (int hot = 0; hot < 50; hot++) {
+			if (cache.containsKey(hot)) {
+				hotLeft++;
+			}
+		}
+		assertTrue(hotLeft >= 45, "hot entries left: " + hotLeft);
+	}
+
+	@Test
+	public void evictsByWeight() {
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumWeight(1_000, (k, v) -> v.length()).build();
+		for (int i = 0; i < 100; i++) {
+			cache.put("k" + i, "x".repeat(100));
+		}
+		cache.cleanUp();
+		assertTrue(cache.weightedSize() <= 1_000);
+		assertTrue(cache.estimatedSize() <= 10);
+	}
+
+	@Test
+	public void theSketchIsSizedByEntriesNotByWeight() {
+		BoundedConcurrentCache<Integer, byte[]> bytes = BoundedConcurrentCache.<Integer, byte[]>newBuilder()
+				.maximumWeight(64 << 20, (k, v) -> v.length).build();
+		assertEquals(8, bytes.sketchCapacity(), "64 MB but no entries yet");
+		for (int i = 0; i < 100; i++) {
+			bytes.put(i, new byte[64 << 10]);
+		}
+		bytes.cleanUp();
+		assertEquals(128, bytes.sketchCapacity(), "grown with the 100 entries");
+
+		BoundedConcurrentCache<Integer, String> sized = BoundedConcurrentCache.<Integer, String>newBuilder()
+				.maximumSize(1_000).build();
+		assertEquals(1_024, sized.sketchCapacity());
+	}
+
+	@Test
+	public void expiresAfterWrite() {
+		AtomicLong time = new AtomicLong();
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).expireAfterWrite(Duration.ofSeconds(10)).ticker(time::get).build();
+		cache.put("a", "1");
+		time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		assertEquals("1", cache.get("a"));
+		time.addAndGet(TimeUnit.SECONDS.toNanos(5));
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.stats().expirationCount());
+	}
+
+	@Test
+	public void expiresAfterAccess() {
+		AtomicLong time = new AtomicLong();
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).expireAfterAccess(Duration.ofSeconds(10)).ticker(time::get).build();
+		cache.put("a", "1");
+		cache.put("b", "2");
+		for (int i = 0; i < 3; i++) {
+			time.addAndGet(TimeUnit.SECONDS.toNanos(6));
+			assertEquals("1", cache.get("a")); // keeps "a" alive
+		}
+		cache.cleanUp();
+		assertEquals(1, cache.estimatedSize());
+		assertNull(cache.get("b"));
+	}
+
+	@Test
+	public void coalescesConcurrentLoadsOfTheSameKey() throws Exception {
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).build();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			results.add(executor.submit(() -> {
+				start.await();
+				return cache.computeIfAbsent("user", k -> {
+					loads.incrementAndGet();
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return "loaded";
+				});
+			}));
+		}
+		start.countDown();
+		for (Future<String> result : results) {
+			assertEquals("loaded", result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(1, loads.get());
+		executor.shutdown();
+	}
+
+	@Test
+	public void failedLoadIsNotCached() {
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).build();
+		assertThrows(IllegalStateException.class, () -> cache.computeIfAbsent("a", k -> {
+			throw new IllegalStateException("down");
+		}));
+		assertEquals("ok", cache.computeIfAbsent("a", k -> "ok"));
+		assertEquals(1, cache.stats().loadFailureCount());
+	}
+
+	@Test
+	public void nullLoadsAreCountedApartAndRecursiveLoadsFail() {
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).build();
+
+		assertNull(cache.computeIfAbsent("missing", k -> null));
+		assertEquals(0, cache.stats().loadSuccessCount());
+		assertEquals(1, cache.stats().nullLoadCount());
+
+		assertThrows(IllegalStateException.class,
+				() -> cache.computeIfAbsent("a", k -> cache.computeIfAbsent("a", k2 -> "inner")));
+		assertEquals("b", cache.computeIfAbsent("a", k -> "b"), "the failed load left nothing behind");
+	}
+
+	@Test
+	public void aLoadDoesNotOverwriteOrResurrect() {
+		BoundedConcurrentCache<String, String> cache = BoundedConcurrentCache.<String, String>newBuilder()
+				.maximumSize(10).build();
+
+		assertEquals("put", cache.computeIfAbsent("a", k -> {
+			cache.put("a", "put"); // another thread, while loading
+			return "loaded";
+		}), "the value present is returned");
+		assertEquals("put", cache.get("a"));
+
+		assertEquals("loaded", cache.computeIfAbsent("c", k -> {
+			cache.remove("c");
+			return "loaded";
+		}));
+		assertNull(cache.get("c"), "removed while loading");
+
+		assertEquals("loaded", cache.computeIfAbsent("d", k -> {
+			cache.invalidateAll();
+			return "loaded";
+		}));
+		cache.cleanUp();
+		assertEquals(0, cache.estimatedSize());
+		assertEquals("again", cache.computeIfAbsent("d", k -> "again"), "a later load is cached");
+		assertEquals("again", cache.get("d"));
+	}
+}
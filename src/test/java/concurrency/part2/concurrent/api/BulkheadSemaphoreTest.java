@@ -0,0 +1,135 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+public class BulkheadSemaphoreTest {
+
+	@Test
+	public void aWaitingBatchIsNotOvertakenBySmallRequests() throws Exception {
+		BulkheadSemaphore bulkhead = new BulkheadSemaphore(4);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+		bulkhead.acquire(2);
+		Thread batch = Thread.ofVirtual().start(() -> {
+			try {
+				bulkhead.acquire(4);
+				order.add("batch");
+				bulkhead.release(4);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		awaitQueued(bulkhead, 1);
+		assertFalse(bulkhead.tryAcquire(1), "2 permits are free, but the batch waits for 4");
+		Thread single = Thread.ofVirtual().start(() -> {
+			try {
+				bulkhead.acquire();
+				order.add("single");
+				bulkhead.release();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		awaitQueued(bulkhead, 2);
+
+		bulkhead.release(2);
+		batch.join();
+		single.join();
+
+		assertEquals(List.of("batch", "single"), order);
+		assertEquals(4, bulkhead.availablePermits());
+		assertEquals(2, bulkhead.getBatchWaitTime().getCount(), "acquire(2) and acquire(4)");
+		assertEquals(1, bulkhead.getWaitTime().getCount(), "the failed tryAcquire is not recorded");
+	}
+
+	@Test
+	public void resizingGrantsWaitersOrHoldsBackNewOnes() throws Exception {
+		BulkheadSemaphore bulkhead = new BulkheadSemaphore(2);
+		bulkhead.acquire(2);
+		CompletableFuture<Void> first = bulkhead.acquireAsync(1);
+		CompletableFuture<Void> second = bulkhead.acquireAsync(1);
+		assertFalse(first.isDone());
+
+		bulkhead.setPermits(4); // grows: both queued requests get theirs
+		assertTrue(first.isDone() && second.isDone());
+		assertEquals(0, bulkhead.availablePermits());
+
+		bulkhead.setPermits(1); // shrinks under 4 holders
+		assertEquals(-3, bulkhead.availablePermits());
+		bulkhead.release(2);
+		bulkhead.release();
+		assertFalse(bulkhead.tryAcquire(1), "1 permit, still held");
+		bulkhead.release();
+		assertTrue(bulkhead.tryAcquire(1));
+
+		CompletableFuture<Void> big = bulkhead.acquireAsync(3); // more than it has: waits for all
+		assertFalse(big.isDone());
+		bulkhead.release();
+		assertTrue(big.isDone());
+		assertEquals(-2, bulkhead.availablePermits());
+		assertThrows(IllegalArgumentException.class, () -> bulkhead.setPermits(0));
+	}
+
+	@Test
+	public void abandonedWaitersDoNotBlockTheOnesBehind() throws Exception {
+		BulkheadSemaphore bulkhead = new BulkheadSemaphore(2);
+		bulkhead.acquire();
+		AtomicBoolean timedOut = new AtomicBoolean();
+		AtomicBoolean interrupted = new AtomicBoolean();
+
+		Thread timed = Thread.ofVirtual().start(() -> {
+			try {
+				// long enough for the others to queue behind it, even on a slow machine
+				timedOut.set(!bulkhead.tryAcquire(2, 1, TimeUnit.SECONDS));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Thread interruptible = Thread.ofVirtual().start(() -> {
+			try {
+				awaitQueued(bulkhead, 1);
+				bulkhead.acquire(2);
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+			}
+		});
+		awaitQueued(bulkhead, 2);
+		CompletableFuture<Void> cancelled = bulkhead.acquireAsync(2);
+		CompletableFuture<Void> last = bulkhead.acquireAsync(1);
+		assertFalse(last.isDone());
+		assertTrue(timed.isAlive(), "timed out before the others queued");
+
+		interruptible.interrupt();
+		interruptible.join();
+		cancelled.cancel(false);
+		timed.join();
+
+		assertTrue(timedOut.get());
+		assertTrue(interrupted.get());
+		assertTrue(last.isDone(), "the head left, the 1 free permit fits");
+		assertEquals(0, bulkhead.getQueueLength());
+		assertEquals(0, bulkhead.availablePermits());
+	}
+
+	private static void awaitQueued(BulkheadSemaphore bulkhead, int waiters) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (bulkhead.getQueueLength() < waiters) {
+			if (System.nanoTime() > deadline) {
+				throw new AssertionError(bulkhead.getQueueLength() + " waiters instead of " + waiters);
+			}
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class OptimisticReadMapTest {
+
+	@Test
+	public void behavesAsAMapThroughResizesAndRemoves() {
+		OptimisticReadMap<Integer, String> map = OptimisticReadMap.newBuilder().segments(4).initialCapacity(0).build();
+
+		for (int i = 0; i < 10_000; i++) {
+			assertNull(map.put(i, "v" + i));
+		}
+		assertEquals(10_000, map.size());
+		assertEquals("v42", map.put(42, "w42"));
+		assertEquals("w42", map.putIfAbsent(42, "x"));
+		for (int i = 0; i < 10_000; i += 2) {
+			assertEquals(i == 42 ? "w42" : "v" + i, map.remove(i));
+		}
+		assertEquals(5_000, map.size());
+		for (int i = 0; i < 10_000; i++) {
+			assertEquals(i % 2 == 0 ? null : "v" + i, map.get(i));
+		}
+		assertEquals("v7", map.computeIfAbsent(7, key -> "never"));
+		assertEquals("c8", map.computeIfAbsent(8, key -> "c" + key));
+		assertEquals("none", map.getOrDefault(10, "none"));
+		AtomicInteger visited = new AtomicInteger();
+		map.forEach((key, value) -> visited.incrementAndGet());
+		assertEquals(5_001, visited.get());
+	}
+
+	@Test
+	public void readersNeverMissAKeyWhileWritersChurn() throws Exception {
+		OptimisticReadMap<Integer, Integer> map = OptimisticReadMap.newBuilder().segments(2).initialCapacity(0).build();
+		for (int i = 0; i < 512; i++) {
+			map.put(i, i);
+		}
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicInteger wrong = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < 2; t++) { // add and remove keys >= 512: chains are copied, tables resized
+			int base = 512 + t * 100_000;
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (int i = 0; i < 50_000; i++) {
+					map.put(base + i, base + i);
+					if (i >= 100) {
+						map.remove(base + i - 100);
+					}
+					map.put(i & 511, i & 511);
+				}
+				running.set(false);
+			}));
+		}
+		for (int t = 0; t < 3; t++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (running.get()) {
+					int key = random.nextInt(512);
+					Integer value = map.get(key);
+					if (value == null || value != key) {
+						wrong.incrementAndGet();
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, wrong.get());
+		assertEquals(512 + 200, map.size());
+	}
+
+	@Test
+	public void getFallsBackToTheReadLockWhileAWriterHoldsTheSegment() throws Exception {
+		OptimisticReadMap<String, String> map = OptimisticReadMap.newBuilder().segments(1).optimisticRetries(3).build();
+		map.put("a", "1");
+		assertEquals("1", map.get("a"));
+		assertEquals(new OptimisticReadMap.Stats(0, 0), map.stats());
+
+		Thread writer = Thread.ofPlatform().start(() -> map.computeIfAbsent("b", key -> {
+			try {
+				Thread.sleep(100); // holds the write lock of the only segment
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "2";
+		}));
+		while (map.stats().optimisticRetries() == 0 && writer.isAlive()) {
+			map.get("a");
+		}
+		writer.join();
+
+		OptimisticReadMap.Stats stats = map.stats();
+		assertTrue(stats.optimisticRetries() >= 3, stats.toString());
+		assertTrue(stats.readLockFallbacks() >= 1, stats.toString());
+		assertEquals("2", map.get("b"));
+	}
+}
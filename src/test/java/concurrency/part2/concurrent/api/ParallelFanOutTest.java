@@ -0,0 +1,104 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part2.concurrent.api.ParallelFanOut.FanOutResult;
+
+public class ParallelFanOutTest {
+
+	@Test
+	public void keepsInputOrderAndNeverExceedsMaxInFlight() throws Exception {
+		List<Integer> inputs = IntStream.range(0, 50).boxed().collect(Collectors.toList());
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxSeen = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			ParallelFanOut fanOut = new ParallelFanOut(4, Duration.ofSeconds(10));
+			FanOutResult<String> result = fanOut.invokeAll(inputs, i -> {
+				maxSeen.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep((50 - i) % 7 * 5); // later inputs often finish first
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+				return "v" + i;
+			}, executor).get(30, TimeUnit.SECONDS);
+
+			assertTrue(result.isComplete());
+			assertEquals(inputs.stream().map(i -> "v" + i).collect(Collectors.toList()), result.getValues());
+			assertTrue(maxSeen.get() <= 4, "max in flight " + maxSeen.get());
+			assertEquals(50, fanOut.getLatencies().getCount());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void failedAndTimedOutCallsGivePartialResults() throws Exception {
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			ParallelFanOut fanOut = new ParallelFanOut(8, Duration.ofMillis(200));
+			FanOutResult<String> result = fanOut.invokeAll(List.of("ok1", "slow", "fail", "ok2"), name -> {
+				if (name.equals("fail")) {
+					throw new IllegalStateException("404");
+				}
+				if (name.equals("slow")) {
+					try {
+						Thread.sleep(2_000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				return name.toUpperCase();
+			}, executor).get(10, TimeUnit.SECONDS);
+
+			assertEquals(List.of("OK1", "OK2"), result.getValues());
+			assertEquals(2, result.getFailureCount());
+			assertEquals(1, result.getTimeoutCount());
+			assertTrue(result.getFailure(1) instanceof TimeoutException);
+			assertTrue(result.getFailure(2) instanceof IllegalStateException);
+			assertNull(result.get(1));
+			assertEquals("OK2", result.get(3));
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void completedCallsDoNotGrowTheStack() throws Exception {
+		List<Integer> inputs = IntStream.range(0, 100_000).boxed().collect(Collectors.toList());
+		FanOutResult<Integer> result = new ParallelFanOut(2, Duration.ofSeconds(1))
+				.invokeAll(inputs, i -> CompletableFuture.completedFuture(i * 2)).get(30, TimeUnit.SECONDS);
+		assertEquals(100_000, result.getSuccessCount());
+		assertEquals(Integer.valueOf(199_998), result.get(99_999));
+	}
+
+	@Test
+	public void histogramPercentilesAreWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long micros = 1; micros <= 10_000; micros++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+		}
+		assertEquals(10_000, histogram.getCount());
+		long p50 = histogram.getValueAtPercentile(50);
+		long p99 = histogram.getValueAtPercentile(99);
+		assertTrue(Math.abs(p50 - 5_000_000) <= 5_000_000 / 16, "p50 " + p50);
+		assertTrue(Math.abs(p99 - 9_900_000) <= 9_900_000 / 16, "p99 " + p99);
+		assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+	}
+}
@@ -0,0 +1,224 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+
+import org.junit.jupiter.api.Test;
+
+public class QueuedFairLockTest {
+
+	@Test
+	public void waitersGetTheLockInArrivalOrderAndExclusively() throws Exception {
+		QueuedFairLock lock = new QueuedFairLock();
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		long[] counter = new long[1];
+		List<Thread> threads = new ArrayList<>();
+
+		lock.lock();
+		for (int i = 0; i < 8; i++) {
+			int id = i;
+			Thread thread = new Thread(() -> {
+				lock.lock();
+				try {
+					order.add(id);
+				} finally {
+					lock.unlock();
+				}
+				for (int n = 0; n < 10_000; n++) {
+					lock.lock();
+					try {
+						counter[0]++;
+					} finally {
+						lock.unlock();
+					}
+				}
+			});
+			thread.start();
+			awaitParked(thread); // enqueued before the next one starts
+			threads.add(thread);
+		}
+		lock.unlock();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7), order);
+		assertEquals(80_000, counter[0]);
+		assertFalse(lock.isLocked());
+	}
+
+	@Test
+	public void abandonedWaitersAreSkipped() throws Exception {
+		QueuedFairLock lock = new QueuedFairLock();
+		AtomicBoolean timedOut = new AtomicBoolean();
+		AtomicBoolean interrupted = new AtomicBoolean();
+		AtomicBoolean lastGotIt = new AtomicBoolean();
+
+		lock.lock();
+		Thread timed = new Thread(() -> {
+			try {
+				timedOut.set(!lock.tryLock(100, TimeUnit.MILLISECONDS));
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		timed.start();
+		awaitParked(timed);
+		Thread interruptible = new Thread(() -> {
+			try {
+				lock.lockInterruptibly();
+			} catch (InterruptedException e) {
+				interrupted.set(true);
+			}
+		});
+		interruptible.start();
+		awaitParked(interruptible);
+		Thread last = new Thread(() -> {
+			lock.lock();
+			lastGotIt.set(true);
+			lock.unlock();
+		});
+		last.start();
+		awaitParked(last);
+
+		AtomicBoolean barged = new AtomicBoolean(true);
+		Thread probe = new Thread(() -> barged.set(lock.tryLock()));
+		probe.start();
+		probe.join();
+		assertFalse(barged.get(), "tryLock() does not overtake the queue");
+		interruptible.interrupt();
+		interruptible.join();
+		timed.join();
+		assertTrue(lock.isHeldByCurrentThread());
+		lock.unlock();
+		last.join(5_000);
+
+		assertTrue(timedOut.get());
+		assertTrue(interrupted.get());
+		assertTrue(lastGotIt.get(), "the waiter behind the abandoned nodes");
+		assertTrue(lock.tryLock());
+		lock.unlock();
+	}
+
+	@Test
+	public void conditionReleasesAllHoldsWhileWaiting() throws Exception {
+		QueuedFairLock lock = new QueuedFairLock();
+		Condition ready = lock.newCondition();
+		boolean[] flag = new boolean[1];
+		int[] holdsAfterAwait = new int[1];
+
+		Thread waiter = new Thread(() -> {
+			lock.lock();
+			lock.lock();
+			try {
+				while (!flag[0]) {
+					ready.awaitUninterruptibly();
+				}
+				holdsAfterAwait[0] = lock.getHoldCount();
+			} finally {
+				lock.unlock();
+				lock.unlock();
+			}
+		});
+		waiter.start();
+		awaitParked(waiter);
+
+		lock.lock(); // the waiter holds it twice, await() released both
+		try {
+			assertFalse(ready.await(10, TimeUnit.MILLISECONDS), "nobody signals this thread");
+			flag[0] = true;
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		waiter.join(5_000);
+
+		assertEquals(2, holdsAfterAwait[0]);
+		assertFalse(lock.isLocked());
+	}
+
+	@Test
+	public void tryLockSeesThroughAnAbandonedTail() throws Exception {
+		QueuedFairLock lock = new QueuedFairLock();
+		lock.lock();
+		Thread timed = new Thread(() -> {
+			try {
+				lock.tryLock(10, TimeUnit.MILLISECONDS); // times out, its node stays the tail
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		timed.start();
+		timed.join();
+		lock.unlock();
+
+		AtomicBoolean acquired = new AtomicBoolean();
+		Thread probe = new Thread(() -> acquired.set(lock.tryLock()));
+		probe.start();
+		probe.join();
+		assertTrue(acquired.get(), "the lock is free");
+	}
+
+	@Test
+	public void signalRacingATimeoutGoesToTheNextWaiter() throws Exception {
+		QueuedFairLock lock = new QueuedFairLock();
+		Condition ready = lock.newCondition();
+		CountDownLatch bothWaiting = new CountDownLatch(2);
+		AtomicBoolean timedOut = new AtomicBoolean();
+		AtomicBoolean secondWoken = new AtomicBoolean();
+
+		Thread first = new Thread(() -> {
+			lock.lock();
+			try {
+				bothWaiting.countDown();
+				timedOut.set(!ready.await(50, TimeUnit.MILLISECONDS));
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			} finally {
+				lock.unlock();
+			}
+		});
+		first.start();
+		awaitParked(first);
+		Thread second = new Thread(() -> {
+			lock.lock();
+			try {
+				bothWaiting.countDown();
+				ready.awaitUninterruptibly();
+				secondWoken.set(true);
+			} finally {
+				lock.unlock();
+			}
+		});
+		second.start();
+		bothWaiting.await();
+
+		lock.lock(); // after both released it in await()
+		try {
+			Thread.sleep(200); // first times out meanwhile, and waits for the lock
+			ready.signal(); // polls first, which is still queued
+		} finally {
+			lock.unlock();
+		}
+		first.join();
+		second.join(5_000);
+
+		assertTrue(timedOut.get());
+		assertTrue(secondWoken.get(), "the signal was passed on");
+	}
+
+	private static void awaitParked(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs against a local stub of https://api.github.com/users/{name}: answers
+ * after 200ms with "{name}#{call number}", or with 500 while failing is set.
+ */
+public class RefreshingAsyncCacheTest {
+
+	private final AtomicInteger upstreamCalls = new AtomicInteger();
+	private volatile boolean failing;
+
+	private HttpServer startStubServer() throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/users/", exchange -> {
+			int call = upstreamCalls.incrementAndGet();
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			String name = exchange.getRequestURI().getPath().substring("/users/".length());
+			byte[] body = (name + "#" + call).getBytes(StandardCharsets.UTF_8);
+			exchange.sendResponseHeaders(failing ? 500 : 200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private RefreshingAsyncCache.Builder<String, String> newCache(HttpServer server, ExecutorService executor) {
+		HttpClient client = HttpClient.newHttpClient();
+		String url = "http://localhost:" + server.getAddress().getPort() + "/users/";
+		return RefreshingAsyncCache.<String, String>newBuilder(name -> {
+			try {
+				HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(url + name)).build(),
+						HttpResponse.BodyHandlers.ofString());
+				if (response.statusCode() != 200) {
+					throw new IllegalStateException("status " + response.statusCode());
+				}
+				return response.body();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+		}, executor);
+	}
+
+	@Test
+	public void concurrentLookupsOfTheSameUserCostOneUpstreamCall() throws Exception {
+		HttpServer server = startStubServer();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			RefreshingAsyncCache<String, String> cache = newCache(server, executor).build();
+			List<CompletableFuture<String>> lookups = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				lookups.add(cache.get("octocat"));
+			}
+			for (CompletableFuture<String> lookup : lookups) {
+				assertEquals("octocat#1", lookup.get(10, TimeUnit.SECONDS));
+			}
+			CompletableFuture<String> hit = cache.get("octocat");
+			assertTrue(hit.isDone());
+			assertEquals("octocat#1", hit.join());
+			assertEquals(1, upstreamCalls.get());
+			assertEquals(19, cache.getCoalescedCount());
+			assertEquals(1, cache.getHitCount());
+		} finally {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void staleValueIsServedWhileItIsRefreshedInTheBackground() throws Exception {
+		HttpServer server = startStubServer();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AtomicLong time = new AtomicLong();
+		try {
+			RefreshingAsyncCache<String, String> cache = newCache(server, executor).ticker(time::get)
+					.refreshAfterWrite(Duration.ofMinutes(1)).expireAfterWrite(Duration.ofMinutes(10)).build();
+			assertEquals("octocat#1", cache.get("octocat").get(10, TimeUnit.SECONDS));
+
+			time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+			CompletableFuture<String> stale = cache.get("octocat");
+			assertTrue(stale.isDone());
+			assertEquals("octocat#1", stale.join());
+			cache.get("octocat"); // refresh already running, no second call
+
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (!"octocat#2".equals(cache.getIfPresent("octocat")) && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("octocat#2", cache.get("octocat").join());
+			assertEquals(2, upstreamCalls.get());
+			assertEquals(1, cache.getRefreshCount());
+		} finally {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void failedRefreshKeepsTheOldValueAndFailedLoadIsNotCached() throws Exception {
+		HttpServer server = startStubServer();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AtomicLong time = new AtomicLong();
+		try {
+			RefreshingAsyncCache<String, String> cache = newCache(server, executor).ticker(time::get)
+					.refreshAfterWrite(Duration.ofMinutes(1)).expireAfterWrite(Duration.ofMinutes(10)).build();
+			assertEquals("octocat#1", cache.get("octocat").get(10, TimeUnit.SECONDS));
+
+			failing = true;
+			time.addAndGet(TimeUnit.MINUTES.toNanos(2));
+			assertEquals("octocat#1", cache.get("octocat").join());
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (cache.getLoadFailureCount() == 0 && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals("octocat#1", cache.getIfPresent("octocat"));
+
+			CompletableFuture<String> miss = cache.get("unknown");
+			assertThrows(CompletionException.class, miss::join);
+			failing = false;
+			assertEquals("unknown#4", cache.get("unknown").get(10, TimeUnit.SECONDS));
+			assertEquals(2, cache.getLoadFailureCount());
+		} finally {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void expiredValueIsLoadedAgain() throws Exception {
+		HttpServer server = startStubServer();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		AtomicLong time = new AtomicLong();
+		try {
+			RefreshingAsyncCache<String, String> cache = newCache(server, executor).ticker(time::get)
+					.expireAfterWrite(Duration.ofMinutes(10)).build();
+			assertEquals("octocat#1", cache.get("octocat").get(10, TimeUnit.SECONDS));
+			time.addAndGet(TimeUnit.MINUTES.toNanos(11));
+			CompletableFuture<String> reload = cache.get("octocat");
+			assertEquals("octocat#2", reload.get(10, TimeUnit.SECONDS));
+			assertEquals(2, cache.getMissCount());
+		} finally {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void aLoadInFlightDuringInvalidateIsNotCached() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger version = new AtomicInteger();
+		try {
+			RefreshingAsyncCache<String, String> cache = RefreshingAsyncCache.<String, String>newBuilder(name -> {
+				String value = name + "#" + version.incrementAndGet(); // read before the invalidate
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return value;
+			}, executor).build();
+			CompletableFuture<String> old = cache.get("octocat");
+			awaitLoadStarted(version, 1);
+
+			cache.invalidate("octocat");
+			CompletableFuture<String> fresh = cache.get("octocat"); // not coalesced with the old load
+			release.countDown();
+
+			assertEquals("octocat#1", old.get(10, TimeUnit.SECONDS), "its callers still get it");
+			assertEquals("octocat#2", fresh.get(10, TimeUnit.SECONDS));
+			assertEquals("octocat#2", cache.getIfPresent("octocat"));
+			assertEquals(0, cache.getCoalescedCount());
+
+			CompletableFuture<String> third = cache.get("other");
+			awaitLoadStarted(version, 3);
+			cache.invalidateAll();
+			assertEquals("other#3", third.get(10, TimeUnit.SECONDS));
+			assertNull(cache.getIfPresent("other"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void awaitLoadStarted(AtomicInteger version, int loads) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (version.get() < loads && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+	}
+}
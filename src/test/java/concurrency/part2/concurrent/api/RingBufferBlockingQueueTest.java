@@ -0,0 +1,142 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class RingBufferBlockingQueueTest {
+
+	@Test
+	public void isFifoAndBounded() throws Exception {
+		RingBufferBlockingQueue<Integer> queue = new RingBufferBlockingQueue<>(3);
+		assertEquals(4, queue.capacity()); // rounded up to a power of 2
+		for (int i = 0; i < 4; i++) {
+			assertTrue(queue.offer(i));
+		}
+		assertFalse(queue.offer(4));
+		assertFalse(queue.offer(4, 10, TimeUnit.MILLISECONDS));
+		assertEquals(4, queue.size());
+		assertEquals(Integer.valueOf(0), queue.peek());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertNull(queue.poll());
+		assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void removedElementsAreSkippedAsByThreadPoolExecutorRemove() throws Exception {
+		RingBufferBlockingQueue<Runnable> queue = new RingBufferBlockingQueue<>(8);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, queue);
+		CountDownLatch blocker = new CountDownLatch(1);
+		executor.execute(() -> {
+			try {
+				blocker.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			int id = i;
+			tasks.add(() -> ran.add(id));
+			executor.execute(tasks.get(i));
+		}
+
+		assertTrue(executor.remove(tasks.get(1)));
+		assertFalse(queue.remove(tasks.get(1)), "already removed");
+		Iterator<Runnable> it = queue.iterator();
+		it.next();
+		it.next(); // tasks 0 and 2
+		it.remove();
+		assertEquals(tasks.get(0), queue.peek());
+		blocker.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		assertEquals(List.of(0, 3), ran);
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void aPoolShutDownAfterRemoveTerminates() throws Exception {
+		RingBufferBlockingQueue<Runnable> queue = new RingBufferBlockingQueue<>(4);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, queue);
+		CountDownLatch blocker = new CountDownLatch(1);
+		executor.execute(() -> {
+			try {
+				blocker.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		Runnable removed = () -> {
+		};
+		executor.execute(removed);
+
+		assertTrue(executor.remove(removed));
+		assertTrue(queue.isEmpty(), "only a tombstone is left");
+		assertEquals(0, queue.size());
+		assertEquals(4, queue.remainingCapacity());
+		// the busy worker looks at isEmpty() once it is done: a tombstone counted
+		// as element sends it into take() for good
+		executor.shutdown();
+		blocker.countDown();
+
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void everyWaitStrategyDeliversEveryMessageOnce() throws Exception {
+		for (RingBufferBlockingQueue.WaitStrategy strategy : RingBufferBlockingQueue.WaitStrategy.values()) {
+			deliversEveryMessageOnce(new RingBufferBlockingQueue<>(16, strategy));
+		}
+	}
+
+	private void deliversEveryMessageOnce(RingBufferBlockingQueue<Integer> queue) throws Exception {
+		int producers = 4;
+		int perProducer = 10_000;
+		ExecutorService executor = Executors.newFixedThreadPool(2 * producers);
+		List<Future<Long>> sums = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			int offset = p * perProducer;
+			executor.submit(() -> {
+				for (int i = 1; i <= perProducer; i++) {
+					queue.put(offset + i);
+				}
+				return null;
+			});
+			sums.add(executor.submit(() -> {
+				long sum = 0;
+				for (int i = 0; i < perProducer; i++) {
+					sum += queue.take();
+				}
+				return sum;
+			}));
+		}
+		long total = 0;
+		for (Future<Long> sum : sums) {
+			total += sum.get(60, TimeUnit.SECONDS);
+		}
+		long n = (long) producers * perProducer;
+		assertEquals(n * (n + 1) / 2, total, queue.getWaitStrategy().toString());
+		assertTrue(queue.isEmpty());
+		executor.shutdown();
+	}
+}
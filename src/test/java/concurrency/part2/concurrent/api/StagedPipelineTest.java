@@ -0,0 +1,180 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part2.concurrent.api.StagedPipeline.StageStats;
+
+public class StagedPipelineTest {
+
+	@Test
+	public void everyItemGoesThroughAllStagesOnTheirOwnThreads() throws Exception {
+		Set<String> parseThreads = ConcurrentHashMap.newKeySet();
+		Set<Integer> results = ConcurrentHashMap.newKeySet();
+		AtomicInteger failures = new AtomicInteger();
+		StagedPipeline<Integer> pipeline = StagedPipeline.<Integer>newBuilder()
+				.stage("fetch", 4, 16, (Integer i) -> "item-" + i)
+				.stage("parse", 2, 4, (String s) -> {
+					parseThreads.add(Thread.currentThread().getName());
+					int value = Integer.parseInt(s.substring(5));
+					if (value == 13) {
+						throw new IllegalStateException("unlucky");
+					}
+					return value % 2 == 0 ? value : null; // null drops the odd ones
+				}).onError((item, failure) -> failures.incrementAndGet()).build(results::add);
+
+		for (int i = 0; i < 100; i++) {
+			pipeline.submit(i);
+		}
+		pipeline.close();
+
+		assertEquals(50, results.size());
+		assertEquals(1, failures.get());
+		assertTrue(parseThreads.stream().allMatch(name -> name.startsWith("parse-")), parseThreads.toString());
+		List<StageStats> stats = pipeline.stats();
+		assertEquals(100, stats.get(0).processed());
+		assertEquals(100, stats.get(1).processed());
+		assertEquals(1, stats.get(1).failed());
+		assertEquals(16, stats.get(0).queueCapacity());
+		assertThrows(IllegalStateException.class, () -> pipeline.submit(1));
+	}
+
+	@Test
+	public void slowStageBlocksTheStagesInFrontOfIt() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger fetched = new AtomicInteger();
+		StagedPipeline<Integer> pipeline = StagedPipeline.<Integer>newBuilder()
+				.stage("io", 2, 4, (Integer i) -> {
+					fetched.incrementAndGet();
+					return i;
+				}).stage("cpu", 1, 2, (Integer i) -> {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return i;
+				}).build(i -> {
+				});
+
+		int accepted = 0;
+		while (pipeline.trySubmit(accepted, 100, TimeUnit.MILLISECONDS)) {
+			accepted++;
+		}
+		// cpu: 1 working + 2 queued, io: 2 blocked on the cpu queue + 4 queued
+		assertEquals(9, accepted);
+		assertEquals(5, fetched.get());
+		List<StageStats> stats = pipeline.stats();
+		assertEquals(4, stats.get(0).queueSize());
+		assertTrue(stats.get(0).blocked() > 0.5, stats.get(0).toString());
+		assertTrue(stats.get(1).utilization() > 0.5, stats.get(1).toString());
+		assertFalse(stats.get(1).blocked() > 0.5, stats.get(1).toString());
+
+		release.countDown();
+		pipeline.close();
+		assertEquals(9, pipeline.stats().get(1).processed());
+	}
+
+	@Test
+	public void errorsAndThrowingErrorHandlersDoNotHangClose() throws Exception {
+		List<Throwable> uncaught = new ArrayList<>();
+		Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+			synchronized (uncaught) {
+				uncaught.add(e);
+			}
+		});
+		try {
+			AtomicInteger sunk = new AtomicInteger();
+			StagedPipeline<Integer> pipeline = StagedPipeline.<Integer>newBuilder()
+					.stage("fail", 1, 2, (Integer i) -> {
+						if (i % 10 == 0) {
+							throw new AssertionError("an Error, not a RuntimeException");
+						}
+						return i;
+					}).onError((item, failure) -> {
+						throw new IllegalStateException("the handler fails too");
+					}).build(i -> sunk.incrementAndGet());
+			for (int i = 0; i < 100; i++) {
+				pipeline.submit(i);
+			}
+
+			Thread closer = Thread.ofPlatform().start(pipeline::close);
+			closer.join(5_000);
+
+			assertFalse(closer.isAlive(), "close() hangs: a worker died");
+			assertEquals(90, sunk.get());
+			assertEquals(10, pipeline.stats().get(0).failed());
+			assertEquals(10, uncaught.size());
+		} finally {
+			Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+		}
+	}
+
+	@Test
+	public void aSubmitRacingCloseIsRejectedOrProcessed() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			AtomicLong sunk = new AtomicLong();
+			StagedPipeline<Integer> pipeline = StagedPipeline.<Integer>newBuilder().stage("echo", 2, 2, (Integer i) -> i)
+					.build(i -> sunk.incrementAndGet());
+			AtomicLong accepted = new AtomicLong();
+			List<Thread> submitters = new ArrayList<>();
+			for (int t = 0; t < 4; t++) {
+				submitters.add(Thread.ofPlatform().start(() -> {
+					try {
+						for (int i = 0; i < 1_000; i++) {
+							pipeline.submit(i);
+							accepted.incrementAndGet();
+						}
+					} catch (IllegalStateException e) {
+						// closed
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}));
+			}
+			Thread.sleep(1);
+			pipeline.close();
+			for (Thread submitter : submitters) {
+				submitter.join();
+			}
+
+			assertEquals(accepted.get(), sunk.get(), "accepted but lost behind the STOPs");
+		}
+	}
+
+	@Test
+	public void anInterruptedCloseStillDrainsAndKeepsTheInterrupt() throws Exception {
+		AtomicInteger sunk = new AtomicInteger();
+		StagedPipeline<Integer> pipeline = StagedPipeline.<Integer>newBuilder().stage("slow", 1, 2, (Integer i) -> {
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return i;
+		}).build(i -> sunk.incrementAndGet());
+		for (int i = 0; i < 3; i++) {
+			pipeline.submit(i);
+		}
+
+		Thread.currentThread().interrupt();
+		pipeline.close();
+
+		assertTrue(Thread.interrupted());
+		assertEquals(3, sunk.get());
+	}
+}
@@ -0,0 +1,76 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+public class StripedCounterTest {
+
+	@Test
+	public void uncontendedUpdatesStayInTheBase() {
+		StripedCounter counter = new StripedCounter();
+
+		counter.increment();
+		counter.add(41);
+		counter.decrement();
+		counter.add(Integer.MAX_VALUE);
+
+		assertEquals(41L + Integer.MAX_VALUE, counter.sum());
+		assertEquals((int) (41L + Integer.MAX_VALUE), counter.value());
+		assertEquals(0, counter.getCellCount());
+		assertEquals(0, counter.getCasFailures());
+	}
+
+	@Test
+	public void concurrentUpdatesAreNeverLost() throws Exception {
+		StripedCounter counter = new StripedCounter();
+		List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < 8; t++) {
+			int id = t;
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (int i = 0; i < 100_000; i++) {
+					counter.add(id % 2 == 0 ? 3 : -1);
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(4 * 100_000 * 3 - 4 * 100_000, counter.sum());
+	}
+
+	@Test
+	public void sumThenResetLosesNothingWhileUpdatesRun() throws Exception {
+		StripedCounter counter = new StripedCounter();
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				for (int i = 0; i < 200_000; i++) {
+					counter.increment();
+				}
+			}));
+		}
+		Thread resetter = Thread.ofPlatform().start(() -> {
+			long collected = 0;
+			while (running.get()) {
+				collected += counter.sumThenReset();
+				Thread.yield();
+			}
+			counter.add(collected); // put back what was collected
+		});
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		running.set(false);
+		resetter.join();
+
+		assertEquals(4 * 200_000, counter.sum());
+	}
+}
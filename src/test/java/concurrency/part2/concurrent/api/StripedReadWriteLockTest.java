@@ -0,0 +1,163 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class StripedReadWriteLockTest {
+
+	@Test
+	public void readersShareTheLockWritersExcludeEveryone() throws Exception {
+		StripedReadWriteLock lock = new StripedReadWriteLock();
+		long[] data = new long[2]; // always written together
+		AtomicInteger torn = new AtomicInteger();
+		CountDownLatch bothReading = new CountDownLatch(2);
+		List<Thread> threads = new ArrayList<>();
+
+		for (int t = 0; t < 2; t++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				lock.readLock().lock();
+				try {
+					bothReading.countDown();
+					bothReading.await(5, TimeUnit.SECONDS); // only returns if both hold it at once
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					lock.readLock().unlock();
+				}
+			}));
+		}
+		for (int t = 0; t < 6; t++) {
+			threads.add(Thread.ofPlatform().start(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int i = 0; i < 20_000; i++) {
+					if (random.nextInt(10) == 0) {
+						lock.writeLock().lock();
+						try {
+							data[0]++;
+							data[1]++;
+						} finally {
+							lock.writeLock().unlock();
+						}
+					} else {
+						lock.readLock().lock();
+						try {
+							if (data[0] != data[1]) {
+								torn.incrementAndGet();
+							}
+						} finally {
+							lock.readLock().unlock();
+						}
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(0, bothReading.getCount());
+		assertEquals(0, torn.get());
+		assertEquals(data[0], data[1]);
+		assertEquals(0, lock.getReadLockCount());
+	}
+
+	@Test
+	public void aWaitingWriterGoesBeforeNewReaders() throws Exception {
+		StripedReadWriteLock lock = new StripedReadWriteLock();
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+		lock.readLock().lock();
+		Thread writer = Thread.ofPlatform().start(() -> {
+			lock.writeLock().lock();
+			order.add("writer");
+			lock.writeLock().unlock();
+		});
+		awaitParked(writer);
+
+		AtomicBoolean barged = new AtomicBoolean(true);
+		Thread probe = Thread.ofPlatform().start(() -> barged.set(lock.readLock().tryLock()));
+		probe.join();
+		assertFalse(barged.get(), "a new reader waits for the waiting writer");
+		Thread reader = Thread.ofPlatform().start(() -> {
+			lock.readLock().lock();
+			order.add("reader");
+			lock.readLock().unlock();
+		});
+		awaitParked(reader);
+
+		lock.readLock().lock(); // reentrant: the thread holding it is not blocked by the writer
+		lock.readLock().unlock();
+		lock.readLock().unlock();
+		writer.join();
+		reader.join();
+
+		assertEquals(List.of("writer", "reader"), order);
+	}
+
+	@Test
+	public void optimisticReadsAndReentrancy() {
+		StripedReadWriteLock lock = new StripedReadWriteLock();
+
+		long stamp = lock.tryOptimisticRead();
+		assertTrue(lock.validate(stamp));
+		lock.writeLock().lock();
+		lock.writeLock().lock();
+		assertEquals(0, lock.tryOptimisticRead(), "no stamp while a writer holds the lock");
+		lock.readLock().lock(); // downgrade
+		lock.writeLock().unlock();
+		lock.writeLock().unlock();
+		assertFalse(lock.isWriteLocked());
+		assertFalse(lock.validate(stamp), "a writer came in between");
+
+		assertThrows(IllegalStateException.class, () -> lock.writeLock().lock(), "upgrade would deadlock");
+		lock.readLock().unlock();
+		assertTrue(lock.validate(lock.tryOptimisticRead()));
+		assertTrue(lock.writeLock().tryLock());
+		lock.writeLock().unlock();
+	}
+
+	@Test
+	public void interruptedWriterParksAndKeepsItsInterrupt() throws Exception {
+		StripedReadWriteLock lock = new StripedReadWriteLock();
+		AtomicBoolean stillInterrupted = new AtomicBoolean();
+
+		lock.readLock().lock();
+		Thread writer = Thread.ofPlatform().start(() -> {
+			Thread.currentThread().interrupt();
+			lock.writeLock().lock(); // not interruptible: waits for the reader anyway
+			stillInterrupted.set(Thread.currentThread().isInterrupted());
+			lock.writeLock().unlock();
+		});
+		awaitParked(writer);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpuBefore = threads.getThreadCpuTime(writer.threadId());
+		Thread.sleep(200);
+		long cpuMillis = TimeUnit.NANOSECONDS.toMillis(threads.getThreadCpuTime(writer.threadId()) - cpuBefore);
+		assertTrue(cpuMillis < 50, "parks, does not spin on the interrupt: " + cpuMillis + "ms cpu in 200ms");
+
+		lock.readLock().unlock();
+		writer.join();
+		assertTrue(stillInterrupted.get());
+	}
+
+	private static void awaitParked(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package concurrency.part2.concurrent.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class WorkStealingThreadPoolTest {
+
+	@Test
+	public void runsEveryTaskSubmittedFromManyThreads() throws Exception {
+		WorkStealingThreadPool pool = new WorkStealingThreadPool(4, 10_000, WorkStealingThreadPool.RejectionPolicy.CALLER_RUNS,
+				Executors.defaultThreadFactory());
+		AtomicInteger counter = new AtomicInteger();
+		ExecutorService submitters = Executors.newFixedThreadPool(4);
+		for (int i = 0; i < 4; i++) {
+			submitters.submit(() -> {
+				for (int j = 0; j < 25_000; j++) {
+					pool.execute(counter::incrementAndGet);
+				}
+			});
+		}
+		submitters.shutdown();
+		assertTrue(submitters.awaitTermination(30, TimeUnit.SECONDS));
+
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(100_000, counter.get());
+		assertTrue(pool.isTerminated());
+	}
+
+	@Test
+	public void tasksForkedByWorkersAreStolen() throws Exception {
+		WorkStealingThreadPool pool = new WorkStealingThreadPool(4, 10_000);
+		CountDownLatch done = new CountDownLatch(1_000);
+		pool.execute(() -> {
+			// forked into this worker's own deque, then it blocks: only the others
+			// can run them, by stealing
+			for (int i = 0; i < 1_000; i++) {
+				pool.execute(done::countDown);
+			}
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(1_000, pool.getStealCount());
+	}
+
+	@Test
+	public void invokeAllReturnsEveryResult() throws Exception {
+		ExecutorService pool = ACustomizableThreadPools.getMyWorkStealingExecutorService(2, 100);
+		List<Callable<Integer>> callables = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			int n = i;
+			callables.add(() -> n * n);
+		}
+		int sum = 0;
+		for (Future<Integer> future : pool.invokeAll(callables)) {
+			sum += future.get();
+		}
+		assertEquals(285, sum);
+		pool.shutdown();
+	}
+
+	@Test
+	public void rejectsWhenFullOrShutdown() throws Exception {
+		WorkStealingThreadPool pool = new WorkStealingThreadPool(1, 1);
+		CountDownLatch blocker = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+		pool.execute(() -> {
+			started.countDown();
+			try {
+				blocker.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		pool.execute(() -> {
+		}); // fills the single slot
+		assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {
+		}));
+
+		List<Runnable> notStarted = pool.shutdownNow();
+		assertEquals(1, notStarted.size());
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertThrows(RejectedExecutionException.class, () -> pool.execute(() -> {
+		}));
+	}
+}
@@ -0,0 +1,207 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.ConnectException;
+import java.net.CookieHandler;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part3.async.api.completablefuture.java11.httpclient.HostFairScheduler.TokenBucket;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+public class HostFairSchedulerTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void tokenBucketAllowsBurstThenRate() {
+		TokenBucket bucket = new TokenBucket(10, 3, 0);
+		assertTrue(bucket.tryTake(0));
+		assertTrue(bucket.tryTake(0));
+		assertTrue(bucket.tryTake(0));
+		assertFalse(bucket.tryTake(0));
+		assertEquals(SECOND / 10, bucket.nanosUntilToken(0));
+		assertTrue(bucket.tryTake(SECOND / 10));
+		assertFalse(bucket.tryTake(SECOND / 10));
+		assertEquals(3.0, bucket.getTokens(10 * SECOND), 0.0001); // never more than the burst
+	}
+
+	private static StubHttpServer stubHost(int latencyMs) throws Exception {
+		return StubHttpServer.newBuilder().route("/", Route.noContent().status(200).latency(Duration.ofMillis(latencyMs)))
+				.start();
+	}
+
+	private static URI url(StubHttpServer host, int i) {
+		return host.uri("/page" + i);
+	}
+
+	@Test
+	public void boundsConcurrencyAndRatePerHost() throws Exception {
+		try (StubHttpServer host = stubHost(20);
+				HostFairScheduler scheduler = HostFairScheduler.newBuilder(HttpClient.newHttpClient()).maxInFlight(32)
+				.maxPerHost(3).ratePerHost(40, 5).build()) {
+			long start = System.nanoTime();
+			List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+			for (int i = 0; i < 45; i++) {
+				responses.add(scheduler.sendAsync(HttpRequest.newBuilder(url(host, i)).build(),
+						HttpResponse.BodyHandlers.discarding()));
+			}
+			CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+			long elapsed = System.nanoTime() - start;
+
+			assertTrue(host.getMaxConcurrent() <= 3, "concurrent: " + host.getMaxConcurrent());
+			// 5 at once, the 40 others at 40 per second
+			assertTrue(elapsed >= SECOND * 9 / 10, "elapsed ms: " + TimeUnit.NANOSECONDS.toMillis(elapsed));
+			assertEquals(0, scheduler.getInFlight());
+			assertEquals(0, scheduler.getQueued());
+		}
+	}
+
+	@Test
+	public void smallHostIsNotStuckBehindBigHost() throws Exception {
+		try (StubHttpServer big = stubHost(50);
+				StubHttpServer small = stubHost(5);
+				HostFairScheduler scheduler = HostFairScheduler.newBuilder(HttpClient.newHttpClient()).maxInFlight(4)
+				.maxPerHost(4).ratePerHost(1_000, 100).build()) {
+			AtomicLong bigDone = new AtomicLong();
+			AtomicLong smallDone = new AtomicLong();
+			List<CompletableFuture<?>> responses = new ArrayList<>();
+			for (int i = 0; i < 60; i++) {
+				responses.add(scheduler
+						.sendAsync(HttpRequest.newBuilder(url(big, i)).build(),
+								HttpResponse.BodyHandlers.discarding())
+						.thenRun(() -> bigDone.accumulateAndGet(System.nanoTime(), Math::max)));
+			}
+			for (int i = 0; i < 10; i++) {
+				responses.add(scheduler
+						.sendAsync(HttpRequest.newBuilder(url(small, i)).build(),
+								HttpResponse.BodyHandlers.discarding())
+						.thenRun(() -> smallDone.accumulateAndGet(System.nanoTime(), Math::max)));
+			}
+			CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+
+			// FIFO: the small host would finish last, after 60 x 50ms / 4
+			assertTrue(smallDone.get() < bigDone.get() - TimeUnit.MILLISECONDS.toNanos(300),
+					"small host done only " + TimeUnit.NANOSECONDS.toMillis(bigDone.get() - smallDone.get())
+							+ "ms before the big one");
+		}
+	}
+
+	@Test
+	public void hostWaitingForItsBucketIsWokenAgainAndAgain() throws Exception {
+		// failing at once, every send and dispatch runs on the timer thread
+		try (HostFairScheduler scheduler = HostFairScheduler.newBuilder(new FailingHttpClient()).ratePerHost(10, 1)
+				.build()) {
+			List<CompletableFuture<?>> responses = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				responses.add(scheduler.sendAsync(HttpRequest.newBuilder(URI.create("http://host/" + i)).build(),
+						HttpResponse.BodyHandlers.discarding()).exceptionally(e -> null));
+			}
+			// 1 at once, then one every 100ms
+			CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+			assertEquals(0, scheduler.getQueued());
+		}
+	}
+
+	@Test
+	public void idleHostsAreEvicted() throws Exception {
+		try (HostFairScheduler scheduler = HostFairScheduler.newBuilder(new FailingHttpClient())
+				.ratePerHost(1_000, 1).build()) {
+			for (int i = 0; i < 200; i++) {
+				scheduler.sendAsync(HttpRequest.newBuilder(URI.create("http://host" + i + "/")).build(),
+						HttpResponse.BodyHandlers.discarding()).exceptionally(e -> null).join();
+				Thread.sleep(2); // the bucket is full again after 1ms
+			}
+			assertTrue(scheduler.getHostCount() < 100, "hosts: " + scheduler.getHostCount());
+		}
+	}
+
+	/** sendAsync fails at once, on the calling thread */
+	private static final class FailingHttpClient extends HttpClient {
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+				HttpResponse.BodyHandler<T> responseBodyHandler) {
+			return CompletableFuture.failedFuture(new ConnectException("refused: " + request.uri()));
+		}
+
+		@Override
+		public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+				HttpResponse.BodyHandler<T> responseBodyHandler, HttpResponse.PushPromiseHandler<T> pushPromiseHandler) {
+			return sendAsync(request, responseBodyHandler);
+		}
+
+		@Override
+		public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> responseBodyHandler)
+				throws IOException {
+			throw new ConnectException("refused: " + request.uri());
+		}
+
+		@Override
+		public Optional<CookieHandler> cookieHandler() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<Duration> connectTimeout() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Redirect followRedirects() {
+			return Redirect.NEVER;
+		}
+
+		@Override
+		public Optional<ProxySelector> proxy() {
+			return Optional.empty();
+		}
+
+		@Override
+		public SSLContext sslContext() {
+			return null;
+		}
+
+		@Override
+		public SSLParameters sslParameters() {
+			return null;
+		}
+
+		@Override
+		public Optional<Authenticator> authenticator() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Version version() {
+			return Version.HTTP_1_1;
+		}
+
+		@Override
+		public Optional<Executor> executor() {
+			return Optional.empty();
+		}
+	}
+}
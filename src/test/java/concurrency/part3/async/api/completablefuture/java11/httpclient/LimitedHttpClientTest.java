@@ -0,0 +1,51 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part2.concurrent.api.AdaptiveConcurrencyLimiter;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+public class LimitedHttpClientTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** the stub answers 503 above 5 concurrent requests, the host limit learns it */
+	@Test
+	public void learnsTheServersCapacityPerHost() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder()
+				.route("/", Route.noContent().status(200).latency(Duration.ofMillis(5)).maxConcurrent(5)).start()) {
+			LimitedHttpClient client = new LimitedHttpClient(HttpClient.newHttpClient(),
+					() -> new AdaptiveConcurrencyLimiter.Aimd(100, 1, 100, 0.9, 1_000 * MS),
+					() -> new AdaptiveConcurrencyLimiter.Aimd(40, 1, 40, 0.5, 1_000 * MS), 10_000);
+			List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+			for (int i = 0; i < 400; i++) {
+				responses.add(client.sendAsync(HttpRequest.newBuilder(server.uri("/" + i)).build(),
+						HttpResponse.BodyHandlers.discarding()));
+			}
+			CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+
+			AdaptiveConcurrencyLimiter hostLimiter = client.getHostLimiter(LimitedHttpClient.hostKey(server.uri("/")));
+			assertTrue(server.getOverloadedCount() > 0);
+			assertTrue(hostLimiter.getDroppedCount() > 0);
+			assertTrue(hostLimiter.getLimit() < 40, client.getMetrics());
+			assertEquals(0, hostLimiter.getInFlight());
+			assertEquals(0, client.getGlobalLimiter().getInFlight());
+			assertEquals(0, client.getGlobalLimiter().getDroppedCount(), "one host's drops are not global");
+			assertEquals(100, client.getGlobalLimiter().getLimit());
+			assertTrue(hostLimiter.getQueueingDelay().getMax() > 0, "nobody queued");
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part3.async.api.completablefuture.java11.httpclient.LinkValidator.ExecutionStrategy;
+import concurrency.part3.async.api.completablefuture.java11.httpclient.LinkValidator.LinkResult;
+import concurrency.part3.async.api.completablefuture.java11.httpclient.LinkValidator.Outcome;
+import concurrency.part3.async.api.completablefuture.java11.httpclient.LinkValidator.Summary;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+/**
+ * Runs against a local stub server: /status/{code} answers with that code,
+ * /slow/{ms} answers 200 after ms.
+ */
+public class LinkValidatorTest {
+
+	private static StubHttpServer startStubServer() throws Exception {
+		StubHttpServer.Builder builder = StubHttpServer.newBuilder();
+		for (int status : new int[] { 200, 204, 404, 503 }) {
+			builder.route("/status/" + status, Route.noContent().status(status));
+		}
+		for (int ms : new int[] { 10, 2_000 }) {
+			builder.route("/slow/" + ms, Route.noContent().status(200).latency(Duration.ofMillis(ms)));
+		}
+		return builder.start();
+	}
+
+	@Test
+	public void everyStrategyReportsEveryOutcome() throws Exception {
+		try (StubHttpServer server = startStubServer()) {
+			String base = "http://localhost:" + server.getPort();
+			String input = String.join("\n", "# comment", base + "/status/200", "", base + "/status/204",
+					base + "/status/404", base + "/status/503", base + "/slow/2000", "http://bad host/",
+					"localhost:" + server.getPort() + "/status/200");
+			for (ExecutionStrategy strategy : ExecutionStrategy.values()) {
+				LinkValidator validator = LinkValidator.newBuilder().strategy(strategy).threads(2)
+						.requestTimeout(Duration.ofMillis(300)).build();
+				Map<Long, LinkResult> results = new ConcurrentHashMap<>();
+				Summary summary = validator.validate(new BufferedReader(new StringReader(input)),
+						result -> results.put(result.lineNumber(), result));
+
+				assertEquals(7, summary.getTotal(), strategy.name());
+				assertEquals(Set.of(2L, 4L, 5L, 6L, 7L, 8L, 9L), results.keySet(), strategy.name());
+				assertEquals(3, summary.getCount(Outcome.OK), strategy.name());
+				assertEquals(1, summary.getCount(Outcome.CLIENT_ERROR), strategy.name());
+				assertEquals(1, summary.getCount(Outcome.SERVER_ERROR), strategy.name());
+				assertEquals(1, summary.getCount(Outcome.TIMEOUT), strategy.name());
+				assertEquals(1, summary.getCount(Outcome.FAILED), strategy.name());
+				assertEquals(404, results.get(5L).statusCode());
+				assertEquals(Outcome.TIMEOUT, results.get(7L).outcome());
+				assertTrue(results.get(8L).toJson().contains("\"error\":"), results.get(8L).toJson());
+			}
+		}
+	}
+
+	@Test
+	public void readsAheadAtMostMaxInFlightLinks() throws Exception {
+		try (StubHttpServer server = startStubServer()) {
+			StringBuilder input = new StringBuilder();
+			for (int i = 0; i < 200; i++) {
+				input.append("http://localhost:").append(server.getPort()).append("/slow/10?").append(i).append('\n');
+			}
+			LinkValidator validator = LinkValidator.newBuilder().strategy(ExecutionStrategy.VIRTUAL_THREADS)
+					.maxInFlight(8).build();
+			AtomicInteger sunk = new AtomicInteger();
+			Summary summary = validator.validate(new BufferedReader(new StringReader(input.toString())),
+					result -> sunk.incrementAndGet());
+
+			assertEquals(200, sunk.get());
+			assertEquals(200, summary.getCount(Outcome.OK));
+			assertTrue(server.getMaxConcurrent() <= 8, "open requests: " + server.getMaxConcurrent());
+			assertTrue(server.getMaxConcurrent() > 1, "not concurrent: " + server.getMaxConcurrent());
+		}
+	}
+}
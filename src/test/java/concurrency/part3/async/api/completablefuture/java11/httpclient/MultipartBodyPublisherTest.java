@@ -0,0 +1,170 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class MultipartBodyPublisherTest {
+
+	private static final String BOUNDARY = "test-boundary";
+
+	@Test
+	void sameBytesAsReadAllBytesVersion() throws Exception {
+		Path file = Files.createTempFile("part", ".txt");
+		try {
+			Files.write(file, randomBytes(200_000));
+			Map<Object, Object> data = new LinkedHashMap<>();
+			data.put("description", "nightly build");
+			data.put("file", file);
+			data.put("count", 3);
+
+			byte[] expected = collect(FileUpload.ofMimeMultipartData(data, BOUNDARY), Long.MAX_VALUE);
+			BodyPublisher streaming = FileUpload.ofMimeMultipartDataStreaming(data, BOUNDARY);
+			assertArrayEquals(expected, collect(streaming, Long.MAX_VALUE));
+			assertEquals(expected.length, streaming.contentLength());
+			// one buffer per request(1), and a second subscription starts again
+			assertArrayEquals(expected, collect(streaming, 1));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void buffersAreReadOnDemand() throws Exception {
+		Path file = Files.createTempFile("part", ".bin");
+		try {
+			Files.write(file, randomBytes(10_000));
+			MultipartBodyPublisher body = MultipartBodyPublisher.newBuilder().boundary(BOUNDARY).chunkSize(1024)
+					.filePart("file", file).build();
+			List<ByteBuffer> received = new ArrayList<>();
+			AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+			body.subscribe(new Flow.Subscriber<ByteBuffer>() {
+				public void onSubscribe(Flow.Subscription s) {
+					subscription.set(s);
+				}
+
+				public void onNext(ByteBuffer item) {
+					received.add(item);
+				}
+
+				public void onError(Throwable throwable) {
+				}
+
+				public void onComplete() {
+				}
+			});
+			assertEquals(0, received.size());
+			subscription.get().request(1); // the header
+			subscription.get().request(1); // the first chunk
+			assertEquals(2, received.size());
+			assertEquals(1024, received.get(1).remaining());
+			subscription.get().cancel();
+			subscription.get().request(5);
+			assertEquals(2, received.size());
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	void uploadIsSentWithContentLength() throws Exception {
+		Path file = Files.createTempFile("part", ".bin");
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+		AtomicReference<String> contentLength = new AtomicReference<>();
+		AtomicReference<byte[]> received = new AtomicReference<>();
+		server.createContext("/upload", exchange -> {
+			contentLength.set(exchange.getRequestHeaders().getFirst("Content-Length"));
+			try (InputStream in = exchange.getRequestBody()) {
+				received.set(in.readAllBytes());
+			}
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		server.start();
+		try {
+			Files.write(file, randomBytes(1_000_000));
+			MultipartBodyPublisher body = MultipartBodyPublisher.newBuilder().boundary(BOUNDARY).direct(true)
+					.textPart("description", "upload").filePart("file", file).build();
+			HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+			HttpResponse<Void> response = client.send(
+					HttpRequest.newBuilder(URI.create("http://localhost:" + server.getAddress().getPort() + "/upload"))
+							.header("Content-Type", body.getContentType()).POST(body).build(),
+					HttpResponse.BodyHandlers.discarding());
+
+			assertEquals(204, response.statusCode());
+			assertEquals(String.valueOf(body.contentLength()), contentLength.get());
+			byte[] sent = collect(body, Long.MAX_VALUE);
+			assertArrayEquals(sent, received.get());
+			assertTrue(new String(sent, 0, 200).contains("filename=\"" + file.getFileName() + "\""));
+		} finally {
+			server.stop(0);
+			Files.delete(file);
+		}
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+
+	/** requests batch buffers at a time, again after each batch */
+	private static byte[] collect(BodyPublisher publisher, long batch) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompletableFuture<byte[]> done = new CompletableFuture<>();
+		publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+			private Flow.Subscription subscription;
+			private long left;
+
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				left = batch;
+				subscription.request(batch);
+			}
+
+			public void onNext(ByteBuffer item) {
+				byte[] bytes = new byte[item.remaining()];
+				item.get(bytes);
+				out.write(bytes, 0, bytes.length);
+				if (batch != Long.MAX_VALUE && --left == 0) {
+					left = batch;
+					subscription.request(batch);
+				}
+			}
+
+			public void onError(Throwable throwable) {
+				done.completeExceptionally(throwable);
+			}
+
+			public void onComplete() {
+				done.complete(out.toByteArray());
+			}
+		});
+		return done.get(10, TimeUnit.SECONDS);
+	}
+}
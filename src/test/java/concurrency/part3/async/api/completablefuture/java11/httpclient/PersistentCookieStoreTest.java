@@ -0,0 +1,204 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class PersistentCookieStoreTest {
+
+	/** a Clock whose time the test sets */
+	static final class ManualClock extends Clock {
+		volatile long millis = 1_000_000;
+
+		@Override
+		public long millis() {
+			return millis;
+		}
+
+		@Override
+		public Instant instant() {
+			return Instant.ofEpochMilli(millis);
+		}
+
+		@Override
+		public ZoneOffset getZone() {
+			return ZoneOffset.UTC;
+		}
+
+		@Override
+		public Clock withZone(java.time.ZoneId zone) {
+			return this;
+		}
+	}
+
+	private static HttpCookie cookie(String name, String domain, String path, long maxAge) {
+		HttpCookie cookie = new HttpCookie(name, name + "-value");
+		cookie.setDomain(domain);
+		cookie.setPath(path);
+		cookie.setMaxAge(maxAge);
+		return cookie;
+	}
+
+	private static Set<String> names(List<HttpCookie> cookies) {
+		return cookies.stream().map(HttpCookie::getName).collect(Collectors.toSet());
+	}
+
+	@Test
+	void matchesDomainSuffixesAndPathPrefixes() throws Exception {
+		Path journal = Files.createTempFile("cookies", ".journal");
+		try (PersistentCookieStore store = PersistentCookieStore.newBuilder(journal).shutdownHook(false).build()) {
+			URI origin = URI.create("https://shop.example.com/");
+			store.add(origin, cookie("root", ".example.com", "/", 3600));
+			store.add(origin, cookie("shop", "shop.example.com", "/", -1));
+			store.add(origin, cookie("cart", "shop.example.com", "/cart", 3600));
+			store.add(origin, cookie("cartDir", "shop.example.com", "/cart/", 3600));
+			store.add(origin, cookie("other", "other.com", "/", 3600));
+
+			assertEquals(Set.of("root", "shop", "cart", "cartDir"),
+					names(store.get(URI.create("https://a.shop.example.com/cart/items"))));
+			assertEquals(Set.of("root", "shop", "cart"), names(store.get(URI.create("https://shop.example.com/cart"))));
+			assertEquals(Set.of("root", "shop"), names(store.get(URI.create("https://shop.example.com/carts"))));
+			assertEquals(Set.of("root"), names(store.get(URI.create("https://example.com"))));
+			assertEquals(5, store.getCookies().size());
+
+			assertTrue(store.remove(origin, cookie("cart", "shop.example.com", "/cart", 3600)));
+			assertEquals(Set.of("root", "shop", "cartDir"),
+					names(store.get(URI.create("https://shop.example.com/cart/x"))));
+			store.add(origin, cookie("root", ".example.com", "/", 0)); // Max-Age=0 deletes
+			assertEquals(Set.of("shop"), names(store.get(URI.create("https://shop.example.com/"))));
+		} finally {
+			Files.deleteIfExists(journal);
+		}
+	}
+
+	@Test
+	void expiredCookiesAreDroppedAndPersistentOnesSurviveARestart() throws Exception {
+		Path journal = Files.createTempFile("cookies", ".journal");
+		ManualClock clock = new ManualClock();
+		try {
+			URI origin = URI.create("https://example.com/");
+			try (PersistentCookieStore store = PersistentCookieStore.newBuilder(journal).clock(clock)
+					.flushInterval(Duration.ofMillis(10)).compactAfter(5).shutdownHook(false).build()) {
+				store.add(origin, cookie("short", "example.com", "/", 10));
+				store.add(origin, cookie("long", "example.com", "/", 3600));
+				store.add(origin, cookie("session", "example.com", "/", -1));
+				for (int i = 0; i < 20; i++) { // grows the journal past compactAfter
+					store.add(origin, cookie("churn", "example.com", "/", 3600));
+				}
+				store.add(origin, cookie("churn", "example.com", "/", 0));
+				store.flush();
+
+				clock.millis += 11_000;
+				assertEquals(Set.of("long", "session"), names(store.get(origin)));
+			}
+			long lines = Files.readAllLines(journal).size();
+			assertTrue(lines < 24, "journal was not compacted: " + lines);
+
+			try (PersistentCookieStore restarted = PersistentCookieStore.newBuilder(journal).clock(clock)
+					.shutdownHook(false).build()) {
+				List<HttpCookie> cookies = restarted.get(URI.create("https://www.example.com/a"));
+				assertEquals(Set.of("long"), names(cookies));
+				assertEquals("long-value", cookies.get(0).getValue());
+				assertEquals(3589, cookies.get(0).getMaxAge());
+				assertEquals(List.of(URI.create("https://example.com")), restarted.getURIs());
+			}
+			assertEquals(1, Files.readAllLines(journal).size());
+		} finally {
+			Files.deleteIfExists(journal);
+		}
+	}
+
+	@Test
+	void aReplayAfterRemoveAllRacingAddsMatchesMemory() throws Exception {
+		Path journal = Files.createTempFile("cookies", ".journal");
+		try {
+			Set<String> inMemory;
+			try (PersistentCookieStore store = PersistentCookieStore.newBuilder(journal).shutdownHook(false).build()) {
+				List<Thread> adders = new ArrayList<>();
+				for (int t = 0; t < 4; t++) {
+					int id = t;
+					adders.add(Thread.ofPlatform().start(() -> {
+						for (int i = 0; i < 20_000; i++) {
+							String domain = "d" + (i % 16) + ".example.com";
+							store.add(URI.create("https://" + domain + "/"), cookie("c" + id + "-" + i, domain, "/", 3600));
+						}
+					}));
+				}
+				for (int i = 0; i < 200; i++) {
+					store.removeAll();
+					Thread.yield();
+				}
+				for (Thread adder : adders) {
+					adder.join();
+				}
+				inMemory = names(store.getCookies());
+				store.flush();
+			}
+
+			try (PersistentCookieStore replayed = PersistentCookieStore.newBuilder(journal).shutdownHook(false)
+					.build()) {
+				assertEquals(inMemory, names(replayed.getCookies()));
+			}
+		} finally {
+			Files.deleteIfExists(journal);
+		}
+	}
+
+	@Test
+	void worksAsTheStoreOfTheHttpClientCookieManager() throws Exception {
+		Path journal = Files.createTempFile("cookies", ".journal");
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 16);
+		AtomicReference<String> sentCookie = new AtomicReference<>();
+		server.createContext("/login", exchange -> {
+			exchange.getResponseHeaders().add("Set-Cookie", "token=abc; Max-Age=600; Path=/");
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		server.createContext("/me", exchange -> {
+			sentCookie.set(exchange.getRequestHeaders().getFirst("Cookie"));
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		});
+		server.start();
+		try (PersistentCookieStore store = PersistentCookieStore.newBuilder(journal).shutdownHook(false).build()) {
+			HttpClient client = HttpClient.newBuilder()
+					.cookieHandler(new CookieManager(store, CookiePolicy.ACCEPT_ALL)).build();
+			String base = "http://localhost:" + server.getAddress().getPort();
+			client.send(HttpRequest.newBuilder(URI.create(base + "/login")).build(),
+					HttpResponse.BodyHandlers.discarding());
+			client.send(HttpRequest.newBuilder(URI.create(base + "/me")).build(),
+					HttpResponse.BodyHandlers.discarding());
+
+			// Max-Age makes HttpCookie an RFC 2965 cookie: $Version="1"; token="abc";$Path="/";...
+			assertTrue(sentCookie.get().contains("token=\"abc\""), sentCookie.get());
+			store.flush();
+			assertTrue(Files.readString(journal).contains("token"));
+		} finally {
+			server.stop(0);
+			Files.deleteIfExists(journal);
+		}
+	}
+}
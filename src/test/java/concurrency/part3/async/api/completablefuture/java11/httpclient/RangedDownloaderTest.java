@@ -0,0 +1,194 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import concurrency.part3.async.api.completablefuture.java11.httpclient.RangedDownloader.DownloadResult;
+
+/**
+ * Local stub: /file answers HEAD and single Range requests, /plain ignores
+ * ranges. A request for the range starting at failingStart gets a 500.
+ * Without etag, /file sends no validator at all.
+ */
+public class RangedDownloaderTest {
+
+	private static final int CHUNK = 64 * 1024;
+
+	private final byte[] content = new byte[1_000_000];
+	private final AtomicInteger rangeRequests = new AtomicInteger();
+	private final AtomicInteger open = new AtomicInteger();
+	private final AtomicInteger maxOpen = new AtomicInteger();
+	private volatile long failingStart = -1;
+	private volatile boolean etag = true;
+
+	private HttpServer startStubServer() throws IOException {
+		new Random(42).nextBytes(content);
+		HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 128);
+		server.createContext("/file", exchange -> {
+			maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+			try {
+				exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+				if (etag) {
+					exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				}
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				if ("HEAD".equals(exchange.getRequestMethod())) {
+					exchange.getResponseHeaders().add("Content-Length", String.valueOf(content.length));
+					exchange.sendResponseHeaders(200, -1);
+				} else if (range == null) {
+					send(exchange, 200, 0, content.length);
+				} else {
+					rangeRequests.incrementAndGet();
+					String[] bounds = range.substring("bytes=".length()).split("-");
+					int start = Integer.parseInt(bounds[0]);
+					int end = Integer.parseInt(bounds[1]) + 1;
+					if (start == failingStart) {
+						exchange.sendResponseHeaders(500, -1);
+					} else {
+						Thread.sleep(10);
+						exchange.getResponseHeaders().add("Content-Range",
+								"bytes " + start + "-" + (end - 1) + "/" + content.length);
+						send(exchange, 206, start, end);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				open.decrementAndGet();
+				exchange.close();
+			}
+		});
+		server.createContext("/plain", exchange -> {
+			if ("HEAD".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(200, -1);
+			} else {
+				send(exchange, 200, 0, content.length);
+			}
+			exchange.close();
+		});
+		server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+		server.start();
+		return server;
+	}
+
+	private void send(HttpExchange exchange, int status, int start, int end) throws IOException {
+		exchange.sendResponseHeaders(status, end - start);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(content, start, end - start);
+		}
+	}
+
+	private RangedDownloader newDownloader() {
+		return RangedDownloader.newBuilder(HttpClient.newHttpClient()).parallelism(4).chunkSize(CHUNK).retries(0)
+				.build();
+	}
+
+	@Test
+	public void downloadsRangesInParallel() throws Exception {
+		HttpServer server = startStubServer();
+		Path dir = Files.createTempDirectory("ranged");
+		try {
+			Path target = dir.resolve("file.bin");
+			DownloadResult result = newDownloader()
+					.download(URI.create("http://localhost:" + server.getAddress().getPort() + "/file"), target);
+
+			assertTrue(result.ranged());
+			assertEquals(16, result.chunks()); // 1_000_000 / 64k rounded up
+			assertEquals(16, rangeRequests.get());
+			assertTrue(maxOpen.get() > 1, "not parallel");
+			assertArrayEquals(content, Files.readAllBytes(target));
+			assertFalse(Files.exists(dir.resolve("file.bin.part")));
+			assertFalse(Files.exists(dir.resolve("file.bin.part.journal")));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void resumesOnlyMissingAndCorruptChunks() throws Exception {
+		HttpServer server = startStubServer();
+		Path dir = Files.createTempDirectory("ranged");
+		URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/file");
+		Path target = dir.resolve("file.bin");
+		try {
+			failingStart = 3 * CHUNK;
+			assertThrows(IOException.class, () -> newDownloader().download(uri, target));
+			assertTrue(Files.exists(dir.resolve("file.bin.part.journal")));
+			assertFalse(Files.exists(target));
+
+			// a finished chunk damaged on disk
+			try (RandomAccessFile part = new RandomAccessFile(dir.resolve("file.bin.part").toFile(), "rw")) {
+				part.seek(5 * CHUNK + 7);
+				part.write(~content[5 * CHUNK + 7]);
+			}
+			failingStart = -1;
+			rangeRequests.set(0);
+			DownloadResult result = newDownloader().download(uri, target);
+
+			assertEquals(14, result.resumedChunks());
+			assertEquals(2, rangeRequests.get());
+			assertArrayEquals(content, Files.readAllBytes(target));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void withoutValidatorNothingIsResumed() throws Exception {
+		HttpServer server = startStubServer();
+		Path dir = Files.createTempDirectory("ranged");
+		URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/file");
+		Path target = dir.resolve("file.bin");
+		try {
+			etag = false;
+			failingStart = 3 * CHUNK;
+			assertThrows(IOException.class, () -> newDownloader().download(uri, target));
+
+			// the file may have changed meanwhile, nothing would notice
+			failingStart = -1;
+			rangeRequests.set(0);
+			DownloadResult result = newDownloader().download(uri, target);
+
+			assertEquals(0, result.resumedChunks());
+			assertEquals(16, rangeRequests.get());
+			assertArrayEquals(content, Files.readAllBytes(target));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void serverWithoutRangesGetsOneStream() throws Exception {
+		HttpServer server = startStubServer();
+		Path target = Files.createTempDirectory("ranged").resolve("plain.bin");
+		try {
+			DownloadResult result = newDownloader()
+					.download(URI.create("http://localhost:" + server.getAddress().getPort() + "/plain"), target);
+
+			assertFalse(result.ranged());
+			assertArrayEquals(content, Files.readAllBytes(target));
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package concurrency.part3.async.api.completablefuture.java11.httpclient.sockets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part3.async.api.completablefuture.java11.httpclient.sockets.EchoBenchmark.Result;
+import concurrency.part3.async.api.completablefuture.java11.httpclient.sockets.EchoServer.Mode;
+
+public class EchoServerTest {
+
+	@Test
+	public void bothModesEchoManyConnectionsAtOnce() throws Exception {
+		for (Mode mode : Mode.values()) {
+			try (EchoServer server = EchoServer.newBuilder().mode(mode).port(0).reactors(2).start()) {
+				Result result = EchoBenchmark.run(server, mode, 200, 5, 100);
+
+				assertEquals(200, result.connected(), mode.name());
+				assertEquals(200, result.serverConnections(), mode.name());
+				assertEquals(0, result.errors(), mode.name());
+				assertEquals(1000, result.roundTrips(), mode.name());
+				assertEquals(1000 * 100, server.getBytesEchoed(), mode.name());
+			}
+		}
+	}
+
+	@Test
+	public void aClientReadingLateGetsEveryByteBack() throws Exception {
+		byte[] data = new byte[4 * 1024 * 1024];
+		ThreadLocalRandom.current().nextBytes(data);
+		for (Mode mode : Mode.values()) {
+			// far more than the socket buffers hold: the server's writes are partial until the client reads
+			try (EchoServer server = EchoServer.newBuilder().mode(mode).port(0).bufferSize(1024).start();
+					Socket socket = new Socket("localhost", server.getPort())) {
+				Thread writer = Thread.ofVirtual().start(() -> {
+					try {
+						OutputStream out = socket.getOutputStream();
+						out.write(data);
+						out.flush();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				});
+				Thread.sleep(200);
+				InputStream in = socket.getInputStream();
+				byte[] echo = in.readNBytes(data.length);
+				writer.join();
+
+				assertArrayEquals(data, echo, mode.name());
+				assertEquals(data.length, server.getBytesEchoed(), mode.name());
+			}
+		}
+	}
+}
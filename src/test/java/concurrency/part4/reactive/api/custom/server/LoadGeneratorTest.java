@@ -0,0 +1,121 @@
+package concurrency.part4.reactive.api.custom.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part2.concurrent.api.LatencyHistogram;
+import concurrency.part4.reactive.api.custom.server.LoadGenerator.Mode;
+import concurrency.part4.reactive.api.custom.server.LoadGenerator.Result;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+public class LoadGeneratorTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void recordCorrectedAddsTheRequestsAStallHeldBack() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.recordCorrected(1000 * MS, 10 * MS);
+		assertEquals(100, histogram.getCount()); // 1000, 990, ... 10ms
+		assertEquals(1000 * MS, histogram.getMax());
+
+		LatencyHistogram fast = new LatencyHistogram();
+		fast.recordCorrected(5 * MS, 10 * MS);
+		assertEquals(1, fast.getCount());
+	}
+
+	@Test
+	public void openLoopKeepsTheScheduleAndMeasuresFromTheDueTime() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder().route("/serve", Route.ok("ok")).start()) {
+			Thread pause = Thread.ofPlatform().start(() -> {
+				try {
+					Thread.sleep(700);
+					server.pauseFor(Duration.ofMillis(300));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			Result result = LoadGenerator.newBuilder(server.uri("/serve")).rate(50).warmup(Duration.ofMillis(200))
+					.duration(Duration.ofSeconds(1)).reportInterval(Duration.ofMillis(500)).reporter(report -> {
+					}).build().run();
+			pause.join();
+
+			assertEquals(60, result.sent()); // 1.2s x 50 rps, whatever the pause
+			assertEquals(50, result.completed());
+			assertEquals(0, result.errors());
+			// the requests due during the pause waited for it
+			assertTrue(result.latency().getMax() >= 200 * MS, result.toString());
+			assertTrue(result.latency().getValueAtPercentile(50) < 200 * MS, result.toString());
+			assertTrue(result.intervals().size() >= 2, result.intervals().toString());
+		}
+	}
+
+	@Test
+	public void closedLoopCorrectionAddsTheSkippedSends() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder().route("/serve", Route.ok("ok")).start()) {
+			Thread pause = Thread.ofPlatform().start(() -> {
+				try {
+					Thread.sleep(500);
+					server.pauseFor(Duration.ofMillis(300));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+			Result result = LoadGenerator.newBuilder(server.uri("/serve")).mode(Mode.CLOSED).connections(1).rate(50)
+					.warmup(Duration.ZERO).duration(Duration.ofSeconds(1)).reporter(report -> {
+					}).build().run();
+			pause.join();
+
+			// 300ms stall at one send per 20ms: ~14 sends skipped, put back by the correction
+			assertTrue(result.sent() < 45, result.toString());
+			assertTrue(result.latency().getCount() >= result.service().getCount() + 10, result.toString());
+		}
+	}
+
+	@Test
+	public void errorsAreTimedApartAndImpossibleRatesRejected() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder().route("/down", Route.ok("never").errorRate(1, 503))
+				.start()) {
+			Result result = LoadGenerator.newBuilder(server.uri("/down")).rate(50).warmup(Duration.ZERO)
+					.duration(Duration.ofMillis(200)).reporter(report -> {
+					}).build().run();
+
+			assertEquals(10, result.errors());
+			assertEquals(10, result.errorLatency().getCount());
+			assertEquals(0, result.latency().getCount(), "errors are not latency samples");
+		}
+		assertThrows(IllegalArgumentException.class, () -> LoadGenerator.newBuilder(URI.create("http://localhost/"))
+				.rate(2e9));
+	}
+
+	@Test
+	public void theScheduleDoesNotDriftAndAFailedSendGivesItsPermitBack() throws Exception {
+		assertEquals(1_000_000_000L, LoadGenerator.offsetNanos(300_000_000, 3e8)); // not 300M x 3ns
+		assertEquals(333_333_333L, LoadGenerator.offsetNanos(1, 3));
+
+		try (StubHttpServer server = StubHttpServer.newBuilder().route("/serve", Route.ok("ok")).start()) {
+			AtomicInteger requests = new AtomicInteger();
+			HttpRequest ok = HttpRequest.newBuilder(server.uri("/serve")).build();
+			Result result = LoadGenerator.newBuilder(() -> {
+				if (requests.incrementAndGet() % 2 == 0) {
+					throw new IllegalArgumentException("bad request");
+				}
+				return ok;
+			}).rate(50).maxInFlight(1).warmup(Duration.ZERO).duration(Duration.ofMillis(200)).reporter(report -> {
+			}).build().run();
+
+			assertEquals(10, result.sent());
+			assertEquals(5, result.completed());
+			assertEquals(5, result.errors());
+		}
+	}
+}
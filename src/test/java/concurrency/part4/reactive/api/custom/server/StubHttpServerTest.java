@@ -0,0 +1,71 @@
+package concurrency.part4.reactive.api.custom.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Mode;
+import concurrency.part4.reactive.api.custom.server.StubHttpServer.Route;
+
+public class StubHttpServerTest {
+
+	private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+	@Test
+	public void servesRoutesWithContentLengthAndInjectedFailures() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder().route("/hello", Route.ok("hello").header("X-Stub", "1"))
+				.route("/big", Route.ofSize(100_000)).route("/down", Route.ok("never").errorRate(1, 503))
+				.route("/reset", Route.ok("never").resetRate(1)).route("/upload", Route.noContent()).start()) {
+			HttpResponse<String> hello = client.send(HttpRequest.newBuilder(server.uri("/hello")).build(),
+					HttpResponse.BodyHandlers.ofString());
+			assertEquals("hello", hello.body());
+			assertEquals("5", hello.headers().firstValue("Content-Length").orElse(null));
+			assertEquals("1", hello.headers().firstValue("X-Stub").orElse(null));
+
+			assertEquals(100_000, client.send(HttpRequest.newBuilder(server.uri("/big")).build(),
+					HttpResponse.BodyHandlers.ofByteArray()).body().length);
+			assertEquals(503, client.send(HttpRequest.newBuilder(server.uri("/down")).build(),
+					HttpResponse.BodyHandlers.discarding()).statusCode());
+			assertThrows(IOException.class, () -> client.send(HttpRequest.newBuilder(server.uri("/reset")).build(),
+					HttpResponse.BodyHandlers.discarding()));
+			assertEquals(204, client.send(HttpRequest.newBuilder(server.uri("/upload"))
+					.POST(HttpRequest.BodyPublishers.ofByteArray(new byte[12_345])).build(),
+					HttpResponse.BodyHandlers.discarding()).statusCode());
+
+			assertEquals(12_345, server.getBytesReceived());
+			assertEquals(1, server.getRequestCount("/down"));
+			// the HttpClient retries a GET once when a reused connection is closed on it
+			assertTrue(server.getRequestCount("/reset") >= 1);
+			assertEquals(4 + server.getRequestCount("/reset"), server.getRequestCount());
+		}
+	}
+
+	@Test
+	public void fixedPoolBoundsConcurrentRequests() throws Exception {
+		try (StubHttpServer server = StubHttpServer.newBuilder().mode(Mode.FIXED).threads(2)
+				.route("/slow", Route.ok("slow").latency(Duration.ofMillis(50))).start()) {
+			List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+			long start = System.nanoTime();
+			for (int i = 0; i < 8; i++) {
+				responses.add(client.sendAsync(HttpRequest.newBuilder(server.uri("/slow")).build(),
+						HttpResponse.BodyHandlers.discarding()));
+			}
+			CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+			long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+			assertEquals(2, server.getMaxConcurrent());
+			assertTrue(elapsedMs >= 200, "8 requests x 50ms on 2 threads took " + elapsedMs + "ms");
+		}
+	}
+}
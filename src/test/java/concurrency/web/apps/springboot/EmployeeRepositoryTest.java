@@ -0,0 +1,76 @@
+package concurrency.web.apps.springboot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import io.r2dbc.spi.ConnectionFactories;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+public class EmployeeRepositoryTest {
+
+	@Test
+	public void nextPageIsQueriedOnlyOnDemand() {
+		List<Employee> employees = EmployeeRepository.sampleEmployees(25);
+		AtomicInteger pageQueries = new AtomicInteger();
+		Flux<Employee> all = EmployeeRepository.streamPages((afterId, limit) -> {
+			pageQueries.incrementAndGet();
+			int from = afterId == null ? 0 : Integer.parseInt(afterId);
+			return Flux.fromIterable(employees.subList(from, Math.min(from + limit, employees.size())));
+		}, 10);
+
+		StepVerifier.create(all, 5)
+				.expectNextCount(5)
+				.then(() -> assertEquals(1, pageQueries.get()))
+				.thenRequest(10)
+				.expectNextCount(10)
+				.then(() -> assertEquals(2, pageQueries.get()))
+				.thenRequest(Long.MAX_VALUE)
+				.expectNextCount(10)
+				.verifyComplete();
+		assertEquals(3, pageQueries.get());
+	}
+
+	@Test
+	public void inMemoryRepositoryStreamsAllEmployeesInIdOrder() {
+		InMemoryEmployeeRepository repository = new InMemoryEmployeeRepository(100);
+		verifyRepository(repository);
+	}
+
+	@Test
+	public void r2dbcRepositoryStreamsAllEmployeesInIdOrder() {
+		DatabaseClient client = DatabaseClient
+				.create(ConnectionFactories.get("r2dbc:h2:mem:///employee-test;DB_CLOSE_DELAY=-1"));
+		R2dbcEmployeeRepository repository = new R2dbcEmployeeRepository(client, 100);
+		repository.initialize().block();
+		verifyRepository(repository);
+	}
+
+	private void verifyRepository(EmployeeRepository repository) {
+		Flux.fromIterable(EmployeeRepository.sampleEmployees(1_050)).concatMap(repository::add).blockLast();
+
+		StepVerifier.create(repository.count()).expectNext(1_050L).verifyComplete();
+
+		List<String> ids = repository.findAllEmployees().map(Employee::id).collectList().block();
+		assertEquals(1_050, ids.size());
+		List<String> sorted = new ArrayList<>(ids);
+		sorted.sort(null);
+		assertEquals(sorted, ids);
+
+		StepVerifier.create(repository.findEmployeeById("87"))
+				.expectNextMatches(employee -> employee.name().equals("Injir"))
+				.verifyComplete();
+		StepVerifier.create(repository.findEmployeeById("unknown")).verifyComplete();
+		StepVerifier.create(repository.findEmployeesByName("Alma")).expectNextCount(131).verifyComplete();
+
+		repository.add(new Employee("87", "Alma", "40")).block();
+		StepVerifier.create(repository.findEmployeesByName("Alma")).expectNextCount(132).verifyComplete();
+		StepVerifier.create(repository.count()).expectNext(1_050L).verifyComplete();
+	}
+}